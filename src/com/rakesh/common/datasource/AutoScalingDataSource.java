@@ -0,0 +1,468 @@
+package com.rakesh.common.datasource;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * DataSource wrapper which sizes the pool of a {@link BasicDataSource} to the
+ * load. Every interval it looks at the time callers waited for a connection,
+ * the ratio of active connections to maxActive and, when a ceiling is set, the
+ * query latency, and then:
+ * <ul>
+ * <li>grows maxActive by one step when callers waited or the pool was nearly
+ * full for two intervals in a row, unless latency is above its ceiling which
+ * means the database is the bottleneck,</li>
+ * <li>shrinks maxActive by one step when the pool was mostly unused for
+ * shrinkAfter intervals in a row,</li>
+ * <li>keeps idle connections ahead of demand through the minIdle of the pool,
+ * so the pool's evictor opens them on its own thread and callers don't pay
+ * connect latency.</li>
+ * </ul>
+ * Separate high and low watermarks and the interval counts give hysteresis, so
+ * the pool does not flap. The pool starts at its configured maxActive, which
+ * must be positive, and may grow up to autoScaleMaxActive. Created by
+ * {@link BasicDataSourceFactory} when the <code>autoScale</code> property is
+ * true; the other properties are:
+ * 
+ * <pre>
+ * autoScaleMinActive           lower bound of maxActive (default: minIdle or 1)
+ * autoScaleMaxActive           upper bound of maxActive (default: twice maxActive)
+ * autoScaleStep                connections added or removed at once (default 2)
+ * autoScaleIntervalMillis      interval of the controller (default 1000)
+ * autoScaleWaitMillis          average wait that triggers growth (default 5)
+ * autoScaleHighWatermark       active ratio that triggers growth (default 0.8)
+ * autoScaleLowWatermark        active ratio below which pool shrinks (default 0.3)
+ * autoScaleShrinkAfter         intervals below low watermark before shrinking (default 30)
+ * autoScaleIdleHeadroom        idle connections kept ready (default: step)
+ * autoScaleMaxLatencyMillis    average latency above which pool doesn't grow (default 0, off)
+ * </pre>
+ * 
+ * When the pool has no eviction interval it is set to the interval of the
+ * controller, so the idle headroom is kept. maxIdle follows the size of the
+ * pool, up to the maxIdle configured on it.
+ * 
+ * When autoScaleMaxLatencyMillis is set, the statements created on the
+ * connections of this data source are timed and their executions reported to
+ * {@link #recordQueryLatency(long)}.
+ * 
+ * @author rakesh
+ */
+public class AutoScalingDataSource implements DataSource {
+
+	private static final Log logger = LogFactory.getLog(AutoScalingDataSource.class);
+
+	static final String PROP_AUTOSCALE = "autoScale";
+	static final String PROP_MINACTIVE = "autoScaleMinActive";
+	static final String PROP_MAXACTIVE = "autoScaleMaxActive";
+	static final String PROP_STEP = "autoScaleStep";
+	static final String PROP_INTERVALMILLIS = "autoScaleIntervalMillis";
+	static final String PROP_WAITMILLIS = "autoScaleWaitMillis";
+	static final String PROP_HIGHWATERMARK = "autoScaleHighWatermark";
+	static final String PROP_LOWWATERMARK = "autoScaleLowWatermark";
+	static final String PROP_SHRINKAFTER = "autoScaleShrinkAfter";
+	static final String PROP_IDLEHEADROOM = "autoScaleIdleHeadroom";
+	static final String PROP_MAXLATENCYMILLIS = "autoScaleMaxLatencyMillis";
+
+	static final String[] ALL_PROPERTIES = { PROP_AUTOSCALE, PROP_MINACTIVE,
+			PROP_MAXACTIVE, PROP_STEP, PROP_INTERVALMILLIS, PROP_WAITMILLIS,
+			PROP_HIGHWATERMARK, PROP_LOWWATERMARK, PROP_SHRINKAFTER,
+			PROP_IDLEHEADROOM, PROP_MAXLATENCYMILLIS };
+
+	private static final int GROW_AFTER = 2;
+
+	private final DataSource source;
+	private final Pool pool;
+	private final ScheduledExecutorService controller;
+
+	private final int minActive;
+	private final int maxActive;
+	private final int step;
+	private final long waitThresholdNanos;
+	private final double highWatermark;
+	private final double lowWatermark;
+	private final int shrinkAfter;
+	private final int idleHeadroom;
+	// minIdle configured on the pool, kept as the floor of the headroom
+	private final int minIdle;
+	// maxIdle configured on the pool, negative for no limit
+	private final int maxIdle;
+	private final long maxLatencyNanos;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	// controller state, only used by the controller thread
+	private int busyIntervals;
+	private int idleIntervals;
+
+	public AutoScalingDataSource(final BasicDataSource delegate,
+			final Properties properties) {
+		this(delegate, new BasicPool(delegate), properties);
+	}
+
+	AutoScalingDataSource(final DataSource delegate, final Pool pool,
+			final Properties properties) {
+		this.source = delegate;
+		this.pool = pool;
+		int configured = pool.getMaxActive();
+		if (configured <= 0)
+			throw new IllegalArgumentException(
+					"Auto scaling needs a positive maxActive, was "
+							+ configured);
+		this.minIdle = pool.getMinIdle();
+		this.maxIdle = pool.getMaxIdle();
+		this.minActive = intProperty(properties, PROP_MINACTIVE,
+				Math.max(1, minIdle));
+		this.maxActive = intProperty(properties, PROP_MAXACTIVE,
+				2 * configured);
+		this.step = intProperty(properties, PROP_STEP, 2);
+		this.waitThresholdNanos = TimeUnit.MILLISECONDS.toNanos(intProperty(
+				properties, PROP_WAITMILLIS, 5));
+		this.highWatermark = doubleProperty(properties, PROP_HIGHWATERMARK,
+				0.8);
+		this.lowWatermark = doubleProperty(properties, PROP_LOWWATERMARK, 0.3);
+		this.shrinkAfter = intProperty(properties, PROP_SHRINKAFTER, 30);
+		this.idleHeadroom = intProperty(properties, PROP_IDLEHEADROOM, step);
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(intProperty(
+				properties, PROP_MAXLATENCYMILLIS, 0));
+		if (minActive > maxActive)
+			throw new IllegalArgumentException(PROP_MINACTIVE + " "
+					+ minActive + " is above " + PROP_MAXACTIVE + " "
+					+ maxActive);
+		if (step <= 0)
+			throw new IllegalArgumentException(PROP_STEP
+					+ " must be positive, was " + step);
+
+		// start at the configured size within bounds
+		int current = Math.max(minActive, Math.min(maxActive, configured));
+		pool.setMaxActive(current);
+		pool.setMaxIdle(idleLimit(current));
+		long interval = intProperty(properties, PROP_INTERVALMILLIS, 1000);
+		// the evictor opens the idle headroom
+		if (pool.getTimeBetweenEvictionRunsMillis() <= 0)
+			pool.setTimeBetweenEvictionRunsMillis(interval);
+		pool.setMinIdle(headroom(current));
+
+		this.controller = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "pool-autoscaler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		controller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					adjust();
+				} catch (RuntimeException e) {
+					logger.error("Pool auto scaling failed", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long t = System.nanoTime();
+		Connection c = source.getConnection();
+		borrowed(t);
+		return timed(c);
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		long t = System.nanoTime();
+		Connection c = source.getConnection(username, password);
+		borrowed(t);
+		return timed(c);
+	}
+
+	private void borrowed(long start) {
+		waitNanos.addAndGet(System.nanoTime() - start);
+		borrows.incrementAndGet();
+	}
+
+	/**
+	 * returns the connection with its statements timed when the latency
+	 * ceiling is set, otherwise the connection itself.
+	 */
+	private Connection timed(Connection c) {
+		if (maxLatencyNanos <= 0)
+			return c;
+		return (Connection) Proxy.newProxyInstance(
+				AutoScalingDataSource.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new Timing(c));
+	}
+
+	/**
+	 * reports latency of a query which ran on a connection of this pool, the
+	 * connections of this data source report their statements on their own.
+	 */
+	public void recordQueryLatency(long nanos) {
+		latencyNanos.addAndGet(nanos);
+		queries.incrementAndGet();
+	}
+
+	/**
+	 * returns the wrapped data source.
+	 */
+	public BasicDataSource getSource() {
+		return (BasicDataSource) source;
+	}
+
+	/**
+	 * one run of the controller.
+	 */
+	void adjust() {
+		long n = borrows.getAndSet(0);
+		long avgWait = n == 0 ? 0 : waitNanos.getAndSet(0) / n;
+		long q = queries.getAndSet(0);
+		long avgLatency = q == 0 ? 0 : latencyNanos.getAndSet(0) / q;
+
+		int current = pool.getMaxActive();
+		int active = pool.getNumActive();
+		double ratio = current <= 0 ? 0 : (double) active / current;
+
+		boolean busy = avgWait > waitThresholdNanos || ratio >= highWatermark;
+		boolean saturated = maxLatencyNanos > 0 && avgLatency > maxLatencyNanos;
+		busyIntervals = busy ? busyIntervals + 1 : 0;
+		idleIntervals = ratio < lowWatermark ? idleIntervals + 1 : 0;
+
+		if (busyIntervals >= GROW_AFTER && !saturated && current < maxActive) {
+			resize(current, Math.min(maxActive, current + step), avgWait,
+					ratio);
+			busyIntervals = 0;
+		} else if (idleIntervals >= shrinkAfter && current > minActive) {
+			resize(current, Math.max(minActive, current - step), avgWait,
+					ratio);
+			idleIntervals = 0;
+		}
+	}
+
+	private void resize(int from, int to, long avgWait, double ratio) {
+		if (logger.isInfoEnabled())
+			logger.info("Resizing pool from " + from + " to " + to
+					+ " connections (avg wait "
+					+ TimeUnit.NANOSECONDS.toMicros(avgWait)
+					+ "us, active ratio " + ratio + ")");
+		if (to > from) {
+			pool.setMaxActive(to);
+			pool.setMaxIdle(idleLimit(to));
+		} else {
+			pool.setMaxIdle(idleLimit(to));
+			pool.setMaxActive(to);
+		}
+		pool.setMinIdle(headroom(to));
+	}
+
+	/**
+	 * returns maxIdle of a pool of the given size: the size, at most the
+	 * configured maxIdle.
+	 */
+	private int idleLimit(int size) {
+		return maxIdle < 0 ? size : Math.min(size, maxIdle);
+	}
+
+	/**
+	 * returns minIdle of a pool of the given size: the idle headroom, at least
+	 * the configured minIdle and at most maxIdle. The evictor creates idle
+	 * connections up to it without borrowing them, and never beyond
+	 * maxActive.
+	 */
+	private int headroom(int size) {
+		return Math.min(idleLimit(size), Math.max(minIdle, idleHeadroom));
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return source.getLoginTimeout();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return source.getLogWriter();
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		source.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		source.setLogWriter(out);
+	}
+
+	/**
+	 * stops the controller and closes the pool.
+	 */
+	public void close() throws SQLException {
+		controller.shutdownNow();
+		pool.close();
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		return iface.isInstance(source);
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		if (iface.isInstance(source))
+			return iface.cast(source);
+		throw new SQLException("AutoScalingDataSource is not a wrapper for " + iface.getName());
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException("Datasource uses commons logging not Java Logging...");
+	}
+
+	private static int intProperty(Properties p, String name, int defaultValue) {
+		String value = p.getProperty(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	private static double doubleProperty(Properties p, String name, double defaultValue) {
+		String value = p.getProperty(name);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+
+	/**
+	 * reports the executions of the statements created on a connection to
+	 * {@link #recordQueryLatency(long)}.
+	 */
+	private final class Timing implements InvocationHandler {
+		private final Object target;
+
+		Timing(Object target) {
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			boolean execute = target instanceof Statement
+					&& name.startsWith("execute");
+			long t = execute ? System.nanoTime() : 0;
+			Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				if (execute)
+					recordQueryLatency(System.nanoTime() - t);
+			}
+			Class<?> type = method.getReturnType();
+			if (result != null && Statement.class.isAssignableFrom(type))
+				return Proxy.newProxyInstance(
+						AutoScalingDataSource.class.getClassLoader(),
+						new Class<?>[] { type }, new Timing(result));
+			return result;
+		}
+	}
+
+	/**
+	 * sizing operations of the wrapped pool.
+	 */
+	interface Pool {
+		int getMaxActive();
+
+		void setMaxActive(int maxActive);
+
+		int getMaxIdle();
+
+		void setMaxIdle(int maxIdle);
+
+		int getMinIdle();
+
+		void setMinIdle(int minIdle);
+
+		int getNumActive();
+
+		long getTimeBetweenEvictionRunsMillis();
+
+		void setTimeBetweenEvictionRunsMillis(long millis);
+
+		void close() throws SQLException;
+	}
+
+	/**
+	 * sizes a {@link BasicDataSource}.
+	 */
+	private static final class BasicPool implements Pool {
+		private final BasicDataSource source;
+
+		BasicPool(BasicDataSource source) {
+			this.source = source;
+		}
+
+		public int getMaxActive() {
+			return source.getMaxActive();
+		}
+
+		public void setMaxActive(int maxActive) {
+			source.setMaxActive(maxActive);
+		}
+
+		public int getMaxIdle() {
+			return source.getMaxIdle();
+		}
+
+		public void setMaxIdle(int maxIdle) {
+			source.setMaxIdle(maxIdle);
+		}
+
+		public int getMinIdle() {
+			return source.getMinIdle();
+		}
+
+		public void setMinIdle(int minIdle) {
+			source.setMinIdle(minIdle);
+		}
+
+		public int getNumActive() {
+			return source.getNumActive();
+		}
+
+		public long getTimeBetweenEvictionRunsMillis() {
+			return source.getTimeBetweenEvictionRunsMillis();
+		}
+
+		public void setTimeBetweenEvictionRunsMillis(long millis) {
+			source.setTimeBetweenEvictionRunsMillis(millis);
+		}
+
+		public void close() throws SQLException {
+			source.close();
+		}
+	}
+}
@@ -137,13 +137,46 @@ public class BasicDataSourceFactory implements ObjectFactory {
 				properties.setProperty(propertyName, propertyValue);
 			}
 		}
+		for (String propertyName : AutoScalingDataSource.ALL_PROPERTIES) {
+			RefAddr ra = ref.get(propertyName);
+			if (ra != null) {
+				properties.setProperty(propertyName, ra.getContent().toString());
+			}
+		}
+		for (String propertyName : ValidatingDataSource.ALL_PROPERTIES) {
+			RefAddr ra = ref.get(propertyName);
+			if (ra != null) {
+				properties.setProperty(propertyName, ra.getContent().toString());
+			}
+		}
+		for (String propertyName : DataSourceWarmUp.ALL_PROPERTIES) {
+			RefAddr ra = ref.get(propertyName);
+			if (ra != null) {
+				properties.setProperty(propertyName, ra.getContent().toString());
+			}
+		}
 
 		return createDataSource(properties);
 	}
 
 	/**
 	 * Creates and configures a {@link BasicDataSource} instance based on the
-	 * given properties.
+	 * given properties. When the <code>autoScale</code> property is true the
+	 * data source is wrapped in an {@link AutoScalingDataSource}. When the
+	 * <code>validationIdleMillis</code> property is set it is wrapped in a
+	 * {@link ValidatingDataSource} and the evictor runs at that interval
+	 * unless configured. With a validationQuery the evictor tests idle
+	 * connections and borrows are not tested by the pool, unless testWhileIdle
+	 * or testOnBorrow are configured; without one the pool can't test them,
+	 * and the wrapper validates the idle connections with isValid at the
+	 * eviction interval. The wrapper recognizes connections by the underlying
+	 * connection, so accessToUnderlyingConnectionAllowed should be set to
+	 * true; it is not changed by the factory.
+	 * When the <code>warmUp</code> property is true a {@link DataSourceWarmUp}
+	 * is created for the data source, see there for its properties. It is
+	 * started in the background if the DAO classes are configured, otherwise
+	 * the application starts it once the DAOs are created; either way it is
+	 * returned by {@link DataSourceWarmUp#get(DataSource)}.
 	 *
 	 * @param properties
 	 *            the datasource configuration properties
@@ -319,8 +352,72 @@ public class BasicDataSourceFactory implements ObjectFactory {
 			}
 		}
 
+		DataSource result = dataSource;
+
+		value = properties.getProperty(AutoScalingDataSource.PROP_AUTOSCALE);
+		if (value != null && Boolean.valueOf(value).booleanValue()) {
+			result = new AutoScalingDataSource(dataSource, properties);
+		}
+
+		value = properties.getProperty(ValidatingDataSource.PROP_VALIDATIONIDLEMILLIS);
+		if (value != null) {
+			// validate idle connections in the background instead of on
+			// borrow, the pool tests connections only with a validation query
+			if (dataSource.getValidationQuery() != null) {
+				if (properties.getProperty(PROP_TESTWHILEIDLE) == null) {
+					dataSource.setTestWhileIdle(true);
+				}
+				if (properties.getProperty(PROP_TESTONBORROW) == null) {
+					dataSource.setTestOnBorrow(false);
+				}
+			}
+			long window = Long.parseLong(value.trim());
+			if (properties.getProperty(PROP_TIMEBETWEENEVICTIONRUNSMILLIS) == null) {
+				dataSource.setTimeBetweenEvictionRunsMillis(window);
+			}
+			ValidatingDataSource validating = new ValidatingDataSource(result, properties);
+			if (dataSource.getValidationQuery() == null) {
+				final BasicDataSource pool = dataSource;
+				long interval = dataSource.getTimeBetweenEvictionRunsMillis();
+				validating.scheduleIdleValidation(new ValidatingDataSource.Pool() {
+					public int getNumIdle() {
+						return pool.getNumIdle();
+					}
+
+					public boolean isClosed() {
+						return pool.isClosed();
+					}
+				}, interval > 0 ? interval : Math.max(1, window));
+			}
+			result = validating;
+		}
+
+		value = properties.getProperty(DataSourceWarmUp.PROP_WARMUP);
+		if (value != null && Boolean.valueOf(value).booleanValue()) {
+			int connections = DataSourceWarmUp.defaultConnections(dataSource.getMaxActive(),
+					dataSource.getMaxIdle());
+			value = properties.getProperty(DataSourceWarmUp.PROP_WARMUPCONNECTIONS);
+			if (value != null) {
+				connections = Integer.parseInt(value.trim());
+			}
+			DataSourceWarmUp warmUp = new DataSourceWarmUp(result, connections);
+			value = properties.getProperty(DataSourceWarmUp.PROP_WARMUPMAPPINGPASS);
+			warmUp.setMappingPass(value != null && Boolean.valueOf(value).booleanValue());
+			value = properties.getProperty(DataSourceWarmUp.PROP_WARMUPTIMEOUTMILLIS);
+			if (value != null) {
+				warmUp.setTimeoutMillis(Long.parseLong(value.trim()));
+			}
+			DataSourceWarmUp.register(result, warmUp);
+			// without the DAO classes the application starts it once the DAOs exist
+			value = properties.getProperty(DataSourceWarmUp.PROP_WARMUPCLASSES);
+			if (value != null) {
+				warmUp.setResources(DataSourceWarmUp.resources(value));
+				warmUp.start();
+			}
+		}
+
 		// Return the configured DataSource instance
-		return dataSource;
+		return result;
 	}
 
 	/**
@@ -12,8 +12,16 @@ import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rakesh.common.db.QueryInterceptors;
+
 /**
- * DataSource wrapper for logging
+ * DataSource wrapper for logging. Events are recorded into a ring buffer and
+ * logged by a background thread, so debug logging doesn't slow down or block
+ * the threads borrowing connections; events are dropped when the ring is
+ * full and the drops are reported every few seconds. With debug logging the
+ * queries of the DAO API are logged too, through a QueryInterceptor. The
+ * recorder is shared by all instances and stopped when the last one is
+ * closed.
  *
  * @author Elli Albek
  */
@@ -23,34 +31,95 @@ public class DataSourceLog implements DataSource {
 
 	private static final boolean isDebugEnabled = logger.isDebugEnabled();
 
+	/**
+	 * size of the event ring shared by all instances.
+	 */
+	private static final int RING_SIZE = 8192;
+
+	/**
+	 * interval of the reports of dropped events.
+	 */
+	private static final long REPORT_MILLIS = 5000;
+
+	private static volatile LogEventRecorder recorder;
+	// open instances using the recorder
+	private static int users;
+
 	private final BasicDataSource source;
+	private boolean closed;
 
 	public DataSourceLog(final BasicDataSource delegate) {
 		source = delegate;
+		if (isDebugEnabled)
+			acquireRecorder();
 	}
 
 	@Override
 	public Connection getConnection() throws SQLException {
-		if (isDebugEnabled)
-			logger.debug("GET CONNECTION");
-		long t1 = System.currentTimeMillis();
+		LogEventRecorder r = recorder;
+		if (r == null)
+			return source.getConnection();
+		long t1 = System.nanoTime();
 		Connection c = source.getConnection();
-		if (isDebugEnabled)
-			logger.debug("ACTIVE CONNECTIONS:\t" + source.getNumActive() + " (get connection took "
-					+ (System.currentTimeMillis() - t1) + "ms)");
+		r.record(LogEventRecorder.GET_CONNECTION, System.nanoTime() - t1,
+				source.getNumActive(), null);
 		return c;
 	}
 
 	@Override
 	public Connection getConnection(final String username, final String password) throws SQLException {
-		if (isDebugEnabled)
-			logger.debug("GET CONNECTION");
+		LogEventRecorder r = recorder;
+		if (r == null)
+			return source.getConnection(username, password);
+		long t1 = System.nanoTime();
 		Connection c = source.getConnection(username, password);
-		if (isDebugEnabled)
-			logger.debug("ACTIVE CONNECTIONS:\t" + source.getNumActive());
+		r.record(LogEventRecorder.GET_CONNECTION, System.nanoTime() - t1,
+				source.getNumActive(), username);
 		return c;
 	}
 
+	/**
+	 * records a query event, logged in the background like the connection
+	 * events. sqlKey is formatted by the background thread. Queries of the
+	 * DAO API are recorded without calling this method.
+	 */
+	public void logQuery(final String sqlKey, final long durationNanos, final int rows) {
+		LogEventRecorder r = recorder;
+		if (r != null)
+			r.record(LogEventRecorder.QUERY, durationNanos, rows, sqlKey);
+	}
+
+	/**
+	 * returns number of log events dropped because the background writer
+	 * could not keep up.
+	 */
+	public static long getDroppedEvents() {
+		LogEventRecorder r = recorder;
+		return r == null ? 0 : r.getDropped();
+	}
+
+	/**
+	 * starts the shared recorder for the first instance.
+	 */
+	private static synchronized void acquireRecorder() {
+		if (users++ == 0) {
+			recorder = new LogEventRecorder(logger, RING_SIZE, REPORT_MILLIS);
+			QueryInterceptors.register(recorder.getQueryInterceptor());
+		}
+	}
+
+	/**
+	 * stops the shared recorder when the last instance is closed.
+	 */
+	private static synchronized void releaseRecorder() {
+		if (--users == 0) {
+			LogEventRecorder r = recorder;
+			recorder = null;
+			QueryInterceptors.unregister(r.getQueryInterceptor());
+			r.close();
+		}
+	}
+
 	@Override
 	public int getLoginTimeout() throws SQLException {
 		return source.getLoginTimeout();
@@ -71,8 +140,22 @@ public class DataSourceLog implements DataSource {
 		source.setLogWriter(out);
 	}
 
+	/**
+	 * closes the pool, and stops the recorder if this is the last open
+	 * instance.
+	 */
 	public void close() throws SQLException {
-		source.close();
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			source.close();
+		} finally {
+			if (isDebugEnabled)
+				releaseRecorder();
+		}
 	}
 
     /* JDBC_4_ANT_KEY_BEGIN */
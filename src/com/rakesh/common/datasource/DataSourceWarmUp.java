@@ -0,0 +1,341 @@
+package com.rakesh.common.datasource;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Warms up a pool before it takes traffic: opens the given number of
+ * connections in parallel and prepares every SQL query of the registered
+ * DAO classes on each of them, which loads the driver classes and fills the
+ * server side plan cache and the pool's statement cache
+ * (poolPreparedStatements). The optional mapping pass runs the SELECT
+ * queries without parameters, at most 100 rows each, and reads every column,
+ * to warm up the result set code paths. USAGE:
+ * 
+ * <pre>
+ * 	// once the DAOs are created
+ * 	DataSourceWarmUp warmUp = new DataSourceWarmUp(ds, 10);
+ * 	warmUp.start();
+ * 	...
+ * 	// readiness check
+ * 	return warmUp.isReady();
+ * </pre>
+ * 
+ * DAO classes are known once they are in the SqlCatalog or their resources
+ * were read, so the warm-up must start after the DAOs are created, or be
+ * given the classes with {@link #setResources(List)}. The warm-up gives up
+ * after the timeout, 30 seconds by default, for example when the pool can't
+ * open that many connections and waits for one forever; it is ready after
+ * that as well. Failures are logged, they don't stop the warm-up.
+ * <p>
+ * {@link BasicDataSourceFactory} creates one when the <code>warmUp</code>
+ * property is true, with <code>warmUpConnections</code> connections (by
+ * default maxIdle, the connections kept by the pool),
+ * <code>warmUpTimeoutMillis</code> and <code>warmUpMappingPass</code>. With
+ * <code>warmUpClasses</code>, a comma separated list of DAO classes, it is
+ * started right away, otherwise it is started by the application through
+ * {@link #get(DataSource)} once the DAOs are created. The warm-up doesn't keep
+ * its data source alive, a data source which is not used any more is dropped
+ * with its warm-up.
+ * 
+ * @author rakesh
+ */
+public class DataSourceWarmUp implements Runnable {
+
+	private static final Log logger = LogFactory.getLog(DataSourceWarmUp.class);
+
+	static final String PROP_WARMUP = "warmUp";
+	static final String PROP_WARMUPMAPPINGPASS = "warmUpMappingPass";
+	static final String PROP_WARMUPCONNECTIONS = "warmUpConnections";
+	static final String PROP_WARMUPTIMEOUTMILLIS = "warmUpTimeoutMillis";
+	static final String PROP_WARMUPCLASSES = "warmUpClasses";
+
+	static final String[] ALL_PROPERTIES = { PROP_WARMUP, PROP_WARMUPMAPPINGPASS,
+			PROP_WARMUPCONNECTIONS, PROP_WARMUPTIMEOUTMILLIS, PROP_WARMUPCLASSES };
+
+	private static final int MAPPING_PASS_ROWS = 100;
+	private static final long DEFAULT_TIMEOUT = 30000;
+
+	// warm-ups created by the factory, by data source
+	private static final Map<DataSource, DataSourceWarmUp> warmUps = Collections
+			.synchronizedMap(new WeakHashMap<DataSource, DataSourceWarmUp>());
+
+	// weak, so that the handle kept by data source doesn't keep it alive
+	private final Reference<DataSource> ds;
+	private final int connections;
+	private List<ClassResources> resources;
+	private boolean mappingPass;
+	private long timeoutMillis = DEFAULT_TIMEOUT;
+
+	private final AtomicBoolean started = new AtomicBoolean();
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private final AtomicInteger prepared = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private volatile boolean timedOut;
+
+	public DataSourceWarmUp(DataSource ds, int connections) {
+		this.ds = new WeakReference<DataSource>(ds);
+		this.connections = Math.max(1, connections);
+	}
+
+	/**
+	 * sets the classes whose queries are prepared, by default all the
+	 * classes known when the warm-up runs.
+	 */
+	public void setResources(List<ClassResources> resources) {
+		this.resources = resources;
+	}
+
+	/**
+	 * enables the mapping pass.
+	 */
+	public void setMappingPass(boolean mappingPass) {
+		this.mappingPass = mappingPass;
+	}
+
+	/**
+	 * sets the time after which the warm-up gives up, 30 seconds by default.
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("Invalid warm-up timeout " + timeoutMillis);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * returns the warm-up created by {@link BasicDataSourceFactory} for the
+	 * data source, null if it has none.
+	 */
+	public static DataSourceWarmUp get(DataSource ds) {
+		return warmUps.get(ds);
+	}
+
+	static void register(DataSource ds, DataSourceWarmUp warmUp) {
+		warmUps.put(ds, warmUp);
+	}
+
+	/**
+	 * returns the connections warmed up by default for a pool: the ones it
+	 * keeps idle, as the statements prepared on the others are lost when
+	 * they are closed. Negative limits are unlimited.
+	 */
+	static int defaultConnections(int maxActive, int maxIdle) {
+		int n = maxIdle < 0 ? maxActive : maxActive < 0 ? maxIdle : Math.min(
+				maxActive, maxIdle);
+		return n > 0 ? n : 1;
+	}
+
+	/**
+	 * returns the resources of the comma separated DAO classes.
+	 * 
+	 * @throws ClassNotFoundException
+	 */
+	static List<ClassResources> resources(String classNames)
+			throws ClassNotFoundException {
+		ClassLoader cl = Thread.currentThread().getContextClassLoader();
+		if (cl == null)
+			cl = DataSourceWarmUp.class.getClassLoader();
+		List<ClassResources> l = new ArrayList<ClassResources>();
+		for (String name : classNames.split(",")) {
+			name = name.trim();
+			if (name.length() > 0)
+				l.add(new ClassResources(Class.forName(name, true, cl)));
+		}
+		return l;
+	}
+
+	/**
+	 * runs the warm-up on a background thread. Only the first call of start
+	 * or run warms up the pool.
+	 */
+	public void start() {
+		if (!started.compareAndSet(false, true))
+			return;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				warmUp();
+			}
+		}, "datasource-warmup");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * runs the warm-up in the calling thread, the connections are opened by
+	 * one thread each. Only the first call of start or run warms up the pool.
+	 */
+	public void run() {
+		if (started.compareAndSet(false, true))
+			warmUp();
+	}
+
+	private void warmUp() {
+		long t1 = System.currentTimeMillis();
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final DataSource ds = this.ds.get();
+		if (ds == null) {
+			ready.countDown();
+			logger.warn("Warm-up skipped, the data source is not used any more");
+			return;
+		}
+		try {
+			final List<ClassResources> classes = resources != null ? resources
+					: ClassResources.getRegistered();
+			// connections are held until all are open, so each thread gets its own
+			final CountDownLatch opened = new CountDownLatch(connections);
+			final long openDeadline = deadline;
+			List<Thread> threads = new ArrayList<Thread>(connections);
+			for (int i = 0; i < connections; i++) {
+				final boolean first = i == 0;
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						warmUp(ds, classes, opened, openDeadline, first
+								&& mappingPass);
+					}
+				}, "datasource-warmup-" + i);
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			for (Thread t : threads) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0)
+					TimeUnit.NANOSECONDS.timedJoin(t, remaining);
+				if (t.isAlive())
+					timedOut = true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			ready.countDown();
+		}
+		if (timedOut)
+			logger.warn("Warm-up gave up after " + timeoutMillis + "ms, prepared "
+					+ prepared + " statements, " + failed + " failed");
+		else if (logger.isInfoEnabled())
+			logger.info("Warm-up prepared " + prepared + " statements on "
+					+ connections + " connections in "
+					+ (System.currentTimeMillis() - t1) + "ms, " + failed
+					+ " failed");
+	}
+
+	private void warmUp(DataSource ds, List<ClassResources> classes,
+			CountDownLatch opened, long deadline, boolean mapping) {
+		Connection c = null;
+		try {
+			c = ds.getConnection();
+		} catch (SQLException e) {
+			logger.warn("Warm-up could not open a connection", e);
+		} finally {
+			opened.countDown();
+		}
+		if (c == null)
+			return;
+		try {
+			for (ClassResources r : classes)
+				for (String sqlKey : r.getSqlKeys())
+					prepare(c, r.getValue(sqlKey), mapping);
+			// a pool which can't open all of them must not block the others
+			if (!opened.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+				timedOut = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				logger.warn("Warm-up could not close a connection", e);
+			}
+		}
+	}
+
+	private void prepare(Connection c, String sql, boolean mapping) {
+		try {
+			PreparedStatement pst = c.prepareStatement(sql);
+			try {
+				prepared.incrementAndGet();
+				if (mapping && isParameterlessSelect(sql)) {
+					pst.setMaxRows(MAPPING_PASS_ROWS);
+					ResultSet rs = pst.executeQuery();
+					try {
+						int columns = rs.getMetaData().getColumnCount();
+						while (rs.next())
+							for (int i = 1; i <= columns; i++)
+								rs.getObject(i);
+					} finally {
+						rs.close();
+					}
+				}
+			} finally {
+				pst.close();
+			}
+		} catch (SQLException e) {
+			failed.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Warm-up could not prepare: " + sql, e);
+		}
+	}
+
+	private static boolean isParameterlessSelect(String sql) {
+		String s = sql.trim();
+		return s.regionMatches(true, 0, "select", 0, 6) && s.indexOf('?') < 0;
+	}
+
+	/**
+	 * returns true once the warm-up is done or gave up.
+	 */
+	public boolean isReady() {
+		return ready.getCount() == 0;
+	}
+
+	/**
+	 * returns true if the warm-up gave up before all connections were warmed
+	 * up.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * waits for the warm-up and returns true if it is done or gave up.
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return ready.await(timeout, unit);
+	}
+
+	/**
+	 * returns number of statements prepared so far.
+	 */
+	public int getPrepared() {
+		return prepared.get();
+	}
+
+	/**
+	 * returns number of statements which could not be prepared.
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,197 @@
+package com.rakesh.common.datasource;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+
+import com.rakesh.common.db.QueryContext;
+import com.rakesh.common.db.QueryInterceptor;
+import com.rakesh.common.db.QueryInterceptorAdapter;
+
+/**
+ * Asynchronous recorder of connection and query events for
+ * {@link DataSourceLog}. Events are written as primitive fields into a
+ * preallocated ring buffer by the calling thread, and formatted and logged by
+ * a background thread. When the ring is full new events are dropped and
+ * counted instead of waiting, so recording never blocks the caller and never
+ * allocates. Dropped events are reported at most once per report interval,
+ * also while events keep coming, and once more on close. Queries of the DAO
+ * API are recorded by the interceptor returned by
+ * {@link #getQueryInterceptor()}.
+ * 
+ * @author rakesh
+ */
+class LogEventRecorder {
+
+	static final int GET_CONNECTION = 1;
+	static final int QUERY = 2;
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long CLOSE_WAIT_MILLIS = 1000;
+
+	private final Log logger;
+	private final long reportNanos;
+	private final int mask;
+	// sequence published in each slot, -1 while the slot is being written
+	private final AtomicLongArray published;
+	private final int[] types;
+	private final long[] times;
+	private final long[] durations;
+	private final int[] counts;
+	private final Object[] labels;
+
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed;
+
+	private final QueryInterceptor queryInterceptor = new QueryInterceptorAdapter() {
+		@Override
+		public void afterCompletion(QueryContext ctx, Object result,
+				SQLException error) {
+			record(QUERY, ctx.getTotalNanos(), ctx.getRows(), ctx.getSqlKey());
+		}
+	};
+
+	/**
+	 * creates the recorder and starts its background thread. Capacity is
+	 * rounded up to a power of two, drops are reported at most every
+	 * reportMillis.
+	 */
+	LogEventRecorder(Log logger, int capacity, long reportMillis) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.logger = logger;
+		this.reportNanos = TimeUnit.MILLISECONDS.toNanos(reportMillis);
+		this.mask = size - 1;
+		this.published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			published.set(i, -1);
+		this.types = new int[size];
+		this.times = new long[size];
+		this.durations = new long[size];
+		this.counts = new int[size];
+		this.labels = new Object[size];
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "datasource-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * records an event, returns false if it was dropped because the ring is
+	 * full. label must be an existing object (a sqlKey, a user name), it is
+	 * formatted by the background thread.
+	 */
+	boolean record(int type, long durationNanos, int count, Object label) {
+		long seq;
+		do {
+			seq = head.get();
+			if (seq - tail >= types.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		int i = (int) seq & mask;
+		types[i] = type;
+		times[i] = System.currentTimeMillis();
+		durations[i] = durationNanos;
+		counts[i] = count;
+		labels[i] = label;
+		// publishes the plain writes above to the background thread
+		published.lazySet(i, seq);
+		return true;
+	}
+
+	/**
+	 * returns number of events dropped so far.
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * returns the interceptor which records the queries of the DAO API, to be
+	 * registered in QueryInterceptors.
+	 */
+	QueryInterceptor getQueryInterceptor() {
+		return queryInterceptor;
+	}
+
+	/**
+	 * stops the background thread after the recorded events are written, and
+	 * waits a while for it. Events recorded after close are not written.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_WAIT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		StringBuilder sb = new StringBuilder(128);
+		long reportedDrops = 0;
+		long lastReport = System.nanoTime();
+		for (;;) {
+			long seq = tail;
+			int i = (int) seq & mask;
+			boolean idle = published.get(i) != seq;
+			boolean done = idle && closed && seq == head.get();
+			long now = System.nanoTime();
+			if (done || now - lastReport >= reportNanos) {
+				long drops = dropped.get();
+				if (drops != reportedDrops) {
+					logger.warn("DATASOURCE LOG:\t" + (drops - reportedDrops)
+							+ " events dropped");
+					reportedDrops = drops;
+				}
+				lastReport = now;
+			}
+			if (done)
+				return;
+			if (idle) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				continue;
+			}
+			sb.setLength(0);
+			format(sb, types[i], times[i], durations[i], counts[i], labels[i]);
+			labels[i] = null;
+			// frees the slot for producers
+			tail = seq + 1;
+			logger.debug(sb.toString());
+		}
+	}
+
+	private static void format(StringBuilder sb, int type, long time,
+			long duration, int count, Object label) {
+		switch (type) {
+		case GET_CONNECTION:
+			sb.append("ACTIVE CONNECTIONS:\t").append(count);
+			if (duration >= 0)
+				sb.append(" (get connection took ")
+						.append(TimeUnit.NANOSECONDS.toMillis(duration))
+						.append("ms)");
+			break;
+		case QUERY:
+			sb.append("QUERY ").append(label).append(":\t").append(count)
+					.append(" rows in ")
+					.append(TimeUnit.NANOSECONDS.toMicros(duration))
+					.append("us");
+			break;
+		default:
+			sb.append("EVENT ").append(type);
+		}
+		sb.append(" [at ").append(time).append(']');
+	}
+}
@@ -0,0 +1,375 @@
+package com.rakesh.common.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * DataSource wrapper which validates a connection on borrow only when it was
+ * not handed out for longer than a window, using {@link Connection#isValid}
+ * instead of a validation query. Connections used within the window are
+ * handed out without a round trip. Idle connections are tested in the
+ * background: by the pool's evictor (testWhileIdle) when the pool has a
+ * validationQuery, otherwise by this wrapper, which borrows the idle
+ * connections of the pool at the eviction interval and validates the ones
+ * not used within the window with isValid. {@link BasicDataSourceFactory}
+ * sets up either together with this wrapper. The properties are:
+ * 
+ * <pre>
+ * validationIdleMillis         idle time after which a connection is validated on borrow
+ * validationTimeoutSeconds     timeout of isValid (default 1)
+ * validationAttempts           connections tried before giving up (default 3)
+ * </pre>
+ * 
+ * Use time is taken when a connection is handed out, so a connection which
+ * was held for long is validated a bit early, which errs on the safe side.
+ * Connections are recognized by the identity of the physical connection, which
+ * pooled connections expose when accessToUnderlyingConnectionAllowed is true;
+ * it is not enabled by default, so the window needs it configured. A
+ * connection whose physical connection is not accessible is recognized by its
+ * own identity, so one which the pool wraps anew on every borrow is validated
+ * every time. Borrows with a user name and password are validated the same
+ * way. An invalid connection is closed physically when it is
+ * accessible, so the pool drops it; otherwise it is returned once a valid one
+ * was found and is validated again by its next borrower or by the evictor.
+ * 
+ * @author rakesh
+ */
+public class ValidatingDataSource implements DataSource {
+
+	private static final Log logger = LogFactory.getLog(ValidatingDataSource.class);
+
+	static final String PROP_VALIDATIONIDLEMILLIS = "validationIdleMillis";
+	static final String PROP_VALIDATIONTIMEOUTSECONDS = "validationTimeoutSeconds";
+	static final String PROP_VALIDATIONATTEMPTS = "validationAttempts";
+
+	static final String[] ALL_PROPERTIES = { PROP_VALIDATIONIDLEMILLIS,
+			PROP_VALIDATIONTIMEOUTSECONDS, PROP_VALIDATIONATTEMPTS };
+
+	// stamps older than the window are purged above this size
+	private static final int PURGE_SIZE = 1024;
+
+	private final DataSource source;
+	private final long windowMillis;
+	private final int timeoutSeconds;
+	private final int attempts;
+	// guarded by itself, keys are compared by identity
+	private final Map<Object, Stamp> stamps = new IdentityHashMap<Object, Stamp>();
+	private ScheduledExecutorService validator;
+
+	public ValidatingDataSource(final DataSource delegate, final Properties properties) {
+		this(delegate, Long.parseLong(properties.getProperty(
+				PROP_VALIDATIONIDLEMILLIS).trim()), intProperty(properties,
+				PROP_VALIDATIONTIMEOUTSECONDS, 1), intProperty(properties,
+				PROP_VALIDATIONATTEMPTS, 3));
+	}
+
+	public ValidatingDataSource(final DataSource delegate,
+			final long windowMillis, final int timeoutSeconds,
+			final int attempts) {
+		this.source = delegate;
+		this.windowMillis = windowMillis;
+		this.timeoutSeconds = timeoutSeconds;
+		this.attempts = Math.max(1, attempts);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return checked(source.getConnection(), false, null, null);
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		return checked(source.getConnection(username, password), true,
+				username, password);
+	}
+
+	/**
+	 * hands out the connection if it was used within the window, otherwise
+	 * validates it. Replacements are borrowed with the credentials if
+	 * credentials is true.
+	 */
+	private Connection checked(Connection c, boolean credentials,
+			String username, String password) throws SQLException {
+		long now = System.currentTimeMillis();
+		Object key = key(c);
+		synchronized (stamps) {
+			Stamp stamp = stamps.get(key);
+			if (stamp != null && now - stamp.lastUsed <= windowMillis) {
+				stamp.lastUsed = now;
+				return c;
+			}
+		}
+		return validate(c, now, credentials, username, password);
+	}
+
+	/**
+	 * validates the connection, and borrows others until a valid one is found
+	 * or the attempts are used up.
+	 */
+	private Connection validate(Connection c, long now, boolean credentials,
+			String username, String password) throws SQLException {
+		List<Connection> invalid = null;
+		try {
+			for (int i = 0;; i++) {
+				Object key = key(c);
+				if (isValid(c)) {
+					stamp(key, now);
+					return c;
+				}
+				synchronized (stamps) {
+					stamps.remove(key);
+				}
+				if (!discard(c)) {
+					if (invalid == null)
+						invalid = new ArrayList<Connection>(attempts);
+					invalid.add(c);
+				}
+				if (i + 1 >= attempts)
+					throw new SQLException("No valid connection after " + attempts + " attempts");
+				c = credentials ? source.getConnection(username, password)
+						: source.getConnection();
+				now = System.currentTimeMillis();
+			}
+		} finally {
+			if (invalid != null)
+				for (Connection ic : invalid)
+					close(ic);
+		}
+	}
+
+	/**
+	 * validates the idle connections of the pool every interval, for pools
+	 * which can't test them on their own. Stops when the pool is closed.
+	 */
+	synchronized void scheduleIdleValidation(final Pool pool, long intervalMillis) {
+		if (validator != null)
+			return;
+		validator = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "pool-validator");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		validator.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (pool.isClosed()) {
+					validator.shutdown();
+					return;
+				}
+				try {
+					validateIdle(pool);
+				} catch (RuntimeException e) {
+					logger.error("Idle connection validation failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * borrows the idle connections of the pool, validates the ones not used
+	 * within the window and returns them. Invalid ones are discarded when
+	 * their physical connection is accessible.
+	 */
+	void validateIdle(Pool pool) {
+		List<Connection> borrowed = new ArrayList<Connection>();
+		try {
+			for (int idle = pool.getNumIdle(); borrowed.size() < idle
+					&& pool.getNumIdle() > 0;) {
+				Connection c;
+				try {
+					c = source.getConnection();
+				} catch (SQLException e) {
+					logger.debug("Could not borrow an idle connection", e);
+					break;
+				}
+				long now = System.currentTimeMillis();
+				Object key = key(c);
+				synchronized (stamps) {
+					Stamp stamp = stamps.get(key);
+					if (stamp != null && now - stamp.lastUsed <= windowMillis) {
+						borrowed.add(c);
+						continue;
+					}
+				}
+				if (isValid(c)) {
+					stamp(key, now);
+					borrowed.add(c);
+					continue;
+				}
+				synchronized (stamps) {
+					stamps.remove(key);
+				}
+				if (!discard(c))
+					borrowed.add(c);
+			}
+		} finally {
+			for (Connection c : borrowed)
+				close(c);
+		}
+	}
+
+	private boolean isValid(Connection c) {
+		try {
+			return c.isValid(timeoutSeconds);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * closes the physical connection and returns the pooled one, so the pool
+	 * drops it. Returns false if the physical connection is not accessible.
+	 */
+	private boolean discard(Connection c) {
+		if (!(c instanceof DelegatingConnection))
+			return false;
+		Connection physical = ((DelegatingConnection) c).getInnermostDelegate();
+		if (physical == null)
+			return false;
+		if (logger.isInfoEnabled())
+			logger.info("Discarding invalid connection " + physical);
+		close(physical);
+		close(c);
+		return true;
+	}
+
+	/**
+	 * returns the object a connection is recognized by: the physical
+	 * connection if it is accessible, otherwise the connection itself.
+	 */
+	private static Object key(Connection c) {
+		if (c instanceof DelegatingConnection) {
+			Connection physical = ((DelegatingConnection) c).getInnermostDelegate();
+			if (physical != null)
+				return physical;
+		}
+		return c;
+	}
+
+	private void stamp(Object key, long now) {
+		synchronized (stamps) {
+			Stamp stamp = stamps.get(key);
+			if (stamp == null) {
+				if (stamps.size() >= PURGE_SIZE)
+					purge(now);
+				stamp = new Stamp();
+				stamps.put(key, stamp);
+			}
+			stamp.lastUsed = now;
+		}
+	}
+
+	/**
+	 * removes stamps older than the window, which also drops the references
+	 * to connections the pool closed; a missing stamp means the connection
+	 * is validated, as an old one would. Called holding the stamps lock.
+	 */
+	private void purge(long now) {
+		for (Iterator<Stamp> i = stamps.values().iterator(); i.hasNext();)
+			if (now - i.next().lastUsed > windowMillis)
+				i.remove();
+	}
+
+	private static void close(Connection c) {
+		try {
+			c.close();
+		} catch (SQLException e) {
+			logger.debug("Could not close connection", e);
+		}
+	}
+
+	/**
+	 * returns the wrapped data source.
+	 */
+	public DataSource getSource() {
+		return source;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return source.getLoginTimeout();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return source.getLogWriter();
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		source.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		source.setLogWriter(out);
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		return iface.isInstance(source) || source.isWrapperFor(iface);
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		if (iface.isInstance(source))
+			return iface.cast(source);
+		return source.unwrap(iface);
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException("Datasource uses commons logging not Java Logging...");
+	}
+
+	private static int intProperty(Properties p, String name, int defaultValue) {
+		String value = p.getProperty(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * returns number of connections with a stamp.
+	 */
+	int getStampCount() {
+		synchronized (stamps) {
+			return stamps.size();
+		}
+	}
+
+	/**
+	 * idle state of the wrapped pool.
+	 */
+	interface Pool {
+		int getNumIdle();
+
+		boolean isClosed();
+	}
+
+	/**
+	 * last time a connection was handed out, guarded by the stamps lock.
+	 */
+	private static final class Stamp {
+		long lastUsed;
+	}
+}
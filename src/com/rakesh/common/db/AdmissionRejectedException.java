@@ -0,0 +1,18 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLTransientException;
+
+/**
+ * Exception thrown when a DAO call is not admitted by the
+ * {@link ConcurrencyLimiter} of its sqlKey, because the limit was reached and
+ * either the wait queue was full or the wait timed out.
+ * 
+ * @author rakesh
+ */
+public class AdmissionRejectedException extends SQLTransientException {
+	private static final long serialVersionUID = 4126871139874301775L;
+
+	public AdmissionRejectedException(final String msg) {
+		super(msg);
+	}
+}
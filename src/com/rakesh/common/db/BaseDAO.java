@@ -2,16 +2,24 @@ package com.rakesh.common.db;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.sql.DataSource;
 
+import com.rakesh.common.db.util.CallResult;
+import com.rakesh.common.db.util.GenericMappers.RowHandler;
 import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.db.util.Page;
 import com.rakesh.common.util.ClassResources;
 
 /**
  * Base class for all DAO classes, which will provide methods to execute
  * different types of queries.
+ * <p>
+ * Concurrent calls can be limited per sqlKey or per DAO class, see
+ * {@link ConcurrencyLimiter} for the options.
  * 
  * @author rakesh
  */
@@ -45,11 +53,18 @@ public class BaseDAO {
 	 */
 	protected Integer queryForInt(ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		Connection c = getConnection();
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
 		try {
-			return JdbcUtills.queryForInt(c, resources, sqlKey, params);
+			TransactionContext tx = TransactionContext.current();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.queryForInt(c, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
 		} finally {
-			closeConnection(c);
+			limiter.release(start);
 		}
 	}
 
@@ -59,11 +74,18 @@ public class BaseDAO {
 	 */
 	protected <T> T queryForObject(RowMapper<T> rm, ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		Connection c = getConnection();
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
 		try {
-			return JdbcUtills.queryForObject(c, rm, resources, sqlKey, params);
+			TransactionContext tx = TransactionContext.current();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.queryForObject(c, rm, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
 		} finally {
-			closeConnection(c);
+			limiter.release(start);
 		}
 	}
 
@@ -74,71 +96,268 @@ public class BaseDAO {
 	 */
 	protected <T> List<T> query(RowMapper<T> rm, ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		Connection c = getConnection();
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
 		try {
-			return JdbcUtills.query(c, rm, resources, sqlKey, params);
+			TransactionContext tx = TransactionContext.current();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.query(c, rm, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
 		} finally {
-			closeConnection(c);
+			limiter.release(start);
 		}
 	}
 
+	/**
+	 * method available for subclasses to read many rows with a CPU heavy
+	 * RowMapper. Like {@link #query(RowMapper, ClassResources, String, Object...)},
+	 * but rows beyond the 'dao.parallelThreshold' option (1000 by default)
+	 * are mapped in parallel, so the RowMapper must be thread safe. The
+	 * results keep the order of the rows.
+	 */
+	protected <T> List<T> queryParallel(RowMapper<T> rm,
+			ClassResources resources, final String sqlKey, Object... params)
+			throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
+		try {
+			TransactionContext tx = TransactionContext.current();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.queryParallel(c, rm, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
+		} finally {
+			limiter.release(start);
+		}
+	}
+
+	/**
+	 * method available for subclasses to read a query page by page with keyset
+	 * pagination. keyColumns are the columns the pages are ordered by ('column'
+	 * or 'column DESC'), they must be not null and identify a row. token is
+	 * null for the first page and {@link Page#getNextToken()} of the previous
+	 * page for the next ones. The query of the sqlKey must not have an ORDER
+	 * BY, it is used as a sub query. A token is only accepted for the sqlKey
+	 * and parameters it was read with.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the key columns or the page size are invalid
+	 */
+	protected <T> Page<T> queryPage(RowMapper<T> rm, ClassResources resources,
+			final String sqlKey, String[] keyColumns, String token,
+			int pageSize, Object... params) throws SQLException {
+		KeysetQuery keyset = new KeysetQuery(resources, sqlKey, keyColumns,
+				pageSize, params);
+		Object[] after = keyset.decode(token);
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
+		try {
+			TransactionContext tx = TransactionContext.current();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.queryPage(c, rm, resources, sqlKey, keyset,
+						after, params);
+			} finally {
+				closeConnection(tx, c);
+			}
+		} finally {
+			limiter.release(start);
+		}
+	}
+
+	/**
+	 * method available for subclasses to stream the rows of a query to a
+	 * reactive subscriber. The query is executed when the first rows are
+	 * requested and rows are read only as they are requested, on the
+	 * requesting thread. Inside a transaction the connection of the
+	 * transaction is used.
+	 */
+	protected <T> QueryPublisher<T> publish(RowMapper<T> rm,
+			ClassResources resources, final String sqlKey, Object... params) {
+		return publish(null, rm, resources, sqlKey, params);
+	}
+
+	/**
+	 * same as {@link #publish(RowMapper, ClassResources, String, Object...)}
+	 * but rows are read and published on the given executor.
+	 */
+	protected <T> QueryPublisher<T> publish(Executor executor, RowMapper<T> rm,
+			ClassResources resources, final String sqlKey, Object... params) {
+		return new QueryPublisher<T>(this, TransactionContext.current(),
+				executor, rm, resources, sqlKey, params);
+	}
+
 	/**
 	 * method available for subclasses to execute queries like INSERT, UPDATE,
 	 * and DELETE. This method return an integer, number of rows updated by the
-	 * query.
+	 * query. In a write-behind transaction the update is queued and
+	 * Statement.SUCCESS_NO_INFO is returned.
 	 */
 	protected int update(ClassResources resources, final String sqlKey,
 			Object... params) throws SQLException {
-		Connection c = getConnection();
+		TransactionContext tx = TransactionContext.current();
+		if (tx != null && tx.getTransaction().isWriteBehind()) {
+			tx.getTransaction().defer(resources, sqlKey, params);
+			return Statement.SUCCESS_NO_INFO;
+		}
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
 		try {
-			return JdbcUtills.update(c, resources, sqlKey, params);
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.update(c, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
 		} finally {
-			closeConnection(c);
+			limiter.release(start);
 		}
 	}
 
 	/**
-	 * method available for subclasses to execute callable statements.
+	 * method available for subclasses to execute callable statements. In a
+	 * write-behind transaction the queued updates are flushed first, as for
+	 * the other callable statement methods.
 	 */
 	protected boolean executeCall(ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		Connection c = getConnection();
+		TransactionContext tx = TransactionContext.current();
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
+		try {
+			if (tx != null)
+				tx.beforeCall();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.executeCall(c, resources, sqlKey, params);
+			} finally {
+				closeConnection(tx, c);
+			}
+		} finally {
+			limiter.release(start);
+		}
+	}
+
+	/**
+	 * method available for subclasses to execute a stored procedure and read
+	 * its OUT parameters and result sets in one round trip. OUT and INOUT
+	 * parameters are passed as OutParameter, and each returned result set is
+	 * mapped by the RowMapper at its position and kept in the result. Result
+	 * sets without a RowMapper are skipped, mappers may be null.
+	 */
+	protected CallResult executeCallForResults(ClassResources resources,
+			final String sqlKey, RowMapper<?>[] mappers, Object... params)
+			throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
 		try {
-			return JdbcUtills.executeCall(c, resources, sqlKey, params);
+			TransactionContext tx = TransactionContext.current();
+			if (tx != null)
+				tx.beforeCall();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.executeCallForResults(c, resources, sqlKey,
+						mappers, params);
+			} finally {
+				closeConnection(tx, c);
+			}
 		} finally {
-			closeConnection(c);
+			limiter.release(start);
 		}
 	}
 
 	/**
-	 * method returns a new connection from the pool or the one from existing
-	 * transaction.
+	 * same as
+	 * {@link #executeCallForResults(ClassResources, String, RowMapper[], Object...)}
+	 * but the rows of each result set are passed to the RowHandler at its
+	 * position as they are read, and not kept, so big result sets don't fill
+	 * memory. handlers may be null.
 	 */
-	Connection getConnection() throws SQLException {
-		TransactionManager trans = TransactionManager.getCurrentTransaction();
-		if (trans != null) {
-			return trans.getConnection();
+	protected CallResult executeCallForRows(ClassResources resources,
+			final String sqlKey, RowHandler[] handlers, Object... params)
+			throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
+		try {
+			TransactionContext tx = TransactionContext.current();
+			if (tx != null)
+				tx.beforeCall();
+			Connection c = getConnection(tx);
+			try {
+				return JdbcUtills.executeCallForRows(c, resources, sqlKey,
+						handlers, params);
+			} finally {
+				closeConnection(tx, c);
+			}
+		} finally {
+			limiter.release(start);
 		}
-		return  doGetConnection();
+	}
+
+	/**
+	 * method available for subclasses to send several reads on one
+	 * connection, in one round trip where the 'dao.pipeline' option enables
+	 * it. Queries are added to the returned pipeline and run by
+	 * {@link QueryPipeline#execute()}.
+	 */
+	protected QueryPipeline pipeline() {
+		return new QueryPipeline(this);
+	}
+
+	/**
+	 * method returns a new connection from the pool, or the one of the given
+	 * transaction context if it is not null. Each call must be followed by
+	 * {@link #closeConnection(TransactionContext, Connection)} with the same
+	 * context.
+	 */
+	Connection getConnection(TransactionContext tx) throws SQLException {
+		if (tx != null)
+			return tx.enter();
+		return doGetConnection();
 	}
 
 	/**
 	 * return a connection from the pool
 	 */
 	Connection doGetConnection() throws SQLException {
+		return doGetConnection(getDataSource());
+	}
+
+	/**
+	 * return a connection from the pool of the given datasource
+	 */
+	Connection doGetConnection(DataSource ds) throws SQLException {
 		Connection c = ds.getConnection();
 		c.setReadOnly(this.readOnly);
+		ConnectionProfiler profiler = ConnectionProfiler.active;
+		if (profiler != null)
+			profiler.borrowed(c);
 		// System.out.println("ACTIVE CONNECTIONS => "
 		// + ((BasicDataSource) ds).getNumActive());
 		return c;
 	}
 
 	/**
-	 * method returns a connection to pool if its not in a transaction.
+	 * returns the datasource new connections are taken from.
+	 */
+	DataSource getDataSource() throws SQLException {
+		return ds;
+	}
+
+	/**
+	 * method returns a connection to pool, or ends the call in the given
+	 * transaction context if it is not null.
 	 */
-	void closeConnection(Connection c) throws SQLException {
-		TransactionManager trans = TransactionManager.getCurrentTransaction();
-		if (trans == null)
+	void closeConnection(TransactionContext tx, Connection c)
+			throws SQLException {
+		if (tx != null)
+			tx.exit();
+		else
 			doCloseConnection(c);
 	}
 
@@ -146,6 +365,9 @@ public class BaseDAO {
 	 * method returns a connection to pool by calling close() method on it.
 	 */
 	void doCloseConnection(Connection c) throws SQLException {
+		ConnectionProfiler profiler = ConnectionProfiler.active;
+		if (profiler != null)
+			profiler.released(c);
 		if (!c.isClosed())
 			c.close();
 		// System.out.println("ACTIVE CONNECTIONS => "
@@ -0,0 +1,347 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Limits number of concurrent calls of a sqlKey or of a whole DAO class, so
+ * that one slow query can not take all connections of the pool. Limits are
+ * read from the resource file of the DAO:
+ * 
+ * <pre>
+ * # limit for all sqlKeys of the class, shared by them
+ * dao.maxConcurrent=20
+ * # own limit for one sqlKey
+ * dao.maxConcurrent.monthlyReport=2
+ * # calls allowed to wait when the limit is reached (default 0)
+ * dao.maxQueue.monthlyReport=10
+ * # milliseconds a call waits before it is rejected (default 0)
+ * dao.queueTimeout.monthlyReport=500
+ * # enables AIMD adaptation of the limit against this latency in ms
+ * dao.targetLatency.monthlyReport=200
+ * # lowest limit adaptation can go down to (default 1)
+ * dao.minConcurrent.monthlyReport=1
+ * </pre>
+ * 
+ * When adaptation is enabled the limit grows by one after a limit worth of
+ * calls finished within the target latency, and is cut by a quarter (at most
+ * once per target latency period) when a call is slower than the target.
+ * maxConcurrent is the upper bound of the adapted limit.
+ * <p>
+ * A call of a sqlKey with its own limit takes a permit of the class limit
+ * too, if there is one. Invalid limits of a class fail the first call of any
+ * of its sqlKeys, and the <code>catalog</code> build target.
+ * <p>
+ * Acquiring a permit below the limit is a single CAS, waiting is done only
+ * when the limit is reached.
+ * 
+ * @author rakesh
+ */
+public class ConcurrencyLimiter {
+
+	/**
+	 * limiter used when no limits are configured, never blocks.
+	 */
+	static final ConcurrencyLimiter UNLIMITED = new ConcurrencyLimiter(
+			"unlimited", Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, 0, null);
+
+	private static final SqlKeyMap<ConcurrencyLimiter> limiters = new SqlKeyMap<ConcurrencyLimiter>() {
+		@Override
+		protected ConcurrencyLimiter create(ClassResources resources,
+				String sqlKey) {
+			validate(resources);
+			ConcurrencyLimiter classLimiter = null;
+			if (resources.getOption("maxConcurrent", null) != null)
+				classLimiter = classLimiters.get(resources, "");
+			if (hasOwnLimit(resources, sqlKey))
+				return newLimiter(resources, sqlKey, classLimiter);
+			return classLimiter != null ? classLimiter : UNLIMITED;
+		}
+	};
+
+	private static final SqlKeyMap<ConcurrencyLimiter> classLimiters = new SqlKeyMap<ConcurrencyLimiter>() {
+		@Override
+		protected ConcurrencyLimiter create(ClassResources resources,
+				String sqlKey) {
+			return newLimiter(resources, null, null);
+		}
+	};
+
+	private static final double DECREASE_FACTOR = 0.75;
+
+	private final String name;
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxQueue;
+	private final long queueTimeoutNanos;
+	private final long targetLatencyNanos;
+	// class limit which is taken along with this one, or null
+	private final ConcurrencyLimiter parent;
+
+	private final AtomicInteger limit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger successes = new AtomicInteger();
+	private final AtomicLong lastDecrease = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final Object monitor = new Object();
+
+	public ConcurrencyLimiter(String name, int minLimit, int maxLimit,
+			int maxQueue, long queueTimeoutMillis, long targetLatencyMillis) {
+		this(name, minLimit, maxLimit, maxQueue, queueTimeoutMillis,
+				targetLatencyMillis, null);
+	}
+
+	private ConcurrencyLimiter(String name, int minLimit, int maxLimit,
+			int maxQueue, long queueTimeoutMillis, long targetLatencyMillis,
+			ConcurrencyLimiter parent) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Invalid limits for '" + name
+					+ "': min=" + minLimit + ", max=" + maxLimit);
+		this.name = name;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxQueue = maxQueue;
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS
+				.toNanos(queueTimeoutMillis);
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS
+				.toNanos(targetLatencyMillis);
+		this.limit = new AtomicInteger(maxLimit);
+		this.parent = parent;
+	}
+
+	/**
+	 * returns the limiter configured for the given sqlKey, or a limiter which
+	 * never blocks when there is no limit configured.
+	 */
+	static ConcurrencyLimiter forKey(ClassResources resources, String sqlKey) {
+		return limiters.get(resources, sqlKey);
+	}
+
+	/**
+	 * validates the limits configured for the class and its sqlKeys.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a limit is not a number or out of range
+	 */
+	static void validate(ClassResources resources) {
+		if (resources.getOption("maxConcurrent", null) != null)
+			newLimiter(resources, null, null);
+		for (String sqlKey : resources.getSqlKeys())
+			if (hasOwnLimit(resources, sqlKey))
+				newLimiter(resources, sqlKey, null);
+	}
+
+	/**
+	 * acquires a permit, waiting in the queue if the limit is reached. Returns
+	 * the start time to be passed to {@link #release(long)}.
+	 * 
+	 * @throws AdmissionRejectedException
+	 *             if the queue is full or the wait timed out
+	 */
+	public long acquire() throws SQLException {
+		if (this == UNLIMITED)
+			return 0L;
+		if (!tryAcquire())
+			acquireSlow();
+		if (parent != null) {
+			try {
+				if (!parent.tryAcquire())
+					parent.acquireSlow();
+			} catch (SQLException e) {
+				releasePermit(0L);
+				throw e;
+			}
+		}
+		return startTime();
+	}
+
+	/**
+	 * takes a permit, and one of the class limit, only if both are free now.
+	 * Never waits in the queue and never rejects; on success the permit is
+	 * released with {@link #release(long)} and {@link #startTime()}.
+	 */
+	boolean acquireNow() {
+		if (this == UNLIMITED)
+			return true;
+		if (!tryAcquire())
+			return false;
+		if (parent != null && !parent.tryAcquire()) {
+			releasePermit(0L);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * returns the start time of a call which just took its permit.
+	 */
+	long startTime() {
+		return targetLatencyNanos > 0
+				|| (parent != null && parent.targetLatencyNanos > 0) ? System
+				.nanoTime() : 0L;
+	}
+
+	/**
+	 * releases the permit taken by {@link #acquire()}, start is the value
+	 * returned by it.
+	 */
+	public void release(long start) {
+		if (this == UNLIMITED)
+			return;
+		if (parent != null)
+			parent.releasePermit(start);
+		releasePermit(start);
+	}
+
+	private void releasePermit(long start) {
+		inFlight.decrementAndGet();
+		if (start != 0L && targetLatencyNanos > 0)
+			adapt(System.nanoTime() - start);
+		if (waiting.get() > 0) {
+			synchronized (monitor) {
+				monitor.notify();
+			}
+		}
+	}
+
+	/**
+	 * returns current limit, which changes over time if adaptation is enabled.
+	 */
+	public int getLimit() {
+		return limit.get();
+	}
+
+	/**
+	 * returns number of calls currently holding a permit.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * returns number of calls rejected so far.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * takes a permit if the limit is not reached yet.
+	 */
+	private boolean tryAcquire() {
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= limit.get())
+				return false;
+			if (inFlight.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * waits in the bounded queue until a permit is released or the queue
+	 * timeout expires.
+	 */
+	private void acquireSlow() throws SQLException {
+		if (maxQueue <= 0 || queueTimeoutNanos <= 0)
+			throw reject("limit reached");
+		if (waiting.incrementAndGet() > maxQueue) {
+			waiting.decrementAndGet();
+			throw reject("queue is full");
+		}
+		try {
+			final long deadline = System.nanoTime() + queueTimeoutNanos;
+			synchronized (monitor) {
+				while (!tryAcquire()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						throw reject("timed out in queue");
+					TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw reject("interrupted in queue");
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * AIMD adaptation of the limit based on the latency of a finished call.
+	 */
+	private void adapt(long latency) {
+		if (latency > targetLatencyNanos) {
+			long now = System.nanoTime();
+			long last = lastDecrease.get();
+			if (now - last < targetLatencyNanos
+					|| !lastDecrease.compareAndSet(last, now))
+				return;
+			int current = limit.get();
+			int next = Math.max(minLimit, (int) (current * DECREASE_FACTOR));
+			limit.compareAndSet(current, next);
+			successes.set(0);
+		} else if (successes.incrementAndGet() >= limit.get()) {
+			successes.set(0);
+			int current = limit.get();
+			if (current < maxLimit && limit.compareAndSet(current, current + 1)
+					&& waiting.get() > 0) {
+				synchronized (monitor) {
+					monitor.notify();
+				}
+			}
+		}
+	}
+
+	private AdmissionRejectedException reject(String reason) {
+		rejected.incrementAndGet();
+		return new AdmissionRejectedException("Call to '" + name
+				+ "' rejected, " + reason + " (in flight: " + inFlight.get()
+				+ ", limit: " + limit.get() + ")");
+	}
+
+	private static boolean hasOwnLimit(ClassResources resources,
+			String sqlKey) {
+		return resources.getValue(ClassResources.OPTION_PREFIX
+				+ "maxConcurrent." + sqlKey) != null;
+	}
+
+	/**
+	 * creates a limiter from the options of the given sqlKey, or of the whole
+	 * class if sqlKey is null. parent is the class limiter a sqlKey limiter
+	 * takes permits of too, or null.
+	 */
+	private static ConcurrencyLimiter newLimiter(ClassResources resources,
+			String sqlKey, ConcurrencyLimiter parent) {
+		String name = resources.getName()
+				+ (sqlKey == null ? "" : "#" + sqlKey);
+		int max = intOption(resources, name, "maxConcurrent", sqlKey, 0);
+		int maxQueue = intOption(resources, name, "maxQueue", sqlKey, 0);
+		int queueTimeout = intOption(resources, name, "queueTimeout", sqlKey, 0);
+		int targetLatency = intOption(resources, name, "targetLatency", sqlKey, 0);
+		if (maxQueue < 0 || queueTimeout < 0 || targetLatency < 0)
+			throw new IllegalArgumentException("Invalid limits for '" + name
+					+ "': negative maxQueue, queueTimeout or targetLatency");
+		return new ConcurrencyLimiter(name, Math.min(max,
+				intOption(resources, name, "minConcurrent", sqlKey, 1)), max,
+				maxQueue, queueTimeout, targetLatency, parent);
+	}
+
+	private static int intOption(ClassResources resources, String name,
+			String option, String sqlKey, int defaultValue) {
+		String value = resources.getOption(option, sqlKey);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + option
+					+ " for '" + name + "': " + value, e);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.rakesh.common.db;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Optional profiler of connection hold times. When enabled it records every
+ * connection borrowed from the pool by {@link BaseDAO} and
+ * {@link TransactionManager} together with borrow time, borrowing thread and,
+ * for every n-th borrow, the call site. Connections held longer than the
+ * threshold are logged when they are returned, and connections which are
+ * still held (for example by a transaction whose finish() was never called)
+ * can be dumped at any time. USAGE:
+ * 
+ * <pre>
+ * 	ConnectionProfiler.enable(2000, 10);
+ * 	...
+ * 	System.out.println(ConnectionProfiler.getActive().dumpHolders());
+ * </pre>
+ * 
+ * When it is not enabled the only cost is one volatile read per borrow and
+ * return.
+ * 
+ * @author rakesh
+ */
+public class ConnectionProfiler {
+
+	private static final Log logger = LogFactory.getLog(ConnectionProfiler.class);
+
+	/**
+	 * profiler in use, null when profiling is disabled.
+	 */
+	static volatile ConnectionProfiler active;
+
+	private final long thresholdNanos;
+	private final int sampleEvery;
+	private final ConcurrentHashMap<Key, Hold> holds = new ConcurrentHashMap<Key, Hold>();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong longHolds = new AtomicLong();
+	private final AtomicLong maxHoldNanos = new AtomicLong();
+
+	private ConnectionProfiler(long thresholdMillis, int sampleEvery) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.sampleEvery = Math.max(1, sampleEvery);
+	}
+
+	/**
+	 * enables profiling. Holds longer than thresholdMillis are flagged, and
+	 * call site is captured for every sampleEvery-th borrow (1 captures all of
+	 * them).
+	 */
+	public static ConnectionProfiler enable(long thresholdMillis,
+			int sampleEvery) {
+		ConnectionProfiler profiler = new ConnectionProfiler(thresholdMillis,
+				sampleEvery);
+		active = profiler;
+		return profiler;
+	}
+
+	/**
+	 * disables profiling, connections borrowed till now are forgotten.
+	 */
+	public static void disable() {
+		active = null;
+	}
+
+	/**
+	 * returns the enabled profiler or null if profiling is disabled.
+	 */
+	public static ConnectionProfiler getActive() {
+		return active;
+	}
+
+	/**
+	 * records a connection borrowed from the pool.
+	 */
+	void borrowed(Connection c) {
+		long n = borrows.incrementAndGet();
+		Throwable site = (n % sampleEvery == 0) ? new Throwable(
+				"Connection borrowed here") : null;
+		holds.put(new Key(c), new Hold(Thread.currentThread().getName(),
+				TransactionManager.getCurrentTransaction() != null, site));
+	}
+
+	/**
+	 * records a connection returned to the pool.
+	 */
+	void released(Connection c) {
+		Hold hold = holds.remove(new Key(c));
+		if (hold == null)
+			return;
+		long held = System.nanoTime() - hold.borrowNanos;
+		long max = maxHoldNanos.get();
+		while (held > max && !maxHoldNanos.compareAndSet(max, held))
+			max = maxHoldNanos.get();
+		if (held > thresholdNanos) {
+			longHolds.incrementAndGet();
+			logger.warn("Connection held for "
+					+ TimeUnit.NANOSECONDS.toMillis(held) + "ms by " + hold,
+					hold.site);
+		}
+	}
+
+	/**
+	 * returns number of connections borrowed while profiling.
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/**
+	 * returns number of returned connections which were held longer than the
+	 * threshold.
+	 */
+	public long getLongHoldCount() {
+		return longHolds.get();
+	}
+
+	/**
+	 * returns the longest hold time of a returned connection in milliseconds.
+	 */
+	public long getMaxHoldMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxHoldNanos.get());
+	}
+
+	/**
+	 * returns number of connections currently held.
+	 */
+	public int getHolderCount() {
+		return holds.size();
+	}
+
+	/**
+	 * returns a description of all connections currently held, the longest
+	 * held first. Holds above the threshold are marked and include the call
+	 * site when it was sampled.
+	 */
+	public String dumpHolders() {
+		List<Hold> current = new ArrayList<Hold>(holds.values());
+		Collections.sort(current, new Comparator<Hold>() {
+			public int compare(Hold h1, Hold h2) {
+				return h1.borrowNanos < h2.borrowNanos ? -1
+						: (h1.borrowNanos == h2.borrowNanos ? 0 : 1);
+			}
+		});
+		long now = System.nanoTime();
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		out.println("CONNECTIONS HELD:\t" + current.size());
+		for (Hold hold : current) {
+			long held = now - hold.borrowNanos;
+			out.println((held > thresholdNanos ? "LONG " : "     ")
+					+ TimeUnit.NANOSECONDS.toMillis(held) + "ms\t" + hold);
+			if (held > thresholdNanos && hold.site != null)
+				hold.site.printStackTrace(out);
+		}
+		out.flush();
+		return sw.toString();
+	}
+
+	/**
+	 * identity key of a borrowed connection; pooled connections compare equal
+	 * by their physical connection which is not stable once they are closed.
+	 */
+	private static final class Key {
+		private final Connection c;
+
+		Key(Connection c) {
+			this.c = c;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(c);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key) obj).c == c;
+		}
+	}
+
+	/**
+	 * information recorded when a connection is borrowed.
+	 */
+	private static final class Hold {
+		final long borrowNanos = System.nanoTime();
+		final long borrowMillis = System.currentTimeMillis();
+		final String thread;
+		final boolean transaction;
+		final Throwable site;
+
+		Hold(String thread, boolean transaction, Throwable site) {
+			this.thread = thread;
+			this.transaction = transaction;
+			this.site = site;
+		}
+
+		@Override
+		public String toString() {
+			return "thread '" + thread + "'"
+					+ (transaction ? " in transaction" : "") + ", borrowed at "
+					+ new Date(borrowMillis);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.rakesh.common.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared cached pools of daemon threads, used by the DAOs which run queries
+ * in the background when no executor is given. Daemon threads don't keep
+ * the JVM alive and idle ones end after a minute.
+ * 
+ * @author rakesh
+ */
+final class DaemonExecutors {
+
+	private static final Map<String, ExecutorService> pools = new HashMap<String, ExecutorService>();
+
+	private DaemonExecutors() {
+	}
+
+	/**
+	 * returns the pool whose threads are named 'name-N', creating it on first
+	 * use.
+	 */
+	static synchronized ExecutorService get(final String name) {
+		ExecutorService pool = pools.get(name);
+		if (pool == null) {
+			pool = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + "-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pools.put(name, pool);
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,21 @@
+package com.rakesh.common.db;
+
+import com.rakesh.common.util.ClassResources;
+import com.rakesh.common.util.OptionValidator;
+
+/**
+ * Validates the options read by the DAO classes of this package: the
+ * concurrency limits, fetch sizes and parallel mapping settings. Registered
+ * as an {@link OptionValidator} service for the <code>catalog</code> build
+ * target.
+ * 
+ * @author rakesh
+ */
+public class DaoOptions implements OptionValidator {
+
+	public void validate(ClassResources resources) {
+		ConcurrencyLimiter.validate(resources);
+		FetchSizeTuner.validate(resources);
+		ParallelRowMapper.validate(resources);
+	}
+}
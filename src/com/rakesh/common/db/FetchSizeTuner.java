@@ -0,0 +1,248 @@
+package com.rakesh.common.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Chooses the fetch size of the queries of a sqlKey. By default the fetch size
+ * is left to the driver. It can be fixed, or made adaptive, with an option in
+ * the resource file of the DAO:
+ * 
+ * <pre>
+ * # fixed fetch size for one sqlKey
+ * dao.fetchSize.allOrders=500
+ * # adaptive fetch size for all sqlKeys of the class
+ * dao.fetchSize=adaptive
+ * </pre>
+ * 
+ * or for all the DAOs with {@link #setAdaptive(boolean)}. A fixed size of 0
+ * leaves it to the driver; a negative or malformed size fails the first query
+ * of the sqlKey, and the <code>catalog</code> build target, with an
+ * IllegalArgumentException naming the option. In adaptive mode a
+ * running average of the rows returned by the sqlKey and an estimate of the
+ * bytes per row, taken from the result set metadata, are kept. Next executions
+ * fetch the expected rows in one round trip as long as they fit in
+ * {@link #setMaxFetchBytes(long)} bytes, so big scans make fewer round trips
+ * and small lookups don't make the driver allocate buffers for rows that never
+ * come.
+ * 
+ * @author rakesh
+ */
+public class FetchSizeTuner {
+
+	private static final String ADAPTIVE = "adaptive";
+
+	/**
+	 * tuner of the sqlKeys which leave fetch size to the driver.
+	 */
+	private static final FetchSizeTuner DRIVER_DEFAULT = new FetchSizeTuner(0,
+			false);
+
+	private static final double SMOOTHING = 0.2;
+	private static final int MAX_FETCH_SIZE = 10000;
+	private static final int MAX_COLUMN_BYTES = 4000;
+	private static final int LOB_LOCATOR_BYTES = 64;
+
+	private static volatile boolean adaptiveByDefault;
+	private static volatile long maxFetchBytes = 4 * 1024 * 1024;
+
+	private static final SqlKeyMap<FetchSizeTuner> tuners = new SqlKeyMap<FetchSizeTuner>() {
+		@Override
+		protected FetchSizeTuner create(ClassResources resources, String sqlKey) {
+			String value = resources.getOption("fetchSize", sqlKey);
+			if (value == null)
+				return adaptiveByDefault ? new FetchSizeTuner(0, true)
+						: DRIVER_DEFAULT;
+			if (ADAPTIVE.equalsIgnoreCase(value.trim()))
+				return new FetchSizeTuner(0, true);
+			int size = fixedSize(resources, sqlKey, value);
+			return size == 0 ? DRIVER_DEFAULT : new FetchSizeTuner(size, false);
+		}
+	};
+
+	private final int fixedSize;
+	private final boolean adaptive;
+	private volatile double averageRows = -1;
+	private volatile int bytesPerRow;
+
+	private FetchSizeTuner(int fixedSize, boolean adaptive) {
+		this.fixedSize = fixedSize;
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * enables or disables adaptive fetch size for the sqlKeys which don't
+	 * have a fetchSize option.
+	 */
+	public static void setAdaptive(boolean adaptive) {
+		adaptiveByDefault = adaptive;
+		tuners.clear();
+	}
+
+	/**
+	 * sets upper bound of the memory one fetch of an adaptive sqlKey may take,
+	 * 4MB by default.
+	 */
+	public static void setMaxFetchBytes(long bytes) {
+		maxFetchBytes = bytes;
+	}
+
+	/**
+	 * validates the fetchSize options of the class and its sqlKeys.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a fetch size is neither 'adaptive' nor a number of 0 or
+	 *             more
+	 */
+	static void validate(ClassResources resources) {
+		String value = resources.getOption("fetchSize", null);
+		if (value != null && !ADAPTIVE.equalsIgnoreCase(value.trim()))
+			fixedSize(resources, null, value);
+		for (String sqlKey : resources.getSqlKeys()) {
+			value = resources.getValue(ClassResources.OPTION_PREFIX
+					+ "fetchSize." + sqlKey);
+			if (value != null && !ADAPTIVE.equalsIgnoreCase(value.trim()))
+				fixedSize(resources, sqlKey, value);
+		}
+	}
+
+	private static int fixedSize(ClassResources resources, String sqlKey,
+			String value) {
+		String name = resources.getName()
+				+ (sqlKey == null ? "" : "#" + sqlKey);
+		int size;
+		try {
+			size = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid fetchSize for '"
+					+ name + "': " + value, e);
+		}
+		if (size < 0)
+			throw new IllegalArgumentException("Invalid fetchSize for '"
+					+ name + "': " + value
+					+ ", must be 'adaptive' or a number of 0 or more");
+		return size;
+	}
+
+	/**
+	 * returns the tuner of the given sqlKey.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if its fetchSize option is invalid
+	 */
+	static FetchSizeTuner forKey(ClassResources resources, String sqlKey) {
+		return tuners.get(resources, sqlKey);
+	}
+
+	/**
+	 * sets fetch size of the statement before it is executed, if there is one
+	 * to set.
+	 * 
+	 * @throws SQLException
+	 */
+	void beforeExecute(PreparedStatement pst) throws SQLException {
+		if (fixedSize > 0) {
+			pst.setFetchSize(fixedSize);
+		} else if (adaptive) {
+			int size = adviseFetchSize();
+			if (size > 0)
+				pst.setFetchSize(size);
+		}
+	}
+
+	/**
+	 * sets fetch size of a result set which is not the first one of its
+	 * statement, if there is one to set.
+	 * 
+	 * @throws SQLException
+	 */
+	void beforeRead(ResultSet rs) throws SQLException {
+		if (fixedSize > 0) {
+			rs.setFetchSize(fixedSize);
+		} else if (adaptive) {
+			int size = adviseFetchSize();
+			if (size > 0)
+				rs.setFetchSize(size);
+		}
+	}
+
+	/**
+	 * estimates the row size from the metadata of the first result set.
+	 * 
+	 * @throws SQLException
+	 */
+	void executed(ResultSet rs) throws SQLException {
+		if (adaptive && bytesPerRow == 0)
+			bytesPerRow = estimateRowBytes(rs.getMetaData());
+	}
+
+	/**
+	 * records number of rows read by an execution.
+	 */
+	void completed(int rows) {
+		if (!adaptive)
+			return;
+		double average = averageRows;
+		averageRows = average < 0 ? rows : average + SMOOTHING
+				* (rows - average);
+	}
+
+	/**
+	 * returns the fetch size for the next execution, or 0 if nothing is known
+	 * about the sqlKey yet.
+	 */
+	int adviseFetchSize() {
+		double average = averageRows;
+		if (average < 0)
+			return 0;
+		// one extra row so that the end of the results comes with the data
+		long rows = (long) Math.ceil(average * 1.25) + 1;
+		long byMemory = maxFetchBytes / Math.max(1, bytesPerRow);
+		return (int) Math.max(1,
+				Math.min(Math.min(rows, byMemory), MAX_FETCH_SIZE));
+	}
+
+	private static int estimateRowBytes(ResultSetMetaData md)
+			throws SQLException {
+		int bytes = 0;
+		for (int i = 1, n = md.getColumnCount(); i <= n; i++) {
+			switch (md.getColumnType(i)) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.REAL:
+				bytes += 4;
+				break;
+			case Types.BIGINT:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			case Types.DATE:
+			case Types.TIME:
+				bytes += 8;
+				break;
+			case Types.TIMESTAMP:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				bytes += 16;
+				break;
+			case Types.BLOB:
+			case Types.CLOB:
+			case Types.NCLOB:
+				bytes += LOB_LOCATOR_BYTES;
+				break;
+			default:
+				int size = md.getColumnDisplaySize(i);
+				bytes += (size <= 0 || size > MAX_COLUMN_BYTES) ? MAX_COLUMN_BYTES
+						: size * 2;
+			}
+		}
+		return Math.max(1, bytes);
+	}
+}
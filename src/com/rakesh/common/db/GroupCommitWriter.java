@@ -0,0 +1,281 @@
+package com.rakesh.common.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Opt-in writer which coalesces single statement writes of many threads into
+ * shared transactions, so that the database does one commit (and one log
+ * flush) for a group of writes instead of one per write. USAGE:
+ * 
+ * <pre>
+ * 	GroupCommitWriter writer = new GroupCommitWriter(dao, 100, 2000);
+ * 	...
+ * 	int count = writer.update(resources, &quot;insertEvent&quot;, params);
+ * </pre>
+ * 
+ * A write is queued and its caller waits. A flusher thread collects the
+ * writes which arrive within maxDelayMicros of the first one, up to
+ * maxGroupSize, executes them in order on one connection in one transaction
+ * and, once the commit succeeded, completes every caller with its own update
+ * count. If one of the writes fails the transaction is rolled back and the
+ * writes of the group are executed one by one, so only the failing caller
+ * gets the error. If the commit itself fails all callers of the group get the
+ * error, since it is not known whether the writes were applied. An error
+ * after a successful commit, like resetting the auto-commit mode, is only
+ * logged. Callers resume once the connection of the group was returned.
+ * <p>
+ * Writes made inside a running transaction are executed in that transaction
+ * directly. The DAO must not be read only.
+ * 
+ * @author rakesh
+ */
+public class GroupCommitWriter {
+
+	private static final Log logger = LogFactory.getLog(GroupCommitWriter.class);
+
+	private final BaseDAO dao;
+	private final int maxGroupSize;
+	private final long maxDelayNanos;
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	private final Thread flusher;
+	private volatile boolean closed;
+
+	public GroupCommitWriter(BaseDAO dao, int maxGroupSize, long maxDelayMicros) {
+		if (dao.isReadOnly())
+			throw new IllegalArgumentException("Group commit needs a read/write DAO");
+		this.dao = dao;
+		this.maxGroupSize = maxGroupSize;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "group-commit-" + dao.getClass().getSimpleName());
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * executes an INSERT, UPDATE or DELETE as part of the next group and
+	 * returns number of rows updated by it, once the group is committed.
+	 * 
+	 * @throws SQLException
+	 *             error of this write, or of the commit of its group, or the
+	 *             writer is closed
+	 */
+	public int update(ClassResources resources, final String sqlKey,
+			Object... params) throws SQLException {
+		if (TransactionManager.getCurrentTransaction() != null)
+			return dao.update(resources, sqlKey, params);
+		if (closed)
+			throw new SQLException("Group commit writer is closed");
+		Write write = new Write(resources, sqlKey, params);
+		queue.add(write);
+		// close started meanwhile, the flusher may have stopped already
+		if (closed && queue.remove(write))
+			throw new SQLException("Group commit writer is closed");
+		try {
+			write.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for group commit, the write may still be committed", e);
+		}
+		if (write.error instanceof SQLException)
+			throw (SQLException) write.error;
+		if (write.error instanceof RuntimeException)
+			throw (RuntimeException) write.error;
+		if (write.error instanceof Error)
+			throw (Error) write.error;
+		return write.count;
+	}
+
+	/**
+	 * stops the flusher after the queued writes are done, waiting at most the
+	 * poll interval of the flusher plus the last flush. Writes are rejected
+	 * once close started.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		flusher.join();
+		// writes queued after the flusher stopped
+		List<Write> left = new ArrayList<Write>();
+		queue.drainTo(left);
+		for (Write write : left) {
+			write.fail(new SQLException("Group commit writer is closed"));
+			write.release();
+		}
+	}
+
+	private void flushLoop() {
+		List<Write> group = new ArrayList<Write>(maxGroupSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				group.add(first);
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while (group.size() < maxGroupSize) {
+					long remaining = deadline - System.nanoTime();
+					Write next = remaining > 0 ? queue.poll(remaining,
+							TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)
+						break;
+					group.add(next);
+				}
+			} catch (InterruptedException e) {
+				// flush what was collected, the loop ends once closed
+				closed = true;
+			}
+			if (!group.isEmpty()) {
+				try {
+					flush(group);
+				} catch (Throwable t) {
+					// the flusher must survive, or the callers wait forever
+					logger.error("Group commit failed", t);
+					for (Write write : group)
+						write.fail(t);
+				} finally {
+					// callers resume once the connection is back in the pool
+					for (Write write : group)
+						write.release();
+				}
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * executes the group in one transaction, or one by one if a write fails.
+	 */
+	private void flush(List<Write> group) {
+		Connection c;
+		try {
+			c = dao.doGetConnection();
+		} catch (SQLException e) {
+			for (Write write : group)
+				write.fail(e);
+			return;
+		}
+		try {
+			if (group.size() == 1 || !executeGroup(c, group)) {
+				try {
+					c.setAutoCommit(true);
+				} catch (SQLException e) {
+					for (Write write : group)
+						write.fail(e);
+					return;
+				}
+				executeEach(c, group);
+			}
+		} finally {
+			try {
+				dao.doCloseConnection(c);
+			} catch (SQLException e) {
+				// writes are completed already
+			}
+		}
+	}
+
+	/**
+	 * returns false if a write failed and the group was rolled back.
+	 */
+	private boolean executeGroup(Connection c, List<Write> group) {
+		int[] counts = new int[group.size()];
+		try {
+			c.setAutoCommit(false);
+			try {
+				for (int i = 0; i < counts.length; i++) {
+					Write w = group.get(i);
+					counts[i] = JdbcUtills.update(c, w.resources, w.sqlKey,
+							w.params);
+				}
+			} catch (SQLException e) {
+				c.rollback();
+				return false;
+			} catch (RuntimeException e) {
+				c.rollback();
+				return false;
+			}
+			c.commit();
+		} catch (SQLException e) {
+			for (Write write : group)
+				write.fail(e);
+			return true;
+		}
+		for (int i = 0; i < counts.length; i++)
+			group.get(i).complete(counts[i]);
+		// the writes are committed, a cleanup error must not fail them
+		try {
+			c.setAutoCommit(true);
+		} catch (SQLException e) {
+			logger.warn("Could not reset auto-commit after group commit", e);
+		}
+		return true;
+	}
+
+	private void executeEach(Connection c, List<Write> group) {
+		for (Write w : group) {
+			try {
+				w.complete(JdbcUtills.update(c, w.resources, w.sqlKey,
+						w.params));
+			} catch (SQLException e) {
+				w.fail(e);
+			} catch (RuntimeException e) {
+				w.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * a queued write and its outcome.
+	 */
+	private static final class Write {
+		final ClassResources resources;
+		final String sqlKey;
+		final Object[] params;
+		final CountDownLatch done = new CountDownLatch(1);
+		int count;
+		Throwable error;
+		private boolean finished;
+
+		Write(ClassResources resources, String sqlKey, Object[] params) {
+			this.resources = resources;
+			this.sqlKey = sqlKey;
+			this.params = params;
+		}
+
+		void complete(int count) {
+			if (finished)
+				return;
+			this.count = count;
+			finished = true;
+		}
+
+		void fail(Throwable error) {
+			if (finished)
+				return;
+			this.error = error;
+			finished = true;
+		}
+
+		/**
+		 * wakes up the caller, after the outcome was set.
+		 */
+		void release() {
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Read only DAO which hedges slow reads: when a query on the primary data
+ * source did not finish within the 95th percentile latency of its sqlKey, the
+ * same query is sent to the secondary data source (a replica) and the first
+ * result is returned. The other attempt is cancelled with
+ * {@link Statement#cancel()}. USAGE:
+ * 
+ * <pre>
+ * 	public class CurrencyDAO extends HedgedDAO {
+ * 		public CurrencyDAO(DataSource primary, DataSource replica) {
+ * 			super(primary, replica);
+ * 		}
+ * 		...
+ * 	}
+ * </pre>
+ * 
+ * queryForInt, queryForObject and query are hedged; calls inside a
+ * transaction are not, they run on the connection of the transaction. A
+ * sqlKey is hedged once 20 of its calls were measured. A primary call which
+ * is cancelled because the hedge won is measured till it was cancelled, and
+ * hedges are measured separately, so they don't pull the percentile of the
+ * primary down. Hedges are limited by
+ * a budget, by default 5% of the calls, so a slow database does not get
+ * twice the load. Queries run on the given executor or a shared pool of
+ * daemon threads.
+ * 
+ * @author rakesh
+ */
+public class HedgedDAO extends BaseDAO {
+
+	private static final int MIN_SAMPLES = 20;
+	private static final long HISTOGRAM_WINDOW = 1000;
+
+	private final DataSource secondary;
+	private final ExecutorService executor;
+	// latencies of the primary, which decide when to hedge, and of the hedges
+	private final SqlKeyMap<LatencyHistogram> latencies = new SqlKeyMap<LatencyHistogram>() {
+		@Override
+		protected LatencyHistogram create(ClassResources resources, String sqlKey) {
+			return new LatencyHistogram(HISTOGRAM_WINDOW);
+		}
+	};
+	private final SqlKeyMap<LatencyHistogram> hedgeLatencies = new SqlKeyMap<LatencyHistogram>() {
+		@Override
+		protected LatencyHistogram create(ClassResources resources, String sqlKey) {
+			return new LatencyHistogram(HISTOGRAM_WINDOW);
+		}
+	};
+
+	private final TokenBudget budget = new TokenBudget(0.05, 20, 20);
+	private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong budgetRejected = new AtomicLong();
+
+	/**
+	 * constructor to create the dao, queries run on a shared pool of daemon
+	 * threads.
+	 */
+	public HedgedDAO(DataSource primary, DataSource secondary) {
+		this(primary, secondary, null);
+	}
+
+	/**
+	 * constructor allows you to specify the executor queries run on, null for
+	 * the shared pool.
+	 */
+	public HedgedDAO(DataSource primary, DataSource secondary,
+			ExecutorService executor) {
+		super(primary);
+		this.secondary = secondary;
+		this.executor = executor;
+	}
+
+	/**
+	 * sets the ratio of hedges to calls allowed by the budget, 0.05 by
+	 * default. Each call adds ratio to the budget, up to maxHedges.
+	 */
+	public void setHedgeBudget(double ratio, int maxHedges) {
+		budget.setLimits(ratio, maxHedges);
+	}
+
+	/**
+	 * sets the minimum delay before a hedge is sent, 1 ms by default.
+	 */
+	public void setMinDelayMillis(long millis) {
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Override
+	protected Integer queryForInt(ClassResources resources,
+			final String sqlKey, Object... params) throws SQLException {
+		return queryForObject(integerRowMapper, resources, sqlKey, params);
+	}
+
+	@Override
+	protected <T> T queryForObject(RowMapper<T> rm, ClassResources resources,
+			final String sqlKey, Object... params) throws SQLException {
+		if (TransactionManager.getCurrentTransaction() != null)
+			return super.queryForObject(rm, resources, sqlKey, params);
+		return hedged(new Attempt<T>(rm, false, resources, sqlKey, params));
+	}
+
+	@Override
+	protected <T> List<T> query(RowMapper<T> rm, ClassResources resources,
+			final String sqlKey, Object... params) throws SQLException {
+		if (TransactionManager.getCurrentTransaction() != null)
+			return super.query(rm, resources, sqlKey, params);
+		return hedged(new Attempt<List<T>>(rm, true, resources, sqlKey, params));
+	}
+
+	/**
+	 * returns the latency of the sqlKey on the primary data source at the
+	 * given percentile in nanoseconds, including the calls cancelled because
+	 * the hedge was faster. Returns -1 before the first call.
+	 */
+	public long getLatency(ClassResources resources, String sqlKey, double p) {
+		return latencies.get(resources, sqlKey).percentile(p);
+	}
+
+	/**
+	 * returns the latency of the hedges of the sqlKey at the given
+	 * percentile in nanoseconds, -1 before the first hedge.
+	 */
+	public long getHedgeLatency(ClassResources resources, String sqlKey,
+			double p) {
+		return hedgeLatencies.get(resources, sqlKey).percentile(p);
+	}
+
+	/**
+	 * returns number of hedges sent.
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/**
+	 * returns number of calls answered by the hedge.
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * returns number of hedges not sent because the budget was empty.
+	 */
+	public long getBudgetRejectedCount() {
+		return budgetRejected.get();
+	}
+
+	private <T> T hedged(Attempt<T> first) throws SQLException {
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(first.resources, first.sqlKey);
+		long start = limiter.acquire();
+		try {
+			budget.deposit();
+			LatencyHistogram latency = latencies.get(first.resources, first.sqlKey);
+			first.ds = getDataSource();
+			first.latency = latency;
+			if (latency.getCount() < MIN_SAMPLES)
+				return first.call();
+			long delay = Math.max(minDelayNanos, latency.percentile(0.95));
+			return race(first, delay);
+		} finally {
+			limiter.release(start);
+		}
+	}
+
+	private <T> T race(Attempt<T> first, long delay) throws SQLException {
+		ExecutorCompletionService<T> cs = new ExecutorCompletionService<T>(
+				executor != null ? executor
+						: DaemonExecutors.get("hedged-query"));
+		Future<T> f1 = cs.submit(first);
+		Attempt<T> second = null;
+		Future<T> f2 = null;
+		try {
+			Future<T> done = cs.poll(delay, TimeUnit.NANOSECONDS);
+			if (done == null) {
+				if (budget.withdraw()) {
+					second = first.copy(secondary, hedgeLatencies.get(
+							first.resources, first.sqlKey));
+					f2 = cs.submit(second);
+					hedges.incrementAndGet();
+				} else {
+					budgetRejected.incrementAndGet();
+				}
+				done = cs.take();
+			}
+			try {
+				T result = done.get();
+				if (done == f2)
+					hedgeWins.incrementAndGet();
+				return result;
+			} catch (ExecutionException e) {
+				if (f2 == null)
+					throw failure(e);
+				// the other attempt may still succeed
+				try {
+					T result = cs.take().get();
+					if (done == f1)
+						hedgeWins.incrementAndGet();
+					return result;
+				} catch (ExecutionException e2) {
+					throw failure(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for query " + first.sqlKey, e);
+		} finally {
+			// cancels the loser, a no-op for an attempt which is done
+			first.cancel();
+			f1.cancel(false);
+			if (second != null) {
+				second.cancel();
+				f2.cancel(false);
+			}
+		}
+	}
+
+	private static SQLException failure(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof SQLException)
+			return (SQLException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new SQLException(cause);
+	}
+
+	/**
+	 * one attempt of a call on one data source. The statement it creates is
+	 * kept so the attempt can be cancelled.
+	 */
+	private final class Attempt<T> implements Callable<T>, InvocationHandler {
+		private final RowMapper<?> rm;
+		private final boolean list;
+		final ClassResources resources;
+		final String sqlKey;
+		private final Object[] params;
+		DataSource ds;
+		LatencyHistogram latency;
+		private Connection connection;
+		private Statement statement;
+		private volatile boolean cancelled;
+
+		Attempt(RowMapper<?> rm, boolean list, ClassResources resources,
+				String sqlKey, Object[] params) {
+			this.rm = rm;
+			this.list = list;
+			this.resources = resources;
+			this.sqlKey = sqlKey;
+			this.params = params;
+		}
+
+		Attempt<T> copy(DataSource other, LatencyHistogram otherLatency) {
+			Attempt<T> a = new Attempt<T>(rm, list, resources, sqlKey, params);
+			a.ds = other;
+			a.latency = otherLatency;
+			return a;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T call() throws SQLException {
+			long t = System.nanoTime();
+			Connection c = doGetConnection(ds);
+			try {
+				connection = c;
+				Connection proxy = (Connection) Proxy.newProxyInstance(
+						HedgedDAO.class.getClassLoader(),
+						new Class<?>[] { Connection.class }, this);
+				T result = (T) (list ? JdbcUtills.query(proxy, rm, resources,
+						sqlKey, params) : JdbcUtills.queryForObject(proxy, rm,
+						resources, sqlKey, params));
+				latency.record(System.nanoTime() - t);
+				return result;
+			} catch (SQLException e) {
+				// a cancelled attempt took at least this long, leaving it out
+				// would hide exactly the slow calls
+				if (cancelled)
+					latency.record(System.nanoTime() - t);
+				throw e;
+			} finally {
+				finished();
+				doCloseConnection(c);
+			}
+		}
+
+		/**
+		 * keeps the statements created on the connection.
+		 */
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			Object result;
+			try {
+				result = method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof Statement) {
+				synchronized (this) {
+					statement = (Statement) result;
+				}
+				if (cancelled)
+					cancel();
+			}
+			return result;
+		}
+
+		/**
+		 * forgets the statement before the connection goes back to the pool,
+		 * so a late cancel can't hit a query of the next borrower.
+		 */
+		private synchronized void finished() {
+			statement = null;
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			Statement s = statement;
+			if (s != null) {
+				try {
+					s.cancel();
+				} catch (SQLException e) {
+					// the statement is done or closed
+				}
+			}
+		}
+	}
+}
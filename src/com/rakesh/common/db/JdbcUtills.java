@@ -10,7 +10,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.rakesh.common.db.util.CallResult;
+import com.rakesh.common.db.util.GenericMappers.RowHandler;
 import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.db.util.OutParameter;
+import com.rakesh.common.db.util.Page;
 import com.rakesh.common.util.ClassResources;
 
 /**
@@ -29,21 +33,7 @@ public class JdbcUtills {
 	 */
 	static Integer queryForInt(Connection c, ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		// create prepared statement
-		PreparedStatement pst = getPreparedStatement(c, resources, sqlKey,
-				params);
-		try {
-			// execute query
-			ResultSet rs = pst.executeQuery();
-			try {
-				// map results
-				return processOneRow(integerRowMapper, rs);
-			} finally {
-				rs.close();
-			}
-		} finally {
-			pst.close();
-		}
+		return queryForObject(c, integerRowMapper, resources, sqlKey, params);
 	}
 
 	/**
@@ -55,20 +45,36 @@ public class JdbcUtills {
 	static <T> T queryForObject(Connection c, RowMapper<T> rm,
 			ClassResources resources, final String sqlKey, Object... params)
 			throws SQLException {
-		// create prepared statement
-		PreparedStatement pst = getPreparedStatement(c, resources, sqlKey,
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
 				params);
 		try {
-			// execute query
-			ResultSet rs = pst.executeQuery();
+			// create prepared statement
+			PreparedStatementCreator psc = creator(ctx, resources, sqlKey,
+					params);
+			PreparedStatement pst = getPreparedStatement(c, ctx, psc);
 			try {
-				// map results
-				return processOneRow(rm, rs);
+				FetchSizeTuner tuner = FetchSizeTuner.forKey(resources, sqlKey);
+				tuner.beforeExecute(pst);
+				// execute query
+				ResultSet rs = executeQuery(ctx, pst);
+				try {
+					tuner.executed(rs);
+					// map results
+					T result = processOneRow(rm, rs);
+					tuner.completed(result == null ? 0 : 1);
+					if (ctx != null)
+						ctx.completed(result, result == null ? 0 : 1);
+					return result;
+				} finally {
+					rs.close();
+				}
 			} finally {
-				rs.close();
+				psc.close(pst);
 			}
-		} finally {
-			pst.close();
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
 		}
 	}
 
@@ -81,20 +87,123 @@ public class JdbcUtills {
 	static <T> List<T> query(Connection c, RowMapper<T> rm,
 			ClassResources resources, final String sqlKey, Object... params)
 			throws SQLException {
-		// create prepared statement
-		PreparedStatement pst = getPreparedStatement(c, resources, sqlKey,
+		return doQuery(c, rm, null, resources, sqlKey, params);
+	}
+
+	/**
+	 * method to execute a query which expects many rows, and maps them in
+	 * parallel once there are more rows than the threshold of the sqlKey. The
+	 * returned list keeps the order of the rows.
+	 * 
+	 * @throws SQLException
+	 */
+	static <T> List<T> queryParallel(Connection c, RowMapper<T> rm,
+			ClassResources resources, final String sqlKey, Object... params)
+			throws SQLException {
+		return doQuery(c, rm, ParallelRowMapper.forKey(rm, resources, sqlKey),
+				resources, sqlKey, params);
+	}
+
+	/**
+	 * executes a query which expects multiple rows, mapping them with the
+	 * parallel mapper if it is not null.
+	 * 
+	 * @throws SQLException
+	 */
+	private static <T> List<T> doQuery(Connection c, RowMapper<T> rm,
+			ParallelRowMapper<T> parallel, ClassResources resources,
+			final String sqlKey, Object... params) throws SQLException {
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
 				params);
 		try {
-			// execute query
-			ResultSet rs = pst.executeQuery();
+			// create prepared statement
+			PreparedStatementCreator psc = creator(ctx, resources, sqlKey,
+					params);
+			PreparedStatement pst = getPreparedStatement(c, ctx, psc);
+			try {
+				FetchSizeTuner tuner = FetchSizeTuner.forKey(resources, sqlKey);
+				tuner.beforeExecute(pst);
+				// execute query
+				ResultSet rs = executeQuery(ctx, pst);
+				try {
+					tuner.executed(rs);
+					// map results
+					List<T> results = parallel == null ? processMultipleRows(
+							rm, rs) : parallel.map(rs);
+					tuner.completed(results.size());
+					if (ctx != null)
+						ctx.completed(results, results.size());
+					return results;
+				} finally {
+					rs.close();
+				}
+			} finally {
+				psc.close(pst);
+			}
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
+		}
+	}
+
+	/**
+	 * method to read one page of a query with keyset pagination. The page
+	 * after the row of the decoded token is read, or the first page if it is
+	 * null. One row more than the page size is fetched to find out
+	 * whether there is a next page.
+	 * 
+	 * @throws SQLException
+	 */
+	static <T> Page<T> queryPage(Connection c, RowMapper<T> rm,
+			ClassResources resources, final String sqlKey,
+			KeysetQuery keyset, Object[] after, Object... params)
+			throws SQLException {
+		int pageSize = keyset.getPageSize();
+		String sql = keyset.sql(resources.getValue(sqlKey), after != null);
+		Object[] pageParams = keyset.params(params, after);
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
+				pageParams);
+		try {
+			PreparedStatementCreator psc;
+			if (ctx == null) {
+				psc = new PreparedStatementCreator(sql, pageParams);
+			} else {
+				ctx.setSql(sql);
+				ctx.beforePrepare();
+				psc = new PreparedStatementCreator(ctx.getSql(),
+						ctx.getParams());
+			}
+			PreparedStatement pst = getPreparedStatement(c, ctx, psc);
 			try {
-				// map results
-				return processMultipleRows(rm, rs);
+				pst.setMaxRows(pageSize + 1);
+				pst.setFetchSize(pageSize + 1);
+				ResultSet rs = executeQuery(ctx, pst);
+				try {
+					keyset.checkKeyColumns(rs.getMetaData());
+					List<T> items = new ArrayList<T>(pageSize);
+					Object[] lastKeys = null;
+					while (items.size() < pageSize && rs.next()) {
+						items.add(rm.mapRow(rs));
+						if (items.size() == pageSize)
+							lastKeys = keyset.readKeys(rs);
+					}
+					Page<T> page = new Page<T>(items,
+							lastKeys != null && rs.next() ? keyset
+									.encode(lastKeys) : null);
+					if (ctx != null)
+						ctx.completed(page, items.size());
+					return page;
+				} finally {
+					rs.close();
+				}
 			} finally {
-				rs.close();
+				psc.close(pst);
 			}
-		} finally {
-			pst.close();
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
 		}
 	}
 
@@ -106,15 +215,115 @@ public class JdbcUtills {
 	 */
 	static int update(Connection c, ClassResources resources,
 			final String sqlKey, Object... params) throws SQLException {
-		PreparedStatement pst = getPreparedStatement(c, resources, sqlKey,
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
 				params);
 		try {
-			return pst.executeUpdate();
-		} finally {
-			pst.close();
+			PreparedStatementCreator psc = creator(ctx, resources, sqlKey,
+					params);
+			PreparedStatement pst = getPreparedStatement(c, ctx, psc);
+			try {
+				if (ctx == null)
+					return pst.executeUpdate();
+				ctx.beforeExecute(pst);
+				int count = pst.executeUpdate();
+				ctx.executed();
+				ctx.completed(count, count);
+				return count;
+			} finally {
+				psc.close(pst);
+			}
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
 		}
 	}
 
+	/**
+	 * method to execute an INSERT, UPDATE or DELETE query once per parameter
+	 * array as one JDBC batch. Returns number of rows updated by each of
+	 * them. Interceptors see every parameter array as a query of its own;
+	 * they may rewrite the parameters, but all of them must keep the same
+	 * SQL.
+	 * 
+	 * @throws SQLException
+	 */
+	static int[] batchUpdate(Connection c, ClassResources resources,
+			final String sqlKey, List<Object[]> params) throws SQLException {
+		QueryContext[] contexts = newContexts(resources, sqlKey, params);
+		try {
+			PreparedStatementCreator psc;
+			List<Object[]> rows = params;
+			if (contexts == null) {
+				psc = new PreparedStatementCreator(resources, sqlKey);
+			} else {
+				rows = new ArrayList<Object[]>(contexts.length);
+				String sql = null;
+				for (QueryContext ctx : contexts) {
+					ctx.beforePrepare();
+					if (sql == null)
+						sql = ctx.getSql();
+					else if (!sql.equals(ctx.getSql()))
+						throw new SQLException("Interceptors rewrote the batch of '"
+								+ sqlKey + "' to different statements");
+					rows.add(ctx.getParams());
+				}
+				psc = new PreparedStatementCreator(sql);
+			}
+			PreparedStatement pst = psc.createPreparedStatement(c);
+			try {
+				if (contexts != null)
+					for (QueryContext ctx : contexts)
+						ctx.prepared();
+				for (Object[] p : rows) {
+					if (p != null)
+						psc.setValues(pst, p);
+					pst.addBatch();
+				}
+				if (contexts == null)
+					return pst.executeBatch();
+				for (QueryContext ctx : contexts)
+					ctx.beforeExecute(pst);
+				int[] counts = pst.executeBatch();
+				for (int i = 0; i < contexts.length; i++) {
+					contexts[i].executed();
+					contexts[i].completed(counts[i], counts[i]);
+				}
+				return counts;
+			} finally {
+				psc.close(pst);
+			}
+		} catch (SQLException e) {
+			if (contexts != null)
+				for (QueryContext ctx : contexts)
+					ctx.failed(e);
+			throw e;
+		} catch (RuntimeException e) {
+			if (contexts != null)
+				for (QueryContext ctx : contexts)
+					ctx.failed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * returns the contexts of the parameter arrays of a batch, or null if the
+	 * sqlKey has no interceptors.
+	 */
+	private static QueryContext[] newContexts(ClassResources resources,
+			String sqlKey, List<Object[]> params) {
+		QueryContext first = params.isEmpty() ? null : QueryInterceptors
+				.newContext(resources, sqlKey, params.get(0));
+		if (first == null)
+			return null;
+		QueryContext[] contexts = new QueryContext[params.size()];
+		contexts[0] = first;
+		for (int i = 1; i < contexts.length; i++)
+			contexts[i] = QueryInterceptors.newContext(resources, sqlKey,
+					params.get(i));
+		return contexts;
+	}
+
 	/**
 	 * method to execute callable statements.
 	 * 
@@ -122,14 +331,154 @@ public class JdbcUtills {
 	 */
 	static boolean executeCall(Connection c, ClassResources resources,
 			String sqlKey, Object[] params) throws SQLException {
-		CallableStatement cst = getCallableStatement(c, resources, sqlKey,
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
 				params);
 		try {
-			return cst.execute();
-		} finally {
-			cst.close();
+			PreparedStatementCreator psc = creator(ctx, resources, sqlKey,
+					params);
+			CallableStatement cst = getCallableStatement(c, ctx, psc);
+			try {
+				if (ctx == null)
+					return cst.execute();
+				ctx.beforeExecute(cst);
+				boolean result = cst.execute();
+				ctx.executed();
+				ctx.completed(result, -1);
+				return result;
+			} finally {
+				psc.close(cst);
+			}
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
 		}
+	}
 
+	/**
+	 * method to execute a callable statement with OUT or INOUT parameters
+	 * (see OutParameter) and result sets. Every result set is mapped by the
+	 * RowMapper at its position and its rows are kept in the result, result
+	 * sets without a RowMapper are skipped. mappers may be null. OUT
+	 * parameters are read once all results were processed.
+	 * 
+	 * @throws SQLException
+	 */
+	static CallResult executeCallForResults(Connection c,
+			ClassResources resources, String sqlKey, RowMapper<?>[] mappers,
+			Object[] params) throws SQLException {
+		int n = mappers == null ? 0 : mappers.length;
+		List<List<Object>> rows = new ArrayList<List<Object>>(n);
+		RowHandler[] handlers = new RowHandler[n];
+		for (int i = 0; i < n; i++) {
+			final List<Object> l = new ArrayList<Object>();
+			rows.add(l);
+			final RowMapper<?> rm = mappers[i];
+			if (rm != null) {
+				handlers[i] = new RowHandler() {
+					public void processRow(ResultSet rs) throws SQLException {
+						l.add(rm.mapRow(rs));
+					}
+				};
+			}
+		}
+		return call(c, resources, sqlKey, handlers, rows, params);
+	}
+
+	/**
+	 * method to execute a callable statement with OUT or INOUT parameters
+	 * (see OutParameter) and result sets. The rows of every result set are
+	 * passed to the RowHandler at its position as they are read, result sets
+	 * without a RowHandler are skipped. handlers may be null. OUT parameters
+	 * are read once all results were processed.
+	 * 
+	 * @throws SQLException
+	 */
+	static CallResult executeCallForRows(Connection c,
+			ClassResources resources, String sqlKey, RowHandler[] handlers,
+			Object[] params) throws SQLException {
+		return call(c, resources, sqlKey,
+				handlers == null ? new RowHandler[0] : handlers, null, params);
+	}
+
+	/**
+	 * executes the call, rows is null if the rows are not kept.
+	 * 
+	 * @throws SQLException
+	 */
+	private static CallResult call(Connection c,
+			ClassResources resources, String sqlKey, RowHandler[] handlers,
+			List<? extends List<?>> rows, Object[] params) throws SQLException {
+		QueryContext ctx = QueryInterceptors.newContext(resources, sqlKey,
+				params);
+		try {
+			PreparedStatementCreator psc = creator(ctx, resources, sqlKey,
+					params);
+			CallableStatement cst = getCallableStatement(c, ctx, psc);
+			try {
+				if (ctx != null)
+					ctx.beforeExecute(cst);
+				boolean isResultSet = cst.execute();
+				if (ctx != null)
+					ctx.executed();
+				List<Integer> rowCounts = new ArrayList<Integer>(handlers.length);
+				List<Integer> updateCounts = new ArrayList<Integer>(2);
+				int total = 0;
+				for (;;) {
+					if (isResultSet) {
+						int index = rowCounts.size();
+						RowHandler handler = index < handlers.length ? handlers[index]
+								: null;
+						int count = -1;
+						if (handler != null) {
+							ResultSet rs = cst.getResultSet();
+							try {
+								count = 0;
+								while (rs.next()) {
+									handler.processRow(rs);
+									count++;
+								}
+							} finally {
+								rs.close();
+							}
+							total += count;
+						}
+						rowCounts.add(count);
+					} else {
+						int count = cst.getUpdateCount();
+						if (count == -1)
+							break;
+						updateCounts.add(count);
+					}
+					isResultSet = cst.getMoreResults();
+				}
+				// the parameters as they were set, an interceptor may have
+				// replaced them
+				Object[] bound = ctx != null ? ctx.getParams() : params;
+				Object[] outValues = new Object[bound == null ? 0 : bound.length];
+				for (int i = 0; i < outValues.length; i++)
+					if (bound[i] instanceof OutParameter)
+						outValues[i] = cst.getObject(i + 1);
+				CallResult result = new CallResult(outValues, rows,
+						toArray(rowCounts), toArray(updateCounts));
+				if (ctx != null)
+					ctx.completed(result, total);
+				return result;
+			} finally {
+				psc.close(cst);
+			}
+		} catch (SQLException e) {
+			throw failed(ctx, e);
+		} catch (RuntimeException e) {
+			throw failed(ctx, e);
+		}
+	}
+
+	private static int[] toArray(List<Integer> l) {
+		int[] a = new int[l.size()];
+		for (int i = 0; i < a.length; i++)
+			a[i] = l.get(i);
+		return a;
 	}
 
 	/**
@@ -165,26 +514,81 @@ public class JdbcUtills {
 	}
 
 	/**
-	 * creates PreparedStatement instance and sets all parameters.
+	 * executes the query, notifying the interceptors if there are any.
 	 * 
 	 * @throws SQLException
 	 */
-	private static PreparedStatement getPreparedStatement(Connection c,
+	private static ResultSet executeQuery(QueryContext ctx,
+			PreparedStatement pst) throws SQLException {
+		if (ctx == null)
+			return pst.executeQuery();
+		ctx.beforeExecute(pst);
+		ResultSet rs = pst.executeQuery();
+		ctx.executed();
+		return rs;
+	}
+
+	/**
+	 * notifies the interceptors about the failed query, if there are any, and
+	 * returns the exception to be thrown.
+	 */
+	private static SQLException failed(QueryContext ctx, SQLException e) {
+		if (ctx != null)
+			ctx.failed(e);
+		return e;
+	}
+
+	/**
+	 * notifies the interceptors about a query which failed with a
+	 * RuntimeException, for example of a RowMapper, and returns it.
+	 */
+	private static RuntimeException failed(QueryContext ctx,
+			RuntimeException e) {
+		if (ctx != null)
+			ctx.failed(e);
+		return e;
+	}
+
+	/**
+	 * returns the creator of the statement of the sqlKey. SQL and parameters
+	 * are taken from the context when the sqlKey has interceptors.
+	 * 
+	 * @throws SQLException
+	 */
+	private static PreparedStatementCreator creator(QueryContext ctx,
 			ClassResources resources, final String sqlKey, Object... params)
 			throws SQLException {
-		return new PreparedStatementCreator(resources, sqlKey, params)
-				.createPreparedStatement(c);
+		if (ctx == null)
+			return new PreparedStatementCreator(resources, sqlKey, params);
+		ctx.beforePrepare();
+		return new PreparedStatementCreator(ctx.getSql(), ctx.getParams());
 	}
 
 	/**
-	 * creates CallableStatement instance and sets all parameters.
+	 * creates PreparedStatement instance and sets all parameters, notifying
+	 * the interceptors if there are any.
+	 * 
+	 * @throws SQLException
+	 */
+	private static PreparedStatement getPreparedStatement(Connection c,
+			QueryContext ctx, PreparedStatementCreator psc) throws SQLException {
+		PreparedStatement pst = psc.createPreparedStatement(c);
+		if (ctx != null)
+			ctx.prepared();
+		return pst;
+	}
+
+	/**
+	 * creates CallableStatement instance and sets all parameters, notifying
+	 * the interceptors if there are any.
 	 * 
 	 * @throws SQLException
 	 */
 	private static CallableStatement getCallableStatement(Connection c,
-			ClassResources resources, final String sqlKey, Object... params)
-			throws SQLException {
-		return new PreparedStatementCreator(resources, sqlKey, params)
-				.createPreparedCall(c);
+			QueryContext ctx, PreparedStatementCreator psc) throws SQLException {
+		CallableStatement cst = psc.createPreparedCall(c);
+		if (ctx != null)
+			ctx.prepared();
+		return cst;
 	}
 }
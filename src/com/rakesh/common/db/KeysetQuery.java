@@ -0,0 +1,325 @@
+package com.rakesh.common.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Builds keyset ("seek") queries for pagination. The query of the sqlKey is
+ * used as a sub query, ordered by the key columns, and the rows after the last
+ * row of the previous page are selected with a condition on the key columns
+ * instead of an OFFSET, so the cost of a page does not depend on its depth:
+ * 
+ * <pre>
+ * SELECT * FROM ([query]) page_ WHERE a &gt;= ? AND (a &gt; ? OR (a = ? AND b &gt; ?)) ORDER BY a, b
+ * </pre>
+ * 
+ * Key columns must be not null columns of the select list of the query, and
+ * together they must identify a row. A column is sorted descending when it is given as
+ * 'column DESC'. Values of the key columns of the last row are carried in the
+ * continuation token, along with a hash of the DAO class, sqlKey, key columns
+ * and parameters, so a token is accepted only by the query it was read with.
+ * Arguments, the token and the types of the key columns are validated before
+ * any row is read.
+ * 
+ * @author rakesh
+ */
+class KeysetQuery {
+
+	private static final byte TOKEN_VERSION = 2;
+
+	private final String sqlKey;
+	private final String[] columns;
+	private final boolean[] descending;
+	private final int pageSize;
+	// hash of the query a token belongs to
+	private final int scope;
+
+	KeysetQuery(ClassResources resources, String sqlKey, String[] keyColumns,
+			int pageSize, Object[] params) {
+		if (keyColumns == null || keyColumns.length == 0)
+			throw new IllegalArgumentException("At least one key column is required for keyset pagination");
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("Invalid page size " + pageSize
+					+ ", it must be greater than 0");
+		this.sqlKey = sqlKey;
+		this.pageSize = pageSize;
+		columns = new String[keyColumns.length];
+		descending = new boolean[keyColumns.length];
+		for (int i = 0; i < keyColumns.length; i++) {
+			String[] parts = keyColumns[i] == null ? new String[] { "" }
+					: keyColumns[i].trim().split("\\s+");
+			if (parts[0].length() == 0 || parts.length > 2
+					|| (parts.length == 2 && !"DESC".equalsIgnoreCase(parts[1])
+							&& !"ASC".equalsIgnoreCase(parts[1])))
+				throw new IllegalArgumentException("Invalid key column '"
+						+ keyColumns[i] + "', expected 'column [ASC|DESC]'");
+			columns[i] = parts[0];
+			descending[i] = parts.length > 1
+					&& "DESC".equalsIgnoreCase(parts[1]);
+		}
+		int h = resources.getName().hashCode();
+		h = 31 * h + sqlKey.hashCode();
+		h = 31 * h + Arrays.hashCode(columns);
+		h = 31 * h + Arrays.hashCode(descending);
+		this.scope = 31 * h + Arrays.deepHashCode(params);
+	}
+
+	int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * checks that every key column is in the select list of the query and
+	 * has a type a token can carry.
+	 * 
+	 * @throws SQLException
+	 */
+	void checkKeyColumns(ResultSetMetaData md) throws SQLException {
+		int count = md.getColumnCount();
+		for (String column : columns) {
+			int type = Types.NULL;
+			for (int i = 1; i <= count && type == Types.NULL; i++) {
+				if (column.equalsIgnoreCase(md.getColumnLabel(i)))
+					type = md.getColumnType(i);
+			}
+			if (type == Types.NULL)
+				throw new SQLException("Key column '" + column
+						+ "' is not in the select list of '" + sqlKey + "'");
+			if (!isSupported(type))
+				throw new SQLException("Unsupported type " + type
+						+ " of key column '" + column + "' of '" + sqlKey
+						+ "' for keyset pagination");
+		}
+	}
+
+	private static boolean isSupported(int type) {
+		switch (type) {
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * returns the query of one page, seek is false for the first page.
+	 */
+	String sql(String query, boolean seek) {
+		StringBuilder sql = new StringBuilder(query.length() + 128);
+		sql.append("SELECT * FROM (").append(query).append(") page_");
+		if (seek) {
+			// leading column alone first, so that an index on it can be used
+			sql.append(" WHERE ").append(columns[0])
+					.append(descending[0] ? " <= ?" : " >= ?").append(" AND (");
+			for (int i = 0; i < columns.length; i++) {
+				if (i > 0)
+					sql.append(" OR ");
+				sql.append('(');
+				for (int j = 0; j < i; j++)
+					sql.append(columns[j]).append(" = ? AND ");
+				sql.append(columns[i]).append(descending[i] ? " < ?" : " > ?");
+				sql.append(')');
+			}
+			sql.append(')');
+		}
+		sql.append(" ORDER BY ");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sql.append(", ");
+			sql.append(columns[i]);
+			if (descending[i])
+				sql.append(" DESC");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * returns the parameters of the query followed by the ones of the seek
+	 * condition, in the order the condition uses them.
+	 */
+	Object[] params(Object[] params, Object[] after) {
+		int count = params == null ? 0 : params.length;
+		if (after == null)
+			return params;
+		int seekCount = 1 + columns.length * (columns.length + 1) / 2;
+		Object[] all = new Object[count + seekCount];
+		if (count > 0)
+			System.arraycopy(params, 0, all, 0, count);
+		int n = count;
+		all[n++] = after[0];
+		for (int i = 0; i < columns.length; i++) {
+			for (int j = 0; j <= i; j++)
+				all[n++] = after[j];
+		}
+		return all;
+	}
+
+	/**
+	 * reads values of the key columns of the current row.
+	 * 
+	 * @throws SQLException
+	 */
+	Object[] readKeys(ResultSet rs) throws SQLException {
+		Object[] keys = new Object[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			keys[i] = rs.getObject(columns[i]);
+		return keys;
+	}
+
+	/**
+	 * encodes the key values into a continuation token.
+	 */
+	String encode(Object[] keys) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(TOKEN_VERSION);
+			out.writeInt(scope);
+			out.writeByte(keys.length);
+			for (Object key : keys)
+				writeValue(out, key);
+			out.flush();
+			return Base64.getUrlEncoder().withoutPadding()
+					.encodeToString(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * decodes the key values of a continuation token, returns null for the
+	 * null token of the first page.
+	 * 
+	 * @throws SQLException
+	 *             if the token is not a valid token of this query
+	 */
+	Object[] decode(String token) throws SQLException {
+		if (token == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					Base64.getUrlDecoder().decode(token)));
+			if (in.readByte() != TOKEN_VERSION || in.readInt() != scope
+					|| in.readByte() != columns.length)
+				throw new SQLException("Invalid continuation token '" + token
+						+ "'");
+			Object[] keys = new Object[columns.length];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = readValue(in);
+			return keys;
+		} catch (IOException e) {
+			throw new SQLException("Invalid continuation token '" + token
+					+ "'", e);
+		} catch (IllegalArgumentException e) {
+			throw new SQLException("Invalid continuation token '" + token
+					+ "'", e);
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte('N');
+		} else if (value instanceof String) {
+			out.writeByte('S');
+			out.writeUTF((String) value);
+		} else if (value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			out.writeByte('I');
+			out.writeInt(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte('L');
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte('D');
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte('F');
+			out.writeFloat((Float) value);
+		} else if (value instanceof BigDecimal) {
+			out.writeByte('B');
+			out.writeUTF(value.toString());
+		} else if (value instanceof Boolean) {
+			out.writeByte('Z');
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Date) {
+			out.writeByte('d');
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Time) {
+			out.writeByte('t');
+			out.writeLong(((Time) value).getTime());
+		} else if (value instanceof Timestamp) {
+			out.writeByte('T');
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		} else {
+			throw new IllegalArgumentException("Unsupported key column type for keyset pagination => '"
+					+ value.getClass().getSimpleName() + "'");
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case 'N':
+			return null;
+		case 'S':
+			return in.readUTF();
+		case 'I':
+			return in.readInt();
+		case 'L':
+			return in.readLong();
+		case 'D':
+			return in.readDouble();
+		case 'F':
+			return in.readFloat();
+		case 'B':
+			return new BigDecimal(in.readUTF());
+		case 'Z':
+			return in.readBoolean();
+		case 'd':
+			return new Date(in.readLong());
+		case 't':
+			return new Time(in.readLong());
+		case 'T':
+			Timestamp t = new Timestamp(in.readLong());
+			t.setNanos(in.readInt());
+			return t;
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.rakesh.common.db;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of query latencies with two buckets per power of two
+ * microseconds, which is accurate to about 40%. Once a window of samples is
+ * recorded all counts are halved, so percentiles follow the recent
+ * latencies.
+ * 
+ * @author rakesh
+ */
+class LatencyHistogram {
+
+	private static final int BUCKETS = 80;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicBoolean decaying = new AtomicBoolean();
+	private final long window;
+
+	LatencyHistogram(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * records one latency.
+	 */
+	void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		if (total.incrementAndGet() >= 2 * window
+				&& decaying.compareAndSet(false, true)) {
+			try {
+				long sum = 0;
+				for (int i = 0; i < BUCKETS; i++) {
+					long n = counts.get(i);
+					long half = n >> 1;
+					counts.addAndGet(i, half - n);
+					sum += half;
+				}
+				total.set(sum);
+			} finally {
+				decaying.set(false);
+			}
+		}
+	}
+
+	/**
+	 * returns number of samples the percentiles are computed from.
+	 */
+	long getCount() {
+		return total.get();
+	}
+
+	/**
+	 * returns upper bound of the bucket holding the given percentile (0..1)
+	 * in nanos, or -1 if nothing was recorded.
+	 */
+	long percentile(double p) {
+		long sum = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			sum += snapshot[i] = counts.get(i);
+		if (sum == 0)
+			return -1;
+		long rank = (long) Math.ceil(p * sum);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	private static int bucket(long nanos) {
+		long micros = Math.max(1, nanos >> 10);
+		int log = 63 - Long.numberOfLeadingZeros(micros);
+		int half = log == 0 ? 0 : (int) (micros >>> (log - 1)) & 1;
+		return Math.min(BUCKETS - 1, log * 2 + half);
+	}
+
+	private static long upperBound(int bucket) {
+		int log = bucket >> 1;
+		long base = 1L << log;
+		long micros = (bucket & 1) == 0 ? base + (base >> 1) : base << 1;
+		return micros << 10;
+	}
+}
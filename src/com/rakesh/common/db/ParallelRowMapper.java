@@ -0,0 +1,680 @@
+package com.rakesh.common.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import javax.sql.rowset.serial.SerialArray;
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Maps the rows of a ResultSet in parallel for RowMappers which are CPU heavy
+ * (parsing, decryption). The first threshold rows are mapped directly, like
+ * {@link JdbcUtills#processMultipleRows}. After that the fetching thread only
+ * copies the column values into chunk buffers, and the chunks are mapped on
+ * the common ForkJoinPool, each RowMapper call reading its row through a
+ * ResultSet view of the buffer. The results keep the order of the rows.
+ * Buffers are reused; when all of them are being mapped the fetching thread
+ * maps the next chunk itself instead of waiting, so the mapping can't
+ * deadlock when it is called from a thread of the common pool, and waits for
+ * the chunks are managed blocks of the pool.
+ * <p>
+ * The threshold and chunk size are the DAO options 'dao.parallelThreshold'
+ * (default 1000) and 'dao.parallelChunkSize' (default 256). A negative
+ * threshold or a chunk size below 1 fails the first query of the sqlKey, and
+ * the <code>catalog</code> build target.
+ * <p>
+ * The view supports the getXXX methods by column index and label and
+ * wasNull, and converts values like drivers do: numbers, booleans, strings,
+ * and dates and times, which honor a given Calendar. Other conversions fail
+ * with a SQLException. Values are read with getObject on the fetching thread;
+ * BLOB, CLOB and ARRAY values are copied there, since they are only valid
+ * till the ResultSet moves, and SQLXML and stream values are rejected.
+ * 
+ * @author rakesh
+ */
+final class ParallelRowMapper<T> {
+
+	private static final int DEFAULT_THRESHOLD = 1000;
+	private static final int DEFAULT_CHUNK_SIZE = 256;
+
+	// threshold and chunk size of each sqlKey
+	private static final SqlKeyMap<int[]> settings = new SqlKeyMap<int[]>() {
+		@Override
+		protected int[] create(ClassResources resources, String sqlKey) {
+			return settings(resources, sqlKey);
+		}
+	};
+
+	private final RowMapper<T> rm;
+	private final int threshold;
+	private final int chunkSize;
+
+	/**
+	 * returns a parallel mapper with the options of the given sqlKey.
+	 */
+	static <T> ParallelRowMapper<T> forKey(RowMapper<T> rm,
+			ClassResources resources, String sqlKey) {
+		int[] s = settings.get(resources, sqlKey);
+		return new ParallelRowMapper<T>(rm, s[0], s[1]);
+	}
+
+	/**
+	 * validates the parallel options of the class and its sqlKeys.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a threshold is negative or a chunk size is below 1
+	 */
+	static void validate(ClassResources resources) {
+		settings(resources, null);
+		for (String sqlKey : resources.getSqlKeys())
+			settings(resources, sqlKey);
+	}
+
+	private static int[] settings(ClassResources resources, String sqlKey) {
+		return new int[] {
+				intOption(resources, "parallelThreshold", sqlKey, DEFAULT_THRESHOLD, 0),
+				intOption(resources, "parallelChunkSize", sqlKey, DEFAULT_CHUNK_SIZE, 1) };
+	}
+
+	private static int intOption(ClassResources resources, String option,
+			String sqlKey, int defaultValue, int min) {
+		String value = resources.getOption(option, sqlKey);
+		if (value == null)
+			return defaultValue;
+		String name = resources.getName()
+				+ (sqlKey == null ? "" : "#" + sqlKey);
+		int result;
+		try {
+			result = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + option + " for '"
+					+ name + "': " + value, e);
+		}
+		if (result < min)
+			throw new IllegalArgumentException("Invalid " + option + " for '"
+					+ name + "': " + value + ", must be " + min + " or more");
+		return result;
+	}
+
+	ParallelRowMapper(RowMapper<T> rm, int threshold, int chunkSize) {
+		this.rm = rm;
+		this.threshold = threshold;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * maps all the rows of the ResultSet.
+	 * 
+	 * @throws SQLException
+	 */
+	List<T> map(ResultSet rs) throws SQLException {
+		ArrayList<T> results = new ArrayList<T>();
+		while (results.size() < threshold) {
+			if (!rs.next())
+				return results;
+			results.add(rm.mapRow(rs));
+		}
+		ResultSetMetaData meta = rs.getMetaData();
+		int columns = meta.getColumnCount();
+		Map<String, Integer> labels = labels(meta, columns);
+
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int buffers = pool.getParallelism() * 2;
+		BlockingQueue<Object[]> free = new ArrayBlockingQueue<Object[]>(buffers);
+		int created = 0;
+		// buffer of the chunks mapped by this thread when all others are busy
+		Object[] own = null;
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		try {
+			boolean more = true;
+			while (more) {
+				Object[] buffer = free.poll();
+				boolean local = false;
+				if (buffer == null) {
+					if (created < buffers) {
+						buffer = new Object[chunkSize * columns];
+						created++;
+					} else {
+						if (own == null)
+							own = new Object[chunkSize * columns];
+						buffer = own;
+						local = true;
+					}
+				}
+				int rows = 0;
+				while (rows < chunkSize && (more = rs.next())) {
+					int offset = rows * columns;
+					for (int i = 0; i < columns; i++)
+						buffer[offset + i] = materialize(rs.getObject(i + 1));
+					rows++;
+				}
+				if (rows == 0) {
+					if (!local)
+						free.offer(buffer);
+				} else if (local) {
+					Chunk chunk = new Chunk(buffer, rows, columns, labels, meta,
+							null);
+					chunk.invoke();
+					chunks.add(chunk);
+					if (chunk.error != null)
+						break;
+				} else {
+					Chunk chunk = new Chunk(buffer, rows, columns, labels,
+							meta, free);
+					pool.execute(chunk);
+					chunks.add(chunk);
+				}
+			}
+			for (Chunk chunk : chunks) {
+				Object[] mapped = await(chunk);
+				if (chunk.error instanceof SQLException)
+					throw (SQLException) chunk.error;
+				if (chunk.error != null)
+					throw (RuntimeException) chunk.error;
+				addAll(results, mapped);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while mapping rows", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new SQLException(cause);
+		} finally {
+			for (Chunk chunk : chunks)
+				chunk.cancel(false);
+		}
+		return results;
+	}
+
+	/**
+	 * waits for a chunk as a managed block, so the pool adds a thread if
+	 * the waiting thread is one of its workers.
+	 */
+	private static Object[] await(final RecursiveTask<Object[]> chunk)
+			throws InterruptedException, ExecutionException {
+		if (!chunk.isDone()) {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				public boolean block() {
+					chunk.quietlyJoin();
+					return true;
+				}
+
+				public boolean isReleasable() {
+					return chunk.isDone();
+				}
+			});
+		}
+		return chunk.get();
+	}
+
+	/**
+	 * copies the values which are only valid till the ResultSet moves, and
+	 * rejects the ones which can't be copied.
+	 * 
+	 * @throws SQLException
+	 */
+	private static Object materialize(Object value) throws SQLException {
+		if (value == null || value instanceof String || value instanceof Number)
+			return value;
+		if (value instanceof Blob) {
+			Blob b = (Blob) value;
+			SerialBlob copy = new SerialBlob(b);
+			free(b);
+			return copy;
+		}
+		if (value instanceof Clob) {
+			Clob c = (Clob) value;
+			SerialClob copy = new SerialClob(c);
+			free(c);
+			return copy;
+		}
+		if (value instanceof Array) {
+			Array a = (Array) value;
+			SerialArray copy = new SerialArray(a);
+			a.free();
+			return copy;
+		}
+		if (value instanceof SQLXML || value instanceof InputStream
+				|| value instanceof Reader)
+			throw new SQLException("Not supported by parallel row mapping: "
+					+ value.getClass().getName() + " values");
+		return value;
+	}
+
+	private static void free(Blob b) throws SQLException {
+		try {
+			b.free();
+		} catch (SQLFeatureNotSupportedException e) {
+			// JDBC 3 driver, released with the ResultSet
+		}
+	}
+
+	private static void free(Clob c) throws SQLException {
+		try {
+			c.free();
+		} catch (SQLFeatureNotSupportedException e) {
+			// JDBC 3 driver, released with the ResultSet
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addAll(ArrayList<T> results, Object[] mapped) {
+		results.ensureCapacity(results.size() + mapped.length);
+		for (Object o : mapped)
+			results.add((T) o);
+	}
+
+	private static Map<String, Integer> labels(ResultSetMetaData meta,
+			int columns) throws SQLException {
+		Map<String, Integer> labels = new HashMap<String, Integer>(columns * 2);
+		// the first column wins for duplicate labels, like in a ResultSet
+		for (int i = columns; i >= 1; i--)
+			labels.put(meta.getColumnLabel(i).toUpperCase(Locale.ROOT), i);
+		return Collections.unmodifiableMap(labels);
+	}
+
+	/**
+	 * maps the rows of one buffer, and gives the buffer back once done. The
+	 * exception of the RowMapper is kept as it was thrown, a task would wrap
+	 * it.
+	 */
+	private final class Chunk extends RecursiveTask<Object[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] buffer;
+		private final int rows;
+		private final RowView view;
+		private final BlockingQueue<Object[]> free;
+		Exception error;
+
+		/**
+		 * free is the queue the buffer goes back to, null for the buffer of
+		 * the fetching thread.
+		 */
+		Chunk(Object[] buffer, int rows, int columns,
+				Map<String, Integer> labels, ResultSetMetaData meta,
+				BlockingQueue<Object[]> free) {
+			this.buffer = buffer;
+			this.rows = rows;
+			this.view = new RowView(buffer, columns, labels, meta);
+			this.free = free;
+		}
+
+		@Override
+		protected Object[] compute() {
+			try {
+				ResultSet rs = (ResultSet) Proxy.newProxyInstance(
+						ParallelRowMapper.class.getClassLoader(),
+						new Class<?>[] { ResultSet.class }, view);
+				Object[] mapped = new Object[rows];
+				for (int row = 0; row < rows; row++) {
+					view.row = row;
+					mapped[row] = rm.mapRow(rs);
+				}
+				return mapped;
+			} catch (SQLException e) {
+				error = e;
+				return null;
+			} catch (RuntimeException e) {
+				error = e;
+				return null;
+			} finally {
+				Arrays.fill(buffer, null);
+				if (free != null)
+					free.offer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * ResultSet view of one row of a buffer.
+	 */
+	private static final class RowView implements InvocationHandler {
+		private static final LocalDate EPOCH = LocalDate.of(1970, 1, 1);
+
+		private final Object[] buffer;
+		private final int columns;
+		private final Map<String, Integer> labels;
+		private final ResultSetMetaData meta;
+		int row;
+		private boolean wasNull;
+
+		RowView(Object[] buffer, int columns, Map<String, Integer> labels,
+				ResultSetMetaData meta) {
+			this.buffer = buffer;
+			this.columns = columns;
+			this.labels = labels;
+			this.meta = meta;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws SQLException {
+			String name = method.getName();
+			if (name.equals("wasNull"))
+				return wasNull;
+			if (name.equals("getMetaData"))
+				return meta;
+			if (name.equals("findColumn"))
+				return column(args[0]);
+			if (name.equals("getRow"))
+				return row + 1;
+			if (name.equals("isClosed"))
+				return false;
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("toString"))
+				return "RowView[" + row + "]";
+			if (!name.startsWith("get") || args == null || args.length == 0)
+				throw new SQLException("Not supported by parallel row mapping: " + name);
+			Object value = buffer[row * columns + column(args[0]) - 1];
+			wasNull = value == null;
+			if (name.equals("getBinaryStream"))
+				return binaryStream(value);
+			if (name.equals("getAsciiStream"))
+				return asciiStream(value);
+			if (name.endsWith("CharacterStream"))
+				return characterStream(value);
+			if (args.length == 2 && args[1] instanceof Calendar)
+				return inZone(convert(value, method.getReturnType()),
+						((Calendar) args[1]).getTimeZone().toZoneId());
+			Class<?> type = args.length == 2 && args[1] instanceof Class ? (Class<?>) args[1]
+					: method.getReturnType();
+			return convert(value, type);
+		}
+
+		private int column(Object arg) throws SQLException {
+			if (arg instanceof Integer) {
+				int i = (Integer) arg;
+				if (i < 1 || i > columns)
+					throw new SQLException("Column index out of range: " + i);
+				return i;
+			}
+			Integer i = labels.get(((String) arg).toUpperCase(Locale.ROOT));
+			if (i == null)
+				throw new SQLException("Column not found: " + arg);
+			return i;
+		}
+
+		private static InputStream binaryStream(Object value)
+				throws SQLException {
+			if (value == null)
+				return null;
+			if (value instanceof byte[])
+				return new ByteArrayInputStream((byte[]) value);
+			if (value instanceof Blob)
+				return ((Blob) value).getBinaryStream();
+			throw unsupported(value, InputStream.class);
+		}
+
+		private static InputStream asciiStream(Object value)
+				throws SQLException {
+			if (value == null)
+				return null;
+			if (value instanceof String)
+				return new ByteArrayInputStream(
+						((String) value).getBytes(StandardCharsets.US_ASCII));
+			if (value instanceof Clob)
+				return ((Clob) value).getAsciiStream();
+			throw unsupported(value, InputStream.class);
+		}
+
+		private static Reader characterStream(Object value)
+				throws SQLException {
+			if (value == null)
+				return null;
+			if (value instanceof String)
+				return new StringReader((String) value);
+			if (value instanceof Clob)
+				return ((Clob) value).getCharacterStream();
+			throw unsupported(value, Reader.class);
+		}
+
+		private static Object convert(Object value, Class<?> type)
+				throws SQLException {
+			if (type == Object.class)
+				return value;
+			if (value == null)
+				return type.isPrimitive() ? defaultValue(type) : null;
+			if (type.isInstance(value))
+				return value;
+			if (value instanceof Boolean) {
+				if (type == boolean.class)
+					return value;
+				// BIT and BOOLEAN read as numbers are 1 and 0
+				value = ((Boolean) value) ? 1 : 0;
+			}
+			if (value instanceof Number)
+				return fromNumber((Number) value, type);
+			if (value instanceof String)
+				return fromString((String) value, type);
+			if (value instanceof java.util.Date)
+				return fromDate((java.util.Date) value, type);
+			if (value instanceof Blob && type == byte[].class) {
+				Blob b = (Blob) value;
+				long length = b.length();
+				return length == 0 ? new byte[0] : b.getBytes(1, (int) length);
+			}
+			if (value instanceof Clob && type == String.class) {
+				Clob c = (Clob) value;
+				long length = c.length();
+				return length == 0 ? "" : c.getSubString(1, (int) length);
+			}
+			if (value instanceof byte[] && type == Blob.class)
+				return new SerialBlob((byte[]) value);
+			throw unsupported(value, type);
+		}
+
+		private static Object fromNumber(Number n, Class<?> type)
+				throws SQLException {
+			if (type == int.class || type == Integer.class)
+				return (int) integral(n, Integer.MIN_VALUE, Integer.MAX_VALUE, type);
+			if (type == long.class || type == Long.class)
+				return integral(n, Long.MIN_VALUE, Long.MAX_VALUE, type);
+			if (type == short.class || type == Short.class)
+				return (short) integral(n, Short.MIN_VALUE, Short.MAX_VALUE, type);
+			if (type == byte.class || type == Byte.class)
+				return (byte) integral(n, Byte.MIN_VALUE, Byte.MAX_VALUE, type);
+			if (type == double.class || type == Double.class)
+				return n.doubleValue();
+			if (type == float.class || type == Float.class)
+				return n.floatValue();
+			if (type == boolean.class || type == Boolean.class)
+				return n.doubleValue() != 0;
+			if (type == BigDecimal.class)
+				return new BigDecimal(n.toString());
+			if (type == String.class)
+				return n instanceof BigDecimal ? ((BigDecimal) n)
+						.toPlainString() : n.toString();
+			throw unsupported(n, type);
+		}
+
+		/**
+		 * returns the number without its fraction, failing like drivers do
+		 * when it does not fit the type.
+		 */
+		private static long integral(Number n, long min, long max,
+				Class<?> type) throws SQLException {
+			long l;
+			if (n instanceof Integer || n instanceof Long
+					|| n instanceof Short || n instanceof Byte) {
+				l = n.longValue();
+			} else {
+				double d = n.doubleValue();
+				if (!(d >= min && d <= max))
+					throw outOfRange(n, type);
+				l = n.longValue();
+			}
+			if (l < min || l > max)
+				throw outOfRange(n, type);
+			return l;
+		}
+
+		private static SQLException outOfRange(Number n, Class<?> type) {
+			return new SQLException("Value " + n + " is out of range of "
+					+ type.getSimpleName(), "22003");
+		}
+
+		private static Object fromString(String value, Class<?> type)
+				throws SQLException {
+			if (type == String.class)
+				return value;
+			String s = value.trim();
+			try {
+				if (type == int.class || type == Integer.class)
+					return Integer.valueOf(s);
+				if (type == long.class || type == Long.class)
+					return Long.valueOf(s);
+				if (type == short.class || type == Short.class)
+					return Short.valueOf(s);
+				if (type == byte.class || type == Byte.class)
+					return Byte.valueOf(s);
+				if (type == double.class || type == Double.class)
+					return Double.valueOf(s);
+				if (type == float.class || type == Float.class)
+					return Float.valueOf(s);
+				if (type == BigDecimal.class)
+					return new BigDecimal(s);
+				if (type == boolean.class || type == Boolean.class)
+					return "1".equals(s) || Boolean.parseBoolean(s);
+				if (type == java.sql.Date.class)
+					return java.sql.Date.valueOf(s);
+				if (type == Time.class)
+					return Time.valueOf(s);
+				if (type == Timestamp.class)
+					return Timestamp.valueOf(s);
+				if (type == Clob.class)
+					return new SerialClob(value.toCharArray());
+			} catch (IllegalArgumentException e) {
+				// NumberFormatException too
+				throw new SQLException("Cannot convert '" + s + "' to "
+						+ type.getSimpleName(), "22018", e);
+			}
+			throw unsupported(value, type);
+		}
+
+		/**
+		 * converts the value of a DATE, TIME or TIMESTAMP column; a DATE
+		 * has no time and a TIME no date to convert.
+		 */
+		private static Object fromDate(java.util.Date value, Class<?> type)
+				throws SQLException {
+			if (type == String.class)
+				return value.toString();
+			boolean date = !(value instanceof Time);
+			boolean time = !(value instanceof java.sql.Date);
+			LocalDateTime ldt;
+			if (value instanceof Timestamp)
+				ldt = ((Timestamp) value).toLocalDateTime();
+			else if (value instanceof java.sql.Date)
+				ldt = ((java.sql.Date) value).toLocalDate().atStartOfDay();
+			else if (value instanceof Time)
+				ldt = ((Time) value).toLocalTime().atDate(EPOCH);
+			else
+				ldt = new Timestamp(value.getTime()).toLocalDateTime();
+			if (date && type == java.sql.Date.class)
+				return java.sql.Date.valueOf(ldt.toLocalDate());
+			if (date && type == LocalDate.class)
+				return ldt.toLocalDate();
+			if (time && type == Time.class)
+				return Time.valueOf(ldt.toLocalTime());
+			if (time && type == LocalTime.class)
+				return ldt.toLocalTime();
+			if (date && type == Timestamp.class)
+				return Timestamp.valueOf(ldt);
+			if (date && type == LocalDateTime.class)
+				return ldt;
+			throw unsupported(value, type);
+		}
+
+		/**
+		 * reads the wall clock time of a date, time or timestamp in the
+		 * given zone, like drivers do for the getters with a Calendar.
+		 */
+		private static Object inZone(Object value, ZoneId zone) {
+			if (value instanceof Timestamp) {
+				Timestamp t = (Timestamp) value;
+				Timestamp r = new Timestamp(t.toLocalDateTime().atZone(zone)
+						.toInstant().toEpochMilli());
+				r.setNanos(t.getNanos());
+				return r;
+			}
+			if (value instanceof java.sql.Date)
+				return new java.sql.Date(((java.sql.Date) value).toLocalDate()
+						.atStartOfDay(zone).toInstant().toEpochMilli());
+			if (value instanceof Time)
+				return new Time(((Time) value).toLocalTime().atDate(EPOCH)
+						.atZone(zone).toInstant().toEpochMilli());
+			return value;
+		}
+
+		private static SQLException unsupported(Object value, Class<?> type) {
+			return new SQLException("Cannot convert "
+					+ value.getClass().getName() + " to " + type.getName(),
+					"22018");
+		}
+
+		private static Object defaultValue(Class<?> type) {
+			if (type == boolean.class)
+				return false;
+			if (type == char.class)
+				return '\0';
+			if (type == long.class)
+				return 0L;
+			if (type == double.class)
+				return 0d;
+			if (type == float.class)
+				return 0f;
+			if (type == short.class)
+				return (short) 0;
+			if (type == byte.class)
+				return (byte) 0;
+			return 0;
+		}
+	}
+}
@@ -1,18 +1,33 @@
 package com.rakesh.common.db;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Blob;
 import java.sql.CallableStatement;
+import java.sql.Clob;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.rakesh.common.db.util.LobParameter;
+import com.rakesh.common.db.util.OutParameter;
 import com.rakesh.common.util.ClassResources;
 
 /**
  * PreparedStatement Creator classes, which reads SQL query from resources file,
- * creates PreparedStatement instance and sets parameters.
+ * creates PreparedStatement instance and sets parameters. Streams opened to
+ * bind file LOB parameters are closed with the statement, see
+ * {@link #close(Statement)}.
  * 
  * @author rakesh
  */
@@ -20,6 +35,7 @@ public class PreparedStatementCreator {
 
 	private final String sql;
 	private Object[] params;
+	private List<Closeable> streams;
 
 	PreparedStatementCreator(ClassResources resources, final String sqlKey,
 			Object... params) {
@@ -27,6 +43,15 @@ public class PreparedStatementCreator {
 		this.params = params;
 	}
 
+	/**
+	 * constructor used when the SQL was already read, and possibly rewritten,
+	 * before the statement is created.
+	 */
+	PreparedStatementCreator(final String sql, Object... params) {
+		this.sql = sql;
+		this.params = params;
+	}
+
 	/**
 	 * method to create PreparedStatement instance and sets all the parameters
 	 * and returns it.
@@ -36,9 +61,8 @@ public class PreparedStatementCreator {
 	PreparedStatement createPreparedStatement(Connection c) throws SQLException {
 		// create prepared statement instance
 		PreparedStatement pst = c.prepareStatement(sql);
-		// set parameters
-		if (params != null)
-			setValues(pst, params);
+		// set timeout and parameters
+		prepare(pst);
 		return pst;
 	}
 
@@ -50,48 +74,160 @@ public class PreparedStatementCreator {
 	 */
 	CallableStatement createPreparedCall(Connection c) throws SQLException {
 		CallableStatement prepareCall = c.prepareCall(sql);
-		// set parameters
-		if (params != null)
-			setValues(prepareCall, params);
+		// set timeout and parameters
+		prepare(prepareCall);
 		return prepareCall;
 	}
 
+	/**
+	 * sets the query timeout of the deadline of the transaction, if there is
+	 * one, and the parameters, closing the statement and the streams opened
+	 * so far if one of them can't be set.
+	 * 
+	 * @throws SQLException
+	 */
+	private void prepare(PreparedStatement pst) throws SQLException {
+		boolean bound = false;
+		try {
+			TransactionContext.applyDeadline(pst);
+			if (params != null)
+				setValues(pst, params);
+			bound = true;
+		} finally {
+			if (!bound)
+				close(pst);
+		}
+	}
+
+	/**
+	 * closes the statement, and then the streams opened to bind its
+	 * parameters. Must be called once the statement was executed.
+	 * 
+	 * @throws SQLException
+	 */
+	void close(Statement st) throws SQLException {
+		try {
+			st.close();
+		} finally {
+			closeStreams();
+		}
+	}
+
+	private void closeStreams() {
+		if (streams == null)
+			return;
+		for (Closeable in : streams) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// the stream was only read, nothing is lost
+			}
+		}
+		streams = null;
+	}
+
 	/**
 	 * loops through all parameters and checks each parameter type and sets them
-	 * by calling appropriate setXXX() method on PreparedStatement.
+	 * by calling appropriate setXXX() method on PreparedStatement. LOB values
+	 * are bound as streams, so the driver can send them without a copy in
+	 * memory.
 	 * 
 	 * @throws SQLException
 	 */
-	private static void setValues(PreparedStatement pst, Object... params)
+	void setValues(PreparedStatement pst, Object... params)
 			throws SQLException {
-		for (int i = 0; i < params.length; i++) {
-			Object arg = params[i];
-			if (arg == null)
-				pst.setObject(i + 1, null);
-			else if (arg instanceof String)
-				pst.setString(i + 1, (String) arg);
-			else if (arg instanceof Integer)
-				pst.setInt(i + 1, (Integer) arg);
-			else if (arg instanceof Float)
-				pst.setFloat(i + 1, (Float) arg);
-			else if (arg instanceof Long)
-				pst.setLong(i + 1, (Long) arg);
-			else if (arg instanceof Double)
-				pst.setDouble(i + 1, (Double) arg);
-			else if (arg instanceof Boolean)
-				pst.setBoolean(i + 1, (Boolean) arg);
-			else if (arg instanceof Date)
-				pst.setDate(i + 1, (Date) arg);
-			else if (arg instanceof Time)
-				pst.setTime(i + 1, (Time) arg);
-			else if (arg instanceof Timestamp)
-				pst.setTimestamp(i + 1, (Timestamp) arg);
-			else if (arg instanceof Object[])
-				pst.setObject(i + 1, arg);
-			else
-				throw new RuntimeException(
-						"Unsupported parameter type passed as parameter for Prepared statement => '"
-								+ arg.getClass().getSimpleName() + "'");
+		for (int i = 0; i < params.length; i++)
+			setValue(pst, i + 1, params[i]);
+	}
+
+	/**
+	 * sets one parameter by its type. OUT and INOUT parameters are registered
+	 * on the CallableStatement.
+	 * 
+	 * @throws SQLException
+	 */
+	private void setValue(PreparedStatement pst, int index, Object arg)
+			throws SQLException {
+		if (arg == null)
+			pst.setObject(index, null);
+		else if (arg instanceof String)
+			pst.setString(index, (String) arg);
+		else if (arg instanceof Integer)
+			pst.setInt(index, (Integer) arg);
+		else if (arg instanceof Float)
+			pst.setFloat(index, (Float) arg);
+		else if (arg instanceof Long)
+			pst.setLong(index, (Long) arg);
+		else if (arg instanceof Double)
+			pst.setDouble(index, (Double) arg);
+		else if (arg instanceof BigDecimal)
+			pst.setBigDecimal(index, (BigDecimal) arg);
+		else if (arg instanceof Boolean)
+			pst.setBoolean(index, (Boolean) arg);
+		else if (arg instanceof Date)
+			pst.setDate(index, (Date) arg);
+		else if (arg instanceof Time)
+			pst.setTime(index, (Time) arg);
+		else if (arg instanceof Timestamp)
+			pst.setTimestamp(index, (Timestamp) arg);
+		else if (arg instanceof Object[])
+			pst.setObject(index, arg);
+		else if (arg instanceof byte[])
+			pst.setBytes(index, (byte[]) arg);
+		else if (arg instanceof LobParameter)
+			setLob(pst, index, (LobParameter) arg);
+		else if (arg instanceof ByteBuffer)
+			setLob(pst, index, LobParameter.buffer((ByteBuffer) arg));
+		else if (arg instanceof InputStream)
+			pst.setBinaryStream(index, (InputStream) arg);
+		else if (arg instanceof Reader)
+			pst.setCharacterStream(index, (Reader) arg);
+		else if (arg instanceof Blob)
+			pst.setBlob(index, (Blob) arg);
+		else if (arg instanceof Clob)
+			pst.setClob(index, (Clob) arg);
+		else if (arg instanceof OutParameter)
+			setOut(pst, index, (OutParameter) arg);
+		else
+			throw new RuntimeException(
+					"Unsupported parameter type passed as parameter for Prepared statement => '"
+							+ arg.getClass().getSimpleName() + "'");
+	}
+
+	/**
+	 * registers an OUT or INOUT parameter, and sets the value of an INOUT
+	 * one.
+	 * 
+	 * @throws SQLException
+	 */
+	private void setOut(PreparedStatement pst, int index,
+			OutParameter out) throws SQLException {
+		if (!(pst instanceof CallableStatement))
+			throw new RuntimeException("OUT parameter passed to a query which is not a call");
+		((CallableStatement) pst).registerOutParameter(index, out.getSqlType());
+		if (out.isIn())
+			setValue(pst, index, out.getValue());
+	}
+
+	/**
+	 * binds a LOB parameter as a stream of its known length. A file or buffer
+	 * gets a new stream for each bind, a file is closed with the statement.
+	 * 
+	 * @throws SQLException
+	 */
+	private void setLob(PreparedStatement pst, int index, LobParameter lob)
+			throws SQLException {
+		if (lob.isCharacter()) {
+			pst.setCharacterStream(index, lob.openCharacterStream(),
+					lob.getLength());
+			return;
+		}
+		InputStream in = lob.openBinaryStream();
+		if (lob.isFile()) {
+			if (streams == null)
+				streams = new ArrayList<Closeable>(2);
+			streams.add(in);
 		}
+		pst.setBinaryStream(index, in, lob.getLength());
 	}
 }
@@ -0,0 +1,182 @@
+package com.rakesh.common.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * State of one query passed to the {@link QueryInterceptor}s of its sqlKey:
+ * sqlKey, SQL, parameters, number of rows and the timings of the different
+ * phases. A context is created only when the sqlKey has interceptors.
+ * 
+ * @author rakesh
+ */
+public class QueryContext {
+
+	private final QueryInterceptor[] chain;
+	private final ClassResources resources;
+	private final String sqlKey;
+	private String sql;
+	private Object[] params;
+	private int rows = -1;
+	private Map<Object, Object> attributes;
+	// afterCompletion was called
+	private boolean finished;
+
+	private final long startNanos = System.nanoTime();
+	private long preparedNanos;
+	private long executedNanos;
+	private long completedNanos;
+
+	QueryContext(QueryInterceptor[] chain, ClassResources resources,
+			String sqlKey, Object[] params) {
+		this.chain = chain;
+		this.resources = resources;
+		this.sqlKey = sqlKey;
+		this.sql = resources.getValue(sqlKey);
+		this.params = params;
+	}
+
+	public ClassResources getResources() {
+		return resources;
+	}
+
+	public String getSqlKey() {
+		return sqlKey;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * replaces the SQL to be prepared, only effective in
+	 * {@link QueryInterceptor#beforePrepare(QueryContext)}.
+	 */
+	public void setSql(String sql) {
+		this.sql = sql;
+	}
+
+	public Object[] getParams() {
+		return params;
+	}
+
+	/**
+	 * replaces the parameters to be set, only effective in
+	 * {@link QueryInterceptor#beforePrepare(QueryContext)}.
+	 */
+	public void setParams(Object[] params) {
+		this.params = params;
+	}
+
+	/**
+	 * returns number of rows read or updated, -1 till the query is completed.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * returns wall clock start time of the query in nanoseconds, as given by
+	 * {@link System#nanoTime()}.
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * returns nanoseconds spent preparing the statement and setting the
+	 * parameters.
+	 */
+	public long getPrepareNanos() {
+		return preparedNanos == 0 ? 0 : preparedNanos - startNanos;
+	}
+
+	/**
+	 * returns nanoseconds spent executing the statement.
+	 */
+	public long getExecuteNanos() {
+		return executedNanos == 0 ? 0 : executedNanos - preparedNanos;
+	}
+
+	/**
+	 * returns nanoseconds spent mapping the results.
+	 */
+	public long getMappingNanos() {
+		return executedNanos == 0 || completedNanos == 0 ? 0 : completedNanos
+				- executedNanos;
+	}
+
+	/**
+	 * returns total nanoseconds of the query.
+	 */
+	public long getTotalNanos() {
+		return completedNanos == 0 ? 0 : completedNanos - startNanos;
+	}
+
+	public Object getAttribute(Object key) {
+		return attributes == null ? null : attributes.get(key);
+	}
+
+	/**
+	 * stores a value for this query, used by interceptors to pass state from
+	 * one phase to the next.
+	 */
+	public void setAttribute(Object key, Object value) {
+		if (attributes == null)
+			attributes = new HashMap<Object, Object>(4);
+		attributes.put(key, value);
+	}
+
+	void beforePrepare() throws SQLException {
+		for (int i = 0; i < chain.length; i++)
+			chain[i].beforePrepare(this);
+	}
+
+	void prepared() {
+		preparedNanos = System.nanoTime();
+	}
+
+	void beforeExecute(PreparedStatement pst) throws SQLException {
+		for (int i = 0; i < chain.length; i++)
+			chain[i].beforeExecute(this, pst);
+	}
+
+	void executed() {
+		executedNanos = System.nanoTime();
+	}
+
+	/**
+	 * notifies the chain of the result, once per query; a later failure, like
+	 * closing the ResultSet, is not reported to the chain again.
+	 */
+	void completed(Object result, int rows) {
+		if (finished)
+			return;
+		finished = true;
+		this.completedNanos = System.nanoTime();
+		this.rows = rows;
+		for (int i = 0; i < chain.length; i++)
+			chain[i].afterCompletion(this, result, null);
+	}
+
+	void failed(SQLException error) {
+		if (finished)
+			return;
+		finished = true;
+		this.completedNanos = System.nanoTime();
+		for (int i = 0; i < chain.length; i++)
+			chain[i].afterCompletion(this, null, error);
+	}
+
+	/**
+	 * notifies the chain of a RuntimeException, for example of a RowMapper,
+	 * wrapped in an SQLException.
+	 */
+	void failed(RuntimeException error) {
+		failed(new SQLException("Query failed with " + error, error));
+	}
+}
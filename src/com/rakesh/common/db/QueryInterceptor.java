@@ -0,0 +1,44 @@
+package com.rakesh.common.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Interceptor called around the statement preparation, execution and result
+ * mapping of every query executed by {@link JdbcUtills}. Interceptors are
+ * registered in {@link QueryInterceptors}, for all sqlKeys or for one of them.
+ * <p>
+ * All the methods of the chain are called on the thread executing the query,
+ * in registration order. Implementations must be thread safe; per query state
+ * can be kept in the {@link QueryContext} attributes.
+ * 
+ * @author rakesh
+ */
+public interface QueryInterceptor {
+
+	/**
+	 * called before the statement is prepared. SQL and parameters can be
+	 * changed by calling {@link QueryContext#setSql(String)} and
+	 * {@link QueryContext#setParams(Object[])}.
+	 * 
+	 * @throws SQLException
+	 */
+	public void beforePrepare(QueryContext ctx) throws SQLException;
+
+	/**
+	 * called after the statement is prepared and its parameters are set, just
+	 * before it is executed.
+	 * 
+	 * @throws SQLException
+	 */
+	public void beforeExecute(QueryContext ctx, PreparedStatement pst)
+			throws SQLException;
+
+	/**
+	 * called after the results are mapped, or when preparation, execution or
+	 * mapping failed. Result is the value returned to the DAO (mapped object,
+	 * list, update count) and error is null on success.
+	 */
+	public void afterCompletion(QueryContext ctx, Object result,
+			SQLException error);
+}
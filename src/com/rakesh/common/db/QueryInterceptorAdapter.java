@@ -0,0 +1,24 @@
+package com.rakesh.common.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Empty implementation of {@link QueryInterceptor}, subclasses override only
+ * the methods they are interested in.
+ * 
+ * @author rakesh
+ */
+public abstract class QueryInterceptorAdapter implements QueryInterceptor {
+
+	public void beforePrepare(QueryContext ctx) throws SQLException {
+	}
+
+	public void beforeExecute(QueryContext ctx, PreparedStatement pst)
+			throws SQLException {
+	}
+
+	public void afterCompletion(QueryContext ctx, Object result,
+			SQLException error) {
+	}
+}
@@ -0,0 +1,140 @@
+package com.rakesh.common.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Registry of {@link QueryInterceptor}s. The chain of a sqlKey of a DAO class
+ * is built once, on its first execution, into a flat array of the
+ * interceptors registered for all sqlKeys followed by the ones registered for
+ * that sqlKey, of any class or of that class. Registering or removing an
+ * interceptor drops the built chains.
+ * <p>
+ * When no interceptor is registered queries run without creating a
+ * {@link QueryContext}, at the cost of one volatile read.
+ * 
+ * @author rakesh
+ */
+public class QueryInterceptors {
+
+	private static final QueryInterceptor[] EMPTY = new QueryInterceptor[0];
+
+	private static final List<QueryInterceptor> global = new ArrayList<QueryInterceptor>();
+	private static final List<Registration> keyed = new ArrayList<Registration>();
+	// built chains by class name and sqlKey
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, QueryInterceptor[]>> chains = new ConcurrentHashMap<String, ConcurrentHashMap<String, QueryInterceptor[]>>();
+	private static volatile boolean empty = true;
+
+	private QueryInterceptors() {
+	}
+
+	/**
+	 * registers an interceptor for all sqlKeys.
+	 */
+	public static synchronized void register(QueryInterceptor interceptor) {
+		global.add(interceptor);
+		changed();
+	}
+
+	/**
+	 * registers an interceptor for one sqlKey, of any DAO class.
+	 */
+	public static synchronized void register(String sqlKey,
+			QueryInterceptor interceptor) {
+		keyed.add(new Registration(null, sqlKey, interceptor));
+		changed();
+	}
+
+	/**
+	 * registers an interceptor for one sqlKey of the DAO class whose
+	 * resources are given.
+	 */
+	public static synchronized void register(ClassResources resources,
+			String sqlKey, QueryInterceptor interceptor) {
+		keyed.add(new Registration(resources.getName(), sqlKey, interceptor));
+		changed();
+	}
+
+	/**
+	 * removes all registrations of the given interceptor.
+	 */
+	public static synchronized void unregister(QueryInterceptor interceptor) {
+		global.remove(interceptor);
+		for (int i = keyed.size() - 1; i >= 0; i--) {
+			if (keyed.get(i).interceptor == interceptor)
+				keyed.remove(i);
+		}
+		changed();
+	}
+
+	/**
+	 * returns the chain of interceptors of the given sqlKey.
+	 */
+	static QueryInterceptor[] getChain(ClassResources resources, String sqlKey) {
+		if (empty)
+			return EMPTY;
+		ConcurrentHashMap<String, QueryInterceptor[]> keys = chains
+				.get(resources.getName());
+		QueryInterceptor[] chain = keys == null ? null : keys.get(sqlKey);
+		if (chain == null)
+			chain = buildChain(resources.getName(), sqlKey);
+		return chain;
+	}
+
+	/**
+	 * creates the context of a query, or returns null if the sqlKey has no
+	 * interceptors.
+	 */
+	static QueryContext newContext(ClassResources resources, String sqlKey,
+			Object[] params) {
+		if (empty)
+			return null;
+		QueryInterceptor[] chain = getChain(resources, sqlKey);
+		if (chain.length == 0)
+			return null;
+		return new QueryContext(chain, resources, sqlKey, params);
+	}
+
+	private static synchronized QueryInterceptor[] buildChain(
+			String className, String sqlKey) {
+		List<QueryInterceptor> chain = new ArrayList<QueryInterceptor>(global);
+		for (Registration r : keyed) {
+			if (r.sqlKey.equals(sqlKey)
+					&& (r.className == null || r.className.equals(className)))
+				chain.add(r.interceptor);
+		}
+		QueryInterceptor[] built = chain.isEmpty() ? EMPTY : chain
+				.toArray(new QueryInterceptor[chain.size()]);
+		// built under the registration lock, so it can't replace a newer chain
+		ConcurrentHashMap<String, QueryInterceptor[]> keys = chains
+				.get(className);
+		if (keys == null) {
+			keys = new ConcurrentHashMap<String, QueryInterceptor[]>();
+			chains.put(className, keys);
+		}
+		keys.put(sqlKey, built);
+		return built;
+	}
+
+	private static void changed() {
+		chains.clear();
+		empty = global.isEmpty() && keyed.isEmpty();
+	}
+
+	private static final class Registration {
+		// null for all classes
+		final String className;
+		final String sqlKey;
+		final QueryInterceptor interceptor;
+
+		Registration(String className, String sqlKey,
+				QueryInterceptor interceptor) {
+			this.className = className;
+			this.sqlKey = sqlKey;
+			this.interceptor = interceptor;
+		}
+	}
+}
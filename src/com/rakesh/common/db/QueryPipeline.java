@@ -0,0 +1,312 @@
+package com.rakesh.common.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Several independent reads sent to the database in one round trip. USAGE:
+ * 
+ * <pre>
+ * 	QueryPipeline pipeline = pipeline();
+ * 	QueryPipeline.Result&lt;User&gt; user = pipeline.addForObject(userMapper,
+ * 			resources, &quot;getUser&quot;, id);
+ * 	QueryPipeline.Result&lt;List&lt;Order&gt;&gt; orders = pipeline.add(orderMapper,
+ * 			resources, &quot;getOrders&quot;, id);
+ * 	pipeline.execute();
+ * 	return new Page(user.get(), orders.get());
+ * </pre>
+ * 
+ * By default the queries are executed one after the other on the same
+ * connection. When the option 'dao.pipeline=true' is set for all of them and
+ * the driver supports multiple result sets they are joined with ';' into one
+ * statement, executed once, and the result sets are mapped in order; not
+ * every database accepts that, so it must be enabled explicitly. If the
+ * joined statement fails the queries which are not done yet are executed one
+ * after the other. Interceptors, concurrency limits and fetch sizes apply to
+ * both; joined queries hold their permits till the statement is done, and
+ * are executed one after the other when a permit is not free at once. The
+ * queries must not end with a comment.
+ * 
+ * @author rakesh
+ */
+public class QueryPipeline {
+
+	private static final Log logger = LogFactory.getLog(QueryPipeline.class);
+
+	private final BaseDAO dao;
+	private final List<Result<?>> entries = new ArrayList<Result<?>>();
+	private boolean executed;
+
+	QueryPipeline(BaseDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * adds a query which reads a list of rows.
+	 */
+	public <T> Result<List<T>> add(RowMapper<T> rm, ClassResources resources,
+			String sqlKey, Object... params) {
+		return add(new Result<List<T>>(rm, true, resources, sqlKey, params));
+	}
+
+	/**
+	 * adds a query which reads one row, its result is null if there is no
+	 * row.
+	 */
+	public <T> Result<T> addForObject(RowMapper<T> rm,
+			ClassResources resources, String sqlKey, Object... params) {
+		return add(new Result<T>(rm, false, resources, sqlKey, params));
+	}
+
+	private <R> Result<R> add(Result<R> entry) {
+		if (executed)
+			throw new IllegalStateException("Pipeline was already executed");
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * executes all the queries, their results are available after that.
+	 * 
+	 * @throws SQLException
+	 */
+	public void execute() throws SQLException {
+		if (executed)
+			throw new IllegalStateException("Pipeline was already executed");
+		executed = true;
+		if (entries.isEmpty())
+			return;
+		TransactionContext tx = TransactionContext.current();
+		Connection c = dao.getConnection(tx);
+		try {
+			SQLException pipelineError = null;
+			if (entries.size() > 1 && isPipelined(c)) {
+				try {
+					if (executePipelined(c))
+						return;
+				} catch (SQLException e) {
+					logger.warn("Pipelined queries failed, executing them one by one", e);
+					pipelineError = e;
+				}
+			}
+			executeSequential(c, pipelineError);
+		} finally {
+			dao.closeConnection(tx, c);
+		}
+	}
+
+	private boolean isPipelined(Connection c) throws SQLException {
+		for (Result<?> entry : entries)
+			if (!"true".equals(entry.resources.getOption("pipeline", entry.sqlKey)))
+				return false;
+		return c.getMetaData().supportsMultipleResultSets();
+	}
+
+	/**
+	 * executes the queries which are not done yet one after the other. The
+	 * error of the pipelined execution, if there was one, is added to the
+	 * error of a failing query.
+	 */
+	private void executeSequential(Connection c, SQLException pipelineError)
+			throws SQLException {
+		for (Result<?> entry : entries) {
+			if (entry.done)
+				continue;
+			ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(entry.resources, entry.sqlKey);
+			try {
+				long start = limiter.acquire();
+				try {
+					entry.value = entry.list ? JdbcUtills.query(c, entry.rm,
+							entry.resources, entry.sqlKey, entry.params)
+							: JdbcUtills.queryForObject(c, entry.rm,
+									entry.resources, entry.sqlKey, entry.params);
+					entry.done = true;
+				} finally {
+					limiter.release(start);
+				}
+			} catch (SQLException e) {
+				if (pipelineError != null)
+					e.addSuppressed(pipelineError);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * executes the queries joined into one statement. The permits of all
+	 * their limiters are held till the statement is done, each limiter once.
+	 * They are taken without waiting, before any interceptor is called;
+	 * returns false, with no query run, if one of them is not free, so that
+	 * a pipeline can't block on the permits it holds itself.
+	 */
+	private boolean executePipelined(Connection c) throws SQLException {
+		int n = entries.size();
+		List<ConcurrencyLimiter> limiters = new ArrayList<ConcurrencyLimiter>(n);
+		for (Result<?> entry : entries) {
+			ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(entry.resources, entry.sqlKey);
+			if (limiters.contains(limiter))
+				continue;
+			if (!limiter.acquireNow()) {
+				for (ConcurrencyLimiter l : limiters)
+					l.release(0L);
+				return false;
+			}
+			limiters.add(limiter);
+		}
+		long[] starts = new long[limiters.size()];
+		for (int i = 0; i < starts.length; i++)
+			starts[i] = limiters.get(i).startTime();
+		QueryContext[] contexts = new QueryContext[n];
+		try {
+			StringBuilder sql = new StringBuilder(n * 64);
+			List<Object> params = new ArrayList<Object>();
+			for (int i = 0; i < n; i++) {
+				Result<?> entry = entries.get(i);
+				QueryContext ctx = QueryInterceptors.newContext(entry.resources,
+						entry.sqlKey, entry.params);
+				contexts[i] = ctx;
+				String s;
+				Object[] p;
+				if (ctx == null) {
+					s = entry.resources.getValue(entry.sqlKey);
+					p = entry.params;
+				} else {
+					ctx.beforePrepare();
+					s = ctx.getSql();
+					p = ctx.getParams();
+				}
+				s = s.trim();
+				if (s.endsWith(";"))
+					s = s.substring(0, s.length() - 1);
+				if (sql.length() > 0)
+					sql.append(";\n");
+				sql.append(s);
+				if (p != null)
+					for (Object o : p)
+						params.add(o);
+			}
+			PreparedStatementCreator psc = new PreparedStatementCreator(
+					sql.toString(), params.toArray());
+			PreparedStatement pst = psc.createPreparedStatement(c);
+			try {
+				for (QueryContext ctx : contexts)
+					if (ctx != null)
+						ctx.prepared();
+				Result<?> first = entries.get(0);
+				FetchSizeTuner.forKey(first.resources, first.sqlKey).beforeExecute(pst);
+				for (QueryContext ctx : contexts)
+					if (ctx != null)
+						ctx.beforeExecute(pst);
+				boolean isResultSet = pst.execute();
+				for (QueryContext ctx : contexts)
+					if (ctx != null)
+						ctx.executed();
+				for (int i = 0; i < n; i++) {
+					Result<?> entry = entries.get(i);
+					// skips update counts, there are none for plain SELECTs
+					while (!isResultSet && pst.getUpdateCount() != -1)
+						isResultSet = pst.getMoreResults();
+					if (!isResultSet)
+						throw new SQLException("No result set returned for " + entry.sqlKey);
+					ResultSet rs = pst.getResultSet();
+					try {
+						read(entry, contexts[i], rs, i > 0);
+					} finally {
+						rs.close();
+					}
+					isResultSet = pst.getMoreResults();
+				}
+			} finally {
+				psc.close(pst);
+			}
+			return true;
+		} catch (SQLException e) {
+			for (QueryContext ctx : contexts)
+				if (ctx != null)
+					ctx.failed(e);
+			throw e;
+		} catch (RuntimeException e) {
+			for (QueryContext ctx : contexts)
+				if (ctx != null)
+					ctx.failed(e);
+			throw e;
+		} finally {
+			for (int i = 0; i < limiters.size(); i++)
+				limiters.get(i).release(starts[i]);
+		}
+	}
+
+	/**
+	 * maps the result set of one query of the pipeline.
+	 * 
+	 * @throws SQLException
+	 */
+	private static void read(Result<?> entry, QueryContext ctx, ResultSet rs,
+			boolean tuneFetchSize) throws SQLException {
+		FetchSizeTuner tuner = FetchSizeTuner.forKey(entry.resources, entry.sqlKey);
+		if (tuneFetchSize)
+			tuner.beforeRead(rs);
+		tuner.executed(rs);
+		Object value;
+		int rows;
+		if (entry.list) {
+			List<?> l = JdbcUtills.processMultipleRows(entry.rm, rs);
+			value = l;
+			rows = l.size();
+		} else {
+			value = JdbcUtills.processOneRow(entry.rm, rs);
+			rows = value == null ? 0 : 1;
+		}
+		tuner.completed(rows);
+		if (ctx != null)
+			ctx.completed(value, rows);
+		entry.value = value;
+		entry.done = true;
+	}
+
+	/**
+	 * Result of one query of the pipeline.
+	 */
+	public static final class Result<R> {
+		private final RowMapper<?> rm;
+		private final boolean list;
+		private final ClassResources resources;
+		private final String sqlKey;
+		private final Object[] params;
+		private Object value;
+		private boolean done;
+
+		Result(RowMapper<?> rm, boolean list, ClassResources resources,
+				String sqlKey, Object[] params) {
+			this.rm = rm;
+			this.list = list;
+			this.resources = resources;
+			this.sqlKey = sqlKey;
+			this.params = params;
+		}
+
+		/**
+		 * returns the result of the query.
+		 * 
+		 * @throws IllegalStateException
+		 *             if the pipeline was not executed, or failed before this
+		 *             query
+		 */
+		@SuppressWarnings("unchecked")
+		public R get() {
+			if (!done)
+				throw new IllegalStateException("Query " + sqlKey + " was not executed");
+			return (R) value;
+		}
+	}
+}
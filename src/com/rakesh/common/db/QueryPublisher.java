@@ -0,0 +1,315 @@
+package com.rakesh.common.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Publisher of the rows of a query, created by
+ * {@link BaseDAO#publish(RowMapper, ClassResources, String, Object...)}. Each
+ * subscription executes the query on the first request and reads rows from the
+ * ResultSet only as they are requested, so a slow subscriber slows down the
+ * reading instead of filling memory. Statement and connection are released
+ * when all rows are published, on error and on cancel. An exception thrown by
+ * the RowMapper is signalled by onError; one thrown by the subscriber's onNext
+ * cancels the subscription.
+ * <p>
+ * Rows are read and published on the thread calling
+ * {@link Flow.Subscription#request(long)}, or on the executor if one is given.
+ * <p>
+ * When the publisher is created inside a transaction it uses the connection of
+ * that transaction, which is not closed at the end; the subscription must then
+ * be completed or cancelled before the transaction is finished. Each row is
+ * read holding the connection like a DAO call of the transaction, so reads
+ * are serialized with the other calls and get its deadline; a subscription
+ * reading after the transaction finished gets an error.
+ * 
+ * @author rakesh
+ */
+public class QueryPublisher<T> implements Flow.Publisher<T> {
+
+	private static final Log logger = LogFactory.getLog(QueryPublisher.class);
+
+	private final BaseDAO dao;
+	private final TransactionContext tx;
+	private final Executor executor;
+	private final RowMapper<T> rm;
+	private final ClassResources resources;
+	private final String sqlKey;
+	private final Object[] params;
+
+	QueryPublisher(BaseDAO dao, TransactionContext tx, Executor executor,
+			RowMapper<T> rm, ClassResources resources, String sqlKey,
+			Object[] params) {
+		this.dao = dao;
+		this.tx = tx;
+		this.executor = executor;
+		this.rm = rm;
+		this.resources = resources;
+		this.sqlKey = sqlKey;
+		this.params = params;
+	}
+
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("subscriber");
+		subscriber.onSubscribe(new QuerySubscription(subscriber));
+	}
+
+	/**
+	 * subscription reading the rows of one execution of the query.
+	 */
+	private final class QuerySubscription implements Flow.Subscription,
+			Runnable {
+
+		private final Object end = new Object();
+
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile IllegalArgumentException invalidRequest;
+
+		private ConcurrencyLimiter limiter;
+		private long start;
+		private QueryContext ctx;
+		private Connection c;
+		private PreparedStatementCreator psc;
+		private PreparedStatement pst;
+		private ResultSet rs;
+		private FetchSizeTuner tuner;
+		private int rows;
+
+		QuerySubscription(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = new IllegalArgumentException(
+						"Invalid request of " + n
+								+ " rows, must be positive (rule 3.9)");
+			} else {
+				long current, next;
+				do {
+					current = requested.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!requested.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		/**
+		 * runs the drain loop unless it is already running, in which case the
+		 * running loop sees the new state.
+		 */
+		private void drain() {
+			if (wip.getAndIncrement() != 0)
+				return;
+			if (executor != null)
+				executor.execute(this);
+			else
+				run();
+		}
+
+		/**
+		 * publishes requested rows till demand is exhausted, and releases
+		 * everything on completion, error or cancel.
+		 */
+		public void run() {
+			int missed = 1;
+			for (;;) {
+				long r = requested.get();
+				long emitted = 0;
+				while (emitted != r) {
+					if (cancelled) {
+						release(null);
+						return;
+					}
+					if (invalidRequest != null) {
+						subscriber.onError(release(invalidRequest));
+						return;
+					}
+					Object next;
+					try {
+						next = next();
+					} catch (SQLException e) {
+						subscriber.onError(release(e));
+						return;
+					} catch (RuntimeException e) {
+						subscriber.onError(release(e));
+						return;
+					}
+					if (next == end) {
+						Throwable e = release(null);
+						if (e != null)
+							subscriber.onError(e);
+						else
+							subscriber.onComplete();
+						return;
+					}
+					rows++;
+					@SuppressWarnings("unchecked")
+					T row = (T) next;
+					try {
+						subscriber.onNext(row);
+					} catch (RuntimeException e) {
+						// rule 2.13, the subscription is considered cancelled
+						cancelled = true;
+						release(null);
+						logger.error("Subscriber of '" + sqlKey
+								+ "' failed in onNext, subscription cancelled", e);
+						return;
+					}
+					emitted++;
+				}
+				if (cancelled) {
+					release(null);
+					return;
+				}
+				if (invalidRequest != null) {
+					subscriber.onError(release(invalidRequest));
+					return;
+				}
+				if (emitted != 0 && r != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		/**
+		 * reads and maps the next row, executing the query first if it was
+		 * not yet. Returns end after the last row. Inside a transaction the
+		 * row is read holding its connection.
+		 * 
+		 * @throws SQLException
+		 */
+		private Object next() throws SQLException {
+			if (limiter == null) {
+				ConcurrencyLimiter l = ConcurrencyLimiter.forKey(resources, sqlKey);
+				start = l.acquire();
+				limiter = l;
+			}
+			if (tx != null)
+				tx.acquire();
+			try {
+				if (rs == null)
+					open();
+				if (!rs.next())
+					return end;
+				return rm.mapRow(rs);
+			} finally {
+				if (tx != null)
+					tx.exit();
+			}
+		}
+
+		/**
+		 * takes the connection and executes the query.
+		 */
+		private void open() throws SQLException {
+			if (tx != null) {
+				c = tx.enter();
+				tx.exit();
+			} else {
+				c = dao.doGetConnection();
+			}
+			ctx = QueryInterceptors.newContext(resources, sqlKey, params);
+			if (ctx == null) {
+				psc = new PreparedStatementCreator(resources, sqlKey, params);
+				pst = psc.createPreparedStatement(c);
+			} else {
+				ctx.beforePrepare();
+				psc = new PreparedStatementCreator(ctx.getSql(),
+						ctx.getParams());
+				pst = psc.createPreparedStatement(c);
+				ctx.prepared();
+			}
+			if (tx != null)
+				tx.applyTimeout(pst);
+			tuner = FetchSizeTuner.forKey(resources, sqlKey);
+			tuner.beforeExecute(pst);
+			if (ctx != null)
+				ctx.beforeExecute(pst);
+			rs = pst.executeQuery();
+			if (ctx != null)
+				ctx.executed();
+			tuner.executed(rs);
+		}
+
+		/**
+		 * closes result set and statement, returns the connection if it is
+		 * not the one of a transaction, and releases the admission permit.
+		 * Returns the error to report, which is the given one or the first
+		 * error while releasing.
+		 */
+		private Throwable release(Throwable error) {
+			// closes the statement holding the connection of the transaction
+			boolean locked = tx != null && pst != null;
+			if (locked)
+				tx.lock();
+			try {
+				try {
+					if (rs != null)
+						rs.close();
+				} catch (SQLException e) {
+					error = error == null ? e : error;
+				}
+				try {
+					if (pst != null)
+						psc.close(pst);
+				} catch (SQLException e) {
+					error = error == null ? e : error;
+				}
+			} finally {
+				if (locked)
+					tx.exit();
+			}
+			try {
+				if (c != null && tx == null)
+					dao.doCloseConnection(c);
+			} catch (SQLException e) {
+				error = error == null ? e : error;
+			}
+			if (limiter != null)
+				limiter.release(start);
+			// rows published till completion or cancel
+			if (tuner != null && error == null)
+				tuner.completed(rows);
+			if (ctx != null) {
+				if (error == null)
+					ctx.completed(null, rows);
+				else if (error instanceof SQLException)
+					ctx.failed((SQLException) error);
+				else if (error instanceof RuntimeException)
+					ctx.failed((RuntimeException) error);
+			}
+			rs = null;
+			psc = null;
+			pst = null;
+			c = null;
+			limiter = null;
+			tuner = null;
+			ctx = null;
+			return error;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of {@link ReferenceTable}s. A table is loaded when it is
+ * registered, so startup fails if a table can't be read, and then refreshed
+ * in the background at its interval. A failed refresh is logged and the
+ * table keeps serving its previous rows.
+ * 
+ * @author rakesh
+ */
+public class ReferenceDataRegistry {
+
+	private static final Log logger = LogFactory.getLog(ReferenceDataRegistry.class);
+
+	private final ConcurrentMap<String, ReferenceTable<?>> tables = new ConcurrentHashMap<String, ReferenceTable<?>>();
+	private final ScheduledExecutorService scheduler;
+
+	public ReferenceDataRegistry() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reference-data-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * loads the table and registers it by name. If refreshMillis is positive
+	 * the table is refreshed at that interval.
+	 * 
+	 * @throws SQLException
+	 *             if the first load fails
+	 */
+	public <T> ReferenceTable<T> register(String name,
+			final ReferenceTable<T> table, long refreshMillis)
+			throws SQLException {
+		if (!table.isLoaded())
+			table.refresh();
+		if (tables.putIfAbsent(name, table) != null)
+			throw new IllegalArgumentException("Reference table " + name + " is already registered");
+		if (refreshMillis > 0)
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					refresh(table);
+				}
+			}, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+		return table;
+	}
+
+	/**
+	 * returns the table registered with the given name, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> ReferenceTable<T> get(String name) {
+		return (ReferenceTable<T>) tables.get(name);
+	}
+
+	/**
+	 * refreshes all registered tables now, in the calling thread.
+	 */
+	public void refreshAll() {
+		for (ReferenceTable<?> table : tables.values())
+			refresh(table);
+	}
+
+	/**
+	 * stops the background refresh.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private void refresh(ReferenceTable<?> table) {
+		try {
+			if (table.refresh() && logger.isDebugEnabled())
+				logger.debug("Reloaded reference table " + table.getSqlKey());
+		} catch (SQLException e) {
+			logger.warn("Refresh of reference table " + table.getSqlKey() + " failed", e);
+		} catch (RuntimeException e) {
+			logger.warn("Refresh of reference table " + table.getSqlKey() + " failed", e);
+		}
+	}
+}
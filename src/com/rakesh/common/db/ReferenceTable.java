@@ -0,0 +1,195 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.rakesh.common.db.util.GenericMappers;
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+import com.rakesh.common.util.LongIndex;
+
+/**
+ * In-memory copy of a small, rarely changing table (currencies, country
+ * codes, etc.). All rows of the sqlKey are loaded at once and indexed by a
+ * long key, and optionally by secondary keys. Lookups read an immutable
+ * snapshot, they take no lock and never go to the database. USAGE:
+ * 
+ * <pre>
+ * 	ReferenceTable&lt;Currency&gt; currencies = new ReferenceTable&lt;Currency&gt;(dao,
+ * 			resources, &quot;allCurrencies&quot;, currencyMapper, idExtractor);
+ * 	int byCountry = currencies.addIndex(countryExtractor);
+ * 	currencies.refresh();
+ * 	...
+ * 	Currency c = currencies.get(id);
+ * 	List&lt;Currency&gt; l = currencies.getAll(byCountry, countryId);
+ * </pre>
+ * 
+ * {@link #refresh()} reloads the rows and swaps the new snapshot in. If a
+ * version sqlKey is set, its single value is read first and the rows are
+ * reloaded only when it changed. Tables are usually refreshed by a
+ * {@link ReferenceDataRegistry}.
+ * 
+ * @author rakesh
+ */
+public class ReferenceTable<T> {
+
+	/**
+	 * Interface to extract the long key of a row.
+	 */
+	public interface KeyExtractor<T> {
+		long getKey(T row);
+	}
+
+	private final BaseDAO dao;
+	private final ClassResources resources;
+	private final String sqlKey;
+	private final RowMapper<T> rm;
+	private final List<KeyExtractor<T>> extractors = new ArrayList<KeyExtractor<T>>();
+	private String versionSqlKey;
+	private volatile Snapshot snapshot;
+
+	public ReferenceTable(BaseDAO dao, ClassResources resources,
+			String sqlKey, RowMapper<T> rm, KeyExtractor<T> primaryKey) {
+		this.dao = dao;
+		this.resources = resources;
+		this.sqlKey = sqlKey;
+		this.rm = rm;
+		this.extractors.add(primaryKey);
+	}
+
+	/**
+	 * adds a secondary index and returns its id to pass to
+	 * {@link #getAll(int, long)}. Indexes must be added before the first
+	 * load.
+	 */
+	public synchronized int addIndex(KeyExtractor<T> key) {
+		if (snapshot != null)
+			throw new IllegalStateException("Table " + sqlKey + " is already loaded");
+		extractors.add(key);
+		return extractors.size() - 1;
+	}
+
+	/**
+	 * sets the sqlKey of a query returning one value which changes whenever
+	 * the table changes, e.g. a version number or last update time.
+	 */
+	public synchronized void setVersionSqlKey(String versionSqlKey) {
+		this.versionSqlKey = versionSqlKey;
+	}
+
+	/**
+	 * returns the row with the given primary key, or null.
+	 */
+	public T get(long key) {
+		Snapshot s = current();
+		int row = s.indexes[0].get(key);
+		return row < 0 ? null : s.<T> row(row);
+	}
+
+	/**
+	 * returns the first row with the given key of a secondary index, or null.
+	 */
+	public T getFirst(int index, long key) {
+		Snapshot s = current();
+		int row = s.indexes[index].get(key);
+		return row < 0 ? null : s.<T> row(row);
+	}
+
+	/**
+	 * returns all rows with the given key of a secondary index, in load
+	 * order.
+	 */
+	public List<T> getAll(int index, long key) {
+		Snapshot s = current();
+		LongIndex idx = s.indexes[index];
+		int row = idx.get(key);
+		if (row < 0)
+			return Collections.emptyList();
+		List<T> l = new ArrayList<T>(4);
+		for (; row >= 0; row = idx.next(row))
+			l.add(s.<T> row(row));
+		return l;
+	}
+
+	/**
+	 * returns all rows of the table, in load order.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> getRows() {
+		return (List<T>) Collections.unmodifiableList(Arrays.asList(current().rows));
+	}
+
+	/**
+	 * returns true once the table has been loaded.
+	 */
+	public boolean isLoaded() {
+		return snapshot != null;
+	}
+
+	/**
+	 * loads the table, or reloads it if its version changed. Returns true if
+	 * a new snapshot was swapped in. Lookups keep using the previous snapshot
+	 * while loading, and if loading fails.
+	 * 
+	 * @throws SQLException
+	 */
+	public synchronized boolean refresh() throws SQLException {
+		Snapshot old = snapshot;
+		String version = null;
+		if (versionSqlKey != null) {
+			version = dao.queryForObject(GenericMappers.stringRowMapper,
+					resources, versionSqlKey);
+			if (old != null && version != null && version.equals(old.version))
+				return false;
+		}
+		List<T> list = dao.query(rm, resources, sqlKey);
+		Object[] rows = list.toArray();
+		LongIndex[] indexes = new LongIndex[extractors.size()];
+		long[] keys = new long[rows.length];
+		for (int i = 0; i < indexes.length; i++) {
+			KeyExtractor<T> extractor = extractors.get(i);
+			for (int row = 0; row < keys.length; row++)
+				keys[row] = extractor.getKey(list.get(row));
+			indexes[i] = new LongIndex(keys);
+		}
+		snapshot = new Snapshot(rows, indexes, version);
+		return true;
+	}
+
+	/**
+	 * returns sqlKey the table is loaded from.
+	 */
+	public String getSqlKey() {
+		return sqlKey;
+	}
+
+	private Snapshot current() {
+		Snapshot s = snapshot;
+		if (s == null)
+			throw new IllegalStateException("Table " + sqlKey + " is not loaded");
+		return s;
+	}
+
+	/**
+	 * immutable rows and indexes of one load.
+	 */
+	private static final class Snapshot {
+		final Object[] rows;
+		final LongIndex[] indexes;
+		final String version;
+
+		Snapshot(Object[] rows, LongIndex[] indexes, String version) {
+			this.rows = rows;
+			this.indexes = indexes;
+			this.version = version;
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> T row(int row) {
+			return (T) rows[row];
+		}
+	}
+}
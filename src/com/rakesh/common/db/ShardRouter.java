@@ -0,0 +1,201 @@
+package com.rakesh.common.db;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.datasource.BasicDataSourceFactory;
+
+/**
+ * Routes shard keys to one of N datasources, either with consistent hashing or
+ * with a range map. Used by {@link ShardedDAO}.
+ * <p>
+ * Consistent hashing places every shard on a hash ring many times (virtual
+ * nodes) and routes a key to the first shard after the hash of the key, so
+ * adding a shard moves only about 1/N of the keys. Hashes are computed from
+ * the value of the key (numbers by value, other keys by their string form) so
+ * routing is the same in every JVM.
+ * 
+ * @author rakesh
+ */
+public class ShardRouter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final DataSource[] shards;
+	// consistent hashing, sorted ring positions and their shards
+	private final long[] ring;
+	private final int[] ringShards;
+	// range routing, lower bound of each shard but the first one
+	private final TreeMap<Comparable<Object>, Integer> ranges;
+
+	private ShardRouter(DataSource[] shards, long[] ring, int[] ringShards,
+			TreeMap<Comparable<Object>, Integer> ranges) {
+		this.shards = shards.clone();
+		this.ring = ring;
+		this.ringShards = ringShards;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * creates a router which spreads keys over the shards with consistent
+	 * hashing, virtualNodes is the number of ring positions of each shard
+	 * (100-200 gives an even spread).
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if there are no shards or virtualNodes is not positive
+	 */
+	public static ShardRouter consistentHash(DataSource[] shards,
+			int virtualNodes) {
+		checkShards(shards);
+		if (virtualNodes <= 0)
+			throw new IllegalArgumentException("virtualNodes must be positive, was "
+					+ virtualNodes);
+		int n = shards.length * virtualNodes;
+		long[][] points = new long[n][];
+		for (int s = 0, i = 0; s < shards.length; s++) {
+			for (int v = 0; v < virtualNodes; v++, i++)
+				points[i] = new long[] { hash("shard-" + s + "-" + v), s };
+		}
+		Arrays.sort(points, new Comparator<long[]>() {
+			public int compare(long[] p1, long[] p2) {
+				return p1[0] < p2[0] ? -1 : (p1[0] == p2[0] ? 0 : 1);
+			}
+		});
+		long[] ring = new long[n];
+		int[] ringShards = new int[n];
+		for (int i = 0; i < n; i++) {
+			ring[i] = points[i][0];
+			ringShards[i] = (int) points[i][1];
+		}
+		return new ShardRouter(shards, ring, ringShards, null);
+	}
+
+	/**
+	 * creates a router which routes keys by range. lowerBounds[i] is the
+	 * smallest key of shard i + 1; keys below lowerBounds[0] go to shard 0.
+	 * Keys must be comparable with the bounds.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if there are no shards or the bounds don't match them
+	 */
+	@SuppressWarnings("unchecked")
+	public static ShardRouter ranges(DataSource[] shards,
+			Comparable<?>[] lowerBounds) {
+		checkShards(shards);
+		if (lowerBounds == null || lowerBounds.length != shards.length - 1)
+			throw new IllegalArgumentException("Range routing of "
+					+ shards.length + " shards needs "
+					+ (shards.length - 1) + " lower bounds");
+		TreeMap<Comparable<Object>, Integer> ranges = new TreeMap<Comparable<Object>, Integer>();
+		for (int i = 0; i < lowerBounds.length; i++) {
+			if (lowerBounds[i] == null)
+				throw new IllegalArgumentException("Lower bound " + i
+						+ " is null");
+			ranges.put((Comparable<Object>) lowerBounds[i], i + 1);
+		}
+		return new ShardRouter(shards, null, null, ranges);
+	}
+
+	private static void checkShards(DataSource[] shards) {
+		if (shards == null || shards.length == 0)
+			throw new IllegalArgumentException("At least one shard is required");
+		for (int i = 0; i < shards.length; i++) {
+			if (shards[i] == null)
+				throw new IllegalArgumentException("Shard " + i + " is null");
+		}
+	}
+
+	/**
+	 * creates the datasources of the shards from properties of the form
+	 * 'shards=N' and 'shard.[i].[property]=value', where property is any
+	 * property read by
+	 * {@link BasicDataSourceFactory#createDataSource(Properties)}. Properties
+	 * without the shard prefix are used as defaults for all shards.
+	 * 
+	 * @throws Exception
+	 *             if an error occurs creating a data source
+	 */
+	public static DataSource[] createShards(Properties properties)
+			throws Exception {
+		int count = Integer.parseInt(properties.getProperty("shards").trim());
+		DataSource[] shards = new DataSource[count];
+		for (int i = 0; i < count; i++) {
+			String prefix = "shard." + i + ".";
+			Properties p = new Properties();
+			for (String name : properties.stringPropertyNames()) {
+				if (!name.startsWith("shard"))
+					p.setProperty(name, properties.getProperty(name));
+			}
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith(prefix))
+					p.setProperty(name.substring(prefix.length()),
+							properties.getProperty(name));
+			}
+			shards[i] = BasicDataSourceFactory.createDataSource(p);
+		}
+		return shards;
+	}
+
+	/**
+	 * returns index of the shard of the given key.
+	 */
+	public int shardFor(Object key) {
+		if (key == null)
+			throw new IllegalArgumentException("Shard key can't be null");
+		if (ranges != null) {
+			@SuppressWarnings("unchecked")
+			Map.Entry<Comparable<Object>, Integer> e = ranges
+					.floorEntry((Comparable<Object>) key);
+			return e == null ? 0 : e.getValue();
+		}
+		long h = hash(key);
+		int i = Arrays.binarySearch(ring, h);
+		if (i < 0)
+			i = -i - 1;
+		return ringShards[i == ring.length ? 0 : i];
+	}
+
+	/**
+	 * returns datasource of the shard with the given index.
+	 */
+	public DataSource getShard(int index) {
+		return shards[index];
+	}
+
+	/**
+	 * returns number of shards.
+	 */
+	public int size() {
+		return shards.length;
+	}
+
+	/**
+	 * 64 bit hash of the value of a key, FNV-1a followed by a final mix.
+	 */
+	static long hash(Object key) {
+		long h;
+		if (key instanceof Long || key instanceof Integer
+				|| key instanceof Short || key instanceof Byte) {
+			h = ((Number) key).longValue();
+		} else {
+			h = 0xcbf29ce484222325L;
+			for (byte b : key.toString().getBytes(UTF8)) {
+				h ^= b;
+				h *= 0x100000001b3L;
+			}
+		}
+		// murmur3 finalizer, spreads the bits of sequential numbers
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
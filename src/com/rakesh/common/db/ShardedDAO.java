@@ -0,0 +1,281 @@
+package com.rakesh.common.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Base class for DAOs whose data is split over several databases. Keyed calls
+ * are routed by the {@link ShardRouter} using the shard key bound to the
+ * current thread, so the DAO methods are the same as with {@link BaseDAO}.
+ * USAGE:
+ * 
+ * <pre>
+ * 	<strong>ShardedDAO.setShardKey(customerId);</strong>
+ * 	try {
+ * 		orderDao.findOrders(...);
+ * 	} finally {
+ * 		<strong>ShardedDAO.clearShardKey();</strong>
+ * 	}
+ * </pre>
+ * 
+ * A transaction takes its connection from the shard of the key bound when the
+ * first query of the transaction runs, and all its queries run on that shard;
+ * a keyed call whose key routes to another shard fails with a SQLException.
+ * Reads without a bound key outside a transaction are run on all shards in
+ * parallel: query returns the rows of all shards in shard order, and
+ * queryForObject and queryForInt the first value found in shard order.
+ * {@link #queryAllShards(RowMapper, ClassResources, String, Comparator, int, Object...)}
+ * merges them in a given order. Updates and calls without a key, and reads
+ * without a key inside a transaction, fail with a SQLException.
+ * 
+ * @author rakesh
+ */
+public class ShardedDAO extends BaseDAO {
+
+	private static final ThreadLocal<Object> shardKey = new ThreadLocal<Object>();
+
+	private final ShardRouter router;
+	private final ExecutorService executor;
+
+	/**
+	 * constructor to create read only dao, shards are queried in parallel on
+	 * a shared pool of daemon threads.
+	 */
+	public ShardedDAO(ShardRouter router) {
+		this(router, true, null);
+	}
+
+	/**
+	 * constructor allows you to specify read only attribute and the executor
+	 * shards are queried on, null for the shared pool.
+	 */
+	public ShardedDAO(ShardRouter router, boolean readOnly,
+			ExecutorService executor) {
+		super(router.getShard(0), readOnly);
+		this.router = router;
+		this.executor = executor;
+	}
+
+	/**
+	 * binds the shard key of the current thread, used by all keyed calls of
+	 * sharded DAOs till it is cleared.
+	 */
+	public static void setShardKey(Object key) {
+		shardKey.set(key);
+	}
+
+	/**
+	 * removes the shard key of the current thread.
+	 */
+	public static void clearShardKey() {
+		shardKey.remove();
+	}
+
+	/**
+	 * returns the shard key of the current thread, null if none is bound.
+	 */
+	public static Object getShardKey() {
+		return shardKey.get();
+	}
+
+	public ShardRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * returns datasource of the shard of the bound shard key. Inside a
+	 * transaction the shard is pinned, or checked against the pinned one.
+	 */
+	@Override
+	DataSource getDataSource() throws SQLException {
+		int shard = boundShard();
+		TransactionContext tx = TransactionContext.current();
+		if (tx != null)
+			tx.pinShard(shard);
+		return router.getShard(shard);
+	}
+
+	/**
+	 * checks the bound shard key routes to the shard the transaction is
+	 * pinned to before the connection of the transaction is used.
+	 */
+	@Override
+	Connection getConnection(TransactionContext tx) throws SQLException {
+		if (tx != null)
+			tx.pinShard(boundShard());
+		return super.getConnection(tx);
+	}
+
+	private int boundShard() throws SQLException {
+		Object key = shardKey.get();
+		if (key == null)
+			throw new SQLException("No shard key bound for a keyed call of "
+					+ getClass().getSimpleName()
+					+ ", use ShardedDAO.setShardKey()");
+		return router.shardFor(key);
+	}
+
+	/**
+	 * reads an integer from the shard of the bound key, or from all the shards
+	 * when no key is bound outside a transaction; the first shard returning a
+	 * value wins.
+	 */
+	@Override
+	protected Integer queryForInt(final ClassResources resources,
+			final String sqlKey, final Object... params) throws SQLException {
+		if (!unkeyedRead())
+			return super.queryForInt(resources, sqlKey, params);
+		return first(onAllShards(resources, sqlKey, new ShardQuery<Integer>() {
+			public Integer run(Connection c) throws SQLException {
+				return JdbcUtills.queryForInt(c, resources, sqlKey, params);
+			}
+		}));
+	}
+
+	/**
+	 * reads one object from the shard of the bound key, or from all the
+	 * shards when no key is bound outside a transaction; the first shard
+	 * returning a row wins.
+	 */
+	@Override
+	protected <T> T queryForObject(final RowMapper<T> rm,
+			final ClassResources resources, final String sqlKey,
+			final Object... params) throws SQLException {
+		if (!unkeyedRead())
+			return super.queryForObject(rm, resources, sqlKey, params);
+		return first(onAllShards(resources, sqlKey, new ShardQuery<T>() {
+			public T run(Connection c) throws SQLException {
+				return JdbcUtills.queryForObject(c, rm, resources, sqlKey,
+						params);
+			}
+		}));
+	}
+
+	/**
+	 * reads the rows of the shard of the bound key, or of all the shards in
+	 * shard order when no key is bound outside a transaction.
+	 */
+	@Override
+	protected <T> List<T> query(RowMapper<T> rm, ClassResources resources,
+			String sqlKey, Object... params) throws SQLException {
+		if (!unkeyedRead())
+			return super.query(rm, resources, sqlKey, params);
+		return queryAllShards(rm, resources, sqlKey, null, 0, params);
+	}
+
+	private static boolean unkeyedRead() {
+		return shardKey.get() == null
+				&& TransactionManager.getCurrentTransaction() == null;
+	}
+
+	private static <T> T first(List<T> results) {
+		for (T result : results)
+			if (result != null)
+				return result;
+		return null;
+	}
+
+	/**
+	 * method available for subclasses to run a query on all the shards in
+	 * parallel and merge the results. If order is not null the merged results
+	 * are sorted with it, and if limit is positive at most limit results are
+	 * returned. Can't be used inside a transaction, which is pinned to one
+	 * shard.
+	 */
+	protected <T> List<T> queryAllShards(final RowMapper<T> rm,
+			final ClassResources resources, final String sqlKey,
+			Comparator<? super T> order, int limit, final Object... params)
+			throws SQLException {
+		List<T> merged = new ArrayList<T>();
+		for (List<T> rows : onAllShards(resources, sqlKey,
+				new ShardQuery<List<T>>() {
+					public List<T> run(Connection c) throws SQLException {
+						return JdbcUtills.query(c, rm, resources, sqlKey,
+								params);
+					}
+				}))
+			merged.addAll(rows);
+		if (order != null)
+			Collections.sort(merged, order);
+		if (limit > 0 && merged.size() > limit)
+			merged = new ArrayList<T>(merged.subList(0, limit));
+		return merged;
+	}
+
+	/**
+	 * query run on the connection of one shard.
+	 */
+	private interface ShardQuery<R> {
+		R run(Connection c) throws SQLException;
+	}
+
+	/**
+	 * runs the query on all the shards in parallel, returns their results in
+	 * shard order.
+	 */
+	private <R> List<R> onAllShards(ClassResources resources, String sqlKey,
+			final ShardQuery<R> query) throws SQLException {
+		if (TransactionManager.getCurrentTransaction() != null)
+			throw new SQLException("Query on all shards is not allowed inside a transaction, a transaction is pinned to one shard");
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, sqlKey);
+		long start = limiter.acquire();
+		try {
+			List<Future<R>> results = new ArrayList<Future<R>>(router.size());
+			ExecutorService pool = executor != null ? executor
+					: DaemonExecutors.get("shard-query");
+			for (int i = 0; i < router.size(); i++) {
+				final DataSource shard = router.getShard(i);
+				results.add(pool.submit(new Callable<R>() {
+					public R call() throws SQLException {
+						Connection c = doGetConnection(shard);
+						try {
+							return query.run(c);
+						} finally {
+							doCloseConnection(c);
+						}
+					}
+				}));
+			}
+			return gather(results);
+		} finally {
+			limiter.release(start);
+		}
+	}
+
+	private static <R> List<R> gather(List<Future<R>> results)
+			throws SQLException {
+		List<R> gathered = new ArrayList<R>(results.size());
+		try {
+			for (Future<R> result : results)
+				gathered.add(result.get());
+		} catch (InterruptedException e) {
+			cancel(results);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for shards", e);
+		} catch (ExecutionException e) {
+			cancel(results);
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException("Query on a shard failed", e.getCause());
+		}
+		return gathered;
+	}
+
+	private static void cancel(List<? extends Future<?>> results) {
+		for (Future<?> result : results)
+			result.cancel(true);
+	}
+}
@@ -0,0 +1,53 @@
+package com.rakesh.common.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * Concurrent two level map which keeps one value per resource file and sqlKey.
+ * Values are created lazily on first access using {@link #create}, and after
+ * that a lookup is two hash map reads without any locking or allocation.
+ * 
+ * @author rakesh
+ */
+abstract class SqlKeyMap<V> {
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, V>> values = new ConcurrentHashMap<String, ConcurrentHashMap<String, V>>();
+
+	/**
+	 * returns the value for the given resources and sqlKey, creating it if
+	 * this is the first access.
+	 */
+	V get(ClassResources resources, String sqlKey) {
+		ConcurrentHashMap<String, V> keys = values.get(resources.getName());
+		if (keys == null) {
+			keys = new ConcurrentHashMap<String, V>();
+			ConcurrentHashMap<String, V> existing = values.putIfAbsent(
+					resources.getName(), keys);
+			if (existing != null)
+				keys = existing;
+		}
+		V value = keys.get(sqlKey);
+		if (value == null) {
+			value = create(resources, sqlKey);
+			V existing = keys.putIfAbsent(sqlKey, value);
+			if (existing != null)
+				value = existing;
+		}
+		return value;
+	}
+
+	/**
+	 * removes all values, they will be created again on next access.
+	 */
+	void clear() {
+		values.clear();
+	}
+
+	/**
+	 * creates the value for the given resources and sqlKey. Must not return
+	 * null.
+	 */
+	protected abstract V create(ClassResources resources, String sqlKey);
+}
@@ -0,0 +1,65 @@
+package com.rakesh.common.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free budget of extra work, like retries or hedged requests. Every
+ * call deposits a fraction of a token, up to a maximum, and every extra
+ * request withdraws one token, so extra requests stay at a ratio of the
+ * calls and a database in trouble is not flooded with them.
+ * 
+ * @author rakesh
+ */
+final class TokenBudget {
+
+	// fixed point, one token is TOKEN units
+	private static final long TOKEN = 1000;
+
+	private final AtomicLong balance;
+	private volatile long deposit;
+	private volatile long max;
+
+	/**
+	 * creates a budget which starts with the given number of tokens.
+	 */
+	TokenBudget(double ratio, int maxTokens, int initialTokens) {
+		setLimits(ratio, maxTokens);
+		this.balance = new AtomicLong(initialTokens * TOKEN);
+	}
+
+	/**
+	 * sets the tokens deposited per call and the maximum balance.
+	 */
+	void setLimits(double ratio, int maxTokens) {
+		this.deposit = (long) (ratio * TOKEN);
+		this.max = maxTokens * TOKEN;
+	}
+
+	/**
+	 * adds the ratio of a token for one call.
+	 */
+	void deposit() {
+		long add = deposit;
+		long limit = max;
+		long current;
+		do {
+			current = balance.get();
+			if (current >= limit)
+				return;
+		} while (!balance.compareAndSet(current,
+				Math.min(limit, current + add)));
+	}
+
+	/**
+	 * takes one token, returns false if the budget is empty.
+	 */
+	boolean withdraw() {
+		long current;
+		do {
+			current = balance.get();
+			if (current < TOKEN)
+				return false;
+		} while (!balance.compareAndSet(current, current - TOKEN));
+		return true;
+	}
+}
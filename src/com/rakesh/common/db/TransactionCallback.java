@@ -0,0 +1,20 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+
+/**
+ * Unit of work run inside a transaction by {@link TransactionRunner}. It may
+ * be run more than once, so it must not have side effects outside the
+ * database which can't be repeated.
+ * 
+ * @author rakesh
+ */
+public interface TransactionCallback<T> {
+	/**
+	 * executes all the queries of the transaction and returns the result.
+	 * Commit, rollback and finish are done by the runner.
+	 * 
+	 * @throws SQLException
+	 */
+	public T doInTransaction(TransactionManager trans) throws SQLException;
+}
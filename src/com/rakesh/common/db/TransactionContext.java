@@ -0,0 +1,339 @@
+package com.rakesh.common.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Carrier of the state of a running transaction: the
+ * {@link TransactionManager}, its connection, read only flag and deadline.
+ * {@link TransactionManager#start(BaseDAO)} binds the context to the current
+ * thread and every BaseDAO call looks it up once. To continue the
+ * transaction on other threads, the context is passed explicitly and bound
+ * for the duration of a task, like a scoped value:
+ * 
+ * <pre>
+ * 	final TransactionContext ctx = trans.getContext();
+ * 	executor.submit(ctx.wrap(new Callable&lt;List&lt;Order&gt;&gt;() {
+ * 		public List&lt;Order&gt; call() throws Exception {
+ * 			return orderDao.findOrders(customerId);
+ * 		}
+ * 	}));
+ * </pre>
+ * 
+ * The binding is undone when the task ends, also when it was a nested
+ * binding. Calls of the tasks share the connection of the transaction, so
+ * they are serialized on it, and so are commit, rollback and finish. With a
+ * deadline set by {@link #setTimeout(long)} a call waits for the connection
+ * only till the deadline, and its statement gets the remaining time as query
+ * timeout; once the deadline passed calls fail with a SQLTimeoutException.
+ * Calls fail once the transaction finished. Writes in the transaction of a
+ * read only DAO are left to its read only connection to refuse.
+ * 
+ * @author rakesh
+ */
+public final class TransactionContext {
+
+	private static final ThreadLocal<TransactionContext> current = new ThreadLocal<TransactionContext>();
+
+	private final TransactionManager transaction;
+	private final boolean readOnly;
+	private final ReentrantLock lock = new ReentrantLock();
+	// System.nanoTime() of the deadline, 0 for none
+	private volatile long deadline;
+	private volatile boolean closed;
+	// index of the shard a sharded transaction is pinned to, -1 for none
+	private int shard = -1;
+
+	TransactionContext(TransactionManager transaction, boolean readOnly) {
+		this.transaction = transaction;
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * returns the context bound to the current thread, or null if it is not
+	 * in a transaction.
+	 */
+	public static TransactionContext current() {
+		return current.get();
+	}
+
+	/**
+	 * binds the context to the current thread, used when a transaction
+	 * starts.
+	 */
+	static void bind(TransactionContext ctx) {
+		current.set(ctx);
+	}
+
+	/**
+	 * removes the context of the current thread, used when a transaction
+	 * finishes.
+	 */
+	static void unbind() {
+		current.remove();
+	}
+
+	/**
+	 * returns the transaction of this context.
+	 */
+	public TransactionManager getTransaction() {
+		return transaction;
+	}
+
+	/**
+	 * returns the connection of the transaction.
+	 * 
+	 * @throws SQLException
+	 */
+	public Connection getConnection() throws SQLException {
+		return transaction.getConnection();
+	}
+
+	/**
+	 * returns true if the transaction was started by a read only DAO.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * sets the deadline of the transaction to the given time from now, 0 for
+	 * no deadline.
+	 */
+	public void setTimeout(long millis) {
+		deadline = millis <= 0 ? 0 : System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * returns milliseconds left till the deadline, or Long.MAX_VALUE if there
+	 * is no deadline.
+	 */
+	public long getRemainingMillis() {
+		long d = deadline;
+		if (d == 0)
+			return Long.MAX_VALUE;
+		return TimeUnit.NANOSECONDS.toMillis(d - System.nanoTime());
+	}
+
+	/**
+	 * pins the transaction to the given shard on the first call of a
+	 * {@link ShardedDAO}, and checks later calls are routed to the same one.
+	 * 
+	 * @throws SQLException
+	 *             if the transaction is pinned to another shard
+	 */
+	synchronized void pinShard(int shard) throws SQLException {
+		if (this.shard == -1)
+			this.shard = shard;
+		else if (this.shard != shard)
+			throw new SQLException("Shard key routes to shard " + shard
+					+ " but the transaction is pinned to shard " + this.shard);
+	}
+
+	/**
+	 * runs the task with this context bound to the current thread.
+	 */
+	public void run(Runnable task) {
+		TransactionContext previous = current.get();
+		current.set(this);
+		try {
+			task.run();
+		} finally {
+			restore(previous);
+		}
+	}
+
+	/**
+	 * calls the task with this context bound to the current thread.
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		TransactionContext previous = current.get();
+		current.set(this);
+		try {
+			return task.call();
+		} finally {
+			restore(previous);
+		}
+	}
+
+	/**
+	 * returns a task which runs the given one with this context bound, to
+	 * hand transactional work to another thread.
+	 */
+	public Runnable wrap(final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				TransactionContext.this.run(task);
+			}
+		};
+	}
+
+	/**
+	 * returns a task which calls the given one with this context bound, to
+	 * hand transactional work to another thread.
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task) {
+		return new Callable<T>() {
+			public T call() throws Exception {
+				return TransactionContext.this.call(task);
+			}
+		};
+	}
+
+	/**
+	 * starts a DAO call in the transaction: checks the deadline, takes the
+	 * connection for this thread and returns it. Must be followed by
+	 * {@link #exit()}.
+	 * 
+	 * @throws SQLException
+	 */
+	Connection enter() throws SQLException {
+		acquire();
+		try {
+			transaction.beforeRead();
+			return transaction.getConnection();
+		} catch (SQLException e) {
+			lock.unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			lock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * flushes the queued updates of a write-behind transaction before a
+	 * callable statement of this thread.
+	 * 
+	 * @throws SQLException
+	 */
+	void beforeCall() throws SQLException {
+		acquire();
+		try {
+			transaction.beforeCall();
+		} finally {
+			exit();
+		}
+	}
+
+	/**
+	 * takes the connection for this thread, waiting at most till the
+	 * deadline, without flushing queued updates. Must be followed by
+	 * {@link #exit()}.
+	 * 
+	 * @throws SQLException
+	 *             if the transaction finished or the deadline passed
+	 */
+	void acquire() throws SQLException {
+		checkOpen();
+		long d = deadline;
+		if (d == 0) {
+			lock.lock();
+		} else {
+			try {
+				if (!lock.tryLock(d - System.nanoTime(), TimeUnit.NANOSECONDS))
+					throw new SQLTimeoutException(
+							"Transaction deadline passed while waiting for its connection");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException(
+						"Interrupted while waiting for the connection of the transaction", e);
+			}
+		}
+		// the transaction may have finished while this call waited
+		try {
+			checkOpen();
+		} catch (SQLException e) {
+			lock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * ends a DAO call started by {@link #enter()} or {@link #acquire()}.
+	 */
+	void exit() {
+		lock.unlock();
+	}
+
+	/**
+	 * takes the connection to end the transaction, waiting for running calls
+	 * but not for the deadline, so a late transaction can still be rolled
+	 * back. Must be followed by {@link #exit()}.
+	 */
+	void lock() {
+		lock.lock();
+	}
+
+	/**
+	 * marks the transaction as finished, later calls fail. Called with the
+	 * lock held.
+	 */
+	void close() {
+		closed = true;
+	}
+
+	/**
+	 * returns true once the transaction finished.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * sets the time left till the deadline of the context bound to the
+	 * current thread, rounded up to seconds, as query timeout of the
+	 * statement unless it has a shorter one.
+	 * 
+	 * @throws SQLTimeoutException
+	 *             if the deadline passed
+	 */
+	static void applyDeadline(Statement st) throws SQLException {
+		TransactionContext ctx = current.get();
+		if (ctx != null)
+			ctx.applyTimeout(st);
+	}
+
+	/**
+	 * sets the time left till the deadline as query timeout of the statement
+	 * unless it has a shorter one.
+	 * 
+	 * @throws SQLTimeoutException
+	 *             if the deadline passed
+	 */
+	void applyTimeout(Statement st) throws SQLException {
+		long d = deadline;
+		if (d == 0)
+			return;
+		long remaining = d - System.nanoTime();
+		if (remaining <= 0)
+			throw new SQLTimeoutException("Transaction deadline passed");
+		long seconds = (remaining + TimeUnit.SECONDS.toNanos(1) - 1)
+				/ TimeUnit.SECONDS.toNanos(1);
+		int timeout = (int) Math.min(seconds, Integer.MAX_VALUE);
+		int set = st.getQueryTimeout();
+		if (set == 0 || set > timeout)
+			st.setQueryTimeout(timeout);
+	}
+
+	private void checkOpen() throws SQLException {
+		if (closed)
+			throw new SQLException("Transaction is finished");
+		long d = deadline;
+		if (d != 0 && System.nanoTime() - d > 0)
+			throw new SQLTimeoutException("Transaction deadline passed");
+	}
+
+	private static void restore(TransactionContext previous) {
+		if (previous == null)
+			current.remove();
+		else
+			current.set(previous);
+	}
+}
@@ -1,7 +1,13 @@
 package com.rakesh.common.db;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rakesh.common.util.ClassResources;
 
 /**
  * Simple implementation of Transaction management. Use this class when you want
@@ -23,6 +29,24 @@ import java.sql.SQLException;
  *  	}
  * </pre>
  * 
+ * Write-behind mode, enabled with {@link #enableWriteBehind(boolean)}, queues
+ * the update calls of the transaction instead of executing them, and they
+ * return {@link Statement#SUCCESS_NO_INFO}. The queue is flushed on commit,
+ * consecutive updates of the same sqlKey as one JDBC batch, so the order of
+ * the updates is kept. With readYourWrites the queue is also flushed before
+ * every other query of the transaction, otherwise queries don't see the
+ * queued updates. Callable statements always run after the queued updates. Flushed updates take the concurrency limit of their sqlKey
+ * and are seen by its interceptors, like the other calls. An update which
+ * fails on flush is reported by a {@link WriteBehindException}; the updates
+ * which did not run stay queued and the transaction is marked rollback-only,
+ * so a later flush or commit fails instead of committing part of the
+ * transaction. If the limiter rejects a flush nothing ran, so the updates stay
+ * queued and the commit can be retried. Rollback and finish discard the
+ * queue.
+ * <p>
+ * The transaction can be continued on other threads through its
+ * {@link TransactionContext}.
+ * <p>
  * NOTE: Current implementation doesn't allow to have nested transaction
  * managers.
  * 
@@ -30,14 +54,20 @@ import java.sql.SQLException;
  */
 public class TransactionManager {
 
-	private static final ThreadLocal<TransactionManager> threadData = new ThreadLocal<TransactionManager>();
-
 	private BaseDAO dao;
 	private Connection c;
+	private final TransactionContext context;
+	private boolean writeBehind;
+	private boolean readYourWrites;
+	private List<DeferredWrite> deferred;
+	private int writeCount;
+	private boolean rollbackOnly;
+	private volatile boolean finished;
 
 	private TransactionManager(BaseDAO dao) {
 		this.dao = dao;
-		threadData.set(this);
+		this.context = new TransactionContext(this, dao.isReadOnly());
+		TransactionContext.bind(context);
 	}
 
 	/**
@@ -45,7 +75,9 @@ public class TransactionManager {
 	 * 
 	 * @throws SQLException
 	 */
-	public Connection getConnection() throws SQLException {
+	public synchronized Connection getConnection() throws SQLException {
+		if (finished)
+			throw new SQLException("Transaction is finished");
 		if (c == null) {
 			this.c = dao.doGetConnection();
 			// set auto commit to false if its in a read/write transaction
@@ -55,6 +87,173 @@ public class TransactionManager {
 		return c;
 	}
 
+	/**
+	 * returns the context of the transaction, to pass it to other threads.
+	 */
+	public TransactionContext getContext() {
+		return context;
+	}
+
+	/**
+	 * enables write-behind mode for the rest of the transaction. With
+	 * readYourWrites queued updates are flushed before every other query.
+	 */
+	public void enableWriteBehind(boolean readYourWrites) {
+		this.writeBehind = true;
+		this.readYourWrites = readYourWrites;
+		if (deferred == null)
+			deferred = new ArrayList<DeferredWrite>();
+	}
+
+	/**
+	 * returns true if update calls are queued till commit.
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * queues an update call of a write-behind transaction.
+	 */
+	synchronized void defer(ClassResources resources, String sqlKey,
+			Object[] params) throws SQLException {
+		checkNotRollbackOnly();
+		deferred.add(new DeferredWrite(resources, sqlKey, params, writeCount++));
+	}
+
+	/**
+	 * flushes the queued updates if the transaction reads its own writes,
+	 * called before the other queries.
+	 * 
+	 * @throws SQLException
+	 */
+	synchronized void beforeRead() throws SQLException {
+		if (readYourWrites)
+			flush(false);
+	}
+
+	/**
+	 * flushes the queued updates of a write-behind transaction, called before
+	 * callable statements, which may read or change the same rows whether or
+	 * not the transaction reads its own writes.
+	 * 
+	 * @throws SQLException
+	 */
+	synchronized void beforeCall() throws SQLException {
+		if (writeBehind)
+			flush(false);
+	}
+
+	/**
+	 * executes the queued updates, consecutive updates of the same sqlKey as
+	 * one batch.
+	 * 
+	 * @throws SQLException
+	 */
+	public synchronized void flush() throws SQLException {
+		flush(true);
+	}
+
+	/**
+	 * executes the queued updates, taking the concurrency limit of each
+	 * sqlKey if limited. A flush before a read is not limited, the read holds
+	 * a permit already and a second one of the same class could never be
+	 * granted under a limit of 1.
+	 * 
+	 * @throws SQLException
+	 */
+	private void flush(boolean limited) throws SQLException {
+		checkNotRollbackOnly();
+		if (deferred == null || deferred.isEmpty())
+			return;
+		Connection c = getConnection();
+		int n = deferred.size();
+		// number of the queued updates which ran, they leave the queue
+		int done = 0;
+		try {
+			while (done < n) {
+				DeferredWrite first = deferred.get(done);
+				int j = done + 1;
+				while (j < n && deferred.get(j).isSameQuery(first))
+					j++;
+				ConcurrencyLimiter limiter = limited ? ConcurrencyLimiter
+						.forKey(first.resources, first.sqlKey)
+						: ConcurrencyLimiter.UNLIMITED;
+				long start;
+				try {
+					start = limiter.acquire();
+				} catch (SQLException e) {
+					throw first.failed(e);
+				}
+				try {
+					execute(c, done, j);
+				} finally {
+					limiter.release(start);
+				}
+				done = j;
+			}
+		} finally {
+			deferred.subList(0, done).clear();
+		}
+	}
+
+	/**
+	 * executes the queued updates from index i to j, which are of the same
+	 * sqlKey. Marks the transaction rollback-only if they fail.
+	 * 
+	 * @throws SQLException
+	 */
+	private void execute(Connection c, int i, int j) throws SQLException {
+		DeferredWrite first = deferred.get(i);
+		try {
+			if (j - i == 1) {
+				JdbcUtills.update(c, first.resources, first.sqlKey, first.params);
+			} else {
+				List<Object[]> params = new ArrayList<Object[]>(j - i);
+				for (int k = i; k < j; k++)
+					params.add(deferred.get(k).params);
+				JdbcUtills.batchUpdate(c, first.resources, first.sqlKey, params);
+			}
+		} catch (BatchUpdateException e) {
+			rollbackOnly = true;
+			throw deferred.get(i + failedIndex(e, j - i)).failed(e);
+		} catch (SQLException e) {
+			rollbackOnly = true;
+			throw first.failed(e);
+		} catch (RuntimeException e) {
+			rollbackOnly = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * returns true if a queued update failed, the transaction can only be
+	 * rolled back.
+	 */
+	public synchronized boolean isRollbackOnly() {
+		return rollbackOnly;
+	}
+
+	private void checkNotRollbackOnly() throws SQLException {
+		if (rollbackOnly)
+			throw new SQLException(
+					"Transaction is rollback-only, a deferred update failed");
+	}
+
+	/**
+	 * returns index of the failed statement of a batch. Drivers either stop at
+	 * the failed one or mark it as EXECUTE_FAILED.
+	 */
+	private static int failedIndex(BatchUpdateException e, int size) {
+		int[] counts = e.getUpdateCounts();
+		if (counts == null)
+			return 0;
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] == Statement.EXECUTE_FAILED)
+				return i;
+		return Math.min(counts.length, size - 1);
+	}
+
 	/**
 	 * creates a transaction manager, denotes start of transaction.
 	 */
@@ -68,16 +267,32 @@ public class TransactionManager {
 	 * commits all changes till this point in a transaction
 	 */
 	public void commit() throws SQLException {
-		if (this.c != null)
-			this.c.commit();
+		context.lock();
+		try {
+			flush();
+			if (this.c != null)
+				this.c.commit();
+		} finally {
+			context.exit();
+		}
 	}
 
 	/**
 	 * roll backs all the changes till this point in a transaction
 	 */
 	public void rollback() throws SQLException {
-		if (this.c != null)
-			this.c.rollback();
+		context.lock();
+		try {
+			synchronized (this) {
+				if (deferred != null)
+					deferred.clear();
+				rollbackOnly = false;
+			}
+			if (this.c != null)
+				this.c.rollback();
+		} finally {
+			context.exit();
+		}
 	}
 
 	/**
@@ -88,12 +303,34 @@ public class TransactionManager {
 		// check for transaction
 		assertInTransaction("No Active Transaction exists!");
 		// remove thread local info.
-		threadData.remove();
-		// remove local reference
-		final Connection c = this.c;
-		this.c = null;
+		TransactionContext.unbind();
+		final Connection c;
+		// waits for the running calls, later ones fail
+		context.lock();
+		try {
+			context.close();
+			finished = true;
+			synchronized (this) {
+				// drop updates which were never committed
+				deferred = null;
+				writeBehind = false;
+				// remove local reference
+				c = this.c;
+				this.c = null;
+			}
+		} finally {
+			context.exit();
+		}
 		// close connection properly
-		dao.closeConnection(c);
+		if (c != null)
+			dao.doCloseConnection(c);
+	}
+
+	/**
+	 * returns true once {@link #finish()} was called.
+	 */
+	public boolean isFinished() {
+		return finished;
 	}
 
 	/**
@@ -101,7 +338,8 @@ public class TransactionManager {
 	 * NULL.
 	 */
 	public static TransactionManager getCurrentTransaction() {
-		return threadData.get();
+		TransactionContext ctx = TransactionContext.current();
+		return ctx == null ? null : ctx.getTransaction();
 	}
 
 	/**
@@ -119,4 +357,31 @@ public class TransactionManager {
 	private static void assertInTransaction(final String msg) {
 		assert (getCurrentTransaction() != null) : msg;
 	}
+
+	/**
+	 * update call queued by a write-behind transaction.
+	 */
+	private static final class DeferredWrite {
+		final ClassResources resources;
+		final String sqlKey;
+		final Object[] params;
+		final int position;
+
+		DeferredWrite(ClassResources resources, String sqlKey, Object[] params,
+				int position) {
+			this.resources = resources;
+			this.sqlKey = sqlKey;
+			this.params = params;
+			this.position = position;
+		}
+
+		boolean isSameQuery(DeferredWrite other) {
+			return sqlKey.equals(other.sqlKey)
+					&& resources.getName().equals(other.resources.getName());
+		}
+
+		WriteBehindException failed(SQLException e) {
+			return new WriteBehindException(sqlKey, params, position, e);
+		}
+	}
 }
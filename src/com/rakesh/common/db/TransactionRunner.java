@@ -0,0 +1,243 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs units of work in a transaction and runs them again when the database
+ * rolls the transaction back because of a deadlock or a serialization
+ * failure. USAGE:
+ * 
+ * <pre>
+ * 	TransactionRunner runner = new TransactionRunner(dao);
+ * 	Integer id = runner.run(new TransactionCallback&lt;Integer&gt;() {
+ * 		public Integer doInTransaction(TransactionManager trans) throws SQLException {
+ * 			// execute all queries
+ * 		}
+ * 	});
+ * </pre>
+ * 
+ * Retries wait a random time up to an exponentially growing delay (full
+ * jitter), so that the transactions which collided don't collide again. A
+ * retry budget limits retries to a ratio of the transactions run, so that a
+ * database in trouble is not flooded with retries.
+ * <p>
+ * When called inside a running transaction the unit of work just joins it and
+ * is not retried, retries are done by the outermost runner.
+ * 
+ * @author rakesh
+ */
+public class TransactionRunner {
+
+	private final BaseDAO dao;
+	private int maxAttempts = 5;
+	private long baseDelayMillis = 10;
+	private long maxDelayMillis = 1000;
+
+	private final TokenBudget budget = new TokenBudget(0.1, 100, 10);
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong budgetRejected = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public TransactionRunner(BaseDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * sets number of times a unit of work is run at most, 5 by default.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * sets the delay before the first retry and the upper bound of the delay,
+	 * 10ms and 1s by default.
+	 */
+	public void setDelays(long baseDelayMillis, long maxDelayMillis) {
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * sets the ratio of retries to transactions allowed by the retry budget,
+	 * 0.1 by default. Each transaction adds ratio to the budget, up to
+	 * maxRetries, and each retry takes one.
+	 */
+	public void setRetryBudget(double ratio, int maxRetries) {
+		budget.setLimits(ratio, maxRetries);
+	}
+
+	/**
+	 * runs the unit of work in a transaction, and runs it again if the
+	 * transaction fails with a retryable error.
+	 * 
+	 * @throws SQLException
+	 *             the error of the last attempt if it is not retryable, or if
+	 *             attempts or the retry budget are exhausted
+	 */
+	public <T> T run(TransactionCallback<T> work) throws SQLException {
+		TransactionManager current = TransactionManager.getCurrentTransaction();
+		if (current != null)
+			return work.doInTransaction(current);
+
+		transactions.incrementAndGet();
+		budget.deposit();
+		for (int attempt = 1;; attempt++) {
+			TransactionManager trans = TransactionManager.start(dao);
+			Throwable error = null;
+			try {
+				T result = work.doInTransaction(trans);
+				trans.commit();
+				return result;
+			} catch (SQLException e) {
+				error = e;
+				rollback(trans, e);
+				if (!isRetryable(e)) {
+					failures.incrementAndGet();
+					throw e;
+				}
+				if (attempt >= maxAttempts) {
+					exhausted.incrementAndGet();
+					throw e;
+				}
+				if (!budget.withdraw()) {
+					budgetRejected.incrementAndGet();
+					throw e;
+				}
+				retries.incrementAndGet();
+			} catch (RuntimeException e) {
+				error = e;
+				rollback(trans, e);
+				failures.incrementAndGet();
+				throw e;
+			} finally {
+				finish(trans, error);
+			}
+			backoff(attempt);
+		}
+	}
+
+	/**
+	 * returns true if the transaction failed because the database rolled it
+	 * back and running it again can succeed: SQLState class 40 (transaction
+	 * rollback, serialization failure, deadlock) or a known vendor deadlock or
+	 * lock timeout code. Subclasses can recognize more errors.
+	 */
+	protected boolean isRetryable(SQLException e) {
+		// bounded walk, chains of next exceptions and causes may be long
+		int depth = 0;
+		for (Throwable t = e; t != null && depth < 16; t = next(t), depth++) {
+			if (!(t instanceof SQLException))
+				continue;
+			SQLException se = (SQLException) t;
+			if (se instanceof SQLTransactionRollbackException)
+				return true;
+			String state = se.getSQLState();
+			if (state != null && state.startsWith("40"))
+				return true;
+			switch (se.getErrorCode()) {
+			case 1213: // MySQL deadlock
+			case 1205: // MySQL lock wait timeout, SQL Server deadlock victim
+			case 60: // Oracle deadlock
+			case 8177: // Oracle can't serialize access
+			case -911: // DB2 deadlock or timeout
+			case -913: // DB2 deadlock or timeout, not rolled back
+				return true;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * returns number of transactions run, not counting retries.
+	 */
+	public long getTransactionCount() {
+		return transactions.get();
+	}
+
+	/**
+	 * returns number of retries done.
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * returns number of transactions which failed with a retryable error after
+	 * all attempts.
+	 */
+	public long getExhaustedCount() {
+		return exhausted.get();
+	}
+
+	/**
+	 * returns number of retries not done because the retry budget was empty.
+	 */
+	public long getBudgetRejectedCount() {
+		return budgetRejected.get();
+	}
+
+	/**
+	 * returns number of transactions which failed with an error that is not
+	 * retryable.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	private void backoff(int attempt) throws SQLException {
+		long ceiling = Math.min(maxDelayMillis,
+				baseDelayMillis << Math.min(attempt - 1, 30));
+		if (ceiling <= 0)
+			return;
+		try {
+			TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextLong(
+					ceiling * 1000 + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to retry transaction", e);
+		}
+	}
+
+	private static void rollback(TransactionManager trans, Throwable cause) {
+		try {
+			trans.rollback();
+		} catch (SQLException e) {
+			cause.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * finishes the transaction; an error of finish is added to the error of
+	 * the attempt, if any, instead of hiding it.
+	 */
+	private static void finish(TransactionManager trans, Throwable cause)
+			throws SQLException {
+		try {
+			trans.finish();
+		} catch (SQLException e) {
+			if (cause == null)
+				throw e;
+			cause.addSuppressed(e);
+		} catch (RuntimeException e) {
+			if (cause == null)
+				throw e;
+			cause.addSuppressed(e);
+		}
+	}
+
+	private static Throwable next(Throwable t) {
+		if (t instanceof SQLException
+				&& ((SQLException) t).getNextException() != null)
+			return ((SQLException) t).getNextException();
+		return t.getCause() == t ? null : t.getCause();
+	}
+}
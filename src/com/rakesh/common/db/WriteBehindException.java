@@ -0,0 +1,53 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Exception thrown when a write queued by a write-behind transaction fails
+ * while it is flushed. It identifies the update call the write came from by
+ * its sqlKey, parameters and position among the update calls of the
+ * transaction; the SQL state, error code and cause are the ones of the
+ * original error.
+ * 
+ * @author rakesh
+ */
+public class WriteBehindException extends SQLException {
+	private static final long serialVersionUID = -2319518829214561872L;
+
+	private final String sqlKey;
+	private final Object[] params;
+	private final int position;
+
+	public WriteBehindException(final String sqlKey, final Object[] params,
+			final int position, final SQLException cause) {
+		super("Deferred update " + position + " '" + sqlKey + "' "
+				+ Arrays.toString(params) + " failed: " + cause.getMessage(),
+				cause.getSQLState(), cause.getErrorCode(), cause);
+		this.sqlKey = sqlKey;
+		this.params = params;
+		this.position = position;
+	}
+
+	/**
+	 * returns sqlKey of the failed update.
+	 */
+	public String getSqlKey() {
+		return sqlKey;
+	}
+
+	/**
+	 * returns parameters of the failed update.
+	 */
+	public Object[] getParams() {
+		return params;
+	}
+
+	/**
+	 * returns position of the failed update among the update calls of the
+	 * transaction, starting from 0.
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,273 @@
+package com.rakesh.common.db.trace;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.datasource.BasicDataSourceFactory;
+import com.rakesh.common.util.PropertyLoader;
+
+/**
+ * Replays a trace written by {@link QueryTraceRecorder} against a database,
+ * normally a local embedded one loaded with a copy of the schema, and reports
+ * latency percentiles of the replay next to the recorded ones.
+ * <p>
+ * Calls are ordered by their recorded start time, and each recorded thread is
+ * replayed by a worker of its own on its own connection, so the recorded
+ * concurrency is kept. Each call starts at its recorded offset divided by the
+ * speed factor, speed 0 replays without waiting. USAGE:
+ * 
+ * <pre>
+ * java com.rakesh.common.db.trace.QueryReplayer &lt;trace file&gt; &lt;datasource properties&gt; [speed]
+ * </pre>
+ * 
+ * The datasource properties are the ones read by
+ * {@link BasicDataSourceFactory#createDataSource(Properties)}. Calls with a
+ * parameter which could not be recorded are skipped and counted in the
+ * report.
+ * 
+ * @author rakesh
+ */
+public class QueryReplayer {
+
+	private final DataSource ds;
+	private final double speed;
+
+	public QueryReplayer(DataSource ds, double speed) {
+		this.ds = ds;
+		this.speed = speed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("USAGE: QueryReplayer <trace file> <datasource properties> [speed]");
+			System.exit(1);
+		}
+		double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+		DataSource ds = BasicDataSourceFactory.createDataSource(PropertyLoader
+				.load(new File(args[1])));
+		QueryTraceReader reader = new QueryTraceReader(new File(args[0]));
+		List<TraceCall> calls;
+		try {
+			calls = reader.readAll();
+		} finally {
+			reader.close();
+		}
+		new QueryReplayer(ds, speed).replay(calls, System.out);
+	}
+
+	/**
+	 * replays the calls and prints the report to the given stream.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void replay(List<TraceCall> calls, PrintStream out)
+			throws InterruptedException {
+		// the trace is in completion order, replay in start order
+		List<TraceCall> all = calls;
+		calls = new ArrayList<TraceCall>(all.size());
+		for (TraceCall call : all)
+			if (call.isReplayable())
+				calls.add(call);
+		int skipped = all.size() - calls.size();
+		Collections.sort(calls, new Comparator<TraceCall>() {
+			public int compare(TraceCall c1, TraceCall c2) {
+				return c1.getStartNanos() < c2.getStartNanos() ? -1 : (c1
+						.getStartNanos() == c2.getStartNanos() ? 0 : 1);
+			}
+		});
+		// one worker per recorded thread
+		Map<Long, List<TraceCall>> work = new LinkedHashMap<Long, List<TraceCall>>();
+		for (TraceCall call : calls) {
+			List<TraceCall> l = work.get(call.getThreadId());
+			if (l == null) {
+				l = new ArrayList<TraceCall>();
+				work.put(call.getThreadId(), l);
+			}
+			l.add(call);
+		}
+
+		final long start = System.nanoTime();
+		Worker[] workers = new Worker[work.size()];
+		int i = 0;
+		for (List<TraceCall> l : work.values()) {
+			workers[i] = new Worker(i, l, start);
+			workers[i++].start();
+		}
+		for (Worker worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - start;
+
+		report(calls, skipped, workers, elapsed, out);
+	}
+
+	private void report(List<TraceCall> calls, int skipped, Worker[] workers,
+			long elapsed, PrintStream out) {
+		long errors = 0;
+		Map<String, List<long[]>> byKey = new LinkedHashMap<String, List<long[]>>();
+		long[] replayed = new long[calls.size()];
+		long[] recorded = new long[calls.size()];
+		int n = 0;
+		for (Worker worker : workers) {
+			errors += worker.errors.get();
+			for (int i = 0; i < worker.calls.size(); i++) {
+				TraceCall call = worker.calls.get(i);
+				replayed[n] = worker.latencies[i];
+				recorded[n++] = call.getDurationNanos();
+				List<long[]> latencies = byKey.get(call.getSqlKey());
+				if (latencies == null) {
+					latencies = new ArrayList<long[]>();
+					byKey.put(call.getSqlKey(), latencies);
+				}
+				latencies.add(new long[] { worker.latencies[i],
+						call.getDurationNanos() });
+			}
+		}
+		out.println("CALLS:\t" + calls.size() + "\tERRORS:\t" + errors
+				+ "\tSKIPPED:\t" + skipped + "\tTHREADS:\t" + workers.length
+				+ "\tSPEED:\t" + speed);
+		out.println("ELAPSED:\t" + TimeUnit.NANOSECONDS.toMillis(elapsed)
+				+ "ms\tTHROUGHPUT:\t"
+				+ (elapsed == 0 ? 0 : calls.size() * 1000000000L / elapsed)
+				+ " calls/s");
+		out.println("LATENCY (ms)\tp50\tp90\tp99\tp99.9\tmax");
+		out.println("replayed\t" + percentiles(replayed));
+		out.println("recorded\t" + percentiles(recorded));
+		out.println("SQLKEY\tcalls\treplayed p50\tp99\trecorded p50\tp99");
+		for (Map.Entry<String, List<long[]>> e : byKey.entrySet()) {
+			List<long[]> latencies = e.getValue();
+			long[] r = new long[latencies.size()];
+			long[] o = new long[latencies.size()];
+			for (int i = 0; i < r.length; i++) {
+				r[i] = latencies.get(i)[0];
+				o[i] = latencies.get(i)[1];
+			}
+			Arrays.sort(r);
+			Arrays.sort(o);
+			out.println(e.getKey() + "\t" + r.length + "\t"
+					+ millis(percentile(r, 50)) + "\t"
+					+ millis(percentile(r, 99)) + "\t"
+					+ millis(percentile(o, 50)) + "\t"
+					+ millis(percentile(o, 99)));
+		}
+	}
+
+	private static String percentiles(long[] latencies) {
+		Arrays.sort(latencies);
+		return millis(percentile(latencies, 50)) + "\t"
+				+ millis(percentile(latencies, 90)) + "\t"
+				+ millis(percentile(latencies, 99)) + "\t"
+				+ millis(percentile(latencies, 99.9)) + "\t"
+				+ millis(percentile(latencies, 100));
+	}
+
+	/**
+	 * returns the given percentile of sorted values, nearest rank method.
+	 */
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1000000.0);
+	}
+
+	/**
+	 * replays the calls of one recorded thread on its own connection.
+	 */
+	private class Worker extends Thread {
+		final List<TraceCall> calls;
+		final long[] latencies;
+		final long start;
+		final AtomicLong errors = new AtomicLong();
+
+		Worker(int index, List<TraceCall> calls, long start) {
+			super("replay-" + index);
+			this.calls = calls;
+			this.latencies = new long[calls.size()];
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			Connection c = null;
+			try {
+				c = ds.getConnection();
+				for (int i = 0; i < calls.size(); i++) {
+					TraceCall call = calls.get(i);
+					if (speed > 0) {
+						long wait = start
+								+ (long) (call.getStartNanos() / speed)
+								- System.nanoTime();
+						if (wait > 0)
+							TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					long t = System.nanoTime();
+					try {
+						execute(c, call);
+					} catch (SQLException e) {
+						errors.incrementAndGet();
+					}
+					latencies[i] = System.nanoTime() - t;
+				}
+			} catch (SQLException e) {
+				errors.addAndGet(calls.size());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (c != null) {
+					try {
+						c.close();
+					} catch (SQLException e) {
+						// ignore, replay is over
+					}
+				}
+			}
+		}
+
+		private void execute(Connection c, TraceCall call) throws SQLException {
+			String sql = call.getSql();
+			PreparedStatement pst = sql.trim().startsWith("{") ? c
+					.prepareCall(sql) : c.prepareStatement(sql);
+			try {
+				Object[] params = call.getParams();
+				for (int i = 0; i < params.length; i++)
+					pst.setObject(i + 1, params[i]);
+				boolean results = pst.execute();
+				while (results || pst.getUpdateCount() != -1) {
+					if (results) {
+						ResultSet rs = pst.getResultSet();
+						try {
+							while (rs.next()) {
+								// read all the rows like the DAO did
+							}
+						} finally {
+							rs.close();
+						}
+					}
+					results = pst.getMoreResults();
+				}
+			} finally {
+				pst.close();
+			}
+		}
+	}
+}
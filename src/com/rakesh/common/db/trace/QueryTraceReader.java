@@ -0,0 +1,118 @@
+package com.rakesh.common.db.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the calls of a trace file written by {@link QueryTraceRecorder}.
+ * 
+ * @author rakesh
+ */
+public class QueryTraceReader implements Closeable {
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer b;
+	private final long startEpochMillis;
+	private final Map<Integer, String[]> sqls = new HashMap<Integer, String[]>();
+	private final Map<Long, String> threads = new HashMap<Long, String>();
+
+	/**
+	 * opens the trace file and reads its header.
+	 * 
+	 * @throws IOException
+	 *             if the file is not a trace file
+	 */
+	public QueryTraceReader(File traceFile) throws IOException {
+		this.file = new RandomAccessFile(traceFile, "r");
+		this.b = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+				file.length());
+		byte[] magic = new byte[TraceFormat.MAGIC.length];
+		if (b.remaining() < TraceFormat.HEADER_SIZE) {
+			close();
+			throw new IOException("'" + traceFile + "' is not a query trace");
+		}
+		b.get(magic);
+		int version = b.getInt();
+		if (!Arrays.equals(magic, TraceFormat.MAGIC)
+				|| version < 1 || version > TraceFormat.VERSION) {
+			close();
+			throw new IOException("'" + traceFile
+					+ "' is not a query trace of version 1 to "
+					+ TraceFormat.VERSION);
+		}
+		this.startEpochMillis = b.getLong();
+	}
+
+	/**
+	 * returns wall clock time at which recording started.
+	 */
+	public long getStartEpochMillis() {
+		return startEpochMillis;
+	}
+
+	/**
+	 * returns next call of the trace, or null at the end of the trace.
+	 */
+	public TraceCall next() {
+		while (b.hasRemaining()) {
+			byte type = b.get();
+			switch (type) {
+			case TraceFormat.END:
+				return null;
+			case TraceFormat.SQL:
+				int id = b.getInt();
+				String sqlKey = TraceFormat.getString(b);
+				sqls.put(id, new String[] { sqlKey, TraceFormat.getString(b) });
+				break;
+			case TraceFormat.THREAD:
+				long threadId = b.getLong();
+				threads.put(threadId, TraceFormat.getString(b));
+				break;
+			case TraceFormat.CALL:
+				return readCall();
+			default:
+				throw new IllegalStateException("Corrupt trace, record type "
+						+ type + " at position " + (b.position() - 1));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * reads all remaining calls of the trace.
+	 */
+	public List<TraceCall> readAll() {
+		List<TraceCall> calls = new ArrayList<TraceCall>();
+		TraceCall call;
+		while ((call = next()) != null)
+			calls.add(call);
+		return calls;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private TraceCall readCall() {
+		String[] sql = sqls.get(b.getInt());
+		long threadId = b.getLong();
+		long startNanos = b.getLong();
+		long durationNanos = b.getLong();
+		int rows = b.getInt();
+		boolean failed = b.get() != 0;
+		Object[] params = new Object[b.getShort()];
+		for (int i = 0; i < params.length; i++)
+			params[i] = TraceFormat.getParam(b);
+		return new TraceCall(sql[0], sql[1], params, threadId,
+				threads.get(threadId), startNanos, durationNanos, rows, failed);
+	}
+}
@@ -0,0 +1,266 @@
+package com.rakesh.common.db.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rakesh.common.db.QueryContext;
+import com.rakesh.common.db.QueryInterceptorAdapter;
+import com.rakesh.common.db.QueryInterceptors;
+
+/**
+ * Records every query executed through the DAO API into a compact binary trace
+ * file, which can be replayed later by {@link QueryReplayer}. For each call the
+ * sqlKey, parameters, thread, start time, duration, number of rows and failure
+ * flag are written; SQL, with its sqlKey, and thread names are written once and
+ * referenced by id.
+ * USAGE:
+ * 
+ * <pre>
+ * 	QueryTraceRecorder recorder = QueryTraceRecorder.start(new File(&quot;dao.trace&quot;));
+ * 	...
+ * 	recorder.close();
+ * </pre>
+ * 
+ * Records are encoded into a per thread buffer and appended to a memory mapped
+ * segment of the file, so writing a record is a copy under a short lock.
+ * Records are appended in completion order, the replayer orders them by start
+ * time.
+ * 
+ * @author rakesh
+ */
+public class QueryTraceRecorder extends QueryInterceptorAdapter implements
+		Closeable {
+
+	private static final Log logger = LogFactory.getLog(QueryTraceRecorder.class);
+
+	private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int segmentSize;
+	private final long startNanos = System.nanoTime();
+	private final ConcurrentHashMap<String, Integer> sqlIds = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger nextSqlId = new AtomicInteger();
+	private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>();
+
+	private MappedByteBuffer segment;
+	private long segmentStart;
+	private boolean closed;
+
+	/**
+	 * creates a recorder writing to the given file, existing content of the
+	 * file is replaced. The recorder must be registered in
+	 * {@link QueryInterceptors} to receive queries, {@link #start(File)} does
+	 * both.
+	 * 
+	 * @throws IOException
+	 */
+	public QueryTraceRecorder(File traceFile, int segmentSize)
+			throws IOException {
+		this.segmentSize = segmentSize;
+		this.file = new RandomAccessFile(traceFile, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+		map(0, segmentSize);
+		segment.put(TraceFormat.MAGIC);
+		segment.putInt(TraceFormat.VERSION);
+		segment.putLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * creates a recorder for the given file and registers it for all sqlKeys.
+	 * 
+	 * @throws IOException
+	 */
+	public static QueryTraceRecorder start(File traceFile) throws IOException {
+		QueryTraceRecorder recorder = new QueryTraceRecorder(traceFile,
+				DEFAULT_SEGMENT_SIZE);
+		QueryInterceptors.register(recorder);
+		return recorder;
+	}
+
+	@Override
+	public void afterCompletion(QueryContext ctx, Object result,
+			SQLException error) {
+		ThreadState state = threadState.get();
+		if (state == null) {
+			state = new ThreadState(Thread.currentThread());
+			threadState.set(state);
+		}
+		Object[] params = ctx.getParams();
+		int paramCount = params == null ? 0 : params.length;
+		int size = 1 + 4 + 8 + 8 + 8 + 4 + 1 + 2;
+		for (int i = 0; i < paramCount; i++)
+			size += TraceFormat.paramSize(params[i]);
+		Integer sqlId = sqlIds.get(sqlIdKey(ctx.getSqlKey(), ctx.getSql()));
+		if (sqlId == null)
+			size += TraceFormat.stringSize(ctx.getSqlKey())
+					+ TraceFormat.stringSize(ctx.getSql()) + 5;
+		if (!state.defined)
+			size += TraceFormat.stringSize(state.name) + 9;
+
+		try {
+			if (sqlId != null) {
+				append(encode(state.buffer(size), state, sqlId, ctx, error));
+			} else {
+				// definition and first call are appended under the same lock
+				// which publishes the id, so that other threads can't write a
+				// call referring to it before the definition
+				synchronized (this) {
+					ByteBuffer b = state.buffer(size);
+					sqlId = defineSql(b, ctx.getSqlKey(), ctx.getSql());
+					append(encode(b, state, sqlId, ctx, error));
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Could not write query trace, recording stopped", e);
+			QueryInterceptors.unregister(this);
+		}
+	}
+
+	/**
+	 * stops recording, flushes the trace to disk and truncates the file to the
+	 * recorded size. The file is truncated only if the mapping of the last
+	 * segment could be released, otherwise the unused rest of the segment is
+	 * left as zeros, which readers take as the end of the trace.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		QueryInterceptors.unregister(this);
+		closed = true;
+		long length = segmentStart + segment.position();
+		boolean unmapped = unmap(segment);
+		segment = null;
+		if (unmapped)
+			channel.truncate(length);
+		file.close();
+	}
+
+	/**
+	 * returns the key of the id of a SQL definition, the same SQL run under
+	 * two sqlKeys is defined twice.
+	 */
+	private static String sqlIdKey(String sqlKey, String sql) {
+		return sqlKey + '\0' + (sql == null ? "" : sql);
+	}
+
+	/**
+	 * writes the SQL definition record to the buffer if the SQL is not defined
+	 * yet for the sqlKey, and returns its id. Called holding the append lock.
+	 */
+	private Integer defineSql(ByteBuffer b, String sqlKey, String sql) {
+		String key = sqlIdKey(sqlKey, sql);
+		Integer id = sqlIds.get(key);
+		if (id != null)
+			return id;
+		id = nextSqlId.getAndIncrement();
+		b.put(TraceFormat.SQL).putInt(id);
+		TraceFormat.putString(b, sqlKey);
+		TraceFormat.putString(b, sql);
+		sqlIds.put(key, id);
+		return id;
+	}
+
+	/**
+	 * writes the call record, preceded by the thread definition on the first
+	 * call of the thread, and returns the buffer ready to be appended.
+	 */
+	private ByteBuffer encode(ByteBuffer b, ThreadState state, int sqlId,
+			QueryContext ctx, SQLException error) {
+		if (!state.defined) {
+			b.put(TraceFormat.THREAD).putLong(state.id);
+			TraceFormat.putString(b, state.name);
+			state.defined = true;
+		}
+		Object[] params = ctx.getParams();
+		int paramCount = params == null ? 0 : params.length;
+		b.put(TraceFormat.CALL).putInt(sqlId).putLong(state.id);
+		b.putLong(ctx.getStartNanos() - startNanos).putLong(ctx.getTotalNanos());
+		b.putInt(ctx.getRows()).put((byte) (error == null ? 0 : 1));
+		b.putShort((short) paramCount);
+		for (int i = 0; i < paramCount; i++)
+			TraceFormat.putParam(b, params[i]);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * copies the encoded records to the mapped segment, mapping the next
+	 * segment when the current one is full.
+	 */
+	private synchronized void append(ByteBuffer b) throws IOException {
+		if (closed)
+			return;
+		if (segment.remaining() < b.remaining())
+			map(segmentStart + segment.position(), Math.max(segmentSize,
+					b.remaining() + 1));
+		segment.put(b);
+	}
+
+	private void map(long position, int size) throws IOException {
+		if (segment != null)
+			unmap(segment);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+		segmentStart = position;
+	}
+
+	/**
+	 * writes the segment to disk and releases its mapping, which must not be
+	 * used afterwards. Returns false if the mapping could not be released and
+	 * is left to the garbage collector.
+	 */
+	private static boolean unmap(MappedByteBuffer b) {
+		b.force();
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), b);
+			return true;
+		} catch (Exception e) {
+			logger.debug("Could not release trace segment mapping", e);
+			return false;
+		}
+	}
+
+	/**
+	 * per thread encoding buffer and identity.
+	 */
+	private static final class ThreadState {
+		final long id;
+		final String name;
+		boolean defined;
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+		ThreadState(Thread t) {
+			this.id = t.getId();
+			this.name = t.getName();
+		}
+
+		ByteBuffer buffer(int size) {
+			if (buffer.capacity() < size)
+				buffer = ByteBuffer.allocate(Math.max(size,
+						buffer.capacity() * 2));
+			buffer.clear();
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.rakesh.common.db.trace;
+
+/**
+ * One recorded DAO call read from a trace file.
+ * 
+ * @author rakesh
+ */
+public class TraceCall {
+
+	private final String sqlKey;
+	private final String sql;
+	private final Object[] params;
+	private final long threadId;
+	private final String threadName;
+	private final long startNanos;
+	private final long durationNanos;
+	private final int rows;
+	private final boolean failed;
+
+	TraceCall(String sqlKey, String sql, Object[] params, long threadId,
+			String threadName, long startNanos, long durationNanos, int rows,
+			boolean failed) {
+		this.sqlKey = sqlKey;
+		this.sql = sql;
+		this.params = params;
+		this.threadId = threadId;
+		this.threadName = threadName;
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+		this.rows = rows;
+		this.failed = failed;
+	}
+
+	public String getSqlKey() {
+		return sqlKey;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * returns the recorded parameters. A parameter of a type which can't be
+	 * replayed, like a stream or byte[], is a placeholder with its type name.
+	 */
+	public Object[] getParams() {
+		return params;
+	}
+
+	/**
+	 * returns false if a parameter of the call could not be recorded.
+	 */
+	public boolean isReplayable() {
+		for (Object p : params)
+			if (p instanceof TraceFormat.Unreplayable)
+				return false;
+		return true;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * returns start time in nanoseconds since the start of recording.
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * returns number of rows read or updated, -1 if not known.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+}
@@ -0,0 +1,197 @@
+package com.rakesh.common.db.trace;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * Binary layout of the query trace files written by
+ * {@link QueryTraceRecorder} and read by {@link QueryTraceReader}.
+ * 
+ * <pre>
+ * header  : magic(8) version(int) startEpochMillis(long)
+ * records : type(byte) ...
+ *   SQL    : id(int) sqlKey(string) sql(string)
+ *   THREAD : id(long) name(string)
+ *   CALL   : sqlId(int) threadId(long) startNanos(long) durationNanos(long)
+ *            rows(int) failed(byte) paramCount(short) params...
+ * string  : length(int) UTF-8 bytes, length -1 for null
+ * param   : tag(byte) value
+ * </pre>
+ * 
+ * Parameters of types the format doesn't know, like byte[], streams and LOB
+ * or OUT parameters, are written as unreplayable with their type name only,
+ * version 1 traces wrote their string value instead.
+ * 
+ * A zero record type marks the end of the trace, it is also what the unused
+ * tail of a mapped segment contains.
+ * 
+ * @author rakesh
+ */
+final class TraceFormat {
+
+	static final byte[] MAGIC = { 'D', 'A', 'O', 'T', 'R', 'A', 'C', 'E' };
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+
+	static final byte END = 0;
+	static final byte SQL = 1;
+	static final byte THREAD = 2;
+	static final byte CALL = 3;
+
+	static final byte P_NULL = 0;
+	static final byte P_STRING = 1;
+	static final byte P_INT = 2;
+	static final byte P_LONG = 3;
+	static final byte P_FLOAT = 4;
+	static final byte P_DOUBLE = 5;
+	static final byte P_BOOLEAN = 6;
+	static final byte P_DATE = 7;
+	static final byte P_TIME = 8;
+	static final byte P_TIMESTAMP = 9;
+	static final byte P_DECIMAL = 10;
+	static final byte P_UNREPLAYABLE = 11;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private TraceFormat() {
+	}
+
+	/**
+	 * returns upper bound of the encoded size of a string.
+	 */
+	static int stringSize(String s) {
+		return 4 + (s == null ? 0 : s.length() * 3);
+	}
+
+	static void putString(ByteBuffer b, String s) {
+		if (s == null) {
+			b.putInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		b.putInt(bytes.length);
+		b.put(bytes);
+	}
+
+	static String getString(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * returns upper bound of the encoded size of a parameter.
+	 */
+	static int paramSize(Object p) {
+		if (p == null)
+			return 1;
+		if (p instanceof String)
+			return 1 + stringSize((String) p);
+		if (p instanceof Integer || p instanceof Float)
+			return 1 + 4;
+		if (p instanceof Long || p instanceof Double || p instanceof Date
+				|| p instanceof Time)
+			return 1 + 8;
+		if (p instanceof Boolean)
+			return 1 + 1;
+		if (p instanceof Timestamp)
+			return 1 + 12;
+		if (p instanceof BigDecimal)
+			return 1 + stringSize(p.toString());
+		return 1 + stringSize(p.getClass().getName());
+	}
+
+	/**
+	 * writes a parameter. Types not known to the format are written as
+	 * unreplayable, with their type name.
+	 */
+	static void putParam(ByteBuffer b, Object p) {
+		if (p == null) {
+			b.put(P_NULL);
+		} else if (p instanceof String) {
+			b.put(P_STRING);
+			putString(b, (String) p);
+		} else if (p instanceof Integer) {
+			b.put(P_INT).putInt((Integer) p);
+		} else if (p instanceof Long) {
+			b.put(P_LONG).putLong((Long) p);
+		} else if (p instanceof Float) {
+			b.put(P_FLOAT).putFloat((Float) p);
+		} else if (p instanceof Double) {
+			b.put(P_DOUBLE).putDouble((Double) p);
+		} else if (p instanceof Boolean) {
+			b.put(P_BOOLEAN).put((byte) (((Boolean) p) ? 1 : 0));
+		} else if (p instanceof Date) {
+			b.put(P_DATE).putLong(((Date) p).getTime());
+		} else if (p instanceof Time) {
+			b.put(P_TIME).putLong(((Time) p).getTime());
+		} else if (p instanceof Timestamp) {
+			b.put(P_TIMESTAMP).putLong(((Timestamp) p).getTime()).putInt(
+					((Timestamp) p).getNanos());
+		} else if (p instanceof BigDecimal) {
+			b.put(P_DECIMAL);
+			putString(b, p.toString());
+		} else {
+			b.put(P_UNREPLAYABLE);
+			putString(b, p.getClass().getName());
+		}
+	}
+
+	static Object getParam(ByteBuffer b) {
+		byte tag = b.get();
+		switch (tag) {
+		case P_NULL:
+			return null;
+		case P_STRING:
+			return getString(b);
+		case P_INT:
+			return b.getInt();
+		case P_LONG:
+			return b.getLong();
+		case P_FLOAT:
+			return b.getFloat();
+		case P_DOUBLE:
+			return b.getDouble();
+		case P_BOOLEAN:
+			return b.get() != 0;
+		case P_DATE:
+			return new Date(b.getLong());
+		case P_TIME:
+			return new Time(b.getLong());
+		case P_TIMESTAMP:
+			Timestamp t = new Timestamp(b.getLong());
+			t.setNanos(b.getInt());
+			return t;
+		case P_DECIMAL:
+			return new BigDecimal(getString(b));
+		case P_UNREPLAYABLE:
+			return new Unreplayable(getString(b));
+		default:
+			throw new IllegalStateException("Unknown parameter type " + tag
+					+ " at position " + (b.position() - 1));
+		}
+	}
+
+	/**
+	 * recorded parameter of a type which can't be replayed.
+	 */
+	static final class Unreplayable {
+		final String type;
+
+		Unreplayable(String type) {
+			this.type = type;
+		}
+
+		@Override
+		public String toString() {
+			return "<" + type + ">";
+		}
+	}
+}
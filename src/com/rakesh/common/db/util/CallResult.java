@@ -0,0 +1,96 @@
+package com.rakesh.common.db.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a stored procedure call: values of the OUT and INOUT
+ * parameters, the number of rows and the mapped rows of each result set and
+ * the update counts, in the order the procedure returned them. Rows are kept
+ * only when the result sets were mapped by RowMappers, not when they were
+ * streamed to RowHandlers.
+ * 
+ * @author rakesh
+ */
+public class CallResult {
+
+	private final Object[] outValues;
+	private final List<? extends List<?>> resultSets;
+	private final int[] rowCounts;
+	private final int[] updateCounts;
+
+	public CallResult(Object[] outValues, List<List<?>> resultSets,
+			int[] updateCounts) {
+		this(outValues, resultSets, sizes(resultSets), updateCounts);
+	}
+
+	/**
+	 * constructor of a result whose result sets are counted, resultSets is
+	 * null if their rows were not kept.
+	 */
+	public CallResult(Object[] outValues, List<? extends List<?>> resultSets,
+			int[] rowCounts, int[] updateCounts) {
+		this.outValues = outValues;
+		this.resultSets = resultSets;
+		this.rowCounts = rowCounts;
+		this.updateCounts = updateCounts;
+	}
+
+	private static int[] sizes(List<List<?>> resultSets) {
+		int[] sizes = new int[resultSets.size()];
+		for (int i = 0; i < sizes.length; i++)
+			sizes[i] = resultSets.get(i).size();
+		return sizes;
+	}
+
+	/**
+	 * returns value of the OUT or INOUT parameter at the given position,
+	 * starting from 1 like the parameters of the call.
+	 */
+	public Object getOut(int index) {
+		return outValues[index - 1];
+	}
+
+	/**
+	 * returns number of result sets returned.
+	 */
+	public int getResultSetCount() {
+		return rowCounts.length;
+	}
+
+	/**
+	 * returns number of rows read from the result set at the given position,
+	 * starting from 0, or -1 if it was skipped because it had no RowMapper or
+	 * RowHandler.
+	 */
+	public int getRowCount(int index) {
+		return rowCounts[index];
+	}
+
+	/**
+	 * returns rows of the result set at the given position, starting from 0,
+	 * mapped by the RowMapper at the same position. The list is empty for a
+	 * result set without RowMapper.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the rows were streamed to RowHandlers
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> getResultSet(int index) {
+		if (resultSets == null)
+			throw new IllegalStateException("Rows of the call were streamed, not kept");
+		if (index >= rowCounts.length)
+			throw new IndexOutOfBoundsException("Result set " + index + " of "
+					+ rowCounts.length);
+		if (index >= resultSets.size())
+			return Collections.emptyList();
+		return (List<T>) resultSets.get(index);
+	}
+
+	/**
+	 * returns the update counts returned, in order.
+	 */
+	public int[] getUpdateCounts() {
+		return updateCounts;
+	}
+}
@@ -38,6 +38,21 @@ public class GenericMappers {
 		}
 	};
 
+	/**
+	 * Interface of the objects which process the rows of a result set one by
+	 * one, as they are read, without keeping them.
+	 * 
+	 * @author rakesh
+	 */
+	public interface RowHandler {
+		/**
+		 * called for each row of the result set.
+		 * 
+		 * @throws SQLException
+		 */
+		public void processRow(ResultSet rs) throws SQLException;
+	}
+
 	/**
 	 * Base Interface for all row mapper objects.
 	 * 
@@ -0,0 +1,179 @@
+package com.rakesh.common.db.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.rakesh.common.util.RuntimeIOException;
+
+/**
+ * LOB parameter of a known length, streamed to the driver instead of being
+ * built as a String or byte[] first. USAGE:
+ * 
+ * <pre>
+ * 	update(resources, &quot;insertDocument&quot;, id, LobParameter.file(path));
+ * </pre>
+ * 
+ * A file or buffer parameter opens a new stream each time it is bound, a
+ * file is closed once the statement was executed, so the same parameter can
+ * be bound again, for example by a retry or by every row of a batch. Streams
+ * and readers passed by the caller are read once and left to the caller to
+ * close; binding such a parameter a second time fails. Plain InputStream,
+ * Reader and ByteBuffer parameters are accepted as well, with unknown or
+ * remaining length.
+ * 
+ * @author rakesh
+ */
+public class LobParameter {
+
+	private final InputStream binary;
+	private final Reader character;
+	private final Path file;
+	private final ByteBuffer buffer;
+	private final long length;
+	// set once the stream or reader of the caller was bound
+	private final AtomicBoolean bound = new AtomicBoolean();
+
+	private LobParameter(InputStream binary, Reader character, Path file,
+			ByteBuffer buffer, long length) {
+		this.binary = binary;
+		this.character = character;
+		this.file = file;
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	/**
+	 * returns a binary parameter which reads length bytes from the stream.
+	 * It can be bound once.
+	 */
+	public static LobParameter binary(InputStream in, long length) {
+		return new LobParameter(in, null, null, null, length);
+	}
+
+	/**
+	 * returns a character parameter which reads length characters from the
+	 * reader. It can be bound once.
+	 */
+	public static LobParameter character(Reader in, long length) {
+		return new LobParameter(null, in, null, null, length);
+	}
+
+	/**
+	 * returns a binary parameter with the content of the file.
+	 */
+	public static LobParameter file(Path path) {
+		try {
+			return new LobParameter(null, null, path, null, Files.size(path));
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not read size of " + path, e);
+		}
+	}
+
+	/**
+	 * returns a binary parameter with the remaining bytes of the buffer. The
+	 * position of the buffer is not changed, the bytes are not copied.
+	 */
+	public static LobParameter buffer(ByteBuffer buffer) {
+		return new LobParameter(null, null, null, buffer.duplicate(),
+				buffer.remaining());
+	}
+
+	/**
+	 * returns true for a character parameter.
+	 */
+	public boolean isCharacter() {
+		return character != null;
+	}
+
+	/**
+	 * returns length of the parameter in bytes, or in characters for a
+	 * character parameter.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * returns true for a parameter with the content of a file.
+	 */
+	public boolean isFile() {
+		return file != null;
+	}
+
+	/**
+	 * opens a new stream of a binary parameter. For a file the caller must
+	 * close the returned stream.
+	 * 
+	 * @throws SQLException
+	 *             if the file can't be opened, or the stream of the caller
+	 *             was bound already
+	 */
+	public InputStream openBinaryStream() throws SQLException {
+		if (file != null) {
+			try {
+				return Files.newInputStream(file);
+			} catch (IOException e) {
+				throw new SQLException("Could not open " + file, e);
+			}
+		}
+		if (buffer != null)
+			return toStream(buffer);
+		checkNotBound();
+		return binary;
+	}
+
+	/**
+	 * returns the reader of a character parameter.
+	 * 
+	 * @throws SQLException
+	 *             if the reader was bound already
+	 */
+	public Reader openCharacterStream() throws SQLException {
+		checkNotBound();
+		return character;
+	}
+
+	private void checkNotBound() throws SQLException {
+		if (!bound.compareAndSet(false, true))
+			throw new SQLException("LOB stream of the caller was bound already, "
+					+ "use a file or buffer parameter to bind it again");
+	}
+
+	/**
+	 * returns a stream over the remaining bytes of the buffer, without
+	 * copying them if the buffer has an array.
+	 */
+	public static InputStream toStream(ByteBuffer buffer) {
+		if (buffer.hasArray())
+			return new ByteArrayInputStream(buffer.array(),
+					buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		final ByteBuffer b = buffer.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return b.hasRemaining() ? b.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] dst, int off, int len) {
+				if (!b.hasRemaining())
+					return -1;
+				int n = Math.min(len, b.remaining());
+				b.get(dst, off, n);
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return b.remaining();
+			}
+		};
+	}
+}
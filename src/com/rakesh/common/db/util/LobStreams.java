@@ -0,0 +1,178 @@
+package com.rakesh.common.db.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+
+/**
+ * Helpers to stream LOB columns out of a ResultSet through a fixed size
+ * buffer, so a multi-MB document is never held in memory as a whole. They
+ * are meant to be called from a RowMapper, or used as one:
+ * 
+ * <pre>
+ * 	Long size = queryForObject(LobStreams.binaryToFile(1, path), resources,
+ * 			&quot;getDocument&quot;, id);
+ * </pre>
+ * 
+ * The row mappers report a failed copy as an SQLException.
+ * 
+ * @author rakesh
+ */
+public class LobStreams {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private LobStreams() {
+	}
+
+	/**
+	 * copies a binary column to the channel and returns number of bytes
+	 * copied, or -1 if the column is null.
+	 * 
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static long copyBinary(ResultSet rs, int column,
+			WritableByteChannel out) throws SQLException, IOException {
+		InputStream in = rs.getBinaryStream(column);
+		if (in == null)
+			return -1;
+		return copy(in, out);
+	}
+
+	/**
+	 * copies a binary column to the file, replacing it, and returns number of
+	 * bytes copied, or -1 if the column is null. The file is not touched if
+	 * the column is null.
+	 * 
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static long copyBinary(ResultSet rs, int column, Path file)
+			throws SQLException, IOException {
+		InputStream in = rs.getBinaryStream(column);
+		if (in == null)
+			return -1;
+		FileChannel out;
+		try {
+			out = FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		try {
+			return copy(in, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * copies the stream to the channel and closes the stream.
+	 */
+	private static long copy(InputStream in, WritableByteChannel out)
+			throws IOException {
+		try {
+			ReadableByteChannel ch = Channels.newChannel(in);
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long total = 0;
+			while (ch.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				total += out.write(buffer);
+				buffer.compact();
+			}
+			return total;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * copies a character column to the writer and returns number of
+	 * characters copied, or -1 if the column is null.
+	 * 
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static long copyCharacter(ResultSet rs, int column, Writer out)
+			throws SQLException, IOException {
+		Reader in = rs.getCharacterStream(column);
+		if (in == null)
+			return -1;
+		try {
+			char[] buffer = new char[BUFFER_SIZE];
+			long total = 0;
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+				total += n;
+			}
+			return total;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * returns a row mapper which copies a binary column to the channel and
+	 * returns the number of bytes copied.
+	 */
+	public static RowMapper<Long> binaryTo(final int column,
+			final WritableByteChannel out) {
+		return new RowMapper<Long>() {
+			public Long mapRow(ResultSet rs) throws SQLException {
+				try {
+					return copyBinary(rs, column, out);
+				} catch (IOException e) {
+					throw new SQLException("Could not copy LOB column " + column, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * returns a row mapper which copies a binary column to the file and
+	 * returns the number of bytes copied.
+	 */
+	public static RowMapper<Long> binaryToFile(final int column, final Path file) {
+		return new RowMapper<Long>() {
+			public Long mapRow(ResultSet rs) throws SQLException {
+				try {
+					return copyBinary(rs, column, file);
+				} catch (IOException e) {
+					throw new SQLException("Could not write LOB column " + column + " to " + file, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * returns a row mapper which copies a character column to the writer and
+	 * returns the number of characters copied.
+	 */
+	public static RowMapper<Long> characterTo(final int column, final Writer out) {
+		return new RowMapper<Long>() {
+			public Long mapRow(ResultSet rs) throws SQLException {
+				try {
+					return copyCharacter(rs, column, out);
+				} catch (IOException e) {
+					throw new SQLException("Could not copy LOB column " + column, e);
+				}
+			}
+		};
+	}
+}
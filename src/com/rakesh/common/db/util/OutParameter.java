@@ -0,0 +1,67 @@
+package com.rakesh.common.db.util;
+
+/**
+ * OUT or INOUT parameter of a stored procedure call, passed in place of the
+ * parameter value. USAGE:
+ * 
+ * <pre>
+ * 	CallResult r = executeCallForResults(resources, &quot;transfer&quot;, mappers,
+ * 			from, to, amount, OutParameter.out(Types.DECIMAL));
+ * 	BigDecimal balance = (BigDecimal) r.getOut(4);
+ * </pre>
+ * 
+ * @author rakesh
+ */
+public class OutParameter {
+
+	private final int sqlType;
+	private final Object value;
+	private final boolean in;
+
+	private OutParameter(int sqlType, Object value, boolean in) {
+		this.sqlType = sqlType;
+		this.value = value;
+		this.in = in;
+	}
+
+	/**
+	 * returns an OUT parameter of the given java.sql.Types type.
+	 */
+	public static OutParameter out(int sqlType) {
+		return new OutParameter(sqlType, null, false);
+	}
+
+	/**
+	 * returns an INOUT parameter of the given java.sql.Types type with the
+	 * given input value.
+	 */
+	public static OutParameter inOut(int sqlType, Object value) {
+		return new OutParameter(sqlType, value, true);
+	}
+
+	/**
+	 * returns java.sql.Types type of the parameter.
+	 */
+	public int getSqlType() {
+		return sqlType;
+	}
+
+	/**
+	 * returns true for an INOUT parameter.
+	 */
+	public boolean isIn() {
+		return in;
+	}
+
+	/**
+	 * returns input value of an INOUT parameter.
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return in ? "INOUT(" + sqlType + ")=" + value : "OUT(" + sqlType + ")";
+	}
+}
@@ -0,0 +1,42 @@
+package com.rakesh.common.db.util;
+
+import java.util.List;
+
+/**
+ * One page of results read with keyset pagination. The continuation token is
+ * opaque, it is passed back as is to read the next page.
+ * 
+ * @author rakesh
+ */
+public class Page<T> {
+
+	private final List<T> items;
+	private final String nextToken;
+
+	public Page(List<T> items, String nextToken) {
+		this.items = items;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * returns the rows of this page.
+	 */
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * returns the token to read the next page with, or null if this is the
+	 * last page.
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	/**
+	 * returns true if there is a page after this one.
+	 */
+	public boolean hasNext() {
+		return nextToken != null;
+	}
+}
@@ -2,30 +2,118 @@ package com.rakesh.common.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Class to read resources of a class.
+ * <p>
+ * Resources of a class are loaded once, on first use, and shared by all the
+ * instances created for that class. They are taken from the {@link SqlCatalog}
+ * when the class was compiled into it, otherwise they are read from the
+ * [class name].properties file.
  *
  * @author rakesh
  */
 public class ClassResources {
 
-	private final Properties p;
+	/**
+	 * prefix of the keys which hold DAO options instead of SQL queries.
+	 */
+	public static final String OPTION_PREFIX = "dao.";
 
-	public ClassResources(final Class<?> cl){
-		try {
-			p = loadProperties(cl);
-		} catch (IOException e) {
-			throw new RuntimeIOException(cl.getSimpleName() + ".properties file not found!", e);
+	// resources of the classes loaded so far, by class name
+	private static final ConcurrentMap<String, Map<String, String>> loaded = new ConcurrentHashMap<String, Map<String, String>>();
+
+	private static final ClassValue<Map<String, String>> resources = new ClassValue<Map<String, String>>() {
+		@Override
+		protected Map<String, String> computeValue(Class<?> cl) {
+			Map<String, String> values = SqlCatalog.get(cl.getName());
+			if (values != null)
+				return values;
+			try {
+				values = intern(loadProperties(cl));
+				loaded.put(cl.getName(), values);
+				return values;
+			} catch (IOException e) {
+				throw new RuntimeIOException(cl.getSimpleName() + ".properties file not found!", e);
+			}
 		}
+	};
+
+	private final String name;
+	private final Map<String, String> p;
+
+	public ClassResources(final Class<?> cl){
+		this.name = cl.getName();
+		this.p = resources.get(cl);
+	}
+
+	ClassResources(final String name, final Map<String, String> p) {
+		this.name = name;
+		this.p = p;
+	}
+
+	/**
+	 * returns resources of all classes known so far: the classes of the
+	 * {@link SqlCatalog} and the classes whose .properties file was read.
+	 */
+	public static List<ClassResources> getRegistered() {
+		Set<String> names = SqlCatalog.getClassNames();
+		List<ClassResources> l = new ArrayList<ClassResources>(names.size() + loaded.size());
+		for (String className : names)
+			l.add(new ClassResources(className, SqlCatalog.get(className)));
+		for (Map.Entry<String, Map<String, String>> e : loaded.entrySet())
+			l.add(new ClassResources(e.getKey(), e.getValue()));
+		return l;
 	}
 
 	/**
 	 * returns value for the given key which is read from the resource file
 	 */
 	public String getValue(final String key) {
-		return p.getProperty(key);
+		return p.get(key);
+	}
+
+	/**
+	 * returns the keys of all SQL queries of the class, the DAO options are
+	 * left out.
+	 */
+	public Set<String> getSqlKeys() {
+		Set<String> keys = new HashSet<String>(p.size() * 4 / 3 + 1);
+		for (String key : p.keySet())
+			if (!key.startsWith(OPTION_PREFIX))
+				keys.add(key);
+		return keys;
+	}
+
+	/**
+	 * returns name of the class whose resources are read by this instance.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * returns value of a DAO option. Option is first looked up for the given
+	 * sqlKey as 'dao.[option].[sqlKey]' and then for the whole class as
+	 * 'dao.[option]'. Returns null if neither of them is present.
+	 */
+	public String getOption(final String option, final String sqlKey) {
+		String value = null;
+		if (sqlKey != null)
+			value = p.get(OPTION_PREFIX + option + '.' + sqlKey);
+		if (value == null)
+			value = p.get(OPTION_PREFIX + option);
+		return value;
 	}
 
 	/**
@@ -43,8 +131,23 @@ public class ClassResources {
 			throw new IOException("Resource file '" + resourceFile + "' not found!");
 		}
 		// load properties by reading from the resource file
-		Properties p = new Properties();
-		p.load(in);
-		return p;
+		try {
+			Properties p = new Properties();
+			p.load(in);
+			return p;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * returns an immutable copy of the properties with interned keys and
+	 * values.
+	 */
+	private static Map<String, String> intern(final Properties p) {
+		Map<String, String> values = new HashMap<String, String>(p.size() * 4 / 3 + 1);
+		for (String key : p.stringPropertyNames())
+			values.put(key.intern(), p.getProperty(key).intern());
+		return Collections.unmodifiableMap(values);
 	}
 }
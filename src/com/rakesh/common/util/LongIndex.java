@@ -0,0 +1,103 @@
+package com.rakesh.common.util;
+
+/**
+ * Immutable index from long keys to row numbers, using open addressing on
+ * primitive arrays, so lookups neither box nor allocate. Several rows may
+ * have the same key, they are chained in row order:
+ * 
+ * <pre>
+ * for (int row = index.get(key); row &gt;= 0; row = index.next(row))
+ * 	...
+ * </pre>
+ * 
+ * @author rakesh
+ */
+public class LongIndex {
+
+	private static final long EMPTY = 0;
+
+	private final long[] keys;
+	// first row of each key plus one, 0 marks an empty slot
+	private final int[] heads;
+	private final int[] next;
+	private final int mask;
+	private final boolean hasZero;
+	private final int zeroHead;
+
+	/**
+	 * builds the index of the given keys, row numbers are positions in the
+	 * array.
+	 */
+	public LongIndex(final long[] rowKeys) {
+		int size = Integer.highestOneBit(Math.max(2, rowKeys.length * 2 - 1)) << 1;
+		this.keys = new long[size];
+		this.heads = new int[size];
+		this.next = new int[rowKeys.length];
+		this.mask = size - 1;
+		boolean zero = false;
+		int zeroFirst = -1;
+		int[] tails = new int[size];
+		int zeroTail = -1;
+		for (int row = 0; row < rowKeys.length; row++) {
+			long key = rowKeys[row];
+			next[row] = -1;
+			if (key == EMPTY) {
+				if (zero)
+					next[zeroTail] = row;
+				else
+					zeroFirst = row;
+				zero = true;
+				zeroTail = row;
+				continue;
+			}
+			int slot = slot(key);
+			while (heads[slot] != 0 && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			if (heads[slot] == 0) {
+				keys[slot] = key;
+				heads[slot] = row + 1;
+			} else {
+				next[tails[slot]] = row;
+			}
+			tails[slot] = row;
+		}
+		this.hasZero = zero;
+		this.zeroHead = zeroFirst;
+	}
+
+	/**
+	 * returns the first row with the given key, or -1 if there is none.
+	 */
+	public int get(final long key) {
+		if (key == EMPTY)
+			return hasZero ? zeroHead : -1;
+		int slot = slot(key);
+		int head;
+		while ((head = heads[slot]) != 0) {
+			if (keys[slot] == key)
+				return head - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * returns the next row with the same key as the given row, or -1 if it is
+	 * the last one.
+	 */
+	public int next(final int row) {
+		return next[row];
+	}
+
+	/**
+	 * returns number of rows in the index.
+	 */
+	public int size() {
+		return next.length;
+	}
+
+	private int slot(final long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
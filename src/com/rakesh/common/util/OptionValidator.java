@@ -0,0 +1,21 @@
+package com.rakesh.common.util;
+
+/**
+ * Validates the 'dao.' options of a resource file at build time. Validators
+ * are found with {@link java.util.ServiceLoader}, by listing them in
+ * <code>META-INF/services/com.rakesh.common.util.OptionValidator</code>, and
+ * are called by {@link SqlCatalogCompiler} for every compiled class, so that
+ * the modules reading the options keep their own rules.
+ * 
+ * @author rakesh
+ */
+public interface OptionValidator {
+
+	/**
+	 * validates the options of the class.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if an option is invalid, with a message naming it
+	 */
+	public void validate(ClassResources resources);
+}
@@ -69,7 +69,7 @@ public class PropertyLoader {
 		try {
 			InputStreamReader r = new InputStreamReader(in, "UTF-8");
 			StringWriter w = new StringWriter();
-			char[] buf = new char[1024];
+			char[] buf = new char[8192];
 			int read = -1;
 			while ((read = r.read(buf)) >= 0) {
 				w.write(buf, 0, read);
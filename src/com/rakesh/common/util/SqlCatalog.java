@@ -0,0 +1,142 @@
+package com.rakesh.common.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Catalog of the SQL resources of all DAO classes, compiled at build time by
+ * {@link SqlCatalogCompiler} into the <code>META-INF/dao-sql.catalog</code>
+ * resource. The catalogs found in the classpath are read once, on first use,
+ * and {@link ClassResources} takes the keys of a class from here instead of
+ * parsing its .properties file.
+ * 
+ * <pre>
+ * catalog : magic(int) version(int) classCount(int) class...
+ * class   : name(string) keyCount(int) (key(string) value(string))...
+ * string  : length(int) UTF-8 bytes
+ * </pre>
+ * 
+ * @author rakesh
+ */
+public class SqlCatalog {
+
+	/**
+	 * name of the catalog resource.
+	 */
+	public static final String RESOURCE = "META-INF/dao-sql.catalog";
+
+	private static final int MAGIC = 0x44414f43;
+	private static final int VERSION = 1;
+
+	private SqlCatalog() {
+	}
+
+	/**
+	 * returns the immutable key to value map of the given class, or null if
+	 * the class is not in any catalog.
+	 */
+	public static Map<String, String> get(String className) {
+		return Holder.classes.get(className);
+	}
+
+	/**
+	 * returns names of all classes in the catalogs.
+	 */
+	public static Set<String> getClassNames() {
+		return Holder.classes.keySet();
+	}
+
+	/**
+	 * loads the catalogs on first use of the class.
+	 */
+	private static final class Holder {
+		static final Map<String, Map<String, String>> classes = loadAll();
+	}
+
+	private static Map<String, Map<String, String>> loadAll() {
+		Map<String, Map<String, String>> classes = new HashMap<String, Map<String, String>>();
+		try {
+			ClassLoader loader = SqlCatalog.class.getClassLoader();
+			if (loader == null)
+				loader = ClassLoader.getSystemClassLoader();
+			Enumeration<URL> urls = loader.getResources(RESOURCE);
+			while (urls.hasMoreElements()) {
+				InputStream in = urls.nextElement().openStream();
+				try {
+					read(in, classes);
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException("Could not read " + RESOURCE, e);
+		}
+		return Collections.unmodifiableMap(classes);
+	}
+
+	/**
+	 * reads one catalog into the given map.
+	 * 
+	 * @throws IOException
+	 */
+	static void read(InputStream in, Map<String, Map<String, String>> classes)
+			throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in,
+				8192));
+		if (data.readInt() != MAGIC || data.readInt() != VERSION)
+			throw new IOException("Not a SQL catalog of version " + VERSION);
+		int classCount = data.readInt();
+		for (int i = 0; i < classCount; i++) {
+			String className = readString(data);
+			int keyCount = data.readInt();
+			Map<String, String> values = new HashMap<String, String>(
+					keyCount * 4 / 3 + 1);
+			for (int k = 0; k < keyCount; k++)
+				values.put(readString(data).intern(), readString(data)
+						.intern());
+			classes.put(className, Collections.unmodifiableMap(values));
+		}
+	}
+
+	/**
+	 * writes a catalog of the given classes.
+	 * 
+	 * @throws IOException
+	 */
+	static void write(DataOutputStream out,
+			Map<String, Map<String, String>> classes) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(classes.size());
+		for (Map.Entry<String, Map<String, String>> c : classes.entrySet()) {
+			writeString(out, c.getKey());
+			out.writeInt(c.getValue().size());
+			for (Map.Entry<String, String> e : c.getValue().entrySet()) {
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+			}
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
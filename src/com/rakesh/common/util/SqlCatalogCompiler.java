@@ -0,0 +1,183 @@
+package com.rakesh.common.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+
+/**
+ * Build time compiler of the DAO resource files into one {@link SqlCatalog}.
+ * Every <code>[Class].properties</code> file which has a
+ * <code>[Class].java</code> or <code>[Class].class</code> file next to it is
+ * read and validated; other .properties files are ignored. Used by the
+ * <code>catalog</code> target of build.xml. USAGE:
+ * 
+ * <pre>
+ * java com.rakesh.common.util.SqlCatalogCompiler &lt;source dirs&gt; &lt;catalog file&gt;
+ * </pre>
+ * 
+ * Source dirs are separated by the path separator. Validation fails on
+ * duplicate keys, empty values, SQL with unbalanced quotes and options
+ * rejected by one of the {@link OptionValidator} services on the classpath.
+ * 
+ * @author rakesh
+ */
+public class SqlCatalogCompiler {
+
+	private final Map<String, Map<String, String>> classes = new TreeMap<String, Map<String, String>>();
+	private final List<String> errors = new ArrayList<String>();
+	private final List<OptionValidator> validators = new ArrayList<OptionValidator>();
+	private int keyCount;
+
+	SqlCatalogCompiler() {
+		for (OptionValidator validator : ServiceLoader
+				.load(OptionValidator.class))
+			validators.add(validator);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("USAGE: SqlCatalogCompiler <source dirs> <catalog file>");
+			System.exit(1);
+		}
+		SqlCatalogCompiler compiler = new SqlCatalogCompiler();
+		for (String dir : args[0].split(File.pathSeparator)) {
+			File root = new File(dir);
+			compiler.scan(root, root);
+		}
+		if (!compiler.errors.isEmpty()) {
+			for (String error : compiler.errors)
+				System.err.println(error);
+			System.err.println(compiler.errors.size()
+					+ " error(s), catalog not written");
+			System.exit(1);
+		}
+		File out = new File(args[1]);
+		compiler.write(out);
+		System.out.println("Compiled " + compiler.keyCount + " keys of "
+				+ compiler.classes.size() + " classes into " + out);
+	}
+
+	/**
+	 * reads the resource files of all classes under the given directory.
+	 * 
+	 * @throws IOException
+	 */
+	void scan(File root, File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory()) {
+				scan(root, f);
+				continue;
+			}
+			String name = f.getName();
+			if (!name.endsWith(".properties"))
+				continue;
+			String base = name.substring(0, name.length()
+					- ".properties".length());
+			if (!new File(dir, base + ".java").exists()
+					&& !new File(dir, base + ".class").exists())
+				continue;
+			String path = dir.getPath().substring(root.getPath().length());
+			String pkg = path.replace(File.separatorChar, '.');
+			if (pkg.startsWith("."))
+				pkg = pkg.substring(1);
+			compile(f, pkg.length() == 0 ? base : pkg + '.' + base);
+		}
+	}
+
+	/**
+	 * reads and validates the resource file of one class.
+	 * 
+	 * @throws IOException
+	 */
+	void compile(File f, String className) throws IOException {
+		final List<String> duplicates = new ArrayList<String>();
+		Properties p = new Properties() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public synchronized Object put(Object key, Object value) {
+				Object previous = super.put(key, value);
+				if (previous != null)
+					duplicates.add((String) key);
+				return previous;
+			}
+		};
+		InputStream in = new FileInputStream(f);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		for (String key : duplicates)
+			errors.add(f + ": duplicate key '" + key + "'");
+
+		Map<String, String> values = new TreeMap<String, String>();
+		for (String key : p.stringPropertyNames()) {
+			String value = p.getProperty(key).trim();
+			if (value.length() == 0)
+				errors.add(f + ": empty value for key '" + key + "'");
+			else if (!key.startsWith(ClassResources.OPTION_PREFIX)
+					&& !balancedQuotes(value))
+				errors.add(f + ": unbalanced quotes in SQL of key '" + key
+						+ "'");
+			values.put(key, p.getProperty(key));
+		}
+		ClassResources resources = new ClassResources(className, values);
+		for (OptionValidator validator : validators) {
+			try {
+				validator.validate(resources);
+			} catch (IllegalArgumentException e) {
+				errors.add(f + ": " + e.getMessage());
+			}
+		}
+		keyCount += values.size();
+		classes.put(className, values);
+	}
+
+	/**
+	 * returns the validation errors found so far.
+	 */
+	List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * writes the catalog of all compiled classes.
+	 * 
+	 * @throws IOException
+	 */
+	void write(File out) throws IOException {
+		File parent = out.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(out)));
+		try {
+			SqlCatalog.write(data, classes);
+		} finally {
+			data.close();
+		}
+	}
+
+	private static boolean balancedQuotes(String sql) {
+		boolean inQuotes = false;
+		for (int i = 0; i < sql.length(); i++) {
+			if (sql.charAt(i) == '\'')
+				inQuotes = !inQuotes;
+		}
+		return !inQuotes;
+	}
+}
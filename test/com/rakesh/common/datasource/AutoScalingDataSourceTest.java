@@ -0,0 +1,252 @@
+package com.rakesh.common.datasource;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.test.FakeDatabase.Call;
+import com.rakesh.common.test.FakeDatabase.Rows;
+
+/**
+ * @author rakesh
+ */
+public class AutoScalingDataSourceTest {
+
+	/**
+	 * pool sizes kept in fields, active connections set by the test.
+	 */
+	static class FakePool implements AutoScalingDataSource.Pool {
+		int maxActive = 8;
+		int maxIdle = 8;
+		int minIdle;
+		int active;
+		long evictionMillis = -1;
+		boolean closed;
+
+		public int getMaxActive() {
+			return maxActive;
+		}
+
+		public void setMaxActive(int maxActive) {
+			this.maxActive = maxActive;
+		}
+
+		public int getMaxIdle() {
+			return maxIdle;
+		}
+
+		public void setMaxIdle(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public int getMinIdle() {
+			return minIdle;
+		}
+
+		public void setMinIdle(int minIdle) {
+			this.minIdle = minIdle;
+		}
+
+		public int getNumActive() {
+			return active;
+		}
+
+		public long getTimeBetweenEvictionRunsMillis() {
+			return evictionMillis;
+		}
+
+		public void setTimeBetweenEvictionRunsMillis(long millis) {
+			evictionMillis = millis;
+		}
+
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * database whose connections take a while to hand out.
+	 */
+	static class SlowDatabase extends FakeDatabase {
+		@Override
+		public Connection getConnection() throws SQLException {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.getConnection();
+		}
+	}
+
+	/**
+	 * database whose queries take a while.
+	 */
+	static class SlowQueryDatabase extends FakeDatabase {
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.query(call);
+		}
+	}
+
+	private final FakePool pool = new FakePool();
+	private final Properties properties = new Properties();
+	private AutoScalingDataSource ds;
+
+	public void setUp() {
+		// the controller thread is not used, tests call adjust()
+		properties.setProperty(AutoScalingDataSource.PROP_INTERVALMILLIS,
+				"3600000");
+	}
+
+	public void tearDown() throws SQLException {
+		if (ds != null)
+			ds.close();
+	}
+
+	public void testDefaultsLetThePoolGrow() {
+		pool.maxIdle = -1;
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		assertEquals(8, pool.maxActive);
+		pool.active = 8;
+		ds.adjust();
+		ds.adjust();
+		assertEquals(10, pool.maxActive);
+		assertEquals(10, pool.maxIdle);
+		for (int i = 0; i < 10; i++) {
+			pool.active = pool.maxActive;
+			ds.adjust();
+		}
+		// default upper bound is twice maxActive
+		assertEquals(16, pool.maxActive);
+	}
+
+	public void testIdlePoolShrinksToMinActive() {
+		properties.setProperty(AutoScalingDataSource.PROP_SHRINKAFTER, "2");
+		properties.setProperty(AutoScalingDataSource.PROP_MINACTIVE, "5");
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		for (int i = 0; i < 10; i++)
+			ds.adjust();
+		assertEquals(5, pool.maxActive);
+	}
+
+	public void testConfiguredMaxIdleIsTheUpperBound() {
+		pool.maxIdle = 4;
+		properties.setProperty(AutoScalingDataSource.PROP_IDLEHEADROOM, "6");
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		assertEquals(4, pool.maxIdle);
+		assertEquals(4, pool.minIdle);
+		pool.active = 8;
+		ds.adjust();
+		ds.adjust();
+		assertEquals(10, pool.maxActive);
+		assertEquals(4, pool.maxIdle);
+	}
+
+	public void testHeadroomIsLeftToTheEvictor() throws SQLException {
+		FakeDatabase db = new FakeDatabase();
+		properties.setProperty(AutoScalingDataSource.PROP_IDLEHEADROOM, "3");
+		properties.setProperty(AutoScalingDataSource.PROP_INTERVALMILLIS,
+				"500");
+		ds = new AutoScalingDataSource(db, pool, properties);
+		assertEquals(3, pool.minIdle);
+		assertEquals(500, pool.evictionMillis);
+		pool.active = 8;
+		ds.adjust();
+		ds.adjust();
+		// the controller never borrows connections itself
+		assertEquals(0, db.opened());
+	}
+
+	public void testHeadroomNeverExceedsPoolSize() {
+		properties.setProperty(AutoScalingDataSource.PROP_IDLEHEADROOM, "20");
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		assertEquals(8, pool.minIdle);
+	}
+
+	public void testConfiguredEvictionIntervalIsKept() {
+		pool.evictionMillis = 60000;
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		assertEquals(60000, pool.evictionMillis);
+	}
+
+	public void testWaitWithCredentialsIsMeasured() throws SQLException {
+		ds = new AutoScalingDataSource(new SlowDatabase(), pool, properties);
+		for (int i = 0; i < 2; i++) {
+			Connection c = ds.getConnection("user", "password");
+			c.close();
+			ds.adjust();
+		}
+		assertEquals(10, pool.maxActive);
+	}
+
+	public void testLatencyAboveCeilingStopsGrowth() {
+		properties.setProperty(AutoScalingDataSource.PROP_MAXLATENCYMILLIS,
+				"10");
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		pool.active = 8;
+		for (int i = 0; i < 4; i++) {
+			ds.recordQueryLatency(50000000L);
+			ds.adjust();
+		}
+		assertEquals(8, pool.maxActive);
+	}
+
+	public void testSlowStatementsStopGrowth() throws SQLException {
+		properties.setProperty(AutoScalingDataSource.PROP_MAXLATENCYMILLIS,
+				"10");
+		ds = new AutoScalingDataSource(new SlowQueryDatabase(), pool,
+				properties);
+		pool.active = 8;
+		for (int i = 0; i < 4; i++) {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement pst = c.prepareStatement("select 1");
+				pst.executeQuery().close();
+				pst.close();
+			} finally {
+				c.close();
+			}
+			ds.adjust();
+		}
+		assertEquals(8, pool.maxActive);
+	}
+
+	public void testUnlimitedPoolIsRejected() {
+		pool.maxActive = -1;
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("maxActive"));
+	}
+
+	public void testMinAboveMaxIsRejected() {
+		properties.setProperty(AutoScalingDataSource.PROP_MINACTIVE, "20");
+		properties.setProperty(AutoScalingDataSource.PROP_MAXACTIVE, "10");
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+			}
+		});
+	}
+
+	public void testCloseClosesThePool() throws SQLException {
+		ds = new AutoScalingDataSource(new FakeDatabase(), pool, properties);
+		ds.close();
+		assertTrue("closed", pool.closed);
+	}
+}
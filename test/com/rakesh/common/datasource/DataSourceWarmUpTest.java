@@ -0,0 +1,191 @@
+package com.rakesh.common.datasource;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class DataSourceWarmUpTest {
+
+	static class WarmDao {
+	}
+
+	/**
+	 * pool of a fixed size which waits for a free connection forever, like
+	 * maxWait=-1, and counts the prepared statements.
+	 */
+	static class Pool extends FakeDatabase {
+		final int size;
+		final AtomicInteger borrowed = new AtomicInteger();
+		final AtomicInteger prepared = new AtomicInteger();
+		final CountDownLatch released = new CountDownLatch(1);
+		volatile boolean failOpen;
+
+		Pool(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			if (failOpen)
+				throw new SQLException("connection refused");
+			if (borrowed.incrementAndGet() > size) {
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					throw new SQLException(e);
+				}
+			}
+			return super.getConnection();
+		}
+
+		@Override
+		protected void onConnection(int connection, String method) {
+			if (method.equals("prepareStatement"))
+				prepared.incrementAndGet();
+		}
+	}
+
+	private static final List<ClassResources> resources = Collections
+			.singletonList(new ClassResources(WarmDao.class));
+
+	private Pool pool;
+
+	public void tearDown() {
+		if (pool != null)
+			pool.released.countDown();
+	}
+
+	public void testPreparesEveryQueryOnEachConnection() throws Exception {
+		pool = new Pool(3);
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 3);
+		warmUp.setResources(resources);
+		assertFalse("ready before run", warmUp.isReady());
+		warmUp.run();
+		assertTrue("ready", warmUp.isReady());
+		assertFalse("timed out", warmUp.isTimedOut());
+		assertEquals(6, warmUp.getPrepared());
+		assertEquals(6, pool.prepared.get());
+		assertEquals(3, pool.opened());
+		assertEquals(0, pool.open());
+	}
+
+	public void testRunsOnlyOnce() throws Exception {
+		pool = new Pool(1);
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 1);
+		warmUp.setResources(resources);
+		warmUp.run();
+		warmUp.run();
+		warmUp.start();
+		assertEquals(2, pool.prepared.get());
+		assertEquals(1, pool.opened());
+	}
+
+	public void testStartsInBackground() throws Exception {
+		pool = new Pool(2);
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 2);
+		warmUp.setResources(resources);
+		warmUp.start();
+		assertTrue("ready", warmUp.awaitReady(5, TimeUnit.SECONDS));
+		assertEquals(4, warmUp.getPrepared());
+	}
+
+	public void testGivesUpWhenThePoolCantOpenAllConnections()
+			throws Exception {
+		pool = new Pool(1);
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 2);
+		warmUp.setResources(resources);
+		warmUp.setTimeoutMillis(200);
+		long t = System.currentTimeMillis();
+		warmUp.run();
+		assertTrue("gave up in time", System.currentTimeMillis() - t < 5000);
+		assertTrue("ready", warmUp.isReady());
+		assertTrue("timed out", warmUp.isTimedOut());
+		// the connection which was opened is not held forever
+		for (int i = 0; i < 100 && pool.open() > 0; i++)
+			Thread.sleep(20);
+		assertEquals(0, pool.open());
+	}
+
+	public void testConnectionFailuresDontStopTheWarmUp() throws Exception {
+		pool = new Pool(2);
+		pool.failOpen = true;
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 2);
+		warmUp.setResources(resources);
+		warmUp.run();
+		assertTrue("ready", warmUp.isReady());
+		assertFalse("timed out", warmUp.isTimedOut());
+		assertEquals(0, warmUp.getPrepared());
+	}
+
+	public void testInvalidTimeout() {
+		final DataSourceWarmUp warmUp = new DataSourceWarmUp(new Pool(1), 1);
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				warmUp.setTimeoutMillis(0);
+			}
+		});
+	}
+
+	public void testHandleOfTheDataSource() {
+		pool = new Pool(1);
+		assertNull(DataSourceWarmUp.get(pool));
+		DataSourceWarmUp warmUp = new DataSourceWarmUp(pool, 1);
+		DataSourceWarmUp.register(pool, warmUp);
+		assertSame(warmUp, DataSourceWarmUp.get(pool));
+		assertNull(DataSourceWarmUp.get(new Pool(1)));
+	}
+
+	public void testHandleDoesntKeepTheDataSourceAlive()
+			throws InterruptedException {
+		Pool dropped = new Pool(1);
+		DataSourceWarmUp.register(dropped, new DataSourceWarmUp(dropped, 1));
+		WeakReference<Pool> ref = new WeakReference<Pool>(dropped);
+		dropped = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+	}
+
+	public void testDefaultConnectionsAreTheIdleOnes() {
+		assertEquals(8, DataSourceWarmUp.defaultConnections(8, 8));
+		assertEquals(8, DataSourceWarmUp.defaultConnections(20, 8));
+		assertEquals(5, DataSourceWarmUp.defaultConnections(5, 8));
+		assertEquals(5, DataSourceWarmUp.defaultConnections(-1, 5));
+		assertEquals(10, DataSourceWarmUp.defaultConnections(10, -1));
+		assertEquals(1, DataSourceWarmUp.defaultConnections(8, 0));
+		assertEquals(1, DataSourceWarmUp.defaultConnections(-1, -1));
+	}
+
+	public void testResourcesOfConfiguredClasses() throws Exception {
+		List<ClassResources> l = DataSourceWarmUp.resources(" "
+				+ WarmDao.class.getName() + " ,");
+		assertEquals(1, l.size());
+		assertEquals(WarmDao.class.getName(), l.get(0).getName());
+		expect(ClassNotFoundException.class, new Block() {
+			public void run() throws Exception {
+				DataSourceWarmUp.resources("com.example.MissingDao");
+			}
+		});
+	}
+}
@@ -0,0 +1,208 @@
+package com.rakesh.common.datasource;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+
+import com.rakesh.common.db.BaseDAOAccess;
+import com.rakesh.common.db.QueryInterceptors;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class LogEventRecorderTest {
+
+	/**
+	 * log keeping the debug and warn messages; debug can be held up by a
+	 * latch to fill the ring.
+	 */
+	static class RecordingLog implements Log {
+		final List<String> debug = new ArrayList<String>();
+		final List<String> warn = new ArrayList<String>();
+		volatile CountDownLatch gate;
+
+		public synchronized List<String> debug() {
+			return new ArrayList<String>(debug);
+		}
+
+		public synchronized List<String> warn() {
+			return new ArrayList<String>(warn);
+		}
+
+		public void debug(Object message) {
+			CountDownLatch g = gate;
+			if (g != null) {
+				try {
+					g.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				debug.add(String.valueOf(message));
+			}
+		}
+
+		public synchronized void warn(Object message) {
+			warn.add(String.valueOf(message));
+		}
+
+		public boolean isDebugEnabled() {
+			return true;
+		}
+
+		public boolean isErrorEnabled() {
+			return true;
+		}
+
+		public boolean isFatalEnabled() {
+			return true;
+		}
+
+		public boolean isInfoEnabled() {
+			return true;
+		}
+
+		public boolean isTraceEnabled() {
+			return false;
+		}
+
+		public boolean isWarnEnabled() {
+			return true;
+		}
+
+		public void trace(Object message) {
+		}
+
+		public void trace(Object message, Throwable t) {
+		}
+
+		public void debug(Object message, Throwable t) {
+			debug(message);
+		}
+
+		public void info(Object message) {
+		}
+
+		public void info(Object message, Throwable t) {
+		}
+
+		public void warn(Object message, Throwable t) {
+			warn(message);
+		}
+
+		public void error(Object message) {
+		}
+
+		public void error(Object message, Throwable t) {
+		}
+
+		public void fatal(Object message) {
+		}
+
+		public void fatal(Object message, Throwable t) {
+		}
+	}
+
+	private final RecordingLog log = new RecordingLog();
+
+	public void testEventsAreWrittenBeforeClose() {
+		LogEventRecorder recorder = new LogEventRecorder(log, 16, 1000);
+		recorder.record(LogEventRecorder.GET_CONNECTION, 2000000, 3, null);
+		recorder.record(LogEventRecorder.QUERY, 5000, 7, "findOrders");
+		recorder.close();
+		List<String> debug = log.debug();
+		assertEquals(2, debug.size());
+		assertTrue(debug.get(0), debug.get(0).startsWith(
+				"ACTIVE CONNECTIONS:\t3 (get connection took 2ms)"));
+		assertTrue(debug.get(1), debug.get(1).startsWith(
+				"QUERY findOrders:\t7 rows in 5us"));
+	}
+
+	public void testDaoQueriesAreRecorded() throws SQLException {
+		LogEventRecorder recorder = new LogEventRecorder(log, 16, 1000);
+		QueryInterceptors.register(recorder.getQueryInterceptor());
+		try {
+			BaseDAOAccess.queryForInt(new FakeDatabase() {
+				@Override
+				protected Rows query(Call call) {
+					return new Rows("v").add(1);
+				}
+			}, "select", 1);
+		} finally {
+			QueryInterceptors.unregister(recorder.getQueryInterceptor());
+		}
+		recorder.close();
+		List<String> debug = log.debug();
+		assertEquals(1, debug.size());
+		assertTrue(debug.get(0), debug.get(0).startsWith("QUERY select:\t1 rows"));
+	}
+
+	public void testDropsAreReportedWithoutClose() throws InterruptedException {
+		log.gate = new CountDownLatch(1);
+		LogEventRecorder recorder = new LogEventRecorder(log, 2, 10);
+		try {
+			// the writer is held up, the ring of two fills
+			for (int i = 0; i < 10; i++)
+				recorder.record(LogEventRecorder.QUERY, 1, 1, "q");
+			long dropped = recorder.getDropped();
+			assertTrue("dropped " + dropped, dropped > 0);
+			log.gate.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (log.warn().isEmpty()
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(5);
+			assertEquals(1, log.warn().size());
+			assertEquals("DATASOURCE LOG:\t" + dropped + " events dropped",
+					log.warn().get(0));
+		} finally {
+			recorder.close();
+		}
+	}
+
+	public void testDropsAreReportedWhileEventsKeepComing() {
+		RecordingLog slow = new RecordingLog() {
+			@Override
+			public void debug(Object message) {
+				// the writer falls behind, the ring stays full
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		LogEventRecorder recorder = new LogEventRecorder(slow, 2, 20);
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (slow.warn().isEmpty()
+					&& System.currentTimeMillis() < deadline)
+				recorder.record(LogEventRecorder.QUERY, 1, 1, "q");
+			assertTrue("reported while recording", !slow.warn().isEmpty());
+		} finally {
+			recorder.close();
+		}
+	}
+
+	public void testRemainingDropsAreReportedOnClose() {
+		log.gate = new CountDownLatch(1);
+		LogEventRecorder recorder = new LogEventRecorder(log, 2, 60000);
+		for (int i = 0; i < 10; i++)
+			recorder.record(LogEventRecorder.QUERY, 1, 1, "q");
+		long dropped = recorder.getDropped();
+		assertEquals(0, log.warn().size());
+		log.gate.countDown();
+		recorder.close();
+		assertEquals(1, log.warn().size());
+		assertEquals("DATASOURCE LOG:\t" + dropped + " events dropped",
+				log.warn().get(0));
+	}
+}
@@ -0,0 +1,221 @@
+package com.rakesh.common.datasource;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.test.Assert.Block;
+
+/**
+ * @author rakesh
+ */
+public class ValidatingDataSourceTest {
+
+	/**
+	 * pooled connection with a fixed hash code, counting isValid calls.
+	 */
+	static class PooledConnection implements InvocationHandler {
+		final Connection proxy = (Connection) Proxy.newProxyInstance(
+				PooledConnection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, this);
+		volatile boolean valid = true;
+		int validations;
+		int closes;
+
+		public Object invoke(Object p, Method m, Object[] a) {
+			String name = m.getName();
+			if (name.equals("hashCode"))
+				return 42;
+			if (name.equals("equals"))
+				return p == a[0];
+			if (name.equals("isValid")) {
+				validations++;
+				return valid;
+			}
+			if (name.equals("close"))
+				closes++;
+			return null;
+		}
+	}
+
+	/**
+	 * pool handing out the queued connections, the same objects every time.
+	 */
+	static class Pool implements DataSource, ValidatingDataSource.Pool {
+		final Deque<Connection> next = new ArrayDeque<Connection>();
+		int withCredentials;
+
+		public Connection getConnection() throws SQLException {
+			Connection c = next.poll();
+			if (c == null)
+				throw new SQLException("pool exhausted");
+			return c;
+		}
+
+		public Connection getConnection(String username, String password)
+				throws SQLException {
+			withCredentials++;
+			return getConnection();
+		}
+
+		public int getNumIdle() {
+			return next.size();
+		}
+
+		public boolean isClosed() {
+			return false;
+		}
+
+		public PrintWriter getLogWriter() {
+			return null;
+		}
+
+		public void setLogWriter(PrintWriter out) {
+		}
+
+		public void setLoginTimeout(int seconds) {
+		}
+
+		public int getLoginTimeout() {
+			return 0;
+		}
+
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			throw new SQLException("not a wrapper");
+		}
+
+		public boolean isWrapperFor(Class<?> iface) {
+			return false;
+		}
+	}
+
+	private final Pool pool = new Pool();
+	private final PooledConnection a = new PooledConnection();
+	private final PooledConnection b = new PooledConnection();
+
+	public void testRecentlyUsedConnectionIsNotValidated() throws SQLException {
+		ValidatingDataSource ds = new ValidatingDataSource(pool, 60000, 1, 3);
+		pool.next.add(a.proxy);
+		pool.next.add(a.proxy);
+		assertSame(a.proxy, ds.getConnection());
+		assertSame(a.proxy, ds.getConnection());
+		assertEquals(1, a.validations);
+	}
+
+	public void testIdleConnectionIsValidatedAgain() throws Exception {
+		ValidatingDataSource ds = new ValidatingDataSource(pool, 0, 1, 3);
+		pool.next.add(a.proxy);
+		pool.next.add(a.proxy);
+		ds.getConnection();
+		Thread.sleep(5);
+		ds.getConnection();
+		assertEquals(2, a.validations);
+	}
+
+	public void testConnectionsWithEqualHashCodesAreToldApart()
+			throws SQLException {
+		ValidatingDataSource ds = new ValidatingDataSource(pool, 60000, 1, 3);
+		pool.next.add(a.proxy);
+		assertSame(a.proxy, ds.getConnection());
+		// b has the hash code of a, but was never validated
+		b.valid = false;
+		pool.next.add(b.proxy);
+		pool.next.add(a.proxy);
+		assertSame(a.proxy, ds.getConnection());
+		assertEquals(1, b.validations);
+		assertEquals(1, b.closes);
+		assertEquals(1, ds.getStampCount());
+	}
+
+	public void testNoValidConnectionFails() {
+		final ValidatingDataSource ds = new ValidatingDataSource(pool, 60000,
+				1, 2);
+		a.valid = false;
+		b.valid = false;
+		pool.next.add(a.proxy);
+		pool.next.add(b.proxy);
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				ds.getConnection();
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("2 attempts"));
+		// the invalid connections went back to the pool
+		assertEquals(1, a.closes);
+		assertEquals(1, b.closes);
+		assertEquals(0, ds.getStampCount());
+	}
+
+	public void testInvalidatedConnectionLosesItsStamp() throws Exception {
+		ValidatingDataSource ds = new ValidatingDataSource(pool, 0, 1, 3);
+		pool.next.add(a.proxy);
+		ds.getConnection();
+		Thread.sleep(5);
+		a.valid = false;
+		pool.next.add(a.proxy);
+		pool.next.add(b.proxy);
+		assertSame(b.proxy, ds.getConnection());
+		assertEquals(1, ds.getStampCount());
+	}
+
+	public void testBorrowWithCredentialsIsValidated() throws SQLException {
+		ValidatingDataSource ds = new ValidatingDataSource(pool, 60000, 1, 3);
+		a.valid = false;
+		pool.next.add(a.proxy);
+		pool.next.add(b.proxy);
+		assertSame(b.proxy, ds.getConnection("user", "secret"));
+		assertEquals(1, a.validations);
+		assertEquals(1, a.closes);
+		assertEquals(2, pool.withCredentials);
+	}
+
+	public void testIdleConnectionsAreValidatedInTheBackground() {
+		// pool which returns a closed connection to its idle ones
+		Pool idle = new Pool() {
+			@Override
+			public Connection getConnection() throws SQLException {
+				final Connection c = super.getConnection();
+				return (Connection) Proxy.newProxyInstance(
+						getClass().getClassLoader(),
+						new Class<?>[] { Connection.class },
+						new InvocationHandler() {
+							public Object invoke(Object p, Method m,
+									Object[] args) throws Throwable {
+								if (m.getName().equals("close")) {
+									next.add(c);
+									return null;
+								}
+								return m.invoke(c, args);
+							}
+						});
+			}
+		};
+		ValidatingDataSource ds = new ValidatingDataSource(idle, 60000, 1, 3);
+		b.valid = false;
+		idle.next.add(a.proxy);
+		idle.next.add(b.proxy);
+		ds.validateIdle(idle);
+		assertEquals(1, a.validations);
+		assertEquals(1, b.validations);
+		assertEquals(2, idle.next.size());
+		assertEquals(1, ds.getStampCount());
+	}
+}
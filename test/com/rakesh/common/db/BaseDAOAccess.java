@@ -0,0 +1,29 @@
+package com.rakesh.common.db;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * runs queries of {@link TestQueries} through a {@link BaseDAO}, for the
+ * tests outside of its package.
+ * 
+ * @author rakesh
+ */
+public class BaseDAOAccess {
+
+	private BaseDAOAccess() {
+	}
+
+	public static int update(DataSource ds, String sqlKey, Object... params)
+			throws SQLException {
+		return new BaseDAO(ds, false).update(TestQueries.resources, sqlKey,
+				params);
+	}
+
+	public static Integer queryForInt(DataSource ds, String sqlKey,
+			Object... params) throws SQLException {
+		return new BaseDAO(ds).queryForInt(TestQueries.resources, sqlKey,
+				params);
+	}
+}
@@ -0,0 +1,136 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.db.util.GenericMappers.stringRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rakesh.common.db.util.CallResult;
+import com.rakesh.common.db.util.GenericMappers.RowHandler;
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.db.util.OutParameter;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class CallResultTest {
+
+	/**
+	 * call returning two result sets, OUT parameters return their index.
+	 */
+	private final FakeDatabase db = new FakeDatabase() {
+		@Override
+		protected Rows query(Call call) {
+			return new Rows("name").add("ann").add("bob")
+					.then(new Rows("id").add(1).add(2).add(3));
+		}
+	};
+	private final BaseDAO dao = new BaseDAO(db, false);
+
+	/**
+	 * adds a tenant id in front of the parameters, like a multi tenant
+	 * interceptor.
+	 */
+	private final QueryInterceptorAdapter tenant = new QueryInterceptorAdapter() {
+		@Override
+		public void beforePrepare(QueryContext ctx) {
+			ctx.setSql("{call p(?, ?, ?)}");
+			Object[] params = ctx.getParams();
+			Object[] l = new Object[params.length + 1];
+			l[0] = 42;
+			System.arraycopy(params, 0, l, 1, params.length);
+			ctx.setParams(l);
+		}
+	};
+
+	public void tearDown() {
+		QueryInterceptors.unregister(tenant);
+	}
+
+	public void testResultSetsAreMappedByPosition() throws Exception {
+		CallResult r = dao.executeCallForResults(resources, "call",
+				new RowMapper<?>[] { stringRowMapper, integerRowMapper }, 5,
+				OutParameter.out(Types.INTEGER));
+		assertEquals(2, r.getResultSetCount());
+		assertEquals(Arrays.asList("ann", "bob"), r.getResultSet(0));
+		assertEquals(Arrays.asList(1, 2, 3), r.getResultSet(1));
+		assertEquals(3, r.getRowCount(1));
+		assertEquals((Integer) 2, r.getOut(2));
+		assertNull(r.getOut(1));
+		assertEquals(0, db.open());
+	}
+
+	public void testNullMappersSkipAllResultSets() throws Exception {
+		CallResult r = dao.executeCallForResults(resources, "call", null, 5,
+				OutParameter.out(Types.INTEGER));
+		assertEquals(2, r.getResultSetCount());
+		assertEquals(-1, r.getRowCount(0));
+		assertEquals(0, r.getResultSet(1).size());
+		assertEquals((Integer) 2, r.getOut(2));
+	}
+
+	public void testResultSetWithoutMapperIsSkipped() throws Exception {
+		CallResult r = dao.executeCallForResults(resources, "call",
+				new RowMapper<?>[] { null, integerRowMapper }, 5,
+				OutParameter.out(Types.INTEGER));
+		assertEquals(-1, r.getRowCount(0));
+		assertEquals(0, r.getResultSet(0).size());
+		assertEquals(Arrays.asList(1, 2, 3), r.getResultSet(1));
+	}
+
+	public void testOutValuesAreReadAtRewrittenPositions() throws Exception {
+		QueryInterceptors.register(resources, "call", tenant);
+		CallResult r = dao.executeCallForResults(resources, "call", null,
+				OutParameter.out(Types.INTEGER), 5);
+		assertEquals(Arrays.asList(2), db.calls().get(0).outParams);
+		assertEquals((Integer) 2, r.getOut(2));
+		assertNull(r.getOut(1));
+	}
+
+	public void testRowsAreStreamedToHandlers() throws Exception {
+		final List<Object> seen = new ArrayList<Object>();
+		RowHandler handler = new RowHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				seen.add(rs.getObject(1));
+			}
+		};
+		final CallResult r = dao.executeCallForRows(resources, "call",
+				new RowHandler[] { null, handler }, 5,
+				OutParameter.out(Types.INTEGER));
+		assertEquals(Arrays.asList(1, 2, 3), seen);
+		assertEquals(-1, r.getRowCount(0));
+		assertEquals(3, r.getRowCount(1));
+		assertEquals((Integer) 2, r.getOut(2));
+		expect(IllegalStateException.class, new Block() {
+			public void run() {
+				r.getResultSet(1);
+			}
+		});
+	}
+
+	public void testHandlerFailureClosesTheStatement() throws Exception {
+		final RowHandler failing = new RowHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				throw new SQLException("handler failed");
+			}
+		};
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.executeCallForRows(resources, "call",
+						new RowHandler[] { failing }, 5, 6);
+			}
+		});
+		assertEquals(0, db.open());
+	}
+}
@@ -0,0 +1,75 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class ConcurrencyLimiterTest {
+
+	static class LimitedDao {
+	}
+
+	static class ZeroLimitDao {
+	}
+
+	static class BadNumberDao {
+	}
+
+	public void testZeroLimitFailsEveryKeyOfTheClass() {
+		final ClassResources resources = new ClassResources(ZeroLimitDao.class);
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				// 'a' has no limit, the class config is still invalid
+				ConcurrencyLimiter.forKey(resources, "a");
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("#x"));
+	}
+
+	public void testInvalidNumberNamesTheOption() {
+		final ClassResources resources = new ClassResources(BadNumberDao.class);
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ConcurrencyLimiter.validate(resources);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("maxConcurrent"));
+	}
+
+	public void testKeyLimitTakesClassLimitToo() throws Exception {
+		ClassResources resources = new ClassResources(LimitedDao.class);
+		ConcurrencyLimiter classLimit = ConcurrencyLimiter.forKey(resources, "a");
+		final ConcurrencyLimiter slow = ConcurrencyLimiter.forKey(resources, "slow");
+		assertSame(classLimit, ConcurrencyLimiter.forKey(resources, "b"));
+
+		long s1 = slow.acquire();
+		assertEquals(1, classLimit.getInFlight());
+		long a1 = classLimit.acquire();
+		// class limit of 2 is reached, the own limit of 'slow' is not
+		expect(AdmissionRejectedException.class, new Block() {
+			public void run() throws Exception {
+				slow.acquire();
+			}
+		});
+		assertEquals(1, slow.getInFlight());
+		assertEquals(2, classLimit.getInFlight());
+
+		slow.release(s1);
+		classLimit.release(a1);
+		assertEquals(0, slow.getInFlight());
+		assertEquals(0, classLimit.getInFlight());
+	}
+
+	public void testUnlimitedWithoutOptions() {
+		ClassResources resources = new ClassResources(GroupCommitWriterTest.class);
+		assertSame(ConcurrencyLimiter.UNLIMITED,
+				ConcurrencyLimiter.forKey(resources, "ins"));
+	}
+}
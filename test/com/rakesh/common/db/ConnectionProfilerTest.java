@@ -0,0 +1,51 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class ConnectionProfilerTest {
+
+	private final FakeDatabase db = new FakeDatabase();
+
+	public void tearDown() {
+		ConnectionProfiler.disable();
+	}
+
+	public void testCountsBorrowsAndLongHolds() throws Exception {
+		ConnectionProfiler profiler = ConnectionProfiler.enable(0, 1);
+		BaseDAO dao = new BaseDAO(db);
+		dao.query(integerRowMapper, resources, "select", 1);
+		dao.query(integerRowMapper, resources, "select", 2);
+		assertEquals(2, profiler.getBorrowCount());
+		assertEquals(0, profiler.getHolderCount());
+		assertEquals(2, profiler.getLongHoldCount());
+	}
+
+	public void testUnfinishedTransactionIsDumped() throws Exception {
+		ConnectionProfiler profiler = ConnectionProfiler.enable(0, 1);
+		BaseDAO dao = new BaseDAO(db, false);
+		TransactionManager trans = TransactionManager.start(dao);
+		dao.update(resources, "ins", 1);
+		assertEquals(1, profiler.getHolderCount());
+		String dump = profiler.dumpHolders();
+		assertTrue(dump, dump.contains("in transaction"));
+		assertTrue(dump, dump.contains("Connection borrowed here"));
+		trans.finish();
+		assertEquals(0, profiler.getHolderCount());
+	}
+
+	public void testDisabledRecordsNothing() throws Exception {
+		ConnectionProfiler.disable();
+		new BaseDAO(db).query(integerRowMapper, resources, "select", 1);
+		assertNull(ConnectionProfiler.getActive());
+		assertEquals(0, db.open());
+	}
+}
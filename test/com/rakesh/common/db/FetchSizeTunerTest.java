@@ -0,0 +1,135 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class FetchSizeTunerTest {
+
+	static class FetchDao {
+	}
+
+	static class BadFetchDao {
+	}
+
+	private final ClassResources resources = new ClassResources(FetchDao.class);
+
+	/**
+	 * returns the given number of rows.
+	 */
+	static class RowsDatabase extends FakeDatabase {
+		volatile int rows;
+
+		@Override
+		protected Rows query(Call call) {
+			Rows r = new Rows("v");
+			for (int i = 0; i < rows; i++)
+				r.add(i);
+			return r;
+		}
+	}
+
+	public void tearDown() {
+		FetchSizeTuner.setMaxFetchBytes(4 * 1024 * 1024);
+	}
+
+	public void testMalformedFetchSizeNamesTheOption() {
+		final ClassResources bad = new ClassResources(BadFetchDao.class);
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				FetchSizeTuner.forKey(bad, "typo");
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("fetchSize")
+				&& e.getMessage().contains("#typo"));
+	}
+
+	public void testNegativeFetchSizeIsRejected() {
+		final ClassResources bad = new ClassResources(BadFetchDao.class);
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				FetchSizeTuner.forKey(bad, "negative");
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("#negative"));
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				FetchSizeTuner.validate(bad);
+			}
+		});
+		FetchSizeTuner.validate(resources);
+	}
+
+	public void testFixedSizeIsSetOnEveryExecution() throws SQLException {
+		FetchSizeTuner tuner = FetchSizeTuner.forKey(resources, "fixed");
+		RecordingStatement pst = new RecordingStatement();
+		tuner.beforeExecute(pst.proxy());
+		assertEquals(500, pst.fetchSize);
+	}
+
+	public void testDriverDefaultSetsNothing() throws SQLException {
+		RecordingStatement pst = new RecordingStatement();
+		FetchSizeTuner.forKey(resources, "plain").beforeExecute(pst.proxy());
+		assertEquals(-1, pst.fetchSize);
+	}
+
+	public void testAdaptiveFollowsObservedRows() throws Exception {
+		FetchSizeTuner tuner = FetchSizeTuner.forKey(resources, "adaptive");
+		assertEquals(0, tuner.adviseFetchSize());
+		RowsDatabase db = new RowsDatabase();
+		db.rows = 100;
+		BaseDAO dao = new BaseDAO(db);
+		dao.query(integerRowMapper, resources, "adaptive", 1);
+		// 100 rows expected, a quarter more and one for the end of results
+		assertEquals(126, tuner.adviseFetchSize());
+		db.rows = 0;
+		for (int i = 0; i < 50; i++)
+			dao.query(integerRowMapper, resources, "adaptive", 1);
+		// the average decays towards 0 rows
+		assertEquals(2, tuner.adviseFetchSize());
+	}
+
+	public void testAdaptiveIsBoundByMemory() throws Exception {
+		FetchSizeTuner tuner = FetchSizeTuner.forKey(resources, "adaptive");
+		RowsDatabase db = new RowsDatabase();
+		db.rows = 1000;
+		BaseDAO dao = new BaseDAO(db);
+		dao.query(integerRowMapper, resources, "adaptive", 1);
+		// one INTEGER column of 4 bytes
+		FetchSizeTuner.setMaxFetchBytes(40);
+		assertEquals(10, tuner.adviseFetchSize());
+	}
+
+	/**
+	 * statement which only records its fetch size.
+	 */
+	static class RecordingStatement {
+		int fetchSize = -1;
+
+		PreparedStatement proxy() {
+			return (PreparedStatement) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+					new InvocationHandler() {
+						public Object invoke(Object p, Method m, Object[] a) {
+							if (m.getName().equals("setFetchSize"))
+								fetchSize = (Integer) a[0];
+							return null;
+						}
+					});
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class GroupCommitWriterTest {
+
+	private final ClassResources resources = new ClassResources(GroupCommitWriterTest.class);
+	private final ExecutorService callers = Executors.newCachedThreadPool();
+	private GroupCommitWriter writer;
+
+	public void tearDown() throws Exception {
+		if (writer != null)
+			writer.close();
+		callers.shutdownNow();
+	}
+
+	private List<Future<Integer>> write(int n, final Object param) {
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < n; i++)
+			results.add(callers.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return writer.update(resources, "ins", param);
+				}
+			}));
+		return results;
+	}
+
+	private static Throwable error(Future<Integer> f) throws InterruptedException {
+		try {
+			f.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	public void testGroupIsCommittedOnce() throws Exception {
+		FakeDatabase db = new FakeDatabase();
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 4, 2000000);
+		for (Future<Integer> f : write(4, 1))
+			assertEquals(1, f.get().intValue());
+		assertEquals(4, db.committed().size());
+		assertEquals(1, db.commits());
+		assertEquals(0, db.open());
+	}
+
+	public void testRuntimeExceptionFailsOnlyItsWrite() throws Exception {
+		FakeDatabase db = new FakeDatabase();
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 3, 2000000);
+		List<Future<Integer>> good = write(2, 1);
+		List<Future<Integer>> bad = write(1, new Object());
+		assertTrue("unsupported parameter", error(bad.get(0)) instanceof RuntimeException);
+		for (Future<Integer> f : good)
+			assertEquals(1, f.get().intValue());
+		// flusher is still alive
+		assertEquals(1, writer.update(resources, "ins", 2));
+	}
+
+	public void testErrorOfGroupKeepsFlusherAlive() throws Exception {
+		final AtomicBoolean fail = new AtomicBoolean(true);
+		FakeDatabase db = new FakeDatabase() {
+			@Override
+			protected int update(Call call) throws SQLException {
+				if (fail.getAndSet(false))
+					throw new AssertionError("boom");
+				return 1;
+			}
+		};
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 1, 0);
+		expect(AssertionError.class, new Block() {
+			public void run() throws Exception {
+				writer.update(resources, "ins", 1);
+			}
+		});
+		assertEquals(1, writer.update(resources, "ins", 2));
+	}
+
+	public void testCleanupErrorAfterCommitIsNotAFailure() throws Exception {
+		FakeDatabase db = new FakeDatabase() {
+			@Override
+			protected void onConnection(int connection, String method)
+					throws SQLException {
+				if (method.equals("setAutoCommit") && commits() > 0)
+					throw new SQLException("reset failed");
+			}
+		};
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 2, 2000000);
+		for (Future<Integer> f : write(2, 1))
+			assertEquals(1, f.get().intValue());
+		assertEquals(2, db.committed().size());
+	}
+
+	public void testCommitFailureFailsWholeGroup() throws Exception {
+		FakeDatabase db = new FakeDatabase() {
+			@Override
+			protected void onConnection(int connection, String method)
+					throws SQLException {
+				if (method.equals("commit"))
+					throw new SQLException("commit failed");
+			}
+		};
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 2, 2000000);
+		for (Future<Integer> f : write(2, 1))
+			assertTrue("commit error", error(f) instanceof SQLException);
+	}
+
+	public void testWritesRacingCloseNeverHang() throws Exception {
+		FakeDatabase db = new FakeDatabase();
+		writer = new GroupCommitWriter(new BaseDAO(db, false), 8, 100);
+		List<Future<Integer>> results = write(200, 1);
+		writer.close();
+		int ok = 0;
+		for (Future<Integer> f : results) {
+			Throwable t = error(f);
+			if (t == null)
+				ok++;
+			else
+				assertTrue("rejected: " + t, t instanceof SQLException);
+		}
+		assertEquals(ok, db.committed().size());
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				writer.update(resources, "ins", 1);
+			}
+		});
+	}
+}
@@ -0,0 +1,114 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class HedgedDAOTest {
+
+	/**
+	 * database whose queries hang till they are cancelled while it is slow.
+	 */
+	static class Replica extends FakeDatabase {
+		final int value;
+		volatile boolean slow;
+		volatile CountDownLatch cancelled = new CountDownLatch(1);
+
+		Replica(int value) {
+			this.value = value;
+		}
+
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			if (slow) {
+				try {
+					cancelled.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new SQLException(e);
+				}
+				throw new SQLException("query cancelled");
+			}
+			return new Rows("v").add(value);
+		}
+
+		@Override
+		protected void onStatement(String sql, String method) {
+			if (method.equals("cancel"))
+				cancelled.countDown();
+		}
+	}
+
+	private static final long DELAY = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private final Replica primary = new Replica(1);
+	private final Replica secondary = new Replica(2);
+	private final HedgedDAO dao = new HedgedDAO(primary, secondary);
+
+	public void setUp() throws SQLException {
+		dao.setMinDelayMillis(200);
+		// loads the classes, so the first measured call is not the slowest
+		new HedgedDAO(secondary, secondary).queryForInt(resources, "select", 0);
+	}
+
+	private void warmUp() throws SQLException {
+		for (int i = 0; i < 20; i++)
+			assertEquals((Integer) 1, dao.queryForInt(resources, "select", i));
+	}
+
+	private long awaitPrimaryLatency(long atLeast) throws InterruptedException {
+		long latency = dao.getLatency(resources, "select", 1.0);
+		for (int i = 0; i < 250 && latency < atLeast; i++) {
+			Thread.sleep(20);
+			latency = dao.getLatency(resources, "select", 1.0);
+		}
+		return latency;
+	}
+
+	public void testCancelledPrimaryIsMeasured() throws Exception {
+		warmUp();
+		assertTrue("fast primary",
+				dao.getLatency(resources, "select", 1.0) < DELAY);
+		primary.slow = true;
+		assertEquals((Integer) 2, dao.queryForInt(resources, "select", 1));
+		assertEquals(1, dao.getHedgeWinCount());
+		// the primary took at least the hedge delay before it was cancelled
+		assertTrue("slow primary recorded", awaitPrimaryLatency(DELAY) >= DELAY);
+	}
+
+	public void testHedgesAreMeasuredSeparately() throws Exception {
+		assertEquals(-1L, dao.getHedgeLatency(resources, "select", 1.0));
+		warmUp();
+		primary.slow = true;
+		assertEquals((Integer) 2, dao.queryForInt(resources, "select", 1));
+		long hedge = dao.getHedgeLatency(resources, "select", 1.0);
+		assertTrue("hedge recorded", hedge > 0 && hedge < DELAY);
+		assertTrue("primary keeps its slow call", awaitPrimaryLatency(DELAY) >= DELAY);
+	}
+
+	public void testFailedPrimaryIsNotMeasured() throws Exception {
+		warmUp();
+		long before = dao.getLatency(resources, "select", 1.0);
+		final HedgedDAO failing = new HedgedDAO(new FakeDatabase() {
+			@Override
+			protected Rows query(Call call) throws SQLException {
+				throw new SQLException("syntax error");
+			}
+		}, secondary);
+		try {
+			failing.queryForInt(resources, "select", 1);
+		} catch (SQLException e) {
+			assertEquals("syntax error", e.getMessage());
+		}
+		assertEquals(-1L, failing.getLatency(resources, "select", 1.0));
+		assertEquals(before, dao.getLatency(resources, "select", 1.0));
+	}
+}
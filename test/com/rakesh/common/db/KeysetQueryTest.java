@@ -0,0 +1,131 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.db.util.Page;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class KeysetQueryTest {
+
+	static class PageDao {
+	}
+
+	private static final String[] KEYS = { "id" };
+
+	private final ClassResources resources = new ClassResources(PageDao.class);
+	private final AtomicInteger mapped = new AtomicInteger();
+	private final RowMapper<Integer> ids = new RowMapper<Integer>() {
+		public Integer mapRow(ResultSet rs) throws SQLException {
+			mapped.incrementAndGet();
+			return rs.getInt("id");
+		}
+	};
+
+	/**
+	 * table of ids 1 to 5, seek conditions on id are applied.
+	 */
+	private final FakeDatabase db = new FakeDatabase() {
+		@Override
+		protected Rows query(Call call) {
+			int after = call.sql.contains("WHERE") ? (Integer) call.params
+					.lastEntry().getValue() : 0;
+			Rows rows = new Rows("id", "v");
+			for (int id = after + 1; id <= 5; id++)
+				rows.add(id, "v" + id);
+			return rows;
+		}
+	};
+	private final BaseDAO dao = new BaseDAO(db);
+
+	public void testPagesFollowTheToken() throws Exception {
+		Page<Integer> first = dao.queryPage(ids, resources, "page", KEYS, null, 2, 7);
+		assertEquals(Arrays.asList(1, 2), first.getItems());
+		assertTrue("has next", first.hasNext());
+		Page<Integer> second = dao.queryPage(ids, resources, "page", KEYS,
+				first.getNextToken(), 2, 7);
+		assertEquals(Arrays.asList(3, 4), second.getItems());
+		Page<Integer> last = dao.queryPage(ids, resources, "page", KEYS,
+				second.getNextToken(), 2, 7);
+		assertEquals(Arrays.asList(5), last.getItems());
+		assertFalse("no next", last.hasNext());
+		assertEquals(0, db.open());
+	}
+
+	public void testInvalidPageSizeFailsBeforeConnecting() {
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page", KEYS, null, 0, 7);
+			}
+		});
+		assertEquals(0, db.opened());
+	}
+
+	public void testInvalidKeyColumnFailsBeforeConnecting() {
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page",
+						new String[] { "id DOWN" }, null, 2, 7);
+			}
+		});
+		assertEquals(0, db.opened());
+	}
+
+	public void testTokenIsBoundToParams() throws Exception {
+		final String token = dao.queryPage(ids, resources, "page", KEYS, null,
+				2, 7).getNextToken();
+		int opened = db.opened();
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page", KEYS, token, 2, 8);
+			}
+		});
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page",
+						new String[] { "id DESC" }, token, 2, 7);
+			}
+		});
+		assertEquals(opened, db.opened());
+	}
+
+	public void testUnsupportedKeyTypeFailsBeforeMapping() {
+		FakeDatabase blobs = new FakeDatabase() {
+			@Override
+			protected Rows query(Call call) {
+				return new Rows("id").add(new byte[] { 1 }).add(new byte[] { 2 });
+			}
+		};
+		final BaseDAO dao = new BaseDAO(blobs);
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page", KEYS, null, 1, 7);
+			}
+		});
+		assertEquals(0, mapped.get());
+		assertEquals(0, blobs.open());
+	}
+
+	public void testMissingKeyColumnFails() {
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryPage(ids, resources, "page", new String[] { "name" },
+						null, 2, 7);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("'name'"));
+	}
+}
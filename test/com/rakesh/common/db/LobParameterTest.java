@@ -0,0 +1,242 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rakesh.common.db.util.LobParameter;
+import com.rakesh.common.db.util.LobStreams;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class LobParameterTest {
+
+	/**
+	 * reads the stream parameters on execute, like a driver does, and keeps
+	 * them to check they were closed.
+	 */
+	static class LobDatabase extends FakeDatabase {
+		final List<InputStream> streams = new ArrayList<InputStream>();
+		final List<String> contents = new ArrayList<String>();
+		boolean fail;
+
+		@Override
+		protected int update(Call call) throws SQLException {
+			for (Object p : call.params()) {
+				if (p instanceof InputStream) {
+					InputStream in = (InputStream) p;
+					streams.add(in);
+					contents.add(read(in));
+				}
+			}
+			if (fail)
+				throw new SQLException("constraint violated");
+			return 1;
+		}
+
+		private static String read(InputStream in) throws SQLException {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] b = new byte[16];
+				int n;
+				while ((n = in.read(b)) >= 0)
+					out.write(b, 0, n);
+				return out.toString("UTF-8");
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
+	}
+
+	private final LobDatabase db = new LobDatabase();
+	private Path file;
+	private Connection c;
+
+	public void setUp() throws Exception {
+		file = Files.createTempFile("lob", ".txt");
+		Files.write(file, "document".getBytes("UTF-8"));
+		c = db.getConnection();
+	}
+
+	public void tearDown() throws Exception {
+		c.close();
+		Files.deleteIfExists(file);
+	}
+
+	private static boolean isClosed(InputStream in) {
+		try {
+			in.read();
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	public void testFileIsOpenedForEachBindAndClosedAfterExecute()
+			throws Exception {
+		LobParameter doc = LobParameter.file(file);
+		JdbcUtills.update(c, resources, "upd", doc, 1);
+		JdbcUtills.update(c, resources, "upd", doc, 2);
+		assertEquals(Arrays.asList("document", "document"), db.contents);
+		assertTrue("new stream per bind", db.streams.get(0) != db.streams.get(1));
+		assertTrue("first closed", isClosed(db.streams.get(0)));
+		assertTrue("second closed", isClosed(db.streams.get(1)));
+	}
+
+	public void testFileIsClosedWhenExecuteFails() throws Exception {
+		db.fail = true;
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				JdbcUtills.update(c, resources, "upd", LobParameter.file(file), 1);
+			}
+		});
+		assertEquals(1, db.streams.size());
+		assertTrue("closed", isClosed(db.streams.get(0)));
+	}
+
+	public void testEveryRowOfABatchGetsItsOwnStream() throws Exception {
+		LobParameter doc = LobParameter.file(file);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { doc, 1 });
+		rows.add(new Object[] { doc, 2 });
+		JdbcUtills.batchUpdate(c, resources, "upd", rows);
+		assertEquals(Arrays.asList("document", "document"), db.contents);
+		assertTrue("first closed", isClosed(db.streams.get(0)));
+		assertTrue("second closed", isClosed(db.streams.get(1)));
+	}
+
+	public void testDeletedFileFailsWithSQLException() throws Exception {
+		final LobParameter doc = LobParameter.file(file);
+		Files.delete(file);
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				JdbcUtills.update(c, resources, "upd", doc, 1);
+			}
+		});
+		assertEquals(0, db.calls().size());
+	}
+
+	public void testStreamOfCallerIsNotClosed() throws Exception {
+		InputStream in = Files.newInputStream(file);
+		try {
+			JdbcUtills.update(c, resources, "upd", LobParameter.binary(in, 8), 1);
+			assertTrue("left open", !isClosed(in));
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testBufferIsStreamedAgainOnEveryBind() throws Exception {
+		LobParameter doc = LobParameter.buffer(ByteBuffer.wrap("document"
+				.getBytes("UTF-8")));
+		JdbcUtills.update(c, resources, "upd", doc, 1);
+		JdbcUtills.update(c, resources, "upd", doc, 2);
+		assertEquals(Arrays.asList("document", "document"), db.contents);
+	}
+
+	public void testStreamOfCallerIsBoundOnce() throws Exception {
+		InputStream in = Files.newInputStream(file);
+		try {
+			final LobParameter doc = LobParameter.binary(in, 8);
+			JdbcUtills.update(c, resources, "upd", doc, 1);
+			expect(SQLException.class, new Block() {
+				public void run() throws Exception {
+					JdbcUtills.update(c, resources, "upd", doc, 2);
+				}
+			});
+			assertEquals(1, db.contents.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testNullColumnLeavesTheFileAlone() throws Exception {
+		FakeDatabase nulls = new FakeDatabase() {
+			@Override
+			protected Rows query(Call call) {
+				return new Rows("doc").add((Object) null);
+			}
+		};
+		Long size = new BaseDAO(nulls).queryForObject(
+				LobStreams.binaryToFile(1, file), resources, "select", 1);
+		assertEquals((Long) (-1L), size);
+		assertEquals("document", new String(Files.readAllBytes(file), "UTF-8"));
+	}
+
+	public void testMapperReportsFailedCopyAsSQLException() throws Exception {
+		final FakeDatabase blobs = new FakeDatabase() {
+			@Override
+			protected Rows query(Call call) {
+				return new Rows("doc").add((Object) "document".getBytes());
+			}
+		};
+		final WritableByteChannel broken = new WritableByteChannel() {
+			public int write(ByteBuffer src) throws IOException {
+				throw new IOException("disk full");
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				new BaseDAO(blobs).queryForObject(LobStreams.binaryTo(1, broken),
+						resources, "select", 1);
+			}
+		});
+		assertEquals("disk full", e.getCause().getMessage());
+		assertEquals(0, blobs.open());
+	}
+
+	public void testCharacterMapperReportsFailedCopyAsSQLException()
+			throws Exception {
+		final FakeDatabase clobs = new FakeDatabase() {
+			@Override
+			protected Rows query(Call call) {
+				return new Rows("doc").add("document");
+			}
+		};
+		final Writer broken = new Writer() {
+			@Override
+			public void write(char[] b, int off, int len) throws IOException {
+				throw new IOException("pipe closed");
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				new BaseDAO(clobs).queryForObject(LobStreams.characterTo(1, broken),
+						resources, "select", 1);
+			}
+		});
+	}
+}
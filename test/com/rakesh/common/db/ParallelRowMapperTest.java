@@ -0,0 +1,246 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.rowset.serial.SerialBlob;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.test.FakeDatabase.Rows;
+
+/**
+ * @author rakesh
+ */
+public class ParallelRowMapperTest {
+
+	private static final RowMapper<Integer> slowMapper = new RowMapper<Integer>() {
+		public Integer mapRow(ResultSet rs) throws SQLException {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				throw new SQLException(e);
+			}
+			return rs.getInt(1);
+		}
+	};
+
+	private Rows rows;
+	private final FakeDatabase db = new FakeDatabase() {
+		@Override
+		protected Rows query(Call call) {
+			return rows;
+		}
+	};
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	public void tearDown() throws SQLException {
+		for (Connection c : connections)
+			c.close();
+	}
+
+	private ResultSet resultSet() throws SQLException {
+		Connection c = db.getConnection();
+		connections.add(c);
+		return c.prepareStatement("select").executeQuery();
+	}
+
+	private static Rows numbers(int n) {
+		Rows r = new Rows("v");
+		for (int i = 0; i < n; i++)
+			r.add(i);
+		return r;
+	}
+
+	/**
+	 * maps the single row of values with the mapper, through the view.
+	 */
+	private <T> T mapView(RowMapper<T> rm, Object... values)
+			throws SQLException {
+		String[] columns = new String[values.length];
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = "c" + (i + 1);
+		rows = new Rows(columns).add(values);
+		List<T> mapped = new ParallelRowMapper<T>(rm, 0, 1).map(resultSet());
+		assertEquals(1, mapped.size());
+		return mapped.get(0);
+	}
+
+	public void testResultsKeepTheOrderOfTheRows() throws Exception {
+		rows = numbers(500);
+		List<Integer> mapped = new ParallelRowMapper<Integer>(slowMapper, 10,
+				7).map(resultSet());
+		assertEquals(500, mapped.size());
+		for (int i = 0; i < 500; i++)
+			assertEquals((Integer) i, mapped.get(i));
+	}
+
+	public void testDoesNotDeadlockOnCommonPoolThreads() throws Exception {
+		rows = numbers(200);
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int n = pool.getParallelism() + 1;
+		List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+		for (int i = 0; i < n; i++) {
+			final ResultSet rs = resultSet();
+			results.add(pool.submit(new Callable<List<Integer>>() {
+				public List<Integer> call() throws SQLException {
+					return new ParallelRowMapper<Integer>(slowMapper, 0, 2)
+							.map(rs);
+				}
+			}));
+		}
+		for (Future<List<Integer>> f : results)
+			assertEquals(200, f.get(30, TimeUnit.SECONDS).size());
+	}
+
+	public void testMapperFailureIsThrown() throws Exception {
+		rows = numbers(100);
+		final RowMapper<Integer> failing = new RowMapper<Integer>() {
+			public Integer mapRow(ResultSet rs) throws SQLException {
+				if (rs.getInt(1) == 42)
+					throw new SQLException("bad row");
+				return rs.getInt(1);
+			}
+		};
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				new ParallelRowMapper<Integer>(failing, 0, 5).map(resultSet());
+			}
+		});
+		assertEquals("bad row", e.getMessage());
+	}
+
+	public void testTimestampIsReadAsDateAndTime() throws Exception {
+		final Timestamp ts = Timestamp.valueOf("2020-01-02 03:04:05.5");
+		Object[] r = mapView(new RowMapper<Object[]>() {
+			public Object[] mapRow(ResultSet rs) throws SQLException {
+				return new Object[] { rs.getDate(1), rs.getTime(1),
+						rs.getTimestamp(1), rs.getString(1) };
+			}
+		}, ts);
+		assertEquals(Date.valueOf("2020-01-02"), r[0]);
+		assertEquals(Time.valueOf("03:04:05"), r[1]);
+		assertEquals(ts, r[2]);
+		assertEquals(ts.toString(), r[3]);
+	}
+
+	public void testBooleanIsReadAsNumber() throws Exception {
+		Object[] r = mapView(new RowMapper<Object[]>() {
+			public Object[] mapRow(ResultSet rs) throws SQLException {
+				return new Object[] { rs.getInt(1), rs.getLong(2),
+						rs.getBigDecimal(1), rs.getBoolean(1) };
+			}
+		}, Boolean.TRUE, Boolean.FALSE);
+		assertEquals(1, r[0]);
+		assertEquals(0L, r[1]);
+		assertEquals(java.math.BigDecimal.ONE, r[2]);
+		assertEquals(Boolean.TRUE, r[3]);
+	}
+
+	public void testCalendarIsHonored() throws Exception {
+		final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		Object[] r = mapView(new RowMapper<Object[]>() {
+			public Object[] mapRow(ResultSet rs) throws SQLException {
+				return new Object[] { rs.getTimestamp(1, utc),
+						rs.getDate(2, utc) };
+			}
+		}, Timestamp.valueOf("2020-01-02 03:04:05"), Date.valueOf("2020-01-02"));
+		long expected = LocalDateTime.of(2020, 1, 2, 3, 4, 5)
+				.toInstant(ZoneOffset.UTC).toEpochMilli();
+		assertEquals(expected, ((Timestamp) r[0]).getTime());
+		assertEquals(LocalDateTime.of(2020, 1, 2, 0, 0).toInstant(
+				ZoneOffset.UTC).toEpochMilli(), ((Date) r[1]).getTime());
+	}
+
+	public void testUnsupportedConversionsFail() throws Exception {
+		final RowMapper<Object> timeOfDate = new RowMapper<Object>() {
+			public Object mapRow(ResultSet rs) throws SQLException {
+				return rs.getTime(1);
+			}
+		};
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				mapView(timeOfDate, Date.valueOf("2020-01-02"));
+			}
+		});
+		final RowMapper<Object> string = new RowMapper<Object>() {
+			public Object mapRow(ResultSet rs) throws SQLException {
+				return rs.getString(1);
+			}
+		};
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				mapView(string, (Object) new byte[] { 1 });
+			}
+		});
+		final RowMapper<Object> integer = new RowMapper<Object>() {
+			public Object mapRow(ResultSet rs) throws SQLException {
+				return rs.getInt(1);
+			}
+		};
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				mapView(integer, Long.MAX_VALUE);
+			}
+		});
+		assertEquals("22003", e.getSQLState());
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				mapView(integer, "one");
+			}
+		});
+	}
+
+	public void testLobsAreCopiedOnTheFetchingThread() throws Exception {
+		final SerialBlob blob = new SerialBlob("doc".getBytes("UTF-8"));
+		Object[] r = mapView(new RowMapper<Object[]>() {
+			public Object[] mapRow(ResultSet rs) throws SQLException {
+				return new Object[] { rs.getBytes(1), rs.getBlob(1) };
+			}
+		}, blob);
+		assertEquals("doc", new String((byte[]) r[0], "UTF-8"));
+		assertTrue("copy", r[1] != blob);
+		// the driver's LOB was released once copied
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				blob.length();
+			}
+		});
+	}
+
+	public void testStreamsAreRejected() throws Exception {
+		final RowMapper<Object> any = new RowMapper<Object>() {
+			public Object mapRow(ResultSet rs) throws SQLException {
+				return rs.getObject(1);
+			}
+		};
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				mapView(any, new ByteArrayInputStream(new byte[1]));
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("Not supported"));
+		assertEquals(Arrays.asList(1), Arrays.asList(mapView(any, 1)));
+	}
+}
@@ -0,0 +1,118 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class QueryInterceptorsTest {
+
+	static class OtherDao {
+	}
+
+	/**
+	 * records the outcome of every query.
+	 */
+	static class Recorder extends QueryInterceptorAdapter {
+		final List<Object> outcomes = Collections.synchronizedList(new ArrayList<Object>());
+
+		@Override
+		public void afterCompletion(QueryContext ctx, Object result,
+				SQLException error) {
+			outcomes.add(error != null ? error : ctx.getResources().getName());
+		}
+	}
+
+	private final Recorder recorder = new Recorder();
+	private final FakeDatabase db = new FakeDatabase() {
+		@Override
+		protected Rows query(Call call) {
+			return new Rows("v").add(1);
+		}
+	};
+
+	public void tearDown() {
+		QueryInterceptors.unregister(recorder);
+	}
+
+	public void testClassRegistrationDoesNotLeakToSameKeyOfOtherClass()
+			throws Exception {
+		QueryInterceptors.register(resources, "select", recorder);
+		BaseDAO dao = new BaseDAO(db);
+		dao.query(integerRowMapper, new ClassResources(OtherDao.class), "select");
+		assertEquals(0, recorder.outcomes.size());
+		dao.query(integerRowMapper, resources, "select", 1);
+		assertEquals(1, recorder.outcomes.size());
+		assertEquals(resources.getName(), recorder.outcomes.get(0));
+	}
+
+	public void testKeyRegistrationAppliesToAllClasses() throws Exception {
+		QueryInterceptors.register("select", recorder);
+		BaseDAO dao = new BaseDAO(db);
+		dao.query(integerRowMapper, new ClassResources(OtherDao.class), "select");
+		dao.query(integerRowMapper, resources, "select", 1);
+		assertEquals(2, recorder.outcomes.size());
+	}
+
+	public void testMapperExceptionIsReportedAsFailure() throws Exception {
+		QueryInterceptors.register(recorder);
+		final IllegalStateException error = new IllegalStateException("mapper");
+		final RowMapper<Integer> failing = new RowMapper<Integer>() {
+			public Integer mapRow(ResultSet rs) {
+				throw error;
+			}
+		};
+		final BaseDAO dao = new BaseDAO(db);
+		assertSame(error, expect(IllegalStateException.class, new Block() {
+			public void run() throws Exception {
+				dao.query(failing, resources, "select", 1);
+			}
+		}));
+		assertEquals(1, recorder.outcomes.size());
+		SQLException reported = (SQLException) recorder.outcomes.get(0);
+		assertSame(error, reported.getCause());
+		assertEquals(0, db.open());
+	}
+
+	public void testCloseFailureAfterCompletionIsNotReportedTwice()
+			throws Exception {
+		QueryInterceptors.register(recorder);
+		FakeDatabase failingClose = new FakeDatabase() {
+			@Override
+			protected void onResultSet(String method) throws SQLException {
+				if (method.equals("close"))
+					throw new SQLException("close failed");
+			}
+		};
+		final BaseDAO dao = new BaseDAO(failingClose);
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.query(integerRowMapper, resources, "select", 1);
+			}
+		});
+		assertEquals(1, recorder.outcomes.size());
+	}
+
+	public void testNoContextWithoutInterceptors() {
+		assertNull(QueryInterceptors.newContext(resources, "select", null));
+		assertTrue("empty chain",
+				QueryInterceptors.getChain(resources, "select").length == 0);
+	}
+}
@@ -0,0 +1,235 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.db.util.GenericMappers.stringRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class QueryPipelineTest {
+
+	static class PipeDao {
+	}
+
+	static class TightPipeDao {
+	}
+
+	/**
+	 * answers the user and orders queries, one by one or joined.
+	 */
+	static class PipeDatabase extends FakeDatabase {
+		boolean failJoined;
+		boolean failOrders;
+		int inFlight = -1;
+
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			inFlight = ConcurrencyLimiter.forKey(pipe, "user").getInFlight();
+			boolean joined = call.sql.contains(";");
+			if (joined && failJoined)
+				throw new SQLException("syntax error at ';'");
+			if (!joined && failOrders && call.sql.contains("orders"))
+				throw new SQLException("orders failed");
+			Rows user = new Rows("name").add("ann");
+			Rows orders = new Rows("id").add(1).add(2);
+			if (joined)
+				return user.then(orders);
+			return call.sql.contains("orders") ? orders : user;
+		}
+	}
+
+	/**
+	 * records the completed queries and rewrites the parameter of user.
+	 */
+	static class Recorder extends QueryInterceptorAdapter {
+		final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void beforePrepare(QueryContext ctx) {
+			if (ctx.getSqlKey().equals("user"))
+				ctx.setParams(new Object[] { 8 });
+		}
+
+		@Override
+		public void afterCompletion(QueryContext ctx, Object result,
+				SQLException error) {
+			completed.add(ctx.getSqlKey() + (error == null ? ":" + ctx.getRows() : ":failed"));
+		}
+	}
+
+	static final ClassResources pipe = new ClassResources(PipeDao.class);
+
+	private final PipeDatabase db = new PipeDatabase();
+	private final BaseDAO dao = new BaseDAO(db);
+	private final Recorder recorder = new Recorder();
+
+	public void tearDown() {
+		QueryInterceptors.unregister(recorder);
+	}
+
+	public void testQueriesRunOneByOneByDefault() throws Exception {
+		QueryPipeline pipeline = dao.pipeline();
+		QueryPipeline.Result<String> a = pipeline.addForObject(stringRowMapper,
+				TestQueries.resources, "select", 1);
+		QueryPipeline.Result<List<String>> b = pipeline.add(stringRowMapper,
+				TestQueries.resources, "select", 2);
+		pipeline.execute();
+		assertEquals(2, db.calls().size());
+		assertEquals("ann", a.get());
+		assertEquals(Arrays.asList("ann"), b.get());
+		assertEquals(0, db.open());
+	}
+
+	public void testEnabledQueriesAreJoined() throws Exception {
+		QueryPipeline pipeline = dao.pipeline();
+		QueryPipeline.Result<String> user = pipeline.addForObject(stringRowMapper,
+				pipe, "user", 7);
+		QueryPipeline.Result<List<Integer>> orders = pipeline.add(integerRowMapper,
+				pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals(1, db.calls().size());
+		assertEquals(Arrays.asList(7, 7), Arrays.asList(db.calls().get(0).params()));
+		assertEquals("ann", user.get());
+		assertEquals(Arrays.asList(1, 2), orders.get());
+	}
+
+	public void testDriverWithoutMultipleResultSetsRunsOneByOne()
+			throws Exception {
+		db.setMultipleResultSets(false);
+		QueryPipeline pipeline = dao.pipeline();
+		pipeline.addForObject(stringRowMapper, pipe, "user", 7);
+		pipeline.add(integerRowMapper, pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals(2, db.calls().size());
+	}
+
+	public void testFailedJoinedStatementFallsBackToOneByOne() throws Exception {
+		db.failJoined = true;
+		QueryPipeline pipeline = dao.pipeline();
+		QueryPipeline.Result<String> user = pipeline.addForObject(stringRowMapper,
+				pipe, "user", 7);
+		QueryPipeline.Result<List<Integer>> orders = pipeline.add(integerRowMapper,
+				pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals(3, db.calls().size());
+		assertEquals("ann", user.get());
+		assertEquals(Arrays.asList(1, 2), orders.get());
+		assertEquals(0, db.open());
+	}
+
+	public void testFallbackFailureKeepsTheJoinedError() throws Exception {
+		db.failJoined = true;
+		db.failOrders = true;
+		QueryPipeline pipeline = dao.pipeline();
+		final QueryPipeline.Result<String> user = pipeline.addForObject(
+				stringRowMapper, pipe, "user", 7);
+		pipeline.add(integerRowMapper, pipe, "orders", 7);
+		final QueryPipeline p = pipeline;
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				p.execute();
+			}
+		});
+		assertEquals("orders failed", e.getMessage());
+		assertEquals(1, e.getSuppressed().length);
+		assertEquals("syntax error at ';'", e.getSuppressed()[0].getMessage());
+		assertEquals("ann", user.get());
+		assertEquals(0, ConcurrencyLimiter.forKey(pipe, "user").getInFlight());
+	}
+
+	public void testInterceptorsApplyToJoinedQueries() throws Exception {
+		QueryInterceptors.register(pipe, "user", recorder);
+		QueryInterceptors.register(pipe, "orders", recorder);
+		QueryPipeline pipeline = dao.pipeline();
+		pipeline.addForObject(stringRowMapper, pipe, "user", 7);
+		pipeline.add(integerRowMapper, pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals(1, db.calls().size());
+		assertEquals(Arrays.asList(8, 7), Arrays.asList(db.calls().get(0).params()));
+		assertEquals(Arrays.asList("user:1", "orders:2"), recorder.completed);
+	}
+
+	public void testInterceptorsSeeTheFailedJoinedStatement() throws Exception {
+		db.failJoined = true;
+		QueryInterceptors.register(pipe, "orders", recorder);
+		QueryPipeline pipeline = dao.pipeline();
+		pipeline.addForObject(stringRowMapper, pipe, "user", 7);
+		pipeline.add(integerRowMapper, pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals(Arrays.asList("orders:failed", "orders:2"), recorder.completed);
+	}
+
+	public void testLimitIsHeldOnceWhileJoinedStatementRuns() throws Exception {
+		QueryPipeline pipeline = dao.pipeline();
+		pipeline.addForObject(stringRowMapper, pipe, "user", 7);
+		pipeline.add(integerRowMapper, pipe, "orders", 7);
+		pipeline.execute();
+		// both keys share the class limit, taken once
+		assertEquals(1, db.inFlight);
+		assertEquals(0, ConcurrencyLimiter.forKey(pipe, "user").getInFlight());
+	}
+
+	public void testBusyLimitRunsQueriesOneByOne() throws Exception {
+		ClassResources tight = new ClassResources(TightPipeDao.class);
+		QueryInterceptors.register(tight, "user", recorder);
+		QueryInterceptors.register(tight, "orders", recorder);
+		QueryPipeline pipeline = dao.pipeline();
+		QueryPipeline.Result<String> user = pipeline.addForObject(
+				stringRowMapper, tight, "user", 7);
+		QueryPipeline.Result<List<Integer>> orders = pipeline.add(
+				integerRowMapper, tight, "orders", 7);
+		pipeline.execute();
+		// both keys take a permit of the class limit of 1, which the joined
+		// statement can't hold twice
+		assertEquals(2, db.calls().size());
+		assertEquals("ann", user.get());
+		assertEquals(Arrays.asList(1, 2), orders.get());
+		assertEquals(Arrays.asList("user:1", "orders:2"), recorder.completed);
+		assertEquals(0, ConcurrencyLimiter.forKey(tight, "user").getInFlight());
+		assertEquals(0, ConcurrencyLimiter.forKey(tight, "orders").getInFlight());
+	}
+
+	public void testFetchSizeOfEachJoinedQuery() throws Exception {
+		RowMapper<Integer> fetchSize = new RowMapper<Integer>() {
+			public Integer mapRow(ResultSet rs) throws SQLException {
+				return rs.getFetchSize();
+			}
+		};
+		QueryPipeline pipeline = dao.pipeline();
+		pipeline.addForObject(stringRowMapper, pipe, "user", 7);
+		QueryPipeline.Result<Integer> orders = pipeline.addForObject(fetchSize,
+				pipe, "orders", 7);
+		pipeline.execute();
+		assertEquals((Integer) 250, orders.get());
+	}
+
+	public void testResultOfQueryWhichDidNotRun() throws Exception {
+		QueryPipeline pipeline = dao.pipeline();
+		final QueryPipeline.Result<String> user = pipeline.addForObject(
+				stringRowMapper, pipe, "user", 7);
+		IllegalStateException e = expect(IllegalStateException.class, new Block() {
+			public void run() {
+				user.get();
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("user"));
+		pipeline.execute();
+		assertSame("ann", user.get());
+	}
+}
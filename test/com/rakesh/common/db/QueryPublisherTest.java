@@ -0,0 +1,204 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class QueryPublisherTest {
+
+	static class AdaptiveDao {
+	}
+
+	/**
+	 * subscriber which records the signals, and requests nothing by itself.
+	 */
+	static class Recorder<T> implements Flow.Subscriber<T> {
+		Flow.Subscription subscription;
+		final List<T> items = new ArrayList<T>();
+		Throwable error;
+		boolean completed;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		public void onNext(T item) {
+			items.add(item);
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		public void onComplete() {
+			completed = true;
+		}
+	}
+
+	private final ClassResources limited = new ClassResources(
+			ConcurrencyLimiterTest.LimitedDao.class);
+	private final FakeDatabase db = new FakeDatabase() {
+		@Override
+		protected Rows query(Call call) {
+			return new Rows("v").add(1).add(2).add(3);
+		}
+	};
+	private final BaseDAO dao = new BaseDAO(db);
+
+	public void testRowsAreReadOnDemand() {
+		Recorder<Integer> s = new Recorder<Integer>();
+		dao.publish(integerRowMapper, limited, "a").subscribe(s);
+		assertEquals(0, db.opened());
+		s.subscription.request(2);
+		assertEquals(Arrays.asList(1, 2), s.items);
+		assertEquals(1, db.open());
+		s.subscription.request(Long.MAX_VALUE);
+		assertEquals(Arrays.asList(1, 2, 3), s.items);
+		assertTrue("completed", s.completed);
+		assertEquals(0, db.open());
+	}
+
+	public void testAdaptiveFetchSizeLearnsPublishedRows() {
+		ClassResources adaptive = new ClassResources(AdaptiveDao.class);
+		Recorder<Integer> all = new Recorder<Integer>();
+		dao.publish(integerRowMapper, adaptive, "all").subscribe(all);
+		all.subscription.request(Long.MAX_VALUE);
+		// 3 rows expected, a quarter more and one for the end of results
+		assertEquals(5, FetchSizeTuner.forKey(adaptive, "all").adviseFetchSize());
+		Recorder<Integer> some = new Recorder<Integer>();
+		dao.publish(integerRowMapper, adaptive, "some").subscribe(some);
+		some.subscription.request(1);
+		some.subscription.cancel();
+		assertEquals(3, FetchSizeTuner.forKey(adaptive, "some").adviseFetchSize());
+	}
+
+	public void testMapperExceptionIsSignalledAndReleased() {
+		final IllegalStateException error = new IllegalStateException("mapper");
+		RowMapper<Integer> failing = new RowMapper<Integer>() {
+			public Integer mapRow(ResultSet rs) {
+				throw error;
+			}
+		};
+		Recorder<Integer> s = new Recorder<Integer>();
+		dao.publish(failing, limited, "a").subscribe(s);
+		s.subscription.request(1);
+		assertSame(error, s.error);
+		assertEquals(0, db.open());
+		assertEquals(0, ConcurrencyLimiter.forKey(limited, "a").getInFlight());
+	}
+
+	public void testOnNextExceptionCancels() {
+		Recorder<Integer> s = new Recorder<Integer>() {
+			@Override
+			public void onNext(Integer item) {
+				super.onNext(item);
+				throw new IllegalStateException("subscriber");
+			}
+		};
+		dao.publish(integerRowMapper, limited, "a").subscribe(s);
+		s.subscription.request(3);
+		assertEquals(Arrays.asList(1), s.items);
+		assertNull(s.error);
+		assertEquals(0, db.open());
+		assertEquals(0, ConcurrencyLimiter.forKey(limited, "a").getInFlight());
+		// the subscription is over
+		s.subscription.request(1);
+		assertEquals(1, s.items.size());
+	}
+
+	public void testNonPositiveRequestIsIllegalArgument() {
+		Recorder<Integer> s = new Recorder<Integer>();
+		dao.publish(integerRowMapper, limited, "a").subscribe(s);
+		s.subscription.request(1);
+		s.subscription.request(0);
+		assertTrue("rule 3.9: " + s.error,
+				s.error instanceof IllegalArgumentException);
+		assertEquals(0, db.open());
+	}
+
+	public void testSubscribeAfterFinishFails() throws SQLException {
+		BaseDAO rw = new BaseDAO(db, false);
+		TransactionManager trans = TransactionManager.start(rw);
+		QueryPublisher<Integer> publisher = rw.publish(integerRowMapper,
+				limited, "a");
+		trans.finish();
+		Recorder<Integer> s = new Recorder<Integer>();
+		publisher.subscribe(s);
+		s.subscription.request(1);
+		assertTrue("error: " + s.error, s.error instanceof SQLException);
+		assertEquals(0, db.opened());
+	}
+
+	public void testReadAfterFinishFails() throws SQLException {
+		BaseDAO rw = new BaseDAO(db, false);
+		TransactionManager trans = TransactionManager.start(rw);
+		Recorder<Integer> s = new Recorder<Integer>();
+		rw.publish(integerRowMapper, limited, "a").subscribe(s);
+		s.subscription.request(1);
+		trans.finish();
+		s.subscription.request(1);
+		assertEquals(Arrays.asList(1), s.items);
+		assertTrue("error: " + s.error, s.error instanceof SQLException);
+		assertEquals(0, db.open());
+		assertEquals(0, ConcurrencyLimiter.forKey(limited, "a").getInFlight());
+	}
+
+	public void testReadWaitsForTheCallsOfTheTransaction() throws Exception {
+		BaseDAO rw = new BaseDAO(db, false);
+		TransactionManager trans = TransactionManager.start(rw);
+		final TransactionContext ctx = trans.getContext();
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		// another thread of the transaction holds the connection
+		Thread holder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ctx.acquire();
+				} catch (SQLException e) {
+					return;
+				}
+				held.countDown();
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					// ends the call
+				} finally {
+					ctx.exit();
+				}
+			}
+		};
+		holder.start();
+		try {
+			held.await();
+			ctx.setTimeout(200);
+			Recorder<Integer> s = new Recorder<Integer>();
+			rw.publish(integerRowMapper, limited, "a").subscribe(s);
+			s.subscription.request(1);
+			assertTrue("error: " + s.error, s.error instanceof SQLTimeoutException);
+			assertEquals(0, db.calls().size());
+		} finally {
+			done.countDown();
+			holder.join();
+			trans.finish();
+		}
+	}
+}
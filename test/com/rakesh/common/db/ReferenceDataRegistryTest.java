@@ -0,0 +1,96 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+
+import com.rakesh.common.db.ReferenceTableTest.RefDatabase;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase.Rows;
+
+/**
+ * @author rakesh
+ */
+public class ReferenceDataRegistryTest {
+
+	private final RefDatabase db = new RefDatabase();
+	private final ReferenceDataRegistry registry = new ReferenceDataRegistry();
+
+	public void setUp() {
+		db.currencies.add(1L, 91L, "INR");
+	}
+
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	private ReferenceTable<String> newTable() {
+		return new ReferenceTable<String>(new BaseDAO(db),
+				ReferenceTableTest.resources, "all",
+				ReferenceTableTest.nameMapper, ReferenceTableTest.idKey);
+	}
+
+	public void testRegisterLoadsTable() throws SQLException {
+		ReferenceTable<String> table = registry.register("currencies",
+				newTable(), 0);
+		assertSame(table, registry.get("currencies"));
+		assertEquals("1:91:INR", table.get(1));
+		assertNull(registry.get("countries"));
+	}
+
+	public void testFailedFirstLoadFailsRegistration() {
+		db.down = true;
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				registry.register("currencies", newTable(), 0);
+			}
+		});
+		assertNull(registry.get("currencies"));
+	}
+
+	public void testDuplicateNameIsRejected() throws SQLException {
+		registry.register("currencies", newTable(), 0);
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() throws Exception {
+				registry.register("currencies", newTable(), 0);
+			}
+		});
+	}
+
+	public void testFailedRefreshKeepsServing() throws SQLException {
+		ReferenceTable<String> table = registry.register("currencies",
+				newTable(), 0);
+		db.down = true;
+		registry.refreshAll();
+		assertEquals("1:91:INR", table.get(1));
+		db.down = false;
+		db.currencies = new Rows("id", "country", "name").add(2L, 1L, "USD");
+		registry.refreshAll();
+		assertNull(table.get(1));
+		assertEquals("2:1:USD", table.get(2));
+	}
+
+	public void testTableIsRefreshedInBackground()
+			throws SQLException, InterruptedException {
+		ReferenceTable<String> table = registry.register("currencies",
+				newTable(), 10);
+		db.currencies = new Rows("id", "country", "name").add(2L, 1L, "USD");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (table.get(2) == null && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals("2:1:USD", table.get(2));
+	}
+
+	public void testShutdownStopsRefresh() throws SQLException,
+			InterruptedException {
+		registry.register("currencies", newTable(), 10);
+		registry.shutdown();
+		Thread.sleep(20);
+		int loads = db.loads;
+		Thread.sleep(50);
+		assertEquals(loads, db.loads);
+	}
+}
@@ -0,0 +1,162 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.rakesh.common.db.util.GenericMappers.RowMapper;
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.test.FakeDatabase.Rows;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class ReferenceTableTest {
+
+	static class RefDao {
+	}
+
+	/**
+	 * database serving the rows and version set by the test.
+	 */
+	static class RefDatabase extends FakeDatabase {
+		volatile Rows currencies = new Rows("id", "country", "name");
+		volatile String version = "1";
+		volatile boolean down;
+		volatile int loads;
+
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			if (down)
+				throw new SQLException("database down");
+			if (call.sql.contains("max("))
+				return new Rows("v").add(version);
+			loads++;
+			return currencies;
+		}
+	}
+
+	static final RowMapper<String> nameMapper = new RowMapper<String>() {
+		public String mapRow(ResultSet rs) throws SQLException {
+			return rs.getLong("id") + ":" + rs.getLong("country") + ":"
+					+ rs.getString("name");
+		}
+	};
+
+	static final ReferenceTable.KeyExtractor<String> idKey = new ReferenceTable.KeyExtractor<String>() {
+		public long getKey(String row) {
+			return Long.parseLong(row.split(":")[0]);
+		}
+	};
+
+	static final ReferenceTable.KeyExtractor<String> countryKey = new ReferenceTable.KeyExtractor<String>() {
+		public long getKey(String row) {
+			return Long.parseLong(row.split(":")[1]);
+		}
+	};
+
+	static final ClassResources resources = new ClassResources(RefDao.class);
+
+	private final RefDatabase db = new RefDatabase();
+	private final ReferenceTable<String> table = new ReferenceTable<String>(
+			new BaseDAO(db), resources, "all", nameMapper, idKey);
+
+	public void setUp() {
+		db.currencies.add(1L, 91L, "INR").add(2L, 1L, "USD")
+				.add(3L, 91L, "XAU");
+	}
+
+	public void testLookupsByPrimaryAndSecondaryKey() throws SQLException {
+		int byCountry = table.addIndex(countryKey);
+		assertTrue("loaded", table.refresh());
+		assertEquals("2:1:USD", table.get(2));
+		assertNull(table.get(4));
+		assertEquals(Arrays.asList("1:91:INR", "3:91:XAU"),
+				table.getAll(byCountry, 91));
+		assertEquals("1:91:INR", table.getFirst(byCountry, 91));
+		assertEquals(Collections.emptyList(), table.getAll(byCountry, 44));
+		assertNull(table.getFirst(byCountry, 44));
+		assertEquals(3, table.getRows().size());
+		assertEquals(0, db.open());
+	}
+
+	public void testLookupBeforeLoadFails() {
+		expect(IllegalStateException.class, new Block() {
+			public void run() {
+				table.get(1);
+			}
+		});
+		assertFalse("loaded", table.isLoaded());
+	}
+
+	public void testIndexAfterLoadIsRejected() throws SQLException {
+		table.refresh();
+		expect(IllegalStateException.class, new Block() {
+			public void run() {
+				table.addIndex(countryKey);
+			}
+		});
+	}
+
+	public void testRowsAreReadOnly() throws SQLException {
+		table.refresh();
+		expect(UnsupportedOperationException.class, new Block() {
+			public void run() {
+				table.getRows().set(0, "x");
+			}
+		});
+	}
+
+	public void testSameVersionIsNotReloaded() throws SQLException {
+		table.setVersionSqlKey("version");
+		assertTrue("first load", table.refresh());
+		assertFalse("same version", table.refresh());
+		assertEquals(1, db.loads);
+		db.currencies = new Rows("id", "country", "name").add(5L, 49L, "EUR");
+		db.version = "2";
+		assertTrue("new version", table.refresh());
+		assertEquals("5:49:EUR", table.get(5));
+		assertNull(table.get(1));
+	}
+
+	public void testFailedRefreshKeepsRows() throws SQLException {
+		table.refresh();
+		db.down = true;
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				table.refresh();
+			}
+		});
+		assertEquals("1:91:INR", table.get(1));
+		assertEquals(0, db.open());
+	}
+
+	public void testFailedKeyExtractorFailsLoad() {
+		db.currencies = new Rows("id", "country", "name").add(5L, 49L,
+				"EUR").add(6L, 1L, "US:D:X");
+		final ReferenceTable<String> strict = new ReferenceTable<String>(
+				new BaseDAO(db), resources, "all", nameMapper,
+				new ReferenceTable.KeyExtractor<String>() {
+					public long getKey(String row) {
+						if (row.split(":").length > 3)
+							throw new IllegalArgumentException(row);
+						return idKey.getKey(row);
+					}
+				});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() throws Exception {
+				strict.refresh();
+			}
+		});
+		assertFalse("loaded", strict.isLoaded());
+	}
+}
@@ -0,0 +1,103 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class ShardRouterTest {
+
+	private final DataSource[] shards = { new FakeDatabase(),
+			new FakeDatabase(), new FakeDatabase() };
+
+	public void testConsistentHashIsStableAndUsesAllShards() {
+		ShardRouter router = ShardRouter.consistentHash(shards, 100);
+		ShardRouter same = ShardRouter.consistentHash(shards, 100);
+		int[] counts = new int[shards.length];
+		for (long key = 0; key < 3000; key++) {
+			int shard = router.shardFor(key);
+			assertEquals(shard, same.shardFor(key));
+			counts[shard]++;
+		}
+		for (int count : counts)
+			assertTrue("spread " + count, count > 500);
+		// numbers route by value
+		assertEquals(router.shardFor(42L), router.shardFor(42));
+	}
+
+	public void testRangesRouteByLowerBound() {
+		ShardRouter router = ShardRouter.ranges(shards, new Integer[] { 100,
+				200 });
+		assertEquals(0, router.shardFor(-5));
+		assertEquals(0, router.shardFor(99));
+		assertEquals(1, router.shardFor(100));
+		assertEquals(2, router.shardFor(1000));
+	}
+
+	public void testInvalidVirtualNodesAreRejected() {
+		IllegalArgumentException e = expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.consistentHash(shards, 0);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("virtualNodes"));
+	}
+
+	public void testMissingShardsAreRejected() {
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.consistentHash(null, 100);
+			}
+		});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.consistentHash(new DataSource[0], 100);
+			}
+		});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.ranges(null, new Integer[0]);
+			}
+		});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.ranges(new DataSource[] { shards[0], null },
+						new Integer[] { 1 });
+			}
+		});
+	}
+
+	public void testBoundsMustMatchShards() {
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.ranges(shards, null);
+			}
+		});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.ranges(shards, new Integer[] { 1 });
+			}
+		});
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				ShardRouter.ranges(shards, new Integer[] { 1, null });
+			}
+		});
+	}
+
+	public void testNullKeyIsRejected() {
+		final ShardRouter router = ShardRouter.consistentHash(shards, 10);
+		expect(IllegalArgumentException.class, new Block() {
+			public void run() {
+				router.shardFor(null);
+			}
+		});
+	}
+}
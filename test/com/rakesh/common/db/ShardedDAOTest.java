@@ -0,0 +1,182 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class ShardedDAOTest {
+
+	/**
+	 * shard returning its own number as the only row.
+	 */
+	static class Shard extends FakeDatabase {
+		final int number;
+
+		Shard(int number) {
+			this.number = number;
+		}
+
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			return new Rows("v").add(number);
+		}
+	}
+
+	static class OrderDao extends ShardedDAO {
+		OrderDao(ShardRouter router) {
+			super(router, false, null);
+		}
+
+		Integer find(int id) throws SQLException {
+			return queryForInt(TestQueries.resources, "select", id);
+		}
+
+		List<Integer> list() throws SQLException {
+			return query(integerRowMapper, TestQueries.resources, "select", 1);
+		}
+
+		int change(int id) throws SQLException {
+			return update(TestQueries.resources, "upd", 1, id);
+		}
+
+		List<Integer> findAll(int limit) throws SQLException {
+			return queryAllShards(integerRowMapper, TestQueries.resources,
+					"select", Collections.<Integer> reverseOrder(), limit, 1);
+		}
+	}
+
+	private final Shard[] shards = { new Shard(0), new Shard(1) };
+	// keys below 100 are on shard 0, the others on shard 1
+	private final OrderDao dao = new OrderDao(ShardRouter.ranges(
+			new DataSource[] { shards[0], shards[1] }, new Integer[] { 100 }));
+
+	public void tearDown() {
+		ShardedDAO.clearShardKey();
+	}
+
+	public void testKeyedCallsAreRouted() throws SQLException {
+		ShardedDAO.setShardKey(5);
+		assertEquals((Integer) 0, dao.find(5));
+		ShardedDAO.setShardKey(500);
+		assertEquals((Integer) 1, dao.find(500));
+		assertEquals(0, shards[0].open() + shards[1].open());
+	}
+
+	public void testUpdateWithoutKeyFails() {
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				dao.change(1);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("setShardKey"));
+	}
+
+	public void testReadsWithoutKeyRunOnAllShards() throws SQLException {
+		assertEquals((Integer) 0, dao.find(1));
+		assertEquals(Arrays.asList(0, 1), dao.list());
+		assertEquals(2, shards[1].calls().size());
+		assertEquals(0, shards[0].open() + shards[1].open());
+	}
+
+	public void testReadWithoutKeyFailsInTransaction() throws SQLException {
+		ShardedDAO.setShardKey(5);
+		TransactionManager trans = TransactionManager.start(dao);
+		try {
+			ShardedDAO.clearShardKey();
+			SQLException e = expect(SQLException.class, new Block() {
+				public void run() throws Exception {
+					dao.find(1);
+				}
+			});
+			assertTrue(e.getMessage(), e.getMessage().contains("setShardKey"));
+		} finally {
+			trans.finish();
+		}
+	}
+
+	public void testTransactionStaysOnItsShard() throws SQLException {
+		ShardedDAO.setShardKey(5);
+		TransactionManager trans = TransactionManager.start(dao);
+		try {
+			assertEquals((Integer) 0, dao.find(5));
+			ShardedDAO.setShardKey(7);
+			assertEquals((Integer) 0, dao.find(7));
+			trans.commit();
+		} finally {
+			trans.finish();
+		}
+		assertEquals(1, shards[0].opened());
+		assertEquals(0, shards[1].opened());
+	}
+
+	public void testKeyOfAnotherShardFailsInTransaction() throws SQLException {
+		ShardedDAO.setShardKey(5);
+		TransactionManager trans = TransactionManager.start(dao);
+		try {
+			dao.find(5);
+			ShardedDAO.setShardKey(500);
+			SQLException e = expect(SQLException.class, new Block() {
+				public void run() throws Exception {
+					dao.find(500);
+				}
+			});
+			assertTrue(e.getMessage(), e.getMessage().contains("pinned"));
+			// the transaction can go on with keys of its shard
+			ShardedDAO.setShardKey(6);
+			assertEquals((Integer) 0, dao.find(6));
+		} finally {
+			trans.finish();
+		}
+		assertEquals(0, shards[1].calls().size());
+	}
+
+	public void testQueryAllShardsMergesInOrder() throws SQLException {
+		assertEquals(Arrays.asList(1, 0), dao.findAll(0));
+		assertEquals(Arrays.asList(1), dao.findAll(1));
+		assertEquals(0, shards[0].open() + shards[1].open());
+	}
+
+	public void testQueryAllShardsFailsInTransaction() throws SQLException {
+		ShardedDAO.setShardKey(5);
+		TransactionManager trans = TransactionManager.start(dao);
+		try {
+			expect(SQLException.class, new Block() {
+				public void run() throws Exception {
+					dao.findAll(0);
+				}
+			});
+		} finally {
+			trans.finish();
+		}
+	}
+
+	public void testFailedShardFailsTheQuery() {
+		final OrderDao failing = new OrderDao(ShardRouter.ranges(
+				new DataSource[] { shards[0], new Shard(1) {
+					@Override
+					protected Rows query(Call call) throws SQLException {
+						throw new SQLException("shard down");
+					}
+				} }, new Integer[] { 100 }));
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				failing.findAll(0);
+			}
+		});
+		assertEquals("shard down", e.getMessage());
+	}
+}
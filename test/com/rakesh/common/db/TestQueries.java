@@ -0,0 +1,17 @@
+package com.rakesh.common.db;
+
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * queries of TestQueries.properties shared by the tests which don't need DAO
+ * options.
+ * 
+ * @author rakesh
+ */
+public class TestQueries {
+
+	public static final ClassResources resources = new ClassResources(TestQueries.class);
+
+	private TestQueries() {
+	}
+}
@@ -0,0 +1,154 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.TestQueries.resources;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class TransactionContextTest {
+
+	/**
+	 * database whose queries wait for the gate while it is closed.
+	 */
+	static class Database extends FakeDatabase {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		volatile boolean blocking;
+
+		@Override
+		protected Rows query(Call call) throws SQLException {
+			if (blocking) {
+				entered.countDown();
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new SQLException(e);
+				}
+			}
+			return new Rows("v").add(1);
+		}
+	}
+
+	private final Database db = new Database();
+	private final BaseDAO dao = new BaseDAO(db, false);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private TransactionManager trans;
+	private TransactionContext ctx;
+
+	public void setUp() {
+		trans = TransactionManager.start(dao);
+		ctx = trans.getContext();
+	}
+
+	public void tearDown() throws SQLException {
+		db.gate.countDown();
+		executor.shutdownNow();
+		if (!trans.isFinished())
+			trans.finish();
+	}
+
+	private Callable<Integer> select() {
+		return new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				return dao.queryForInt(resources, "select", 1);
+			}
+		};
+	}
+
+	/**
+	 * starts a query of the transaction on another thread which holds the
+	 * connection till the gate opens.
+	 */
+	private Future<Integer> blockedCall() throws InterruptedException {
+		db.blocking = true;
+		Future<Integer> f = executor.submit(ctx.wrap(select()));
+		assertTrue("entered", db.entered.await(5, TimeUnit.SECONDS));
+		return f;
+	}
+
+	public void testCommitWaitsForRunningCalls() throws Exception {
+		Future<Integer> call = blockedCall();
+		Future<?> commit = executor.submit(new Callable<Void>() {
+			public Void call() throws SQLException {
+				trans.commit();
+				return null;
+			}
+		});
+		Thread.sleep(100);
+		assertFalse("commit waits", commit.isDone());
+		assertEquals(0, db.commits());
+		db.gate.countDown();
+		assertEquals((Integer) 1, call.get(5, TimeUnit.SECONDS));
+		commit.get(5, TimeUnit.SECONDS);
+		assertEquals(1, db.commits());
+	}
+
+	public void testCallsFailAfterFinish() throws Exception {
+		dao.queryForInt(resources, "select", 1);
+		trans.finish();
+		assertTrue("closed", ctx.isClosed());
+		Exception e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				ctx.call(select());
+			}
+		});
+		assertEquals("Transaction is finished", e.getMessage());
+		// no new connection is opened for the finished transaction
+		assertEquals(1, db.opened());
+		assertEquals(0, db.open());
+	}
+
+	public void testWaitForTheConnectionEndsAtTheDeadline() throws Exception {
+		blockedCall();
+		ctx.setTimeout(200);
+		long t = System.nanoTime();
+		expect(SQLTimeoutException.class, new Block() {
+			public void run() throws Exception {
+				dao.queryForInt(resources, "select", 2);
+			}
+		});
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t);
+		assertTrue("waited " + waited, waited >= 150 && waited < 3000);
+	}
+
+	public void testStatementsGetTheRemainingTimeAsQueryTimeout()
+			throws Exception {
+		ctx.setTimeout(10000);
+		dao.queryForInt(resources, "select", 1);
+		int timeout = db.calls().get(0).queryTimeout;
+		assertTrue("timeout " + timeout, timeout >= 9 && timeout <= 10);
+		ctx.setTimeout(0);
+		dao.queryForInt(resources, "select", 1);
+		assertEquals(0, db.calls().get(1).queryTimeout);
+	}
+
+	public void testRollbackIsNotBoundByTheDeadline() throws Exception {
+		dao.update(resources, "upd", "v", 1);
+		ctx.setTimeout(1);
+		Thread.sleep(10);
+		expect(SQLTimeoutException.class, new Block() {
+			public void run() throws Exception {
+				dao.update(resources, "upd", "v", 2);
+			}
+		});
+		trans.rollback();
+		assertEquals(1, db.rollbacks());
+		assertEquals(0, db.committed().size());
+	}
+}
@@ -0,0 +1,206 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertNull;
+import static com.rakesh.common.test.Assert.assertSame;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+
+/**
+ * @author rakesh
+ */
+public class TransactionRunnerTest {
+
+	/**
+	 * database whose first updates fail with the given error.
+	 */
+	static class FailingDatabase extends FakeDatabase {
+		final AtomicInteger failures;
+		final String sqlState;
+
+		FailingDatabase(int failures, String sqlState) {
+			this.failures = new AtomicInteger(failures);
+			this.sqlState = sqlState;
+		}
+
+		@Override
+		protected int update(Call call) throws SQLException {
+			if (failures.getAndDecrement() > 0)
+				throw new SQLException("failed", sqlState);
+			return 1;
+		}
+	}
+
+	private final AtomicInteger runs = new AtomicInteger();
+
+	private TransactionRunner runner(FakeDatabase db) {
+		TransactionRunner runner = new TransactionRunner(new BaseDAO(db, false));
+		runner.setDelays(0, 0);
+		return runner;
+	}
+
+	private TransactionCallback<Integer> work(final FakeDatabase db) {
+		return new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionManager trans)
+					throws SQLException {
+				runs.incrementAndGet();
+				return BaseDAOAccess.update(db, "upd", 1, 2);
+			}
+		};
+	}
+
+	public void testDeadlockIsRetried() throws SQLException {
+		FailingDatabase db = new FailingDatabase(2, "40001");
+		TransactionRunner runner = runner(db);
+		assertEquals((Integer) 1, runner.run(work(db)));
+		assertEquals(3, runs.get());
+		assertEquals(2, runner.getRetryCount());
+		assertEquals(2, db.rollbacks());
+		assertEquals(1, db.commits());
+		assertEquals(0, db.open());
+		assertNull(TransactionManager.getCurrentTransaction());
+	}
+
+	public void testOtherErrorIsNotRetried() {
+		final FailingDatabase db = new FailingDatabase(1, "23000");
+		final TransactionRunner runner = runner(db);
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				runner.run(work(db));
+			}
+		});
+		assertEquals(1, runs.get());
+		assertEquals(1, runner.getFailureCount());
+		assertEquals(0, db.open());
+	}
+
+	public void testAttemptsAreLimited() {
+		final FailingDatabase db = new FailingDatabase(10, "40001");
+		final TransactionRunner runner = runner(db);
+		runner.setMaxAttempts(3);
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				runner.run(work(db));
+			}
+		});
+		assertEquals(3, runs.get());
+		assertEquals(1, runner.getExhaustedCount());
+	}
+
+	public void testEmptyBudgetStopsRetries() {
+		final FailingDatabase db = new FailingDatabase(100, "40001");
+		final TransactionRunner runner = runner(db);
+		runner.setRetryBudget(0, 1);
+		Block run = new Block() {
+			public void run() throws Exception {
+				runner.run(work(db));
+			}
+		};
+		// the starting budget of 10 retries is used up, nothing is added
+		for (int i = 0; i < 4; i++)
+			expect(SQLException.class, run);
+		assertEquals(10, runner.getRetryCount());
+		assertEquals(2, runner.getBudgetRejectedCount());
+		assertEquals(14, runs.get());
+	}
+
+	public void testFinishErrorIsSuppressed() {
+		final SQLException closeFailure = new SQLException("close failed");
+		final FailingDatabase db = new FailingDatabase(1, "23000") {
+			@Override
+			protected void onConnection(int connection, String method)
+					throws SQLException {
+				if (method.equals("close"))
+					throw closeFailure;
+			}
+		};
+		final TransactionRunner runner = runner(db);
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				runner.run(work(db));
+			}
+		});
+		assertEquals("failed", e.getMessage());
+		assertSame(closeFailure, e.getSuppressed()[0]);
+	}
+
+	public void testFinishErrorIsThrownAfterSuccess() {
+		final SQLException closeFailure = new SQLException("close failed");
+		final FakeDatabase db = new FakeDatabase() {
+			@Override
+			protected void onConnection(int connection, String method)
+					throws SQLException {
+				if (method.equals("close"))
+					throw closeFailure;
+			}
+		};
+		final TransactionRunner runner = runner(db);
+		SQLException e = expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				runner.run(work(db));
+			}
+		});
+		assertSame(closeFailure, e);
+	}
+
+	public void testRuntimeExceptionRollsBack() {
+		final FakeDatabase db = new FakeDatabase();
+		final TransactionRunner runner = runner(db);
+		final IllegalStateException error = new IllegalStateException();
+		IllegalStateException e = expect(IllegalStateException.class, new Block() {
+			public void run() throws Exception {
+				runner.run(new TransactionCallback<Void>() {
+					public Void doInTransaction(TransactionManager trans)
+							throws SQLException {
+						BaseDAOAccess.update(db, "upd", 1, 2);
+						throw error;
+					}
+				});
+			}
+		});
+		assertSame(error, e);
+		assertEquals(1, db.rollbacks());
+		assertEquals(0, db.committed().size());
+		assertEquals(0, db.open());
+	}
+
+	public void testNestedRunJoinsTransaction() throws SQLException {
+		final FakeDatabase db = new FakeDatabase();
+		final TransactionRunner runner = runner(db);
+		runner.run(new TransactionCallback<Void>() {
+			public Void doInTransaction(final TransactionManager outer)
+					throws SQLException {
+				runner.run(new TransactionCallback<Void>() {
+					public Void doInTransaction(TransactionManager inner) {
+						assertSame(outer, inner);
+						return null;
+					}
+				});
+				return null;
+			}
+		});
+		assertEquals(1, runner.getTransactionCount());
+	}
+
+	public void testBudgetDepositsAreCapped() {
+		TokenBudget budget = new TokenBudget(0.5, 2, 1);
+		assertTrue("starting token", budget.withdraw());
+		assertFalse("empty", budget.withdraw());
+		budget.deposit();
+		assertFalse("half a token", budget.withdraw());
+		budget.deposit();
+		assertTrue("one token", budget.withdraw());
+		for (int i = 0; i < 10; i++)
+			budget.deposit();
+		assertTrue("first of two", budget.withdraw());
+		assertTrue("second of two", budget.withdraw());
+		assertFalse("capped at two", budget.withdraw());
+	}
+}
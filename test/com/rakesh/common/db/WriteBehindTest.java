@@ -0,0 +1,212 @@
+package com.rakesh.common.db;
+
+import static com.rakesh.common.db.util.GenericMappers.integerRowMapper;
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertTrue;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.rakesh.common.test.Assert.Block;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.util.ClassResources;
+
+/**
+ * @author rakesh
+ */
+public class WriteBehindTest {
+
+	static class WriteDao {
+	}
+
+	/**
+	 * database whose updates fail for the id given to failOn.
+	 */
+	static class Database extends FakeDatabase {
+		volatile Object failOn;
+
+		@Override
+		protected Rows query(Call call) {
+			return new Rows("v").add(calls().size());
+		}
+
+		@Override
+		protected int update(Call call) throws SQLException {
+			if (failOn != null && failOn.equals(call.param(2)))
+				throw new SQLException("constraint violated", "23000");
+			return 1;
+		}
+	}
+
+	/**
+	 * adds 100 to the second parameter and records the outcomes.
+	 */
+	static class Shifter extends QueryInterceptorAdapter {
+		final List<Object> outcomes = Collections.synchronizedList(new ArrayList<Object>());
+		volatile boolean rewriteSql;
+
+		@Override
+		public void beforePrepare(QueryContext ctx) {
+			Object[] p = ctx.getParams().clone();
+			p[1] = (Integer) p[1] + 100;
+			ctx.setParams(p);
+			if (rewriteSql && (Integer) p[1] > 101)
+				ctx.setSql(ctx.getSql() + " and 1=1");
+		}
+
+		@Override
+		public void afterCompletion(QueryContext ctx, Object result,
+				SQLException error) {
+			outcomes.add(error != null ? error : result);
+		}
+	}
+
+	private static final ClassResources resources = new ClassResources(WriteDao.class);
+
+	private final Database db = new Database();
+	private final BaseDAO dao = new BaseDAO(db, false);
+	private final Shifter shifter = new Shifter();
+	private TransactionManager trans;
+
+	public void setUp() {
+		trans = TransactionManager.start(dao);
+		trans.enableWriteBehind(false);
+	}
+
+	public void tearDown() throws SQLException {
+		QueryInterceptors.unregister(shifter);
+		if (!trans.isFinished())
+			trans.finish();
+	}
+
+	private void write(int... ids) throws SQLException {
+		for (int id : ids)
+			dao.update(resources, "upd", "v", id);
+	}
+
+	public void testFailedFlushMakesTheTransactionRollbackOnly()
+			throws Exception {
+		db.failOn = 2;
+		write(1, 2, 3);
+		WriteBehindException e = expect(WriteBehindException.class, new Block() {
+			public void run() throws Exception {
+				trans.commit();
+			}
+		});
+		assertEquals(1, e.getPosition());
+		assertTrue("rollback-only", trans.isRollbackOnly());
+		// a second commit must not commit the first update alone
+		db.failOn = null;
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				trans.commit();
+			}
+		});
+		expect(SQLException.class, new Block() {
+			public void run() throws Exception {
+				write(4);
+			}
+		});
+		assertEquals(0, db.commits());
+		trans.rollback();
+		assertFalse("usable after rollback", trans.isRollbackOnly());
+		assertEquals(0, db.committed().size());
+		write(5);
+		trans.commit();
+		assertEquals(1, db.committed().size());
+		assertEquals(5, db.committed().get(0).param(2));
+	}
+
+	public void testUpdatesAfterTheFailedOneAreNotRun() throws Exception {
+		db.failOn = 1;
+		write(1);
+		dao.update(resources, "ins", 7);
+		expect(WriteBehindException.class, new Block() {
+			public void run() throws Exception {
+				trans.flush();
+			}
+		});
+		assertEquals(1, db.calls().size());
+		assertEquals(0, db.commits());
+	}
+
+	public void testRejectedFlushKeepsTheUpdatesQueued() throws Exception {
+		write(1, 2);
+		ConcurrencyLimiter limiter = ConcurrencyLimiter.forKey(resources, "upd");
+		long start = limiter.acquire();
+		try {
+			WriteBehindException e = expect(WriteBehindException.class, new Block() {
+				public void run() throws Exception {
+					trans.commit();
+				}
+			});
+			assertTrue("rejected",
+					e.getCause() instanceof AdmissionRejectedException);
+		} finally {
+			limiter.release(start);
+		}
+		assertFalse("nothing ran", trans.isRollbackOnly());
+		assertEquals(0, db.calls().size());
+		trans.commit();
+		assertEquals(2, db.committed().size());
+	}
+
+	public void testFlushBeforeReadFitsInTheLimitOfTheRead() throws Exception {
+		trans.enableWriteBehind(true);
+		write(1, 2);
+		// the select is the third call, after the flushed updates
+		assertEquals((Integer) 3, dao.queryForObject(integerRowMapper,
+				resources, "select", 1));
+	}
+
+	public void testCallRunsAfterTheQueuedUpdates() throws Exception {
+		write(1, 2);
+		dao.executeCall(resources, "call", 7);
+		assertEquals(3, db.calls().size());
+		assertEquals("{call p(?)}", db.calls().get(2).sql);
+		trans.commit();
+		assertEquals(3, db.calls().size());
+	}
+
+	public void testInterceptorsSeeEveryUpdateOfABatch() throws Exception {
+		QueryInterceptors.register(resources, "upd", shifter);
+		write(1, 2, 3);
+		trans.commit();
+		assertEquals(3, shifter.outcomes.size());
+		assertEquals(1, shifter.outcomes.get(0));
+		List<FakeDatabase.Call> committed = db.committed();
+		assertEquals(3, committed.size());
+		assertEquals(101, committed.get(0).param(2));
+		assertEquals(103, committed.get(2).param(2));
+	}
+
+	public void testInterceptorsSeeAFailedBatch() throws Exception {
+		QueryInterceptors.register(resources, "upd", shifter);
+		db.failOn = 102;
+		write(1, 2);
+		expect(WriteBehindException.class, new Block() {
+			public void run() throws Exception {
+				trans.commit();
+			}
+		});
+		assertEquals(2, shifter.outcomes.size());
+		assertTrue("failed", shifter.outcomes.get(1) instanceof SQLException);
+	}
+
+	public void testBatchRewrittenToDifferentStatementsFails() throws Exception {
+		QueryInterceptors.register(resources, "upd", shifter);
+		shifter.rewriteSql = true;
+		write(1, 2);
+		expect(WriteBehindException.class, new Block() {
+			public void run() throws Exception {
+				trans.commit();
+			}
+		});
+		assertEquals(0, db.calls().size());
+		assertTrue("rollback-only", trans.isRollbackOnly());
+	}
+}
@@ -0,0 +1,136 @@
+package com.rakesh.common.db.trace;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertFalse;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.rakesh.common.db.BaseDAOAccess;
+import com.rakesh.common.db.QueryInterceptors;
+import com.rakesh.common.test.FakeDatabase;
+import com.rakesh.common.test.FakeDatabase.Call;
+
+/**
+ * @author rakesh
+ */
+public class QueryTraceTest {
+
+	private File file;
+
+	public void setUp() throws Exception {
+		file = File.createTempFile("dao", ".trace");
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static TraceCall call(long thread, long startMillis, int param) {
+		return new TraceCall("select", "select ?", new Object[] { param },
+				thread, "t" + thread, startMillis * 1000000L, 1000000L, 1,
+				false);
+	}
+
+	public void testRecordedTraceIsTruncatedAndReadable() throws Exception {
+		QueryTraceRecorder recorder = new QueryTraceRecorder(file, 1024 * 1024);
+		QueryInterceptors.register(recorder);
+		try {
+			BaseDAOAccess.update(new FakeDatabase(), "ins", 7);
+			BaseDAOAccess.update(new FakeDatabase(), "ins", 8);
+		} finally {
+			recorder.close();
+		}
+		assertTrue("truncated: " + file.length(), file.length() < 1024);
+		QueryTraceReader reader = new QueryTraceReader(file);
+		try {
+			List<TraceCall> calls = reader.readAll();
+			assertEquals(2, calls.size());
+			assertEquals("ins", calls.get(0).getSqlKey());
+			assertEquals(Arrays.asList(7), Arrays.asList(calls.get(0).getParams()));
+			assertEquals(Arrays.asList(8), Arrays.asList(calls.get(1).getParams()));
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testSameSqlKeepsItsSqlKey() throws Exception {
+		QueryTraceRecorder recorder = new QueryTraceRecorder(file, 1024 * 1024);
+		QueryInterceptors.register(recorder);
+		try {
+			BaseDAOAccess.update(new FakeDatabase(), "ins", 7);
+			BaseDAOAccess.update(new FakeDatabase(), "insert", 8);
+		} finally {
+			recorder.close();
+		}
+		QueryTraceReader reader = new QueryTraceReader(file);
+		try {
+			List<TraceCall> calls = reader.readAll();
+			assertEquals("ins", calls.get(0).getSqlKey());
+			assertEquals("insert", calls.get(1).getSqlKey());
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testUnknownParameterIsNotReplayed() throws Exception {
+		QueryTraceRecorder recorder = new QueryTraceRecorder(file, 1024 * 1024);
+		QueryInterceptors.register(recorder);
+		try {
+			BaseDAOAccess.update(new FakeDatabase(), "ins", new byte[] { 1, 2 });
+			BaseDAOAccess.update(new FakeDatabase(), "ins", 8);
+		} finally {
+			recorder.close();
+		}
+		QueryTraceReader reader = new QueryTraceReader(file);
+		List<TraceCall> calls;
+		try {
+			calls = reader.readAll();
+		} finally {
+			reader.close();
+		}
+		assertFalse("byte[] replayable", calls.get(0).isReplayable());
+		assertEquals("<[B>", calls.get(0).getParams()[0].toString());
+		assertTrue("int replayable", calls.get(1).isReplayable());
+		FakeDatabase db = new FakeDatabase();
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		new QueryReplayer(db, 0).replay(calls, new PrintStream(report));
+		assertEquals(1, db.calls().size());
+		assertTrue(report.toString(), report.toString().contains("SKIPPED:\t1"));
+	}
+
+	public void testReplayOrdersByStartAndKeepsThreadsApart() throws Exception {
+		FakeDatabase db = new FakeDatabase();
+		// completion order, the calls of thread 1 are not in start order
+		List<TraceCall> calls = new ArrayList<TraceCall>();
+		calls.add(call(1, 20, 2));
+		calls.add(call(2, 0, 3));
+		calls.add(call(1, 10, 1));
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		new QueryReplayer(db, 0).replay(calls, new PrintStream(report));
+
+		List<Call> executed = db.calls();
+		assertEquals(3, executed.size());
+		List<Object> thread1 = new ArrayList<Object>();
+		String worker1 = null;
+		String worker2 = null;
+		for (Call c : executed) {
+			int param = (Integer) c.param(1);
+			if (param == 3) {
+				worker2 = c.thread;
+			} else {
+				thread1.add(param);
+				worker1 = c.thread;
+			}
+		}
+		assertEquals(Arrays.asList((Object) 1, 2), thread1);
+		assertFalse("own worker per recorded thread", worker1.equals(worker2));
+		assertTrue(report.toString(), report.toString().contains("THREADS:\t2"));
+		assertEquals(2, db.closed());
+	}
+}
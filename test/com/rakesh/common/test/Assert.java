@@ -0,0 +1,78 @@
+package com.rakesh.common.test;
+
+/**
+ * Assertions used by the tests, a failed assertion throws an
+ * {@link AssertionError}.
+ * 
+ * @author rakesh
+ */
+public class Assert {
+
+	/**
+	 * block of test code expected to throw.
+	 */
+	public interface Block {
+		void run() throws Exception;
+	}
+
+	private Assert() {
+	}
+
+	public static void fail(String msg) {
+		throw new AssertionError(msg);
+	}
+
+	public static void assertTrue(String msg, boolean condition) {
+		if (!condition)
+			fail(msg);
+	}
+
+	public static void assertFalse(String msg, boolean condition) {
+		if (condition)
+			fail(msg);
+	}
+
+	public static void assertEquals(Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			fail("expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	public static void assertEquals(long expected, long actual) {
+		if (expected != actual)
+			fail("expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	public static void assertNull(Object actual) {
+		if (actual != null)
+			fail("expected null but was <" + actual + ">");
+	}
+
+	public static void assertNotNull(Object actual) {
+		if (actual == null)
+			fail("expected not null");
+	}
+
+	public static void assertSame(Object expected, Object actual) {
+		if (expected != actual)
+			fail("expected same <" + expected + "> but was <" + actual + ">");
+	}
+
+	/**
+	 * runs the block and returns the exception it threw, fails if it threw
+	 * nothing or an exception of another type.
+	 */
+	public static <T extends Throwable> T expect(Class<T> type, Block block) {
+		try {
+			block.run();
+		} catch (Throwable t) {
+			if (type.isInstance(t))
+				return type.cast(t);
+			AssertionError e = new AssertionError("expected "
+					+ type.getName() + " but was " + t);
+			e.initCause(t);
+			throw e;
+		}
+		throw new AssertionError("expected " + type.getName()
+				+ " but nothing was thrown");
+	}
+}
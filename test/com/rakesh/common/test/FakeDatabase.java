@@ -0,0 +1,657 @@
+package com.rakesh.common.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * DataSource of an in-memory fake database used by the tests. Every
+ * statement executed is recorded as a {@link Call}; the rows of a query and
+ * the count of an update are given by {@link #query(Call)} and
+ * {@link #update(Call)}, which the tests override. Connections keep their
+ * auto-commit state, and the writes are moved to {@link #committed()} on
+ * commit, or dropped on rollback. Failures are injected by overriding
+ * {@link #onConnection(int, String)}.
+ * 
+ * @author rakesh
+ */
+public class FakeDatabase implements DataSource {
+
+	/**
+	 * one execution of a statement.
+	 */
+	public static class Call {
+		public final int connection;
+		public final String sql;
+		public final TreeMap<Integer, Object> params = new TreeMap<Integer, Object>();
+		public final List<Integer> outParams = new ArrayList<Integer>();
+		public int queryTimeout;
+		public int maxRows;
+		public boolean autoCommit;
+		public boolean readOnly;
+		public String thread;
+
+		Call(int connection, String sql) {
+			this.connection = connection;
+			this.sql = sql;
+		}
+
+		public Object param(int index) {
+			return params.get(index);
+		}
+
+		public Object[] params() {
+			return params.values().toArray();
+		}
+
+		Call copy() {
+			Call c = new Call(connection, sql);
+			c.params.putAll(params);
+			c.outParams.addAll(outParams);
+			c.queryTimeout = queryTimeout;
+			c.maxRows = maxRows;
+			return c;
+		}
+
+		@Override
+		public String toString() {
+			return sql + " " + params.values();
+		}
+	}
+
+	/**
+	 * rows of one result set, possibly followed by more result sets.
+	 */
+	public static class Rows {
+		final String[] columns;
+		final List<Object[]> data = new ArrayList<Object[]>();
+		Rows more;
+
+		public Rows(String... columns) {
+			this.columns = columns;
+		}
+
+		public Rows add(Object... row) {
+			data.add(row);
+			return this;
+		}
+
+		/**
+		 * adds the next result set, returns this.
+		 */
+		public Rows then(Rows next) {
+			Rows last = this;
+			while (last.more != null)
+				last = last.more;
+			last.more = next;
+			return this;
+		}
+	}
+
+	private final AtomicInteger connectionIds = new AtomicInteger();
+	private final AtomicInteger opened = new AtomicInteger();
+	private final AtomicInteger closed = new AtomicInteger();
+	private final AtomicInteger commits = new AtomicInteger();
+	private final AtomicInteger rollbacks = new AtomicInteger();
+	private final AtomicInteger cancels = new AtomicInteger();
+	private final List<Call> calls = Collections.synchronizedList(new ArrayList<Call>());
+	private final List<Call> committed = Collections.synchronizedList(new ArrayList<Call>());
+	private volatile boolean multipleResultSets = true;
+	private volatile boolean valid = true;
+
+	/**
+	 * rows returned by a query, by default an empty result with one column.
+	 * Returning null makes a call return an update count.
+	 */
+	protected Rows query(Call call) throws SQLException {
+		return new Rows("c1");
+	}
+
+	/**
+	 * count returned by an update, by default 1.
+	 */
+	protected int update(Call call) throws SQLException {
+		return 1;
+	}
+
+	/**
+	 * value of an OUT parameter of a call, by default the index.
+	 */
+	protected Object out(Call call, int index) throws SQLException {
+		return index;
+	}
+
+	/**
+	 * called before every method of a connection, to inject failures.
+	 */
+	protected void onConnection(int connection, String method)
+			throws SQLException {
+	}
+
+	/**
+	 * called before every method of a statement, to inject failures.
+	 */
+	protected void onStatement(String sql, String method) throws SQLException {
+	}
+
+	/**
+	 * called before every method of a result set, to inject failures.
+	 */
+	protected void onResultSet(String method) throws SQLException {
+	}
+
+	public int opened() {
+		return opened.get();
+	}
+
+	public int closed() {
+		return closed.get();
+	}
+
+	/** connections opened and not closed */
+	public int open() {
+		return opened.get() - closed.get();
+	}
+
+	/** explicit commits */
+	public int commits() {
+		return commits.get();
+	}
+
+	public int rollbacks() {
+		return rollbacks.get();
+	}
+
+	public int cancels() {
+		return cancels.get();
+	}
+
+	/** all statements executed */
+	public List<Call> calls() {
+		synchronized (calls) {
+			return new ArrayList<Call>(calls);
+		}
+	}
+
+	/** updates which were committed, in order */
+	public List<Call> committed() {
+		synchronized (committed) {
+			return new ArrayList<Call>(committed);
+		}
+	}
+
+	public void setMultipleResultSets(boolean multipleResultSets) {
+		this.multipleResultSets = multipleResultSets;
+	}
+
+	public void setValid(boolean valid) {
+		this.valid = valid;
+	}
+
+	public Connection getConnection() throws SQLException {
+		final int id = connectionIds.incrementAndGet();
+		opened.incrementAndGet();
+		return proxy(Connection.class, new ConnectionHandler(id));
+	}
+
+	public Connection getConnection(String username, String password)
+			throws SQLException {
+		return getConnection();
+	}
+
+	public PrintWriter getLogWriter() {
+		return null;
+	}
+
+	public void setLogWriter(PrintWriter out) {
+	}
+
+	public void setLoginTimeout(int seconds) {
+	}
+
+	public int getLoginTimeout() {
+		return 0;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		throw new SQLException("not a wrapper");
+	}
+
+	public boolean isWrapperFor(Class<?> iface) {
+		return false;
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				FakeDatabase.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == double.class)
+			return 0d;
+		if (type == float.class)
+			return 0f;
+		if (type == short.class)
+			return (short) 0;
+		if (type == byte.class)
+			return (byte) 0;
+		return null;
+	}
+
+	private abstract static class Handler implements InvocationHandler {
+		public Object invoke(Object proxy, Method m, Object[] a)
+				throws Throwable {
+			if (m.getName().equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (m.getName().equals("equals"))
+				return proxy == a[0];
+			if (m.getName().equals("toString"))
+				return getClass().getSimpleName() + "@"
+						+ System.identityHashCode(proxy);
+			try {
+				Object result = handle(proxy, m.getName(), a == null ? new Object[0] : a);
+				return result == null ? defaultValue(m.getReturnType()) : result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		abstract Object handle(Object proxy, String method, Object[] a)
+				throws Throwable;
+	}
+
+	private class ConnectionHandler extends Handler {
+		private final int id;
+		private final List<Call> pending = new ArrayList<Call>();
+		private volatile boolean autoCommit = true;
+		private volatile boolean readOnly;
+		private volatile boolean isClosed;
+
+		ConnectionHandler(int id) {
+			this.id = id;
+		}
+
+		@Override
+		Object handle(Object proxy, String method, Object[] a)
+				throws Throwable {
+			if (method.equals("isClosed"))
+				return isClosed;
+			if (method.equals("close")) {
+				if (!isClosed) {
+					isClosed = true;
+					closed.incrementAndGet();
+					// counted as closed even when the hook fails
+					onConnection(id, method);
+				}
+				return null;
+			}
+			if (method.equals("isValid"))
+				return valid && !isClosed;
+			if (isClosed)
+				throw new SQLException("connection " + id + " is closed");
+			onConnection(id, method);
+			if (method.equals("getAutoCommit"))
+				return autoCommit;
+			if (method.equals("setAutoCommit")) {
+				boolean value = (Boolean) a[0];
+				if (value && !autoCommit)
+					commit(false);
+				autoCommit = value;
+				return null;
+			}
+			if (method.equals("isReadOnly"))
+				return readOnly;
+			if (method.equals("setReadOnly")) {
+				readOnly = (Boolean) a[0];
+				return null;
+			}
+			if (method.equals("commit")) {
+				commit(true);
+				return null;
+			}
+			if (method.equals("rollback")) {
+				synchronized (this) {
+					pending.clear();
+				}
+				rollbacks.incrementAndGet();
+				return null;
+			}
+			if (method.equals("prepareStatement") || method.equals("prepareCall"))
+				return proxy(CallableStatement.class, new StatementHandler(this,
+						(String) a[0], method.equals("prepareCall")));
+			if (method.equals("getMetaData"))
+				return proxy(DatabaseMetaData.class, new Handler() {
+					@Override
+					Object handle(Object proxy, String method, Object[] a) {
+						if (method.equals("supportsMultipleResultSets"))
+							return multipleResultSets;
+						if (method.equals("getDatabaseProductName"))
+							return "fake";
+						return null;
+					}
+				});
+			if (method.equals("getTransactionIsolation"))
+				return Connection.TRANSACTION_READ_COMMITTED;
+			return null;
+		}
+
+		private void commit(boolean explicit) {
+			synchronized (this) {
+				committed.addAll(pending);
+				pending.clear();
+			}
+			if (explicit)
+				commits.incrementAndGet();
+		}
+
+		void written(Call call) {
+			if (call.autoCommit) {
+				committed.add(call);
+			} else {
+				synchronized (this) {
+					pending.add(call);
+				}
+			}
+		}
+	}
+
+	private class StatementHandler extends Handler {
+		private final ConnectionHandler connection;
+		private final String sql;
+		private final boolean isCall;
+		private Call current;
+		private final List<Call> batch = new ArrayList<Call>();
+		private int queryTimeout;
+		private int maxRows;
+		private int fetchSize;
+		private Rows results;
+		private int updateCount = -1;
+		private Call executed;
+		private boolean isClosed;
+
+		StatementHandler(ConnectionHandler connection, String sql,
+				boolean isCall) {
+			this.connection = connection;
+			this.sql = sql;
+			this.isCall = isCall;
+			this.current = new Call(connection.id, sql);
+		}
+
+		@Override
+		Object handle(Object proxy, String method, Object[] a)
+				throws Throwable {
+			onStatement(sql, method);
+			if (method.equals("close")) {
+				isClosed = true;
+				return null;
+			}
+			if (method.equals("isClosed"))
+				return isClosed;
+			if (method.equals("cancel")) {
+				cancels.incrementAndGet();
+				return null;
+			}
+			if (isClosed)
+				throw new SQLException("statement is closed");
+			if (method.equals("registerOutParameter")) {
+				current.outParams.add((Integer) a[0]);
+				return null;
+			}
+			if (method.startsWith("set") && a.length >= 2
+					&& a[0] instanceof Integer) {
+				current.params.put((Integer) a[0], a[1]);
+				return null;
+			}
+			if (method.equals("setQueryTimeout")) {
+				queryTimeout = (Integer) a[0];
+				return null;
+			}
+			if (method.equals("getQueryTimeout"))
+				return queryTimeout;
+			if (method.equals("setMaxRows")) {
+				maxRows = (Integer) a[0];
+				return null;
+			}
+			if (method.equals("setFetchSize")) {
+				fetchSize = (Integer) a[0];
+				return null;
+			}
+			if (method.equals("getFetchSize"))
+				return fetchSize;
+			if (method.equals("addBatch")) {
+				batch.add(current);
+				current = current.copy();
+				return null;
+			}
+			if (method.equals("clearBatch")) {
+				batch.clear();
+				return null;
+			}
+			if (method.equals("executeBatch"))
+				return executeBatch();
+			if (method.equals("executeQuery")) {
+				Rows rows = FakeDatabase.this.query(execute());
+				return resultSet(proxy, rows == null ? new Rows("c1") : rows);
+			}
+			if (method.equals("executeUpdate")) {
+				Call call = execute();
+				int count = FakeDatabase.this.update(call);
+				connection.written(call);
+				return count;
+			}
+			if (method.equals("execute")) {
+				Call call = execute();
+				results = FakeDatabase.this.query(call);
+				if (results == null) {
+					updateCount = FakeDatabase.this.update(call);
+					connection.written(call);
+				}
+				return results != null;
+			}
+			if (method.equals("getResultSet")) {
+				if (results == null)
+					return null;
+				return resultSet(proxy, results);
+			}
+			if (method.equals("getMoreResults")) {
+				if (results != null)
+					results = results.more;
+				updateCount = -1;
+				return results != null;
+			}
+			if (method.equals("getUpdateCount"))
+				return results != null ? -1 : updateCount;
+			if (method.equals("getObject") && a[0] instanceof Integer)
+				return out(executed, (Integer) a[0]);
+			if (method.equals("getConnection"))
+				return null;
+			return null;
+		}
+
+		private Call execute() {
+			Call call = current;
+			current = current.copy();
+			call.queryTimeout = queryTimeout;
+			call.maxRows = maxRows;
+			call.autoCommit = connection.autoCommit;
+			call.readOnly = connection.readOnly;
+			call.thread = Thread.currentThread().getName();
+			calls.add(call);
+			executed = call;
+			return call;
+		}
+
+		private int[] executeBatch() throws SQLException {
+			int[] counts = new int[batch.size()];
+			for (int i = 0; i < counts.length; i++) {
+				current = batch.get(i);
+				Call call = execute();
+				try {
+					counts[i] = FakeDatabase.this.update(call);
+				} catch (SQLException e) {
+					batch.clear();
+					throw new BatchUpdateException(e.getMessage(),
+							Arrays.copyOf(counts, i), e);
+				}
+				connection.written(call);
+			}
+			batch.clear();
+			current = new Call(connection.id, sql);
+			return counts;
+		}
+
+		private ResultSet resultSet(Object statement, Rows rows) {
+			return proxy(ResultSet.class, new ResultSetHandler(statement, rows, maxRows));
+		}
+	}
+
+	private class ResultSetHandler extends Handler {
+		private final Object statement;
+		private final Rows rows;
+		private final int size;
+		private int row = -1;
+		private boolean wasNull;
+		private boolean isClosed;
+		private int fetchSize;
+
+		ResultSetHandler(Object statement, Rows rows, int maxRows) {
+			this.statement = statement;
+			this.rows = rows;
+			this.size = maxRows > 0 ? Math.min(maxRows, rows.data.size()) : rows.data.size();
+		}
+
+		@Override
+		Object handle(Object proxy, String method, Object[] a)
+				throws Throwable {
+			onResultSet(method);
+			if (method.equals("close")) {
+				isClosed = true;
+				return null;
+			}
+			if (method.equals("isClosed"))
+				return isClosed;
+			if (isClosed)
+				throw new SQLException("result set is closed");
+			if (method.equals("next"))
+				return ++row < size;
+			if (method.equals("getStatement"))
+				return statement;
+			if (method.equals("wasNull"))
+				return wasNull;
+			if (method.equals("getFetchSize"))
+				return fetchSize;
+			if (method.equals("setFetchSize")) {
+				fetchSize = (Integer) a[0];
+				return null;
+			}
+			if (method.equals("getMetaData"))
+				return proxy(ResultSetMetaData.class, new Handler() {
+					@Override
+					Object handle(Object proxy, String method, Object[] a) {
+						if (method.equals("getColumnCount"))
+							return rows.columns.length;
+						int column = (Integer) a[0];
+						if (method.equals("getColumnLabel")
+								|| method.equals("getColumnName"))
+							return rows.columns[column - 1];
+						if (method.equals("getColumnType"))
+							return type(column);
+						if (method.equals("getColumnDisplaySize"))
+							return 10;
+						return null;
+					}
+				});
+			if (method.startsWith("get") && a.length >= 1) {
+				Object value = value(a[0]);
+				wasNull = value == null;
+				return convert(method.substring(3), value);
+			}
+			return null;
+		}
+
+		private int type(int column) {
+			if (rows.data.isEmpty())
+				return Types.VARCHAR;
+			Object v = rows.data.get(0)[column - 1];
+			if (v instanceof Integer)
+				return Types.INTEGER;
+			if (v instanceof Long)
+				return Types.BIGINT;
+			if (v instanceof String)
+				return Types.VARCHAR;
+			if (v instanceof byte[])
+				return Types.BLOB;
+			return Types.OTHER;
+		}
+
+		private Object value(Object column) throws SQLException {
+			if (row < 0 || row >= size)
+				throw new SQLException("no current row");
+			int index;
+			if (column instanceof Integer) {
+				index = (Integer) column;
+			} else {
+				index = Arrays.asList(rows.columns).indexOf(column) + 1;
+				if (index == 0)
+					throw new SQLException("no column " + column);
+			}
+			if (index < 1 || index > rows.columns.length)
+				throw new SQLException("no column " + index);
+			return rows.data.get(row)[index - 1];
+		}
+
+		private Object convert(String type, Object v)
+				throws SQLException {
+			if (v == null || type.equals("Object"))
+				return v;
+			if (type.equals("String"))
+				return String.valueOf(v);
+			if (type.equals("Int"))
+				return ((Number) v).intValue();
+			if (type.equals("Long"))
+				return ((Number) v).longValue();
+			if (type.equals("Double"))
+				return ((Number) v).doubleValue();
+			if (type.equals("Boolean"))
+				return v instanceof Boolean ? v : ((Number) v).intValue() != 0;
+			if (type.equals("BinaryStream"))
+				return new ByteArrayInputStream((byte[]) v);
+			if (type.equals("CharacterStream"))
+				return new StringReader((String) v);
+			return v;
+		}
+	}
+}
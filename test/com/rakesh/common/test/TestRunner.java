@@ -0,0 +1,143 @@
+package com.rakesh.common.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests of the test build directory: every class whose name ends
+ * with 'Test' and its public void no-argument methods whose name starts with
+ * 'test', each on a new instance of the class. setUp() and tearDown() are
+ * run around each test when the class has them. A test fails if it throws,
+ * or if it doesn't finish within the timeout (a deadlock). Used by the
+ * <code>test</code> target of build.xml. USAGE:
+ * 
+ * <pre>
+ * java com.rakesh.common.test.TestRunner &lt;test classes dir&gt; [class name filter]
+ * </pre>
+ * 
+ * @author rakesh
+ */
+public class TestRunner {
+
+	private static final long TIMEOUT_MILLIS = 30000;
+
+	private int run;
+	private final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("USAGE: TestRunner <test classes dir> [class name filter]");
+			System.exit(1);
+		}
+		List<String> classes = new ArrayList<String>();
+		File root = new File(args[0]);
+		scan(root, root, classes);
+		Collections.sort(classes);
+		TestRunner runner = new TestRunner();
+		for (String name : classes)
+			if (args.length < 2 || name.contains(args[1]))
+				runner.runClass(Class.forName(name));
+		System.out.println();
+		System.out.println("Tests run: " + runner.run + ", failures: "
+				+ runner.failures.size());
+		for (String failure : runner.failures)
+			System.out.println("FAILED " + failure);
+		// daemon threads of the tested code must not keep the JVM alive
+		System.exit(runner.failures.isEmpty() ? 0 : 1);
+	}
+
+	private static void scan(File root, File dir, List<String> classes) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory()) {
+				scan(root, f, classes);
+			} else if (f.getName().endsWith("Test.class")) {
+				String path = f.getPath().substring(root.getPath().length() + 1);
+				classes.add(path.substring(0, path.length() - 6).replace(
+						File.separatorChar, '.'));
+			}
+		}
+	}
+
+	private void runClass(Class<?> cl) throws Exception {
+		if (Modifier.isAbstract(cl.getModifiers()))
+			return;
+		List<Method> tests = new ArrayList<Method>();
+		for (Method m : cl.getMethods())
+			if (m.getName().startsWith("test") && m.getParameterTypes().length == 0
+					&& m.getReturnType() == void.class)
+				tests.add(m);
+		Collections.sort(tests, new Comparator<Method>() {
+			public int compare(Method a, Method b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (Method test : tests)
+			runTest(cl, test);
+	}
+
+	private void runTest(final Class<?> cl, final Method test)
+			throws InterruptedException {
+		final String name = cl.getSimpleName() + "." + test.getName();
+		final Throwable[] error = new Throwable[1];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Object instance = cl.getDeclaredConstructor().newInstance();
+					invoke(instance, "setUp");
+					try {
+						test.invoke(instance);
+					} finally {
+						invoke(instance, "tearDown");
+					}
+				} catch (InvocationTargetException e) {
+					error[0] = e.getCause();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		}, name);
+		t.setDaemon(true);
+		long start = System.currentTimeMillis();
+		t.start();
+		t.join(TIMEOUT_MILLIS);
+		run++;
+		if (t.isAlive()) {
+			StackTraceElement[] stack = t.getStackTrace();
+			failures.add(name + ": timed out after " + TIMEOUT_MILLIS
+					+ "ms at " + Arrays.toString(stack));
+			System.out.println("TIMEOUT " + name);
+		} else if (error[0] != null) {
+			failures.add(name + ": " + error[0]);
+			System.out.println("FAIL    " + name);
+			error[0].printStackTrace(System.out);
+		} else {
+			System.out.println("ok      " + name + " ("
+					+ (System.currentTimeMillis() - start) + "ms)");
+		}
+	}
+
+	private static void invoke(Object instance, String method)
+			throws Throwable {
+		Method m;
+		try {
+			m = instance.getClass().getMethod(method);
+		} catch (NoSuchMethodException e) {
+			return;
+		}
+		try {
+			m.invoke(instance);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
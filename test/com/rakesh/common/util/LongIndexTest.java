@@ -0,0 +1,64 @@
+package com.rakesh.common.util;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author rakesh
+ */
+public class LongIndexTest {
+
+	private static List<Integer> rows(LongIndex index, long key) {
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int row = index.get(key); row >= 0; row = index.next(row))
+			rows.add(row);
+		return rows;
+	}
+
+	public void testEmptyIndexFindsNothing() {
+		LongIndex index = new LongIndex(new long[0]);
+		assertEquals(0, index.size());
+		assertEquals(-1, index.get(1));
+		assertEquals(-1, index.get(0));
+	}
+
+	public void testUniqueKeys() {
+		LongIndex index = new LongIndex(new long[] { 10, -3, Long.MAX_VALUE,
+				Long.MIN_VALUE });
+		assertEquals(0, index.get(10));
+		assertEquals(1, index.get(-3));
+		assertEquals(2, index.get(Long.MAX_VALUE));
+		assertEquals(3, index.get(Long.MIN_VALUE));
+		assertEquals(-1, index.get(11));
+		assertEquals(-1, index.next(0));
+	}
+
+	public void testDuplicatesAreChainedInRowOrder() {
+		LongIndex index = new LongIndex(new long[] { 7, 8, 7, 9, 7 });
+		assertEquals(Arrays.asList(0, 2, 4), rows(index, 7));
+		assertEquals(Arrays.asList(1), rows(index, 8));
+	}
+
+	public void testZeroKeyIsIndexed() {
+		LongIndex index = new LongIndex(new long[] { 0, 5, 0 });
+		assertEquals(Arrays.asList(0, 2), rows(index, 0));
+		assertEquals(Arrays.asList(1), rows(index, 5));
+		assertEquals(-1, new LongIndex(new long[] { 5 }).get(0));
+	}
+
+	public void testManyKeysWithCollisions() {
+		int n = 10000;
+		long[] keys = new long[n];
+		// multiples of a power of two collide in naive hashing
+		for (int i = 0; i < n; i++)
+			keys[i] = (i % 5000) * 1024L;
+		LongIndex index = new LongIndex(keys);
+		for (int i = 0; i < 5000; i++)
+			assertEquals(Arrays.asList(i, i + 5000), rows(index, i * 1024L));
+		assertEquals(-1, index.get(5000 * 1024L));
+		assertEquals(-1, index.get(1));
+	}
+}
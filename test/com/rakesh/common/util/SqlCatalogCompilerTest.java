@@ -0,0 +1,63 @@
+package com.rakesh.common.util;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * @author rakesh
+ */
+public class SqlCatalogCompilerTest {
+
+	private File file;
+
+	public void tearDown() {
+		if (file != null)
+			file.delete();
+	}
+
+	private SqlCatalogCompiler compile(String content) throws IOException {
+		file = File.createTempFile("Dao", ".properties");
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		SqlCatalogCompiler compiler = new SqlCatalogCompiler();
+		compiler.compile(file, "test.Dao");
+		return compiler;
+	}
+
+	public void testValidFile() throws IOException {
+		assertEquals(0, compile("dao.maxConcurrent=4\na=select 1\n").getErrors().size());
+	}
+
+	public void testZeroLimitIsRejected() throws IOException {
+		SqlCatalogCompiler compiler = compile("dao.maxConcurrent.a=0\na=select 1\n");
+		assertEquals(1, compiler.getErrors().size());
+		assertTrue(compiler.getErrors().get(0), compiler.getErrors().get(0)
+				.contains("test.Dao#a"));
+	}
+
+	public void testNegativeFetchSizeIsRejected() throws IOException {
+		SqlCatalogCompiler compiler = compile("dao.fetchSize.a=-1\na=select 1\n");
+		assertEquals(1, compiler.getErrors().size());
+		assertTrue(compiler.getErrors().get(0), compiler.getErrors().get(0)
+				.contains("fetchSize"));
+	}
+
+	public void testZeroChunkSizeIsRejected() throws IOException {
+		SqlCatalogCompiler compiler = compile("dao.parallelChunkSize=0\na=select 1\n");
+		assertEquals(1, compiler.getErrors().size());
+		assertTrue(compiler.getErrors().get(0), compiler.getErrors().get(0)
+				.contains("parallelChunkSize"));
+	}
+
+	public void testUnbalancedQuotesAreRejected() throws IOException {
+		assertEquals(1, compile("a=select 'x\n").getErrors().size());
+	}
+}
@@ -0,0 +1,50 @@
+package com.rakesh.common.util;
+
+import static com.rakesh.common.test.Assert.assertEquals;
+import static com.rakesh.common.test.Assert.expect;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.rakesh.common.test.Assert.Block;
+
+/**
+ * @author rakesh
+ */
+public class SqlCatalogTest {
+
+	public void testWrittenCatalogIsReadBack() throws IOException {
+		Map<String, String> values = new TreeMap<String, String>();
+		values.put("select", "select name from t where note = 'été'");
+		values.put("dao.maxConcurrent", "4");
+		Map<String, Map<String, String>> classes = new TreeMap<String, Map<String, String>>();
+		classes.put("a.Dao", values);
+		classes.put("b.Empty", new TreeMap<String, String>());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		SqlCatalog.write(out, classes);
+		out.flush();
+
+		Map<String, Map<String, String>> read = new HashMap<String, Map<String, String>>();
+		SqlCatalog.read(new ByteArrayInputStream(bytes.toByteArray()), read);
+		assertEquals(classes, read);
+	}
+
+	public void testOtherFileIsRejected() {
+		expect(IOException.class, new Block() {
+			public void run() throws Exception {
+				SqlCatalog.read(new ByteArrayInputStream(new byte[8]),
+						new HashMap<String, Map<String, String>>());
+			}
+		});
+	}
+
+	public void testUnknownClassIsNotInCatalog() {
+		assertEquals(null, SqlCatalog.get("no.such.Dao"));
+	}
+}